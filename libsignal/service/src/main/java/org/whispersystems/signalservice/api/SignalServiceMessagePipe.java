@@ -21,14 +21,16 @@ import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
 import org.whispersystems.signalservice.internal.push.SendMessageResponse;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
-import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -45,8 +47,11 @@ public class SignalServiceMessagePipe {
 
   private static final String TAG = SignalServiceMessagePipe.class.getName();
 
+  private static final long REQUEST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
   private final WebSocketConnection           websocket;
   private final Optional<CredentialsProvider> credentialsProvider;
+  private final SecureRandom                  requestIds = new SecureRandom();
 
   SignalServiceMessagePipe(WebSocketConnection websocket, Optional<CredentialsProvider> credentialsProvider) {
     this.websocket           = websocket;
@@ -120,35 +125,62 @@ public class SignalServiceMessagePipe {
 
   public SendMessageResponse send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
     try {
-      List<String> headers = new LinkedList<String>() {{
-        add("content-type:application/json");
-      }};
+      return sendAsync(list, unidentifiedAccess).get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      else                                     throw new IOException(e);
+    } catch (InterruptedException | CancellationException e) {
+      throw new IOException(e);
+    }
+  }
 
-      if (unidentifiedAccess.isPresent()) {
-        headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
-      }
+  /**
+   * Sends a message without waiting for the response, so that a caller can have several sends in
+   * flight over the pipe at once. The returned future fails with an {@link IOException} if the
+   * server rejects the message or doesn't respond in time.
+   */
+  public ListenableFuture<SendMessageResponse> sendAsync(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+    List<String> headers = new LinkedList<String>() {{
+      add("content-type:application/json");
+    }};
 
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
-                                                                      .setVerb("PUT")
-                                                                      .setPath(String.format("/v1/messages/%s", list.getDestination()))
-                                                                      .addAllHeaders(headers)
-                                                                      .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
-                                                                      .build();
+    if (unidentifiedAccess.isPresent()) {
+      headers.add("Unidentified-Access-Key:" + Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    }
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+    WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                    .setId(requestIds.nextLong())
+                                                                    .setVerb("PUT")
+                                                                    .setPath(String.format("/v1/messages/%s", list.getDestination()))
+                                                                    .addAllHeaders(headers)
+                                                                    .setBody(ByteString.copyFrom(JsonUtil.toJson(list).getBytes()))
+                                                                    .build();
+
+    final SettableFuture<SendMessageResponse> result = new SettableFuture<>();
+
+    websocket.sendRequest(requestMessage, REQUEST_TIMEOUT_MILLIS).addListener(new ListenableFuture.Listener<Pair<Integer, String>>() {
+      @Override
+      public void onSuccess(Pair<Integer, String> response) {
+        if (response.first() < 200 || response.first() >= 300) {
+          result.setException(new IOException("Non-successful response: " + response.first()));
+        } else if (Util.isEmpty(response.second())) {
+          result.set(new SendMessageResponse(false));
+        } else {
+          try {
+            result.set(JsonUtil.fromJson(response.second(), SendMessageResponse.class));
+          } catch (IOException e) {
+            result.setException(e);
+          }
+        }
+      }
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
+      @Override
+      public void onFailure(ExecutionException e) {
+        result.setException(new IOException(e.getCause()));
       }
+    });
 
-      if (Util.isEmpty(response.second())) return new SendMessageResponse(false);
-      else                                 return JsonUtil.fromJson(response.second(), SendMessageResponse.class);
-    } catch (NoSuchAlgorithmException e) {
-      throw new AssertionError(e);
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
-      throw new IOException(e);
-    }
+    return result;
   }
 
   public SignalServiceProfile getProfile(SignalServiceAddress address, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
@@ -160,22 +192,20 @@ public class SignalServiceMessagePipe {
       }
 
       WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(SecureRandom.getInstance("SHA1PRNG").nextLong())
+                                                                      .setId(requestIds.nextLong())
                                                                       .setVerb("GET")
                                                                       .setPath(String.format("/v1/profile/%s", address.getIdentifier()))
                                                                       .addAllHeaders(headers)
                                                                       .build();
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+      Pair<Integer, String> response = websocket.sendRequest(requestMessage, REQUEST_TIMEOUT_MILLIS).get();
 
       if (response.first() < 200 || response.first() >= 300) {
         throw new IOException("Non-successful response: " + response.first());
       }
 
       return JsonUtil.fromJson(response.second(), SignalServiceProfile.class);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError(nsae);
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+    } catch (InterruptedException | ExecutionException | CancellationException e) {
       throw new IOException(e);
     }
   }
@@ -183,19 +213,19 @@ public class SignalServiceMessagePipe {
   public AttachmentUploadAttributes getAttachmentUploadAttributes() throws IOException {
     try {
       WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(new SecureRandom().nextLong())
+                                                                      .setId(requestIds.nextLong())
                                                                       .setVerb("GET")
                                                                       .setPath("/v2/attachments/form/upload")
                                                                       .build();
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+      Pair<Integer, String> response = websocket.sendRequest(requestMessage, REQUEST_TIMEOUT_MILLIS).get();
 
       if (response.first() < 200 || response.first() >= 300) {
         throw new IOException("Non-successful response: " + response.first());
       }
 
       return JsonUtil.fromJson(response.second(), AttachmentUploadAttributes.class);
-    } catch (InterruptedException | ExecutionException | TimeoutException e) {
+    } catch (InterruptedException | ExecutionException | CancellationException e) {
       throw new IOException(e);
     }
   }
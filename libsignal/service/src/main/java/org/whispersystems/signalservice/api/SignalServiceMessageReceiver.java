@@ -152,6 +152,22 @@ public class SignalServiceMessageReceiver {
     return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
   }
 
+  /**
+   * Like {@link #retrieveAttachment(SignalServiceAttachmentPointer, File, int, ProgressListener)},
+   * but the attachment's MAC and digest are checked as it's decrypted rather than beforehand.
+   *
+   * The returned stream throws an {@link IOException} at its end if the attachment fails to verify,
+   * so callers must not keep any of what they've read unless they read it all successfully.
+   */
+  public InputStream retrieveAttachmentSinglePass(SignalServiceAttachmentPointer pointer, File destination, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(null, pointer.getId(), destination, maxSizeBytes, listener);
+    return AttachmentCipherInputStream.createForAttachmentSinglePass(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+  }
+
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
       throws IOException, InvalidMessageException
   {
@@ -226,30 +242,66 @@ public class SignalServiceMessageReceiver {
     List<SignalServiceEnvelopeEntity> entities = socket.getMessages();
 
     for (SignalServiceEnvelopeEntity entity : entities) {
-      SignalServiceEnvelope envelope;
-
-      if (entity.hasSource() && entity.getSourceDevice() > 0) {
-        SignalServiceAddress address = new SignalServiceAddress(UuidUtil.parseOrNull(entity.getSourceUuid()), entity.getSourceE164());
-        envelope = new SignalServiceEnvelope(entity.getType(), Optional.of(address),
-                                             entity.getSourceDevice(), entity.getTimestamp(),
-                                             entity.getMessage(), entity.getContent(),
-                                             entity.getServerTimestamp(), entity.getServerUuid());
-      } else {
-        envelope = new SignalServiceEnvelope(entity.getType(), entity.getTimestamp(),
-                                             entity.getMessage(), entity.getContent(),
-                                             entity.getServerTimestamp(), entity.getServerUuid());
-      }
+      SignalServiceEnvelope envelope = createEnvelope(entity);
 
       callback.onMessage(envelope);
       results.add(envelope);
 
-      if (envelope.hasUuid()) socket.acknowledgeMessage(envelope.getUuid());
-      else                    socket.acknowledgeMessage(entity.getSourceE164(), entity.getTimestamp());
+      acknowledgeMessage(envelope, entity);
     }
 
     return results;
   }
 
+  /**
+   * Like {@link #retrieveMessages(MessageReceivedCallback)}, but hands the envelopes to the callback
+   * in batches. Each batch is acknowledged once the callback returns, so the callback must have
+   * stored every envelope in it by then.
+   */
+  public List<SignalServiceEnvelope> retrieveMessages(int batchSize, MessageBatchReceivedCallback callback)
+      throws IOException
+  {
+    List<SignalServiceEnvelope>       results  = new LinkedList<>();
+    List<SignalServiceEnvelopeEntity> entities = socket.getMessages();
+
+    for (int start = 0; start < entities.size(); start += batchSize) {
+      List<SignalServiceEnvelopeEntity> batchEntities = entities.subList(start, Math.min(start + batchSize, entities.size()));
+      List<SignalServiceEnvelope>       batch         = new ArrayList<>(batchEntities.size());
+
+      for (SignalServiceEnvelopeEntity entity : batchEntities) {
+        batch.add(createEnvelope(entity));
+      }
+
+      callback.onMessages(batch);
+      results.addAll(batch);
+
+      for (int i = 0; i < batch.size(); i++) {
+        acknowledgeMessage(batch.get(i), batchEntities.get(i));
+      }
+    }
+
+    return results;
+  }
+
+  private SignalServiceEnvelope createEnvelope(SignalServiceEnvelopeEntity entity) {
+    if (entity.hasSource() && entity.getSourceDevice() > 0) {
+      SignalServiceAddress address = new SignalServiceAddress(UuidUtil.parseOrNull(entity.getSourceUuid()), entity.getSourceE164());
+      return new SignalServiceEnvelope(entity.getType(), Optional.of(address),
+                                       entity.getSourceDevice(), entity.getTimestamp(),
+                                       entity.getMessage(), entity.getContent(),
+                                       entity.getServerTimestamp(), entity.getServerUuid());
+    } else {
+      return new SignalServiceEnvelope(entity.getType(), entity.getTimestamp(),
+                                       entity.getMessage(), entity.getContent(),
+                                       entity.getServerTimestamp(), entity.getServerUuid());
+    }
+  }
+
+  private void acknowledgeMessage(SignalServiceEnvelope envelope, SignalServiceEnvelopeEntity entity) throws IOException {
+    if (envelope.hasUuid()) socket.acknowledgeMessage(envelope.getUuid());
+    else                    socket.acknowledgeMessage(entity.getSourceE164(), entity.getTimestamp());
+  }
+
   public void setSoTimeoutMillis(long soTimeoutMillis) {
     socket.setSoTimeoutMillis(soTimeoutMillis);
   }
@@ -258,6 +310,10 @@ public class SignalServiceMessageReceiver {
     public void onMessage(SignalServiceEnvelope envelope);
   }
 
+  public interface MessageBatchReceivedCallback {
+    public void onMessages(List<SignalServiceEnvelope> envelopes);
+  }
+
   public static class NullMessageReceivedCallback implements MessageReceivedCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
@@ -79,11 +79,19 @@ import org.whispersystems.util.Base64;
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -96,10 +104,19 @@ public class SignalServiceMessageSender {
 
   private static final String TAG = SignalServiceMessageSender.class.getSimpleName();
 
+  private static final Object[] SESSION_LOCKS = new Object[32];
+
+  static {
+    for (int i = 0; i < SESSION_LOCKS.length; i++) {
+      SESSION_LOCKS[i] = new Object();
+    }
+  }
+
   private final PushServiceSocket                                   socket;
   private final SignalProtocolStore                                 store;
   private final SignalServiceAddress                                localAddress;
   private final Optional<EventListener>                             eventListener;
+  private final Optional<ExecutorService>                           executor;
 
   private final AtomicReference<Optional<SignalServiceMessagePipe>> pipe;
   private final AtomicReference<Optional<SignalServiceMessagePipe>> unidentifiedPipe;
@@ -137,13 +154,46 @@ public class SignalServiceMessageSender {
                                     Optional<SignalServiceMessagePipe> unidentifiedPipe,
                                     Optional<EventListener> eventListener)
   {
-    this.socket           = new PushServiceSocket(urls, credentialsProvider, userAgent);
+    this(urls, credentialsProvider, store, userAgent, isMultiDevice, pipe, unidentifiedPipe, eventListener, Optional.<ExecutorService>absent());
+  }
+
+  /**
+   * @param executor If present, messages to multiple recipients are encrypted and sent on this
+   *                 executor, with as many recipients in flight at once as it has threads. If
+   *                 absent, recipients are sent to one at a time on the calling thread. The
+   *                 executor must not be one that calls into this sender, and the store must be
+   *                 safe to use from its threads.
+   */
+  public SignalServiceMessageSender(SignalServiceConfiguration urls,
+                                    CredentialsProvider credentialsProvider,
+                                    SignalProtocolStore store,
+                                    String userAgent,
+                                    boolean isMultiDevice,
+                                    Optional<SignalServiceMessagePipe> pipe,
+                                    Optional<SignalServiceMessagePipe> unidentifiedPipe,
+                                    Optional<EventListener> eventListener,
+                                    Optional<ExecutorService> executor)
+  {
+    this(new PushServiceSocket(urls, credentialsProvider, userAgent), credentialsProvider, store, isMultiDevice, pipe, unidentifiedPipe, eventListener, executor);
+  }
+
+  SignalServiceMessageSender(PushServiceSocket socket,
+                             CredentialsProvider credentialsProvider,
+                             SignalProtocolStore store,
+                             boolean isMultiDevice,
+                             Optional<SignalServiceMessagePipe> pipe,
+                             Optional<SignalServiceMessagePipe> unidentifiedPipe,
+                             Optional<EventListener> eventListener,
+                             Optional<ExecutorService> executor)
+  {
+    this.socket           = socket;
     this.store            = store;
     this.localAddress     = new SignalServiceAddress(credentialsProvider.getUuid(), credentialsProvider.getE164());
     this.pipe             = new AtomicReference<>(pipe);
     this.unidentifiedPipe = new AtomicReference<>(unidentifiedPipe);
     this.isMultiDevice    = new AtomicBoolean(isMultiDevice);
     this.eventListener    = eventListener;
+    this.executor         = executor;
   }
 
   /**
@@ -231,11 +281,13 @@ public class SignalServiceMessageSender {
     }
 
     if (message.isEndSession()) {
-      if (recipient.getUuid().isPresent()) {
-        store.deleteAllSessions(recipient.getUuid().get().toString());
-      }
-      if (recipient.getNumber().isPresent()) {
-        store.deleteAllSessions(recipient.getNumber().get());
+      synchronized (getSessionLock(recipient)) {
+        if (recipient.getUuid().isPresent()) {
+          store.deleteAllSessions(recipient.getUuid().get().toString());
+        }
+        if (recipient.getNumber().isPresent()) {
+          store.deleteAllSessions(recipient.getNumber().get());
+        }
       }
 
       if (eventListener.isPresent()) {
@@ -1042,31 +1094,175 @@ public class SignalServiceMessageSender {
                                               boolean                            online)
       throws IOException
   {
+    if (executor.isPresent() && recipients.size() > 1) {
+      return sendMessageInParallel(recipients, unidentifiedAccess, timestamp, content, online);
+    }
+
     List<SendMessageResult>                results                    = new LinkedList<>();
     Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
     Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
 
     while (recipientIterator.hasNext()) {
-      SignalServiceAddress recipient = recipientIterator.next();
+      results.add(sendMessageToRecipient(recipientIterator.next(), unidentifiedAccessIterator.next(), timestamp, content, online));
+    }
 
-      try {
-        SendMessageResult result = sendMessage(recipient, unidentifiedAccessIterator.next(), timestamp, content, online);
-        results.add(result);
-      } catch (UntrustedIdentityException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.identityFailure(recipient, e.getIdentityKey()));
-      } catch (UnregisteredUserException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.unregisteredFailure(recipient));
-      } catch (PushNetworkException e) {
-        Log.w(TAG, e);
-        results.add(SendMessageResult.networkFailure(recipient));
+    return results;
+  }
+
+  /**
+   * Each recipient is encrypted for and sent to on the executor, so that the round trips for a
+   * large group overlap rather than being made one after another. Results are in the same order as
+   * the recipients, and the first unexpected failure, in recipient order, is rethrown once the
+   * others have been cancelled.
+   */
+  private List<SendMessageResult> sendMessageInParallel(List<SignalServiceAddress>         recipients,
+                                                        List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                                                        final long                         timestamp,
+                                                        final byte[]                       content,
+                                                        final boolean                      online)
+      throws IOException
+  {
+    prefetchSessions(recipients, unidentifiedAccess);
+
+    List<Future<SendMessageResult>>        futures                    = new ArrayList<>(recipients.size());
+    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
+    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
+
+    while (recipientIterator.hasNext()) {
+      final SignalServiceAddress         recipient = recipientIterator.next();
+      final Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
+
+      futures.add(executor.get().submit(new Callable<SendMessageResult>() {
+        @Override
+        public SendMessageResult call() throws IOException {
+          return sendMessageToRecipient(recipient, access, timestamp, content, online);
+        }
+      }));
+    }
+
+    List<SendMessageResult> results = new ArrayList<>(futures.size());
+
+    try {
+      for (Future<SendMessageResult> future : futures) {
+        results.add(future.get());
       }
+    } catch (ExecutionException e) {
+      cancel(futures);
+
+      if      (e.getCause() instanceof IOException)      throw (IOException) e.getCause();
+      else if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+      else                                               throw new AssertionError(e.getCause());
+    } catch (InterruptedException e) {
+      cancel(futures);
+      Thread.currentThread().interrupt();
+      throw new PushNetworkException(e);
     }
 
     return results;
   }
 
+  private SendMessageResult sendMessageToRecipient(SignalServiceAddress         recipient,
+                                                   Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                   long                         timestamp,
+                                                   byte[]                       content,
+                                                   boolean                      online)
+      throws IOException
+  {
+    try {
+      return sendMessage(recipient, unidentifiedAccess, timestamp, content, online);
+    } catch (UntrustedIdentityException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.identityFailure(recipient, e.getIdentityKey());
+    } catch (UnregisteredUserException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.unregisteredFailure(recipient);
+    } catch (PushNetworkException e) {
+      Log.w(TAG, e);
+      return SendMessageResult.networkFailure(recipient);
+    }
+  }
+
+  /**
+   * Builds sessions for any recipients that don't have one yet, fetching their pre-key bundles on
+   * the executor, before anything is encrypted. Failures are only logged, and are reported by the
+   * send itself when it retries the fetch.
+   */
+  private void prefetchSessions(List<SignalServiceAddress> recipients, List<Optional<UnidentifiedAccess>> unidentifiedAccess) {
+    List<Future<Void>>                     futures                    = new LinkedList<>();
+    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
+    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
+    Set<String>                            seen                       = new HashSet<>();
+
+    while (recipientIterator.hasNext()) {
+      final SignalServiceAddress         recipient = recipientIterator.next();
+      final Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
+
+      if (!seen.add(recipient.getIdentifier()) || !needsSession(recipient, access)) {
+        continue;
+      }
+
+      futures.add(executor.get().submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          ensureSession(recipient, access);
+          return null;
+        }
+      }));
+    }
+
+    if (futures.isEmpty()) {
+      return;
+    }
+
+    Log.i(TAG, "Prefetching sessions for " + futures.size() + " recipients...");
+
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (ExecutionException e) {
+        Log.w(TAG, "Failed to prefetch session.", e.getCause());
+      } catch (InterruptedException e) {
+        cancel(futures);
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+
+  private boolean needsSession(SignalServiceAddress recipient, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    if (recipient.matches(localAddress) && !unidentifiedAccess.isPresent()) {
+      return false;
+    }
+
+    return !store.containsSession(new SignalProtocolAddress(recipient.getIdentifier(), SignalServiceAddress.DEFAULT_DEVICE_ID));
+  }
+
+  /**
+   * Builds a session with the recipient if there isn't one. The bundles are fetched outside of the
+   * session lock, so a slow fetch doesn't hold up sends to other recipients.
+   */
+  private void ensureSession(SignalServiceAddress recipient, Optional<UnidentifiedAccess> unidentifiedAccess)
+      throws IOException, UntrustedIdentityException
+  {
+    if (!needsSession(recipient, unidentifiedAccess)) {
+      return;
+    }
+
+    List<PreKeyBundle> preKeys = socket.getPreKeys(recipient, unidentifiedAccess, SignalServiceAddress.DEFAULT_DEVICE_ID);
+
+    synchronized (getSessionLock(recipient)) {
+      if (needsSession(recipient, unidentifiedAccess)) {
+        processPreKeys(recipient, preKeys);
+      }
+    }
+  }
+
+  private static <T> void cancel(List<Future<T>> futures) {
+    for (Future<T> future : futures) {
+      future.cancel(true);
+    }
+  }
+
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
                                         Optional<UnidentifiedAccess> unidentifiedAccess,
                                         long                         timestamp,
@@ -1076,7 +1272,9 @@ public class SignalServiceMessageSender {
   {
     for (int i=0;i<4;i++) {
       try {
-        OutgoingPushMessageList            messages         = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online);
+        ensureSession(recipient, unidentifiedAccess);
+
+        OutgoingPushMessageList            messages         = getEncryptedMessagesLocked(socket, recipient, unidentifiedAccess, timestamp, content, online);
         Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
         Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
 
@@ -1119,7 +1317,9 @@ public class SignalServiceMessageSender {
         handleMismatchedDevices(socket, recipient, mde.getMismatchedDevices());
       } catch (StaleDevicesException ste) {
         Log.w(TAG, ste);
-        handleStaleDevices(recipient, ste.getStaleDevices());
+        synchronized (getSessionLock(recipient)) {
+          handleStaleDevices(recipient, ste.getStaleDevices());
+        }
       }
     }
 
@@ -1193,6 +1393,22 @@ public class SignalServiceMessageSender {
     return createAttachmentPointer(pointer);
   }
 
+  /**
+   * Encrypting advances the recipient's sessions, so it's done under the recipient's session lock
+   * to keep concurrent sends to the same recipient from building on the same session state.
+   */
+  private OutgoingPushMessageList getEncryptedMessagesLocked(PushServiceSocket            socket,
+                                                             SignalServiceAddress         recipient,
+                                                             Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                             long                         timestamp,
+                                                             byte[]                       plaintext,
+                                                             boolean                      online)
+      throws IOException, InvalidKeyException, UntrustedIdentityException
+  {
+    synchronized (getSessionLock(recipient)) {
+      return getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, plaintext, online);
+    }
+  }
 
   private OutgoingPushMessageList getEncryptedMessages(PushServiceSocket            socket,
                                                        SignalServiceAddress         recipient,
@@ -1228,25 +1444,7 @@ public class SignalServiceMessageSender {
     SignalServiceCipher   cipher                = new SignalServiceCipher(localAddress, store, null);
 
     if (!store.containsSession(signalProtocolAddress)) {
-      try {
-        List<PreKeyBundle> preKeys = socket.getPreKeys(recipient, unidentifiedAccess, deviceId);
-
-        for (PreKeyBundle preKey : preKeys) {
-          try {
-            SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId());
-            SessionBuilder        sessionBuilder = new SessionBuilder(store, preKeyAddress);
-            sessionBuilder.process(preKey);
-          } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
-            throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
-          }
-        }
-
-        if (eventListener.isPresent()) {
-          eventListener.get().onSecurityEvent(recipient);
-        }
-      } catch (InvalidKeyException e) {
-        throw new IOException(e);
-      }
+      processPreKeys(recipient, socket.getPreKeys(recipient, unidentifiedAccess, deviceId));
     }
 
     try {
@@ -1256,35 +1454,77 @@ public class SignalServiceMessageSender {
     }
   }
 
-  private void handleMismatchedDevices(PushServiceSocket socket, SignalServiceAddress recipient,
-                                       MismatchedDevices mismatchedDevices)
+  private void processPreKeys(SignalServiceAddress recipient, List<PreKeyBundle> preKeys)
       throws IOException, UntrustedIdentityException
   {
     try {
-      for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
-        if (recipient.getUuid().isPresent()) {
-          store.deleteSession(new SignalProtocolAddress(recipient.getUuid().get().toString(), extraDeviceId));
-        }
-        if (recipient.getNumber().isPresent()) {
-          store.deleteSession(new SignalProtocolAddress(recipient.getNumber().get(), extraDeviceId));
-        }
-      }
-
-      for (int missingDeviceId : mismatchedDevices.getMissingDevices()) {
-        PreKeyBundle preKey = socket.getPreKey(recipient, missingDeviceId);
-
+      for (PreKeyBundle preKey : preKeys) {
         try {
-          SessionBuilder sessionBuilder = new SessionBuilder(store, new SignalProtocolAddress(recipient.getIdentifier(), missingDeviceId));
+          SignalProtocolAddress preKeyAddress  = new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId());
+          SessionBuilder        sessionBuilder = new SessionBuilder(store, preKeyAddress);
           sessionBuilder.process(preKey);
         } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
           throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
         }
       }
+
+      if (eventListener.isPresent()) {
+        eventListener.get().onSecurityEvent(recipient);
+      }
     } catch (InvalidKeyException e) {
       throw new IOException(e);
     }
   }
 
+  private void handleMismatchedDevices(PushServiceSocket socket, SignalServiceAddress recipient,
+                                       MismatchedDevices mismatchedDevices)
+      throws IOException, UntrustedIdentityException
+  {
+    List<PreKeyBundle> preKeys = getPreKeys(socket, recipient, mismatchedDevices.getMissingDevices());
+
+    synchronized (getSessionLock(recipient)) {
+      try {
+        for (int extraDeviceId : mismatchedDevices.getExtraDevices()) {
+          if (recipient.getUuid().isPresent()) {
+            store.deleteSession(new SignalProtocolAddress(recipient.getUuid().get().toString(), extraDeviceId));
+          }
+          if (recipient.getNumber().isPresent()) {
+            store.deleteSession(new SignalProtocolAddress(recipient.getNumber().get(), extraDeviceId));
+          }
+        }
+
+        for (PreKeyBundle preKey : preKeys) {
+          try {
+            SessionBuilder sessionBuilder = new SessionBuilder(store, new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId()));
+            sessionBuilder.process(preKey);
+          } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
+            throw new UntrustedIdentityException("Untrusted identity key!", recipient.getIdentifier(), preKey.getIdentityKey());
+          }
+        }
+      } catch (InvalidKeyException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  /**
+   * Fetches a bundle for each of the listed devices only, so that devices we already have sessions
+   * with don't have their prekeys used up. They're fetched one at a time on the calling thread,
+   * which may be one of the executor's own, so waiting on the executor here could deadlock.
+   */
+  private List<PreKeyBundle> getPreKeys(PushServiceSocket socket, SignalServiceAddress recipient, List<Integer> deviceIds)
+      throws IOException
+  {
+    Set<Integer>       missing = new LinkedHashSet<>(deviceIds);
+    List<PreKeyBundle> preKeys = new ArrayList<>(missing.size());
+
+    for (int deviceId : missing) {
+      preKeys.add(socket.getPreKey(recipient, deviceId));
+    }
+
+    return preKeys;
+  }
+
   private void handleStaleDevices(SignalServiceAddress recipient, StaleDevices staleDevices) {
     for (int staleDeviceId : staleDevices.getStaleDevices()) {
       if (recipient.getUuid().isPresent()) {
@@ -1296,6 +1536,10 @@ public class SignalServiceMessageSender {
     }
   }
 
+  private static Object getSessionLock(SignalServiceAddress recipient) {
+    return SESSION_LOCKS[(recipient.getIdentifier().hashCode() & Integer.MAX_VALUE) % SESSION_LOCKS.length];
+  }
+
   private Optional<UnidentifiedAccess> getTargetUnidentifiedAccess(Optional<UnidentifiedAccessPair> unidentifiedAccess) {
     if (unidentifiedAccess.isPresent()) {
       return unidentifiedAccess.get().getTargetUnidentifiedAccess();
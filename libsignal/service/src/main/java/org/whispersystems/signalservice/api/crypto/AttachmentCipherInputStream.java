@@ -10,6 +10,7 @@ import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.signalservice.internal.util.ContentLengthInputStream;
+import org.whispersystems.signalservice.internal.util.MappedFileInputStream;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayInputStream;
@@ -41,15 +42,20 @@ import javax.crypto.spec.SecretKeySpec;
 
 public class AttachmentCipherInputStream extends FilterInputStream {
 
-  private static final int BLOCK_SIZE      = 16;
-  private static final int CIPHER_KEY_SIZE = 32;
-  private static final int MAC_KEY_SIZE    = 32;
-
-  private Cipher  cipher;
-  private boolean done;
-  private long    totalDataSize;
-  private long    totalRead;
-  private byte[]  overflowBuffer;
+  private static final int  BLOCK_SIZE           = 16;
+  private static final int  CIPHER_KEY_SIZE      = 32;
+  private static final int  MAC_KEY_SIZE         = 32;
+  private static final long MEMORY_MAP_THRESHOLD = 8 * 1024 * 1024;
+
+  private Cipher        cipher;
+  private boolean       done;
+  private long          totalDataSize;
+  private long          totalRead;
+  private byte[]        overflowBuffer;
+  private byte[]        internalBuffer;
+  private Mac           mac;
+  private MessageDigest digest;
+  private byte[]        theirDigest;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -85,6 +91,50 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Like {@link #createForAttachment(File, long, byte[], byte[])}, but verifies the MAC and digest
+   * in the same pass as decryption rather than reading the file twice. Large files are read through
+   * a memory map.
+   *
+   * Nothing read from the stream is authenticated until it has been read to the end, at which point
+   * an {@link IOException} is thrown if verification fails. Callers must discard everything they've
+   * read unless they reach the end without one.
+   */
+  public static InputStream createForAttachmentSinglePass(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    return createForAttachmentSinglePass(file, plaintextLength, combinedKeyMaterial, digest, file.length() >= MEMORY_MAP_THRESHOLD);
+  }
+
+  public static InputStream createForAttachmentSinglePass(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, boolean memoryMapped)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][] parts = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac      mac   = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      if (file.length() <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      if (digest == null) {
+        throw new InvalidMessageException(new InvalidMacException("Missing digest!"));
+      }
+
+      InputStream                 fileStream   = memoryMapped ? new MappedFileInputStream(file) : new FileInputStream(file);
+      AttachmentCipherInputStream cipherStream = new AttachmentCipherInputStream(fileStream, parts[0], file.length() - BLOCK_SIZE - mac.getMacLength(), mac, digest);
+
+      if (plaintextLength != 0) {
+        return new VerifyAtEndInputStream(new ContentLengthInputStream(cipherStream, plaintextLength), cipherStream);
+      } else {
+        return cipherStream;
+      }
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
@@ -112,6 +162,17 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize)
       throws IOException
+  {
+    this(inputStream, cipherKey, totalDataSize, null, null);
+  }
+
+  /**
+   * @param mac         If present, the MAC and digest are computed while decrypting and checked
+   *                    against the ones that follow the ciphertext once it's all been read.
+   * @param theirDigest The expected digest. Only used with a MAC.
+   */
+  private AttachmentCipherInputStream(InputStream inputStream, byte[] cipherKey, long totalDataSize, Mac mac, byte[] theirDigest)
+      throws IOException
   {
     super(inputStream);
 
@@ -119,6 +180,15 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       byte[] iv = new byte[BLOCK_SIZE];
       readFully(iv);
 
+      if (mac != null) {
+        this.mac         = mac;
+        this.digest      = MessageDigest.getInstance("SHA256");
+        this.theirDigest = theirDigest;
+
+        this.mac.update(iv);
+        this.digest.update(iv);
+      }
+
       this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
       this.cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
@@ -161,6 +231,10 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   }
 
   private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+    if (mac != null) {
+      verifyTrailingMac();
+    }
+
     try {
       int flourish = cipher.doFinal(buffer, offset);
 
@@ -194,9 +268,22 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     if (length + totalRead > totalDataSize)
       length = (int)(totalDataSize - totalRead);
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    if (internalBuffer == null || internalBuffer.length < length) {
+      internalBuffer = new byte[length];
+    }
+
+    int read = super.read(internalBuffer, 0, length <= cipher.getBlockSize() ? length : length - cipher.getBlockSize());
+
+    if (read == -1) {
+      throw new IOException("Unexpected end of stream!");
+    }
+
+    totalRead += read;
+
+    if (mac != null) {
+      mac.update(internalBuffer, 0, read);
+      digest.update(internalBuffer, 0, read);
+    }
 
     try {
       int outputLen = cipher.getOutputSize(read);
@@ -222,6 +309,23 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  private void verifyTrailingMac() throws IOException {
+    byte[] ourMac   = mac.doFinal();
+    byte[] theirMac = new byte[mac.getMacLength()];
+
+    Util.readFully(in, theirMac);
+
+    if (!MessageDigest.isEqual(ourMac, theirMac)) {
+      throw new IOException(new InvalidMacException("MAC doesn't match!"));
+    }
+
+    byte[] ourDigest = digest.digest(theirMac);
+
+    if (!MessageDigest.isEqual(ourDigest, theirDigest)) {
+      throw new IOException(new InvalidMacException("Digest doesn't match!"));
+    }
+  }
+
   private static void verifyMac(InputStream inputStream, long length, Mac mac, byte[] theirDigest)
       throws InvalidMacException
   {
@@ -268,4 +372,47 @@ public class AttachmentCipherInputStream extends FilterInputStream {
       else                		           return;
     }
   }
+
+  /**
+   * Attachments can be padded, so the plaintext can end before the ciphertext has all been read.
+   * Reads out the rest when the plaintext ends so that the MAC is always checked.
+   */
+  private static class VerifyAtEndInputStream extends FilterInputStream {
+
+    private final InputStream cipherStream;
+
+    private VerifyAtEndInputStream(InputStream plaintextStream, InputStream cipherStream) {
+      super(plaintextStream);
+      this.cipherStream = cipherStream;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int result = super.read();
+      if (result == -1) drain();
+      return result;
+    }
+
+    @Override
+    public int read(byte[] buffer) throws IOException {
+      return read(buffer, 0, buffer.length);
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int result = super.read(buffer, offset, length);
+      if (result == -1) drain();
+      return result;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void drain() throws IOException {
+      byte[] buffer = new byte[4096];
+      while (cipherStream.read(buffer) != -1);
+    }
+  }
 }
@@ -53,6 +53,7 @@ import org.whispersystems.signalservice.internal.contacts.entities.KeyBackupResp
 import org.whispersystems.signalservice.internal.contacts.entities.TokenResponse;
 import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.signalservice.internal.push.exceptions.StaleDevicesException;
+import org.whispersystems.signalservice.internal.push.http.ConnectionStats;
 import org.whispersystems.signalservice.internal.push.http.DigestingRequestBody;
 import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
 import org.whispersystems.signalservice.internal.storage.protos.ReadOperation;
@@ -82,12 +83,15 @@ import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
@@ -97,11 +101,14 @@ import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
 
 import okhttp3.Call;
+import okhttp3.ConnectionPool;
 import okhttp3.ConnectionSpec;
 import okhttp3.Credentials;
+import okhttp3.Dispatcher;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
@@ -176,6 +183,11 @@ public class PushServiceSocket {
   private final ConnectionHolder[]         storageClients;
   private final OkHttpClient               attachmentClient;
 
+  private final Dispatcher                   dispatcher       = new Dispatcher();
+  private final ConnectionPool               identifiedPool   = new ConnectionPool();
+  private final ConnectionPool               unidentifiedPool = new ConnectionPool();
+  private final Map<String, ConnectionStats> connectionStats  = new LinkedHashMap<>();
+
   private final CredentialsProvider credentialsProvider;
   private final String              userAgent;
   private final SecureRandom        random;
@@ -967,11 +979,7 @@ public class PushServiceSocket {
     }
 
     ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
 
@@ -1030,11 +1038,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener);
 
@@ -1205,17 +1209,13 @@ public class PushServiceSocket {
   {
     try {
       ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
-      OkHttpClient            baseClient       = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient() : connectionHolder.getClient();
-      OkHttpClient            okHttpClient     = baseClient.newBuilder()
-                                                           .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .build();
+      OkHttpClient            okHttpClient     = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient(soTimeoutMillis)
+                                                                                : connectionHolder.getClient(soTimeoutMillis);
 
-      Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
-      Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+      Log.d(TAG, "Opening " + method + " request...");
 
       Request.Builder request = new Request.Builder();
-      request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+      request.url(connectionHolder.getUrl() + urlFragment);
 
       if (body != null) {
         request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
@@ -1283,11 +1283,7 @@ public class PushServiceSocket {
   private Response makeRequest(ConnectionHolder connectionHolder, String authorization, List<String> cookies, String path, String method, String body)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    OkHttpClient okHttpClient = connectionHolder.getClient()
-                                                .newBuilder()
-                                                .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                .build();
+    OkHttpClient okHttpClient = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
@@ -1348,11 +1344,7 @@ public class PushServiceSocket {
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
     ConnectionHolder connectionHolder = getRandom(storageClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
@@ -1413,12 +1405,20 @@ public class PushServiceSocket {
     throw new NonSuccessfulResponseCodeException("Response: " + response);
   }
 
+  /**
+   * @return Latency and connection reuse for each endpoint this socket has been configured with,
+   *         keyed by URL.
+   */
+  public Map<String, ConnectionStats> getConnectionStats() {
+    return Collections.unmodifiableMap(connectionStats);
+  }
+
   private ServiceConnectionHolder[] createServiceConnectionHolders(SignalUrl[] urls) {
     List<ServiceConnectionHolder> serviceConnectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url),
-                                                               createConnectionClient(url),
+      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url, identifiedPool),
+                                                               createConnectionClient(url, unidentifiedPool),
                                                                url.getUrl(), url.getHostHeader()));
     }
 
@@ -1429,22 +1429,37 @@ public class PushServiceSocket {
     List<ConnectionHolder> connectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      connectionHolders.add(new ConnectionHolder(createConnectionClient(url), url.getUrl(), url.getHostHeader()));
+      connectionHolders.add(new ConnectionHolder(createConnectionClient(url, identifiedPool), url.getUrl(), url.getHostHeader()));
     }
 
     return connectionHolders.toArray(new ConnectionHolder[0]);
   }
 
-  private OkHttpClient createConnectionClient(SignalUrl url) {
+  /**
+   * Every client shares the socket's dispatcher. Unidentified requests get a pool of their own so
+   * that they're never sent down a connection that has carried our credentials.
+   */
+  private OkHttpClient createConnectionClient(SignalUrl url, ConnectionPool connectionPool) {
     try {
       TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
 
       SSLContext context = SSLContext.getInstance("TLS");
       context.init(null, trustManagers, null);
 
+      ConnectionStats stats = connectionStats.get(url.getUrl());
+
+      if (stats == null) {
+        stats = new ConnectionStats();
+        connectionStats.put(url.getUrl(), stats);
+      }
+
       return new OkHttpClient.Builder()
                              .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
                              .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                             .protocols(Util.immutableList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                             .connectionPool(connectionPool)
+                             .dispatcher(dispatcher)
+                             .eventListenerFactory(stats.newEventListenerFactory())
                              .build();
     } catch (NoSuchAlgorithmException | KeyManagementException e) {
       throw new AssertionError(e);
@@ -1563,11 +1578,35 @@ public class PushServiceSocket {
     }
   }
 
+  /**
+   * Derives a client with the given timeout from a base client the first time it's asked for, and
+   * hands back the same one after that. Derived clients share the base client's pool and dispatcher.
+   */
+  private static OkHttpClient getClientWithTimeout(OkHttpClient baseClient, ConcurrentMap<Long, OkHttpClient> clients, long timeoutMillis) {
+    OkHttpClient client = clients.get(timeoutMillis);
+
+    if (client == null) {
+      OkHttpClient created = baseClient.newBuilder()
+                                       .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                                       .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                                       .build();
+
+      client = clients.putIfAbsent(timeoutMillis, created);
+
+      if (client == null) {
+        client = created;
+      }
+    }
+
+    return client;
+  }
+
   private static class ConnectionHolder {
 
-    private final OkHttpClient     client;
-    private final String           url;
-    private final Optional<String> hostHeader;
+    private final OkHttpClient                      client;
+    private final String                            url;
+    private final Optional<String>                  hostHeader;
+    private final ConcurrentMap<Long, OkHttpClient> clientsByTimeout = new ConcurrentHashMap<>();
 
     private ConnectionHolder(OkHttpClient client, String url, Optional<String> hostHeader) {
       this.client     = client;
@@ -1575,8 +1614,8 @@ public class PushServiceSocket {
       this.hostHeader = hostHeader;
     }
 
-    OkHttpClient getClient() {
-      return client;
+    OkHttpClient getClient(long timeoutMillis) {
+      return getClientWithTimeout(client, clientsByTimeout, timeoutMillis);
     }
 
     public String getUrl() {
@@ -1590,15 +1629,16 @@ public class PushServiceSocket {
 
   private static class ServiceConnectionHolder extends ConnectionHolder {
 
-    private final OkHttpClient unidentifiedClient;
+    private final OkHttpClient                      unidentifiedClient;
+    private final ConcurrentMap<Long, OkHttpClient> unidentifiedClientsByTimeout = new ConcurrentHashMap<>();
 
     private ServiceConnectionHolder(OkHttpClient identifiedClient, OkHttpClient unidentifiedClient, String url, Optional<String> hostHeader) {
       super(identifiedClient, url, hostHeader);
       this.unidentifiedClient = unidentifiedClient;
     }
 
-    OkHttpClient getUnidentifiedClient() {
-      return unidentifiedClient;
+    OkHttpClient getUnidentifiedClient(long timeoutMillis) {
+      return getClientWithTimeout(unidentifiedClient, unidentifiedClientsByTimeout, timeoutMillis);
     }
   }
 
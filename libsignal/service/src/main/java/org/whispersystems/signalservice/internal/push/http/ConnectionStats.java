@@ -0,0 +1,124 @@
+package org.whispersystems.signalservice.internal.push.http;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Protocol;
+
+/**
+ * Counts the calls made to one endpoint, how long they took, and how often they had to open a new
+ * connection rather than reusing a pooled one.
+ */
+public class ConnectionStats {
+
+  private final AtomicLong calls               = new AtomicLong();
+  private final AtomicLong failures            = new AtomicLong();
+  private final AtomicLong connectionsAcquired = new AtomicLong();
+  private final AtomicLong connectionsOpened   = new AtomicLong();
+  private final AtomicLong tlsHandshakes       = new AtomicLong();
+  private final AtomicLong http2Calls          = new AtomicLong();
+  private final AtomicLong totalLatencyNanos   = new AtomicLong();
+
+  /**
+   * @return A factory to give to the endpoint's clients, which records each of their calls here.
+   */
+  public EventListener.Factory newEventListenerFactory() {
+    return new EventListener.Factory() {
+      @Override
+      public EventListener create(Call call) {
+        return new CallListener();
+      }
+    };
+  }
+
+  public long getCalls() {
+    return calls.get();
+  }
+
+  public long getFailures() {
+    return failures.get();
+  }
+
+  /**
+   * @return How many calls were served by a connection that was already open.
+   */
+  public long getReusedConnections() {
+    return Math.max(0, connectionsAcquired.get() - connectionsOpened.get());
+  }
+
+  public long getOpenedConnections() {
+    return connectionsOpened.get();
+  }
+
+  public long getTlsHandshakes() {
+    return tlsHandshakes.get();
+  }
+
+  public long getHttp2Calls() {
+    return http2Calls.get();
+  }
+
+  public long getAverageLatencyMillis() {
+    long calls = this.calls.get();
+    return calls > 0 ? TimeUnit.NANOSECONDS.toMillis(totalLatencyNanos.get() / calls) : 0;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(Locale.US, "calls: %d, failures: %d, average: %d ms, opened: %d, reused: %d, handshakes: %d, http/2: %d",
+                         getCalls(), getFailures(), getAverageLatencyMillis(), getOpenedConnections(),
+                         getReusedConnections(), getTlsHandshakes(), getHttp2Calls());
+  }
+
+  private class CallListener extends EventListener {
+
+    private long startNanos;
+
+    @Override
+    public void callStart(Call call) {
+      startNanos = System.nanoTime();
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+      connectionsOpened.incrementAndGet();
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+      tlsHandshakes.incrementAndGet();
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+      connectionsAcquired.incrementAndGet();
+
+      if (connection.protocol() == Protocol.HTTP_2) {
+        http2Calls.incrementAndGet();
+      }
+    }
+
+    @Override
+    public void callEnd(Call call) {
+      finish();
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+      failures.incrementAndGet();
+      finish();
+    }
+
+    private void finish() {
+      calls.incrementAndGet();
+      totalLatencyNanos.addAndGet(System.nanoTime() - startNanos);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+package org.whispersystems.signalservice.internal.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a file through a series of read-only memory maps rather than read() calls, which saves a
+ * copy per read on large files. The file is mapped a window at a time so that a large file doesn't
+ * need to fit in the address space at once.
+ */
+public class MappedFileInputStream extends InputStream {
+
+  private static final long WINDOW_SIZE = 16 * 1024 * 1024;
+
+  private final RandomAccessFile file;
+  private final FileChannel      channel;
+  private final long             length;
+
+  private MappedByteBuffer window;
+  private long             windowStart;
+
+  public MappedFileInputStream(File file) throws IOException {
+    this.file    = new RandomAccessFile(file, "r");
+    this.channel = this.file.getChannel();
+    this.length  = channel.size();
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (!ensureWindow()) return -1;
+    return window.get() & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0)     return 0;
+    if (!ensureWindow()) return -1;
+
+    int read = Math.min(length, window.remaining());
+    window.get(buffer, offset, read);
+
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) throws IOException {
+    long skipped = Math.max(0, Math.min(byteCount, length - position()));
+
+    if (window != null && skipped < window.remaining()) {
+      window.position(window.position() + (int) skipped);
+    } else {
+      windowStart = position() + skipped;
+      window      = null;
+    }
+
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    return (int) Math.min(Integer.MAX_VALUE, length - position());
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    file.close();
+  }
+
+  private long position() {
+    return window != null ? windowStart + window.position() : windowStart;
+  }
+
+  /**
+   * @return True if there's something left to read in the current window, mapping the next one if
+   *         necessary, or false at the end of the file.
+   */
+  private boolean ensureWindow() throws IOException {
+    if (window != null && window.hasRemaining()) {
+      return true;
+    }
+
+    long position = position();
+
+    if (position >= length) {
+      return false;
+    }
+
+    windowStart = position;
+    window      = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW_SIZE, length - position));
+
+    return true;
+  }
+}
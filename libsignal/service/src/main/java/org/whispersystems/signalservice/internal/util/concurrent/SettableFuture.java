@@ -2,6 +2,7 @@ package org.whispersystems.signalservice.internal.util.concurrent;
 
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -16,13 +17,17 @@ public class SettableFuture<T> implements ListenableFuture<T> {
   private volatile Throwable exception;
 
   @Override
-  public synchronized boolean cancel(boolean mayInterruptIfRunning) {
-    if (!completed && !canceled) {
-      canceled = true;
-      return true;
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (completed || canceled) return false;
+
+      this.canceled = true;
+
+      notifyAll();
     }
 
-    return false;
+    notifyAllListeners();
+    return true;
   }
 
   @Override
@@ -32,7 +37,7 @@ public class SettableFuture<T> implements ListenableFuture<T> {
 
   @Override
   public synchronized boolean isDone() {
-    return completed;
+    return completed || canceled;
   }
 
   public boolean set(T result) {
@@ -65,10 +70,11 @@ public class SettableFuture<T> implements ListenableFuture<T> {
 
   @Override
   public synchronized T get() throws InterruptedException, ExecutionException {
-    while (!completed) wait();
+    while (!completed && !canceled) wait();
 
-    if (exception != null) throw new ExecutionException(exception);
-    else                   return result;
+    if      (canceled)          throw new CancellationException();
+    else if (exception != null) throw new ExecutionException(exception);
+    else                        return result;
   }
 
   @Override
@@ -76,13 +82,15 @@ public class SettableFuture<T> implements ListenableFuture<T> {
       throws InterruptedException, ExecutionException, TimeoutException
   {
     long startTime = System.currentTimeMillis();
+    long remaining = unit.toMillis(timeout);
 
-    while (!completed && System.currentTimeMillis() - startTime < unit.toMillis(timeout)) {
-      wait(unit.toMillis(timeout));
+    while (!completed && !canceled && remaining > 0) {
+      wait(remaining);
+      remaining = unit.toMillis(timeout) - (System.currentTimeMillis() - startTime);
     }
 
-    if (!completed) throw new TimeoutException();
-    else            return get();
+    if (!completed && !canceled) throw new TimeoutException();
+    else                         return get();
   }
 
   @Override
@@ -109,7 +117,8 @@ public class SettableFuture<T> implements ListenableFuture<T> {
   }
 
   private void notifyListener(Listener<T> listener) {
-    if (exception != null) listener.onFailure(new ExecutionException(exception));
-    else                   listener.onSuccess(result);
+    if      (canceled)          listener.onFailure(new ExecutionException(new CancellationException()));
+    else if (exception != null) listener.onFailure(new ExecutionException(exception));
+    else                        listener.onSuccess(result);
   }
 }
@@ -12,16 +12,20 @@ import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
 import org.whispersystems.signalservice.api.websocket.ConnectivityListener;
 import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 
 import java.io.IOException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -43,13 +47,30 @@ import static org.whispersystems.signalservice.internal.websocket.WebSocketProto
 import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
 import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
 
+/**
+ * Incoming requests are queued for {@link #readRequest(long)} under this object's monitor.
+ * Outgoing requests don't touch the monitor at all: any number of threads can send at once, each
+ * request is matched to its response by ID, and up to a fixed number of them can be awaiting a
+ * response at the same time.
+ */
 public class WebSocketConnection extends WebSocketListener {
 
-  private static final String TAG                       = WebSocketConnection.class.getSimpleName();
-  private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
+  private static final String TAG                            = WebSocketConnection.class.getSimpleName();
+  private static final int    KEEPALIVE_TIMEOUT_SECONDS      = 55;
+  private static final int    DEFAULT_MAX_IN_FLIGHT_REQUESTS = 32;
+  private static final long   DEFAULT_REQUEST_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final ScheduledExecutorService REQUEST_TIMEOUTS = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+    @Override
+    public Thread newThread(Runnable runnable) {
+      Thread thread = new Thread(runnable, "signal-websocket-timeouts");
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
 
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<>();
-  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new HashMap<>();
+  private final LinkedList<WebSocketRequestMessage>  incomingRequests = new LinkedList<>();
+  private final ConcurrentMap<Long, OutgoingRequest> outgoingRequests = new ConcurrentHashMap<>();
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -57,11 +78,12 @@ public class WebSocketConnection extends WebSocketListener {
   private final String                        userAgent;
   private final ConnectivityListener          listener;
   private final SleepTimer                    sleepTimer;
+  private final Semaphore                     inFlightRequests;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private volatile WebSocket       client;
+  private          KeepAliveSender keepAliveSender;
+  private          int             attempts;
+  private volatile boolean         connected;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -69,12 +91,28 @@ public class WebSocketConnection extends WebSocketListener {
                              String userAgent,
                              ConnectivityListener listener,
                              SleepTimer timer)
+  {
+    this(httpUri, trustStore, credentialsProvider, userAgent, listener, timer, DEFAULT_MAX_IN_FLIGHT_REQUESTS);
+  }
+
+  /**
+   * @param maxInFlightRequests The most outgoing requests that can be awaiting a response at once.
+   *                            Further requests wait for one to finish.
+   */
+  public WebSocketConnection(String httpUri,
+                             TrustStore trustStore,
+                             Optional<CredentialsProvider> credentialsProvider,
+                             String userAgent,
+                             ConnectivityListener listener,
+                             SleepTimer timer,
+                             int maxInFlightRequests)
   {
     this.trustStore          = trustStore;
     this.credentialsProvider = credentialsProvider;
     this.userAgent           = userAgent;
     this.listener            = listener;
     this.sleepTimer          = timer;
+    this.inFlightRequests    = new Semaphore(maxInFlightRequests);
     this.attempts            = 0;
     this.connected           = false;
 
@@ -97,15 +135,6 @@ public class WebSocketConnection extends WebSocketListener {
         filledUri = wsUri;
       }
 
-      Pair<SSLSocketFactory, X509TrustManager> socketFactory = createTlsSocketFactory(trustStore);
-
-      OkHttpClient okHttpClient = new OkHttpClient.Builder()
-                                                  .sslSocketFactory(new Tls12SocketFactory(socketFactory.first()), socketFactory.second())
-                                                  .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
-                                                  .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
-                                                  .build();
-
       Request.Builder requestBuilder = new Request.Builder().url(filledUri);
 
       if (userAgent != null) {
@@ -117,10 +146,26 @@ public class WebSocketConnection extends WebSocketListener {
       }
 
       this.connected = false;
-      this.client    = okHttpClient.newWebSocket(requestBuilder.build(), this);
+      this.client    = openWebSocket(requestBuilder.build());
     }
   }
 
+  /**
+   * Starts opening the socket, which reports back to this connection as its listener.
+   */
+  protected WebSocket openWebSocket(Request request) {
+    Pair<SSLSocketFactory, X509TrustManager> socketFactory = createTlsSocketFactory(trustStore);
+
+    OkHttpClient okHttpClient = new OkHttpClient.Builder()
+                                                .sslSocketFactory(new Tls12SocketFactory(socketFactory.first()), socketFactory.second())
+                                                .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
+                                                .readTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                                .connectTimeout(KEEPALIVE_TIMEOUT_SECONDS + 10, TimeUnit.SECONDS)
+                                                .build();
+
+    return okHttpClient.newWebSocket(request, this);
+  }
+
   public synchronized void disconnect() {
     Log.w(TAG, "WSC disconnect()...");
 
@@ -154,25 +199,55 @@ public class WebSocketConnection extends WebSocketListener {
     else                                                   return incomingRequests.removeFirst();
   }
 
-  public synchronized Future<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+  public ListenableFuture<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+    return sendRequest(request, DEFAULT_REQUEST_TIMEOUT_MILLIS);
+  }
+
+  /**
+   * Sends a request without waiting for its response. If as many requests as allowed are already
+   * in flight, waits up to the timeout for one of them to finish first.
+   *
+   * @param timeoutMillis How long to wait for the response before the returned future fails with a
+   *                      {@link TimeoutException}. Cancelling the future stops waiting for it.
+   */
+  public ListenableFuture<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request, long timeoutMillis) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
+    try {
+      if (!inFlightRequests.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+        throw new IOException("Too many requests in flight!");
+      }
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+
+    OutgoingRequest outgoing = new OutgoingRequest(request.getId());
+
+    if (outgoingRequests.putIfAbsent(request.getId(), outgoing) != null) {
+      inFlightRequests.release();
+      throw new IOException("Duplicate request ID!");
+    }
+
+    outgoing.scheduleTimeout(timeoutMillis);
+
     WebSocketMessage message = WebSocketMessage.newBuilder()
                                                .setType(WebSocketMessage.Type.REQUEST)
                                                .setRequest(request)
                                                .build();
 
-    SettableFuture<Pair<Integer, String>> future = new SettableFuture<>();
-    outgoingRequests.put(request.getId(), future);
-
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoing.fail(new IOException("Write failed!"));
       throw new IOException("Write failed!");
     }
 
-    return future;
+    return outgoing;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -217,23 +292,27 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  /**
+   * Responses complete their request without taking the monitor, so they're never held up by
+   * senders or by a reader waiting for incoming requests.
+   */
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
-    Log.w(TAG, "WSC onMessage()");
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
-      Log.w(TAG, "Message Type: " + message.getType().getNumber());
+      Log.d(TAG, "Message Type: " + message.getType().getNumber());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
-        incomingRequests.add(message.getRequest());
+        synchronized (this) {
+          incomingRequests.add(message.getRequest());
+          notifyAll();
+        }
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.get(message.getResponse().getId());
-        if (listener != null) listener.set(new Pair<>(message.getResponse().getStatus(),
-                                                      new String(message.getResponse().getBody().toByteArray())));
+        OutgoingRequest request = outgoingRequests.get(message.getResponse().getId());
+        if (request != null) request.succeed(new Pair<>(message.getResponse().getStatus(),
+                                                        new String(message.getResponse().getBody().toByteArray())));
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       Log.w(TAG, e);
     }
@@ -244,12 +323,8 @@ public class WebSocketConnection extends WebSocketListener {
     Log.w(TAG, "onClose()...");
     this.connected = false;
 
-    Iterator<Map.Entry<Long, SettableFuture<Pair<Integer, String>>>> iterator = outgoingRequests.entrySet().iterator();
-
-    while (iterator.hasNext()) {
-      Map.Entry<Long, SettableFuture<Pair<Integer, String>>> entry = iterator.next();
-      entry.getValue().setException(new IOException("Closed: " + code + ", " + reason));
-      iterator.remove();
+    for (OutgoingRequest request : outgoingRequests.values()) {
+      request.fail(new IOException("Closed: " + code + ", " + reason));
     }
 
     if (keepAliveSender != null) {
@@ -314,6 +389,58 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
+  private final class OutgoingRequest extends SettableFuture<Pair<Integer, String>> {
+
+    private final long          id;
+    private final AtomicBoolean finished = new AtomicBoolean(false);
+
+    private volatile ScheduledFuture<?> timeout;
+
+    private OutgoingRequest(long id) {
+      this.id = id;
+    }
+
+    private void scheduleTimeout(final long timeoutMillis) {
+      timeout = REQUEST_TIMEOUTS.schedule(new Runnable() {
+        @Override
+        public void run() {
+          fail(new TimeoutException("No response after " + timeoutMillis + "ms"));
+        }
+      }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void succeed(Pair<Integer, String> response) {
+      if (finish()) set(response);
+    }
+
+    private void fail(Throwable throwable) {
+      if (finish()) setException(throwable);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      return finish() && super.cancel(mayInterruptIfRunning);
+    }
+
+    /**
+     * @return True the first time it's called, after the request has stopped counting against the
+     *         in-flight limit.
+     */
+    private boolean finish() {
+      if (!finished.compareAndSet(false, true)) {
+        return false;
+      }
+
+      outgoingRequests.remove(id, this);
+      inFlightRequests.release();
+
+      ScheduledFuture<?> timeout = this.timeout;
+      if (timeout != null) timeout.cancel(false);
+
+      return true;
+    }
+  }
+
   private class KeepAliveSender extends Thread {
 
     private AtomicBoolean stop = new AtomicBoolean(false);
@@ -0,0 +1,60 @@
+package org.whispersystems.signalservice.api;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.Group;
+import org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.MockWebSocket;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.SEND_THREADS;
+import static org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.message;
+import static org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.newSender;
+import static org.whispersystems.signalservice.api.SignalServiceMessageSenderTest.noAccess;
+
+/**
+ * Compares how long a group send takes with messages sent one at a time and in parallel.
+ */
+public class SignalServiceMessageSenderBenchmarkTest {
+
+  private static final int SERVER_LATENCY_MS = 20;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final ExecutorService          executor  = Executors.newFixedThreadPool(SEND_THREADS);
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void benchmark_groupSendLatencyByGroupSize() throws Exception {
+    int[]         sizes  = { 1, 10, 50, 100 };
+    StringBuilder report = new StringBuilder();
+
+    for (int size : sizes) {
+      long serial   = timeGroupSend(size, Optional.<ExecutorService>absent());
+      long parallel = timeGroupSend(size, Optional.of(executor));
+
+      report.append(String.format(Locale.US, "\n  %3d recipients: serial %5d ms, parallel %5d ms", size, serial, parallel));
+    }
+
+    System.out.println(SERVER_LATENCY_MS + " ms per request, " + SEND_THREADS + " threads:" + report);
+  }
+
+  private long timeGroupSend(int size, Optional<ExecutorService> executor) throws Exception {
+    Group                      group  = new Group(size);
+    SignalServiceMessageSender sender = newSender(group.store, new MockWebSocket(scheduler, SERVER_LATENCY_MS), executor);
+    long                       start  = System.nanoTime();
+
+    sender.sendMessage(group.recipients, noAccess(size), false, message());
+
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+  }
+}
@@ -0,0 +1,312 @@
+package org.whispersystems.signalservice.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.IdentityKeyPair;
+import org.whispersystems.libsignal.InvalidKeyException;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SessionCipher;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.ecc.Curve;
+import org.whispersystems.libsignal.ecc.ECKeyPair;
+import org.whispersystems.libsignal.protocol.PreKeySignalMessage;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignalProtocolStore;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
+import org.whispersystems.signalservice.api.messages.SendMessageResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceDataMessage;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.push.MismatchedDevices;
+import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.SendMessageResponse;
+import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevicesException;
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+import org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+public class SignalServiceMessageSenderTest {
+
+  private static final SignalServiceAddress LOCAL_ADDRESS     = new SignalServiceAddress(UUID.randomUUID(), "+15550000000");
+  private static final int                  SERVER_LATENCY_MS = 20;
+
+  static final int SEND_THREADS = 16;
+
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+  private final ExecutorService          executor  = Executors.newFixedThreadPool(SEND_THREADS);
+
+  @After
+  public void tearDown() {
+    scheduler.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void sendToGroup_inParallel_returnsResultsInRecipientOrder() throws Exception {
+    Group         group  = new Group(30);
+    MockWebSocket server = new MockWebSocket(scheduler, SERVER_LATENCY_MS);
+
+    List<SendMessageResult> results = newSender(group.store, server, Optional.of(executor)).sendMessage(group.recipients, noAccess(group.recipients.size()), false, message());
+
+    assertEquals(group.recipients.size(), results.size());
+
+    for (int i = 0; i < results.size(); i++) {
+      assertEquals(group.recipients.get(i), results.get(i).getAddress());
+      assertNotNull(results.get(i).getSuccess());
+    }
+
+    Set<String> paths = new HashSet<>();
+    for (WebSocketRequestMessage request : server.getRequests()) {
+      paths.add(request.getPath());
+    }
+
+    assertEquals(group.recipients.size(), paths.size());
+  }
+
+  @Test
+  public void sendToGroup_inParallel_encryptsEachSessionOnce() throws Exception {
+    Group                      group      = new Group(1);
+    MockWebSocket              server     = new MockWebSocket(scheduler, SERVER_LATENCY_MS);
+    List<SignalServiceAddress> recipients = Collections.nCopies(SEND_THREADS, group.recipients.get(0));
+
+    newSender(group.store, server, Optional.of(executor)).sendMessage(recipients, noAccess(recipients.size()), false, message());
+
+    SessionCipher bobCipher = new SessionCipher(group.recipientStores.get(0), new SignalProtocolAddress(LOCAL_ADDRESS.getIdentifier(), 1));
+
+    assertEquals(SEND_THREADS, server.getRequests().size());
+
+    for (WebSocketRequestMessage request : server.getRequests()) {
+      JsonNode message = new ObjectMapper().readTree(request.getBody().toByteArray()).get("messages").get(0);
+      bobCipher.decrypt(new PreKeySignalMessage(Base64.decode(message.get("content").asText())));
+    }
+  }
+
+  @Test(timeout = 30_000)
+  public void sendToGroup_inParallel_moreMismatchedDevicesThanThreads_completes() throws Exception {
+    Group            group      = new Group(SEND_THREADS);
+    MismatchedSocket socket     = new MismatchedSocket(group, 2, 3);
+    ExecutorService  fewThreads = Executors.newFixedThreadPool(2);
+
+    try {
+      SignalServiceMessageSender sender = new SignalServiceMessageSender(socket, credentials(), group.store, false,
+                                                                         Optional.<SignalServiceMessagePipe>absent(), Optional.<SignalServiceMessagePipe>absent(),
+                                                                         Optional.<SignalServiceMessageSender.EventListener>absent(),
+                                                                         Optional.of(fewThreads));
+
+      List<SendMessageResult> results = sender.sendMessage(group.recipients, noAccess(group.recipients.size()), false, message());
+
+      for (SendMessageResult result : results) {
+        assertNotNull(result.getSuccess());
+      }
+    } finally {
+      fewThreads.shutdownNow();
+    }
+
+    assertEquals(group.recipients.size() * 2, socket.getPreKeyRequests());
+  }
+
+  static SignalServiceMessageSender newSender(SignalProtocolStore store, MockWebSocket server, Optional<ExecutorService> executor) {
+    SignalServiceConfiguration configuration = new SignalServiceConfiguration(new SignalServiceUrl[0]);
+    CredentialsProvider        credentials   = credentials();
+    SignalServiceMessagePipe   pipe          = new SignalServiceMessagePipe(server, Optional.of(credentials));
+
+    return new SignalServiceMessageSender(configuration, credentials, store, "test", false,
+                                          Optional.of(pipe), Optional.<SignalServiceMessagePipe>absent(),
+                                          Optional.<SignalServiceMessageSender.EventListener>absent(),
+                                          executor);
+  }
+
+  private static CredentialsProvider credentials() {
+    return new StaticCredentialsProvider(LOCAL_ADDRESS.getUuid().get(), LOCAL_ADDRESS.getNumber().get(), "password", null);
+  }
+
+  static SignalServiceDataMessage message() {
+    return SignalServiceDataMessage.newBuilder().withTimestamp(System.currentTimeMillis()).withBody("Hello").build();
+  }
+
+  static List<Optional<UnidentifiedAccessPair>> noAccess(int size) {
+    return Collections.nCopies(size, Optional.<UnidentifiedAccessPair>absent());
+  }
+
+  /**
+   * Like the stores used in practice, the sender's store must be safe to use from multiple threads.
+   */
+  private static SignalProtocolStore synchronizedStore(final SignalProtocolStore store) {
+    return (SignalProtocolStore) Proxy.newProxyInstance(SignalProtocolStore.class.getClassLoader(), new Class[] { SignalProtocolStore.class }, new InvocationHandler() {
+      @Override
+      public synchronized Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        try {
+          return method.invoke(store, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      }
+    });
+  }
+
+  /**
+   * A local store with an established session to each of a set of recipients.
+   */
+  static final class Group {
+    final SignalProtocolStore        store;
+    final List<SignalServiceAddress> recipients      = new ArrayList<>();
+    final List<SignalProtocolStore>  recipientStores = new ArrayList<>();
+    final List<IdentityKeyPair>      identityKeys    = new ArrayList<>();
+
+    Group(int size) throws Exception {
+      this.store = synchronizedStore(new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(), KeyHelper.generateRegistrationId(false)));
+
+      for (int i = 0; i < size; i++) {
+        SignalServiceAddress recipient      = new SignalServiceAddress(UUID.randomUUID(), String.format(Locale.US, "+1555%07d", i + 1));
+        IdentityKeyPair      identityKey    = KeyHelper.generateIdentityKeyPair();
+        SignalProtocolStore  recipientStore = new InMemorySignalProtocolStore(identityKey, KeyHelper.generateRegistrationId(false));
+        ECKeyPair            preKey         = Curve.generateKeyPair();
+        ECKeyPair            signedPreKey   = Curve.generateKeyPair();
+        byte[]               signature      = Curve.calculateSignature(identityKey.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+        recipientStore.storePreKey(1, new PreKeyRecord(1, preKey));
+        recipientStore.storeSignedPreKey(1, new SignedPreKeyRecord(1, System.currentTimeMillis(), signedPreKey, signature));
+
+        new SessionBuilder(store, new SignalProtocolAddress(recipient.getIdentifier(), 1))
+            .process(new PreKeyBundle(recipientStore.getLocalRegistrationId(), 1,
+                                      1, preKey.getPublicKey(),
+                                      1, signedPreKey.getPublicKey(), signature,
+                                      identityKey.getPublicKey()));
+
+        recipients.add(recipient);
+        recipientStores.add(recipientStore);
+        identityKeys.add(identityKey);
+      }
+    }
+  }
+
+  /**
+   * Rejects the first message to each recipient because it's missing some of their devices, then
+   * hands out a bundle for each of those devices and accepts the retry.
+   */
+  private static final class MismatchedSocket extends PushServiceSocket {
+
+    private final Group             group;
+    private final MismatchedDevices mismatched;
+    private final Set<String>       rejected       = new HashSet<>();
+    private final AtomicInteger     preKeyRequests = new AtomicInteger();
+
+    MismatchedSocket(Group group, int... missingDevices) throws IOException {
+      super(new SignalServiceConfiguration(new SignalServiceUrl[0]), credentials(), "test");
+      this.group      = group;
+      this.mismatched = JsonUtil.fromJson("{\"missingDevices\":" + Arrays.toString(missingDevices) + ",\"extraDevices\":[]}", MismatchedDevices.class);
+    }
+
+    @Override
+    public SendMessageResponse sendMessage(OutgoingPushMessageList bundle, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
+      synchronized (rejected) {
+        if (rejected.add(bundle.getDestination())) {
+          throw new MismatchedDevicesException(mismatched);
+        }
+      }
+
+      return new SendMessageResponse(false);
+    }
+
+    @Override
+    public PreKeyBundle getPreKey(SignalServiceAddress destination, int deviceId) throws IOException {
+      preKeyRequests.incrementAndGet();
+
+      try {
+        IdentityKeyPair identityKey  = group.identityKeys.get(group.recipients.indexOf(destination));
+        ECKeyPair       preKey       = Curve.generateKeyPair();
+        ECKeyPair       signedPreKey = Curve.generateKeyPair();
+        byte[]          signature    = Curve.calculateSignature(identityKey.getPrivateKey(), signedPreKey.getPublicKey().serialize());
+
+        return new PreKeyBundle(KeyHelper.generateRegistrationId(false), deviceId,
+                                1, preKey.getPublicKey(),
+                                1, signedPreKey.getPublicKey(), signature,
+                                identityKey.getPublicKey());
+      } catch (InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    int getPreKeyRequests() {
+      return preKeyRequests.get();
+    }
+  }
+
+  /**
+   * Accepts every message after a fixed delay, with any number of requests in flight at once.
+   */
+  static final class MockWebSocket extends WebSocketConnection {
+
+    private final List<WebSocketRequestMessage> requests = new ArrayList<>();
+    private final ScheduledExecutorService      scheduler;
+    private final long                          latencyMs;
+
+    MockWebSocket(ScheduledExecutorService scheduler, long latencyMs) {
+      super("http://localhost", null, Optional.<CredentialsProvider>absent(), "test", null, null);
+      this.scheduler = scheduler;
+      this.latencyMs = latencyMs;
+    }
+
+    @Override
+    public synchronized void connect() {}
+
+    @Override
+    public synchronized ListenableFuture<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request, long timeoutMillis) {
+      final SettableFuture<Pair<Integer, String>> future = new SettableFuture<>();
+
+      requests.add(request);
+
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          future.set(new Pair<>(200, ""));
+        }
+      }, latencyMs, TimeUnit.MILLISECONDS);
+
+      return future;
+    }
+
+    synchronized List<WebSocketRequestMessage> getRequests() {
+      return new ArrayList<>(requests);
+    }
+  }
+}
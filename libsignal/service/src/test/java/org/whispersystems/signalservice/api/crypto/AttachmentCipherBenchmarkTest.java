@@ -0,0 +1,115 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import org.conscrypt.Conscrypt;
+import org.junit.Test;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.Security;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AttachmentCipherBenchmarkTest {
+
+  private static final int[] SIZES_MB = { 1, 10, 50, 200 };
+
+  static {
+    Security.insertProviderAt(Conscrypt.newProvider(), 1);
+  }
+
+  @Test
+  public void benchmark_decryptThroughputBySize() throws Exception {
+    StringBuilder report = new StringBuilder();
+
+    for (int sizeMb : SIZES_MB) {
+      long   length     = sizeMb * 1024L * 1024L;
+      byte[] key        = Util.getSecretBytes(64);
+      File   cipherFile = File.createTempFile("benchmark", ".data");
+
+      try {
+        byte[] digest = encryptToFile(cipherFile, length, key);
+
+        double twoPass      = throughput(cipherFile, length, key, digest, Mode.TWO_PASS);
+        double singlePass   = throughput(cipherFile, length, key, digest, Mode.SINGLE_PASS);
+        double memoryMapped = throughput(cipherFile, length, key, digest, Mode.SINGLE_PASS_MAPPED);
+
+        report.append(String.format(Locale.US, "\n  %3d MB: two-pass %6.1f MB/s, single-pass %6.1f MB/s, single-pass mapped %6.1f MB/s", sizeMb, twoPass, singlePass, memoryMapped));
+      } finally {
+        cipherFile.delete();
+      }
+    }
+
+    System.out.println("Decrypt throughput by attachment size:" + report);
+  }
+
+  private static double throughput(File cipherFile, long length, byte[] key, byte[] digest, Mode mode)
+      throws IOException, InvalidMessageException
+  {
+    long        start  = System.nanoTime();
+    InputStream stream = mode.open(cipherFile, length, key, digest);
+    byte[]      buffer = new byte[64 * 1024];
+    long        total  = 0;
+    int         read;
+
+    while ((read = stream.read(buffer)) != -1) {
+      total += read;
+    }
+
+    stream.close();
+
+    assertEquals(length, total);
+
+    return (length / (1024.0 * 1024.0)) / ((System.nanoTime() - start) / 1_000_000_000.0);
+  }
+
+  /**
+   * Encrypts pseudo-random data straight to disk, so that the larger sizes don't need to fit in
+   * memory, and checks that the first block decrypts to what was written.
+   */
+  private static byte[] encryptToFile(File file, long length, byte[] key) throws IOException, InvalidMessageException {
+    Random                       random  = new Random(length);
+    byte[]                       chunk   = new byte[64 * 1024];
+    byte[]                       first   = null;
+    AttachmentCipherOutputStream encrypt = new AttachmentCipherOutputStream(key, new BufferedOutputStream(new FileOutputStream(file)));
+
+    for (long written = 0; written < length; written += chunk.length) {
+      random.nextBytes(chunk);
+      if (first == null) first = chunk.clone();
+      encrypt.write(chunk, 0, (int) Math.min(chunk.length, length - written));
+    }
+
+    encrypt.flush();
+    encrypt.close();
+
+    byte[] digest = encrypt.getTransmittedDigest();
+    byte[] check  = new byte[first.length];
+
+    try (InputStream stream = AttachmentCipherInputStream.createForAttachmentSinglePass(file, length, key, digest, false)) {
+      Util.readFully(stream, check);
+    }
+
+    assertArrayEquals(first, check);
+
+    return digest;
+  }
+
+  private enum Mode {
+    TWO_PASS, SINGLE_PASS, SINGLE_PASS_MAPPED;
+
+    InputStream open(File file, long length, byte[] key, byte[] digest) throws IOException, InvalidMessageException {
+      switch (this) {
+        case TWO_PASS:    return AttachmentCipherInputStream.createForAttachment(file, length, key, digest);
+        case SINGLE_PASS: return AttachmentCipherInputStream.createForAttachmentSinglePass(file, length, key, digest, false);
+        default:          return AttachmentCipherInputStream.createForAttachmentSinglePass(file, length, key, digest, true);
+      }
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.whispersystems.signalservice.api.crypto;
 import junit.framework.TestCase;
 
 import org.conscrypt.Conscrypt;
+import org.whispersystems.libsignal.InvalidMacException;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.signalservice.internal.util.Util;
@@ -145,6 +146,64 @@ public class AttachmentCipherTest extends TestCase {
     assertTrue(hitCorrectException);
   }
 
+  public void test_attachment_singlePass_encryptDecrypt() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(100 * 1024 + 7);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+
+    for (boolean memoryMapped : new boolean[] { false, true }) {
+      InputStream inputStream     = AttachmentCipherInputStream.createForAttachmentSinglePass(cipherFile, plaintextInput.length, key, encryptResult.digest, memoryMapped);
+      byte[]      plaintextOutput = readInputStreamFully(inputStream);
+
+      assertTrue(Arrays.equals(plaintextInput, plaintextOutput));
+    }
+
+    cipherFile.delete();
+  }
+
+  public void test_attachment_singlePass_decryptFailOnBadMacAtEnd() throws IOException, InvalidMessageException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = "Miles Morales".getBytes();
+    EncryptResult encryptResult    = encryptData(plaintextInput, key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] = 0;
+
+    File        cipherFile          = writeToFile(badMacCiphertext);
+    InputStream inputStream         = AttachmentCipherInputStream.createForAttachmentSinglePass(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    boolean     hitCorrectException = false;
+
+    try {
+      readInputStreamFully(inputStream);
+    } catch (IOException e) {
+      hitCorrectException = e.getCause() instanceof InvalidMacException;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
+  public void test_attachment_singlePass_decryptFailOnBadDigestAtEnd() throws IOException, InvalidMessageException {
+    byte[]        key                 = Util.getSecretBytes(64);
+    byte[]        plaintextInput      = "Felicia Hardy".getBytes();
+    EncryptResult encryptResult       = encryptData(plaintextInput, key);
+    File          cipherFile          = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream         = AttachmentCipherInputStream.createForAttachmentSinglePass(cipherFile, plaintextInput.length, key, new byte[32], true);
+    boolean       hitCorrectException = false;
+
+    try {
+      readInputStreamFully(inputStream);
+    } catch (IOException e) {
+      hitCorrectException = e.getCause() instanceof InvalidMacException;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
   public void test_sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     byte[]        packKey         = Util.getSecretBytes(32);
     byte[]        plaintextInput  = "Peter Parker".getBytes();
@@ -0,0 +1,173 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.api.util.UptimeSleepTimer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+/**
+ * An in-process stand-in for the server end of the authenticated socket. Each request is answered
+ * after a fixed latency with a 200 whose body is the request's path, and any number of requests can
+ * be outstanding at once, like the real server.
+ */
+public class LocalWebSocketServer implements WebSocket {
+
+  private final ScheduledExecutorService      scheduler = Executors.newScheduledThreadPool(4);
+  private final List<WebSocketRequestMessage> requests  = new ArrayList<>();
+  private final long                          latencyMillis;
+
+  private volatile WebSocketListener listener;
+  private volatile CountDownLatch    opened;
+  private volatile boolean           responding = true;
+
+  public LocalWebSocketServer(long latencyMillis) {
+    this.latencyMillis = latencyMillis;
+  }
+
+  /**
+   * @return A connection that talks to this server rather than opening a real socket.
+   */
+  public WebSocketConnection newConnection(int maxInFlightRequests) {
+    return new WebSocketConnection("http://localhost", null, Optional.<CredentialsProvider>absent(), "test", null, new UptimeSleepTimer(), maxInFlightRequests) {
+      @Override
+      protected WebSocket openWebSocket(Request request) {
+        return open(this);
+      }
+    };
+  }
+
+  /**
+   * Stops answering requests, so that they're left in flight until they time out or are cancelled.
+   */
+  public void setResponding(boolean responding) {
+    this.responding = responding;
+  }
+
+  /**
+   * Closes the socket from the server end.
+   */
+  public void closeFromServer(final int code, final String reason) {
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        listener.onClosed(LocalWebSocketServer.this, code, reason);
+      }
+    });
+  }
+
+  /**
+   * Waits for the most recently opened connection to have been told it's open.
+   */
+  public void awaitOpen() throws InterruptedException {
+    if (!opened.await(5, TimeUnit.SECONDS)) {
+      throw new AssertionError("Connection never opened");
+    }
+  }
+
+  public synchronized List<WebSocketRequestMessage> getRequests() {
+    return new ArrayList<>(requests);
+  }
+
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  private WebSocket open(final WebSocketListener listener) {
+    final CountDownLatch opened = new CountDownLatch(1);
+
+    this.listener = listener;
+    this.opened   = opened;
+
+    scheduler.execute(new Runnable() {
+      @Override
+      public void run() {
+        listener.onOpen(LocalWebSocketServer.this, null);
+        opened.countDown();
+      }
+    });
+
+    return this;
+  }
+
+  @Override
+  public boolean send(ByteString bytes) {
+    final WebSocketMessage message;
+
+    try {
+      message = WebSocketMessage.parseFrom(bytes.toByteArray());
+    } catch (InvalidProtocolBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    if (message.getType() != WebSocketMessage.Type.REQUEST) {
+      return true;
+    }
+
+    synchronized (this) {
+      requests.add(message.getRequest());
+    }
+
+    if (responding) {
+      scheduler.schedule(new Runnable() {
+        @Override
+        public void run() {
+          WebSocketResponseMessage response = WebSocketResponseMessage.newBuilder()
+                                                                      .setId(message.getRequest().getId())
+                                                                      .setStatus(200)
+                                                                      .setMessage("OK")
+                                                                      .setBody(com.google.protobuf.ByteString.copyFromUtf8(message.getRequest().getPath()))
+                                                                      .build();
+
+          listener.onMessage(LocalWebSocketServer.this, ByteString.of(WebSocketMessage.newBuilder()
+                                                                                      .setType(WebSocketMessage.Type.RESPONSE)
+                                                                                      .setResponse(response)
+                                                                                      .build()
+                                                                                      .toByteArray()));
+        }
+      }, latencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    return true;
+  }
+
+  @Override
+  public boolean send(String text) {
+    return true;
+  }
+
+  @Override
+  public Request request() {
+    return new Request.Builder().url("http://localhost/v1/websocket/").build();
+  }
+
+  @Override
+  public long queueSize() {
+    return 0;
+  }
+
+  @Override
+  public boolean close(int code, String reason) {
+    return true;
+  }
+
+  @Override
+  public void cancel() {
+  }
+}
@@ -0,0 +1,99 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+
+/**
+ * Measures request throughput against a server with fixed latency as the number of requests
+ * allowed in flight at once grows.
+ */
+public class WebSocketConnectionBenchmarkTest {
+
+  private static final int LATENCY_MS          = 20;
+  private static final int SENDER_THREADS      = 8;
+  private static final int REQUESTS_PER_THREAD = 25;
+
+  private final AtomicLong      requestIds = new AtomicLong(1);
+  private final ExecutorService senders    = Executors.newFixedThreadPool(SENDER_THREADS);
+
+  @After
+  public void tearDown() {
+    senders.shutdownNow();
+  }
+
+  @Test
+  public void benchmark_throughputByWindowSize() throws Exception {
+    int[]         windows = { 1, 4, 32 };
+    StringBuilder report  = new StringBuilder();
+
+    for (int window : windows) {
+      LocalWebSocketServer server     = new LocalWebSocketServer(LATENCY_MS);
+      WebSocketConnection  connection = server.newConnection(window);
+
+      connection.connect();
+      server.awaitOpen();
+
+      long               start   = System.nanoTime();
+      List<Future<Void>> results = new ArrayList<>();
+
+      for (int i = 0; i < SENDER_THREADS; i++) {
+        results.add(senders.submit(newSender(connection)));
+      }
+
+      for (Future<Void> result : results) {
+        result.get();
+      }
+
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+      int  total   = SENDER_THREADS * REQUESTS_PER_THREAD;
+
+      report.append(String.format(Locale.US, "\n  window %2d: %4d requests in %5d ms (%.0f req/s)", window, total, elapsed, total * 1000.0 / Math.max(1, elapsed)));
+
+      connection.disconnect();
+      server.shutdown();
+    }
+
+    System.out.println(LATENCY_MS + " ms per request, " + SENDER_THREADS + " sender threads:" + report);
+  }
+
+  /**
+   * Sends requests back to back, keeping as many in flight as the connection allows, and waits for
+   * all of their responses.
+   */
+  private Callable<Void> newSender(final WebSocketConnection connection) {
+    return new Callable<Void>() {
+      @Override
+      public Void call() throws Exception {
+        List<ListenableFuture<Pair<Integer, String>>> futures = new ArrayList<>();
+
+        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+          futures.add(connection.sendRequest(WebSocketRequestMessage.newBuilder()
+                                                                    .setId(requestIds.getAndIncrement())
+                                                                    .setVerb("GET")
+                                                                    .setPath("/v1/test/" + i)
+                                                                    .build(), 10000));
+        }
+
+        for (ListenableFuture<Pair<Integer, String>> future : futures) {
+          future.get();
+        }
+
+        return null;
+      }
+    };
+  }
+}
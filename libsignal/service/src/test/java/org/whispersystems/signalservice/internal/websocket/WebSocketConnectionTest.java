@@ -0,0 +1,188 @@
+package org.whispersystems.signalservice.internal.websocket;
+
+import org.junit.After;
+import org.junit.Test;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+
+public class WebSocketConnectionTest {
+
+  private static final int LATENCY_MS          = 20;
+  private static final int SENDER_THREADS      = 8;
+  private static final int REQUESTS_PER_THREAD = 25;
+
+  private final AtomicLong      requestIds = new AtomicLong(1);
+  private final ExecutorService senders    = Executors.newFixedThreadPool(SENDER_THREADS);
+
+  private LocalWebSocketServer server;
+  private WebSocketConnection  connection;
+
+  @After
+  public void tearDown() {
+    senders.shutdownNow();
+
+    if (connection != null) connection.disconnect();
+    if (server != null)     server.shutdown();
+  }
+
+  @Test
+  public void sendRequest_concurrentSenders_matchResponsesToRequests() throws Exception {
+    connect(32);
+
+    List<Future<Set<String>>> results = new ArrayList<>();
+
+    for (int i = 0; i < SENDER_THREADS; i++) {
+      results.add(senders.submit(newSender(i)));
+    }
+
+    Set<String> responses = new HashSet<>();
+
+    for (Future<Set<String>> result : results) {
+      responses.addAll(result.get());
+    }
+
+    assertEquals(SENDER_THREADS * REQUESTS_PER_THREAD, responses.size());
+    assertEquals(SENDER_THREADS * REQUESTS_PER_THREAD, server.getRequests().size());
+  }
+
+  @Test
+  public void sendRequest_timesOutWithoutResponse_releasesInFlightSlot() throws Exception {
+    connect(1);
+    server.setResponding(false);
+
+    ListenableFuture<Pair<Integer, String>> future = connection.sendRequest(request("/v1/slow"), 100);
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof TimeoutException);
+    }
+
+    connection.sendRequest(request("/v1/after"), 100);
+  }
+
+  @Test
+  public void sendRequest_windowFull_failsFast() throws Exception {
+    connect(1);
+    server.setResponding(false);
+
+    connection.sendRequest(request("/v1/first"), 5000);
+
+    try {
+      connection.sendRequest(request("/v1/second"), 50);
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void cancel_releasesInFlightSlot() throws Exception {
+    connect(1);
+    server.setResponding(false);
+
+    ListenableFuture<Pair<Integer, String>> first = connection.sendRequest(request("/v1/first"), 5000);
+
+    assertTrue(first.cancel(true));
+    assertTrue(first.isCancelled());
+
+    try {
+      first.get();
+      fail();
+    } catch (CancellationException e) {
+      // Expected
+    }
+
+    server.setResponding(true);
+
+    assertEquals(200, (int) connection.sendRequest(request("/v1/second"), 50).get(5, TimeUnit.SECONDS).first());
+  }
+
+  @Test
+  public void close_failsRequestsInFlight() throws Exception {
+    connect(32);
+    server.setResponding(false);
+
+    ListenableFuture<Pair<Integer, String>> future = connection.sendRequest(request("/v1/pending"), 5000);
+
+    server.closeFromServer(1001, "Going away");
+
+    try {
+      future.get(5, TimeUnit.SECONDS);
+      fail();
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof IOException);
+    }
+  }
+
+  private void connect(int maxInFlightRequests) throws InterruptedException {
+    server     = new LocalWebSocketServer(LATENCY_MS);
+    connection = server.newConnection(maxInFlightRequests);
+
+    connection.connect();
+    server.awaitOpen();
+  }
+
+  /**
+   * Each sender sends its requests back to back, keeping as many in flight as it can, and returns
+   * the response bodies once they've all arrived.
+   */
+  private Callable<Set<String>> newSender(final int sender) {
+    return new Callable<Set<String>>() {
+      @Override
+      public Set<String> call() throws Exception {
+        List<ListenableFuture<Pair<Integer, String>>> futures = new ArrayList<>();
+        List<String>                                  paths   = new ArrayList<>();
+
+        for (int i = 0; i < REQUESTS_PER_THREAD; i++) {
+          String path = "/v1/test/" + sender + "/" + i;
+
+          paths.add(path);
+          futures.add(connection.sendRequest(request(path), 10000));
+        }
+
+        Set<String> bodies = new HashSet<>();
+
+        for (int i = 0; i < futures.size(); i++) {
+          Pair<Integer, String> response = futures.get(i).get();
+
+          assertEquals(200, (int) response.first());
+          assertEquals(paths.get(i), response.second());
+
+          bodies.add(response.second());
+        }
+
+        return bodies;
+      }
+    };
+  }
+
+  private WebSocketRequestMessage request(String path) {
+    return WebSocketRequestMessage.newBuilder()
+                                  .setId(requestIds.getAndIncrement())
+                                  .setVerb("GET")
+                                  .setPath(path)
+                                  .build();
+  }
+}
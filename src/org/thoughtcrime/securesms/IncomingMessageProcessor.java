@@ -14,10 +14,17 @@ import org.thoughtcrime.securesms.jobmanager.JobManager;
 import org.thoughtcrime.securesms.jobs.PushDecryptJob;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -75,36 +82,82 @@ public class IncomingMessageProcessor {
      *         one was created. Otherwise null.
      */
     public @Nullable String processEnvelope(@NonNull SignalServiceEnvelope envelope) {
-      if (envelope.hasSource()) {
-        Recipient.externalPush(context, envelope.getSourceAddress());
+      List<String> jobIds = processEnvelopes(Collections.singletonList(envelope));
+      return jobIds.isEmpty() ? null : jobIds.get(0);
+    }
+
+    /**
+     * Stores a batch of envelopes in one transaction and applies their receipts in another.
+     *
+     * Messages from a known sender are decrypted on that sender's own queue, so that different
+     * conversations are decrypted in parallel while each sender's messages stay in order. Sealed
+     * sender messages can't be attributed until they're decrypted, so they share a single queue,
+     * and since any of them may be from the same sender as a later message, every message after
+     * them joins that queue too until it has drained. Whether it has is read from the job store,
+     * so this holds across restarts.
+     *
+     * A sealed sender message can still be decrypted ahead of messages its sender sent earlier
+     * without sealed sender, if those are still waiting on their own queue. Senders only switch
+     * that way when they first learn how to reach us with sealed sender. The two are never
+     * decrypted at the same time, see {@link PushDecryptJob}.
+     *
+     * @return The id of the last {@link PushDecryptJob} scheduled on each queue. Once these have
+     *         finished, every message in the batch has been processed.
+     */
+    public @NonNull List<String> processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      List<SignalServiceEnvelope> messages      = new ArrayList<>(envelopes.size());
+      List<String>                messageQueues = new ArrayList<>(envelopes.size());
+      List<SyncMessageId>         receipts      = new LinkedList<>();
+      boolean                     sealedAhead   = false;
+      boolean                     queueChecked  = false;
+
+      for (SignalServiceEnvelope envelope : envelopes) {
+        RecipientId sender = envelope.hasSource() ? Recipient.externalPush(context, envelope.getSourceAddress()).getId() : null;
+
+        if (envelope.isReceipt()) {
+          Log.i(TAG, String.format(Locale.ENGLISH, "Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
+
+          if (sender != null) receipts.add(new SyncMessageId(sender, envelope.getTimestamp()));
+          else                Log.w(TAG, "Receipt has no source. Ignoring.");
+        } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
+          if (!queueChecked) {
+            sealedAhead  = !jobManager.isQueueEmpty(PushDecryptJob.QUEUE);
+            queueChecked = true;
+          }
+
+          sealedAhead |= sender == null;
+
+          messages.add(envelope);
+          messageQueues.add(sealedAhead ? PushDecryptJob.QUEUE : PushDecryptJob.queueFor(sender));
+        } else {
+          Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+        }
       }
 
-      if (envelope.isReceipt()) {
-        processReceipt(envelope);
-        return null;
-      } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender()) {
-        return processMessage(envelope);
-      } else {
-        Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
-        return null;
+      if (!receipts.isEmpty()) {
+        mmsSmsDatabase.incrementDeliveryReceiptCounts(receipts, System.currentTimeMillis());
       }
-    }
 
-    private @NonNull String processMessage(@NonNull SignalServiceEnvelope envelope) {
-      Log.i(TAG, "Received message. Inserting in PushDatabase.");
+      if (messages.isEmpty()) {
+        return Collections.emptyList();
+      }
 
-      long           id  = pushDatabase.insert(envelope);
-      PushDecryptJob job = new PushDecryptJob(context, id);
+      Log.i(TAG, "Received " + messages.size() + " message(s). Inserting in PushDatabase.");
 
-      jobManager.add(job);
+      List<Long>           ids            = pushDatabase.insert(messages);
+      List<PushDecryptJob> jobs           = new ArrayList<>(ids.size());
+      Map<String, String>  lastJobByQueue = new LinkedHashMap<>();
 
-      return job.getId();
-    }
+      for (int i = 0; i < ids.size(); i++) {
+        PushDecryptJob job = new PushDecryptJob(context, ids.get(i), messageQueues.get(i));
+
+        jobs.add(job);
+        lastJobByQueue.put(messageQueues.get(i), job.getId());
+      }
+
+      jobManager.startChain(jobs).enqueue();
 
-    private void processReceipt(@NonNull SignalServiceEnvelope envelope) {
-      Log.i(TAG, String.format(Locale.ENGLISH, "Received receipt: (XXXXX, %d)", envelope.getTimestamp()));
-      mmsSmsDatabase.incrementDeliveryReceiptCount(new SyncMessageId(Recipient.externalPush(context, envelope.getSourceAddress()).getId(), envelope.getTimestamp()),
-                                                   System.currentTimeMillis());
+      return new ArrayList<>(lastJobByQueue.values());
     }
 
     @Override
@@ -5,9 +5,11 @@ import android.content.Intent;
 import android.os.Bundle;
 import androidx.fragment.app.FragmentTransaction;
 import org.thoughtcrime.securesms.logging.Log;
+import android.view.Menu;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import org.thoughtcrime.securesms.logsubmit.LogViewerFragment;
 import org.thoughtcrime.securesms.logsubmit.SubmitLogFragment;
 import org.thoughtcrime.securesms.util.DynamicTheme;
 
@@ -37,12 +39,28 @@ public class LogSubmitActivity extends BaseActionBarActivity implements SubmitLo
     super.onResume();
   }
 
+  @Override
+  public boolean onCreateOptionsMenu(Menu menu) {
+    getMenuInflater().inflate(R.menu.log_submit_activity, menu);
+    return super.onCreateOptionsMenu(menu);
+  }
+
   @Override
   public boolean onOptionsItemSelected(MenuItem item) {
     super.onOptionsItemSelected(item);
     switch (item.getItemId()) {
     case android.R.id.home:
-      finish();
+      if (getSupportFragmentManager().getBackStackEntryCount() > 0) {
+        getSupportFragmentManager().popBackStack();
+      } else {
+        finish();
+      }
+      return true;
+    case R.id.menu_view_logs:
+      getSupportFragmentManager().beginTransaction()
+                                 .replace(R.id.fragment_container, LogViewerFragment.newInstance())
+                                 .addToBackStack(null)
+                                 .commit();
       return true;
     }
 
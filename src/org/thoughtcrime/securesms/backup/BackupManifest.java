@@ -0,0 +1,141 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.JsonUtils;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes a full backup that incremental backups can be taken against: its id, where it was
+ * written, and the content key of every attachment, sticker and avatar whose data it holds.
+ *
+ * The manifest of the current base is kept in app storage, encrypted with the attachment secret
+ * since its content keys are hashes of attachment data. It's cleared whenever the passphrase
+ * changes, since a base and its deltas have to be restored with the same one.
+ */
+public final class BackupManifest {
+
+  private static final String TAG = BackupManifest.class.getSimpleName();
+
+  private static final String FILE_NAME = "backup_manifest";
+
+  @JsonProperty
+  private String id;
+
+  @JsonProperty
+  private long timestamp;
+
+  @JsonProperty
+  private String location;
+
+  @JsonProperty
+  private Set<String> contentKeys;
+
+  public BackupManifest() {}
+
+  BackupManifest(@NonNull byte[] id) {
+    this.id          = Base64.encodeBytes(id);
+    this.timestamp   = System.currentTimeMillis();
+    this.contentKeys = new HashSet<>();
+  }
+
+  static @NonNull BackupManifest create() {
+    return new BackupManifest(Util.getSecretBytes(16));
+  }
+
+  @JsonIgnore
+  public @NonNull byte[] getBackupId() {
+    try {
+      return Base64.decode(id);
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public long getTimestamp() {
+    return timestamp;
+  }
+
+  public @Nullable String getLocation() {
+    return location;
+  }
+
+  public void setLocation(@NonNull String location) {
+    this.location = location;
+  }
+
+  boolean contains(@NonNull String contentKey) {
+    return contentKeys.contains(contentKey);
+  }
+
+  void add(@NonNull String contentKey) {
+    contentKeys.add(contentKey);
+  }
+
+  public int size() {
+    return contentKeys.size();
+  }
+
+  public static @Nullable BackupManifest get(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (!file.exists()) return null;
+
+    AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+
+    try (InputStream in = ModernDecryptingPartInputStream.createFor(attachmentSecret, file, 0)) {
+      return JsonUtils.fromJson(in, BackupManifest.class);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read the backup manifest, a full backup will be taken.", e);
+      clear(context);
+      return null;
+    }
+  }
+
+  public static void set(@NonNull Context context, @NonNull BackupManifest manifest) throws IOException {
+    AttachmentSecret attachmentSecret = AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+    File             file             = getFile(context);
+    File             tempFile         = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+    try (OutputStream out = ModernEncryptingPartOutputStream.createFor(attachmentSecret, tempFile, true).second) {
+      out.write(JsonUtils.toJson(manifest).getBytes());
+    }
+
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Failed to save the backup manifest!");
+    }
+  }
+
+  public static void clear(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete the backup manifest!");
+    }
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+}
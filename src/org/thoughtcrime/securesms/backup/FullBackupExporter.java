@@ -21,6 +21,7 @@ import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
 import org.thoughtcrime.securesms.crypto.IdentityKeyUtil;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.GroupReceiptDatabase;
@@ -37,25 +38,38 @@ import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Stopwatch;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -64,6 +78,10 @@ public class FullBackupExporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
+  private static final long PROGRESS_INTERVAL_MS = 100;
+
+  private static final AtomicLong lastProgressTime = new AtomicLong();
+
   private static final Set<String> BLACKLISTED_TABLES = Sets.newHashSet(
     SignedPreKeyDatabase.TABLE_NAME,
     OneTimePreKeyDatabase.TABLE_NAME,
@@ -75,79 +93,118 @@ public class FullBackupExporter extends FullBackupBase {
     JobDatabase.DEPENDENCIES_TABLE_NAME
   );
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase)
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase)
+          throws IOException
+  {
+    return export(context, attachmentSecret, input, output, passphrase, null);
+  }
+
+  /**
+   * @param base If set, an incremental backup is written against it, which only holds the data of
+   *             attachments, stickers and avatars that the base doesn't.
+   * @return The manifest of what was written, which can be used as a base if this was a full backup.
+   */
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase,
+                                               @Nullable BackupManifest base)
           throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, base);
     }
   }
 
   @RequiresApi(29)
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull DocumentFile output,
-                            @NonNull String passphrase)
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull DocumentFile output,
+                                               @NonNull String passphrase,
+                                               @Nullable BackupManifest base)
           throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      internalExport(context, attachmentSecret, input, outputStream, passphrase);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, base);
     }
   }
 
-  private static void internalExport(@NonNull Context context,
-                                     @NonNull AttachmentSecret attachmentSecret,
-                                     @NonNull SQLiteDatabase input,
-                                     @NonNull OutputStream fileOutputStream,
-                                     @NonNull String passphrase)
+  private static @NonNull BackupManifest internalExport(@NonNull Context context,
+                                                        @NonNull AttachmentSecret attachmentSecret,
+                                                        @NonNull SQLiteDatabase input,
+                                                        @NonNull OutputStream fileOutputStream,
+                                                        @NonNull String passphrase,
+                                                        @Nullable BackupManifest base)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(fileOutputStream, passphrase);
-    outputStream.writeDatabaseVersion(input.getVersion());
-
-    List<String> tables = exportSchema(input, outputStream);
-    int          count  = 0;
-
-    Stopwatch stopwatch = new Stopwatch("Backup");
-
-    for (String table : tables) {
-      if (table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMessage, null, count);
-      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
-      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
-      } else if (table.equals(StickerDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> true, cursor -> exportSticker(attachmentSecret, cursor, outputStream), count);
-      } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
-        count = exportTable(table, input, outputStream, null, null, count);
+    BackupManifest          manifest     = BackupManifest.create();
+    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(fileOutputStream, passphrase, manifest.getBackupId(), base != null ? base.getBackupId() : null);
+
+    try {
+      outputStream.writeDatabaseVersion(input.getVersion());
+
+      List<String> tables = exportSchema(input, outputStream);
+      int          count  = 0;
+
+      Stopwatch stopwatch = new Stopwatch("Backup");
+
+      for (String table : tables) {
+        if (table.equals(MmsDatabase.TABLE_NAME)) {
+          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMessage, null, count);
+        } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
+          count = exportTable(table, selectForNonExpiringMessages(table, GroupReceiptDatabase.MMS_ID), input, outputStream, null, null, count);
+        } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+          count = exportTable(table, selectForNonExpiringMessages(table, AttachmentDatabase.MMS_ID), input, outputStream, null, cursor -> exportAttachment(attachmentSecret, cursor, outputStream, base, manifest), count);
+        } else if (table.equals(StickerDatabase.TABLE_NAME)) {
+          count = exportTable(table, input, outputStream, cursor -> true, cursor -> exportSticker(attachmentSecret, cursor, outputStream, base, manifest), count);
+        } else if (!BLACKLISTED_TABLES.contains(table) && !table.startsWith("sqlite_")) {
+          count = exportTable(table, input, outputStream, null, null, count);
+        }
+        stopwatch.split("table::" + table);
       }
-      stopwatch.split("table::" + table);
-    }
 
-    for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(preference);
-    }
+      for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
+        postProgress(++count);
+        outputStream.write(preference);
+      }
 
-    stopwatch.split("prefs");
+      stopwatch.split("prefs");
 
-    for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
-    }
+      for (File avatar : AvatarHelper.getAvatarFiles(context)) {
+        postProgress(++count);
+
+        String contentKey = "avatar:" + avatar.getName() + ":" + avatar.length() + ":" + avatar.lastModified();
+
+        if (base != null && base.contains(contentKey)) {
+          outputStream.writeAvatarInBase(avatar.getName(), contentKey, avatar.length());
+        } else {
+          outputStream.write(avatar.getName(), contentKey, new FileInputStream(avatar), avatar.length());
+          manifest.add(contentKey);
+        }
+      }
+
+      stopwatch.split("avatars");
+
+      outputStream.writeEnd();
+      outputStream.close();
+
+      stopwatch.split("flush");
+      stopwatch.stop(TAG);
 
-    stopwatch.split("avatars");
-    stopwatch.stop(TAG);
+      if (base != null) Log.i(TAG, "Wrote an incremental backup with " + manifest.size() + " new items against a base with " + base.size() + ".");
 
-    outputStream.writeEnd();
-    outputStream.close();
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+
+      return manifest;
+    } finally {
+      outputStream.abort();
+    }
   }
 
   private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
@@ -187,12 +244,24 @@ public class FullBackupExporter extends FullBackupBase {
                                  @Nullable  Consumer<Cursor> postProcess,
                                             int count)
       throws IOException
+  {
+    return exportTable(table, "SELECT * FROM " + table, input, outputStream, predicate, postProcess, count);
+  }
+
+  private static int exportTable(@NonNull   String table,
+                                 @NonNull   String query,
+                                 @NonNull   SQLiteDatabase input,
+                                 @NonNull   BackupFrameOutputStream outputStream,
+                                 @Nullable  Predicate<Cursor> predicate,
+                                 @Nullable  Consumer<Cursor> postProcess,
+                                            int count)
+      throws IOException
   {
     String template = "INSERT INTO " + table + " VALUES ";
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
+    try (Cursor cursor = input.rawQuery(query, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+        postProgress(++count);
 
         if (predicate == null || predicate.test(cursor)) {
           StringBuilder                     statement        = new StringBuilder(template);
@@ -227,6 +296,8 @@ public class FullBackupExporter extends FullBackupBase {
           outputStream.write(statementBuilder.setStatement(statement.toString()).build());
 
           if (postProcess != null) postProcess.accept(cursor);
+
+          outputStream.checkWriter();
         }
       }
     }
@@ -234,14 +305,20 @@ public class FullBackupExporter extends FullBackupBase {
     return count;
   }
 
-  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
+  private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret,
+                                       @NonNull Cursor cursor,
+                                       @NonNull BackupFrameOutputStream outputStream,
+                                       @Nullable BackupManifest base,
+                                       @NonNull BackupManifest manifest)
+  {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.ROW_ID));
       long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.UNIQUE_ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.SIZE));
 
-      String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
-      byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+      String data     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA));
+      byte[] random   = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_RANDOM));
+      String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentDatabase.DATA_HASH));
 
       if (!TextUtils.isEmpty(data)) {
         long fileLength = new File(data).length();
@@ -254,19 +331,33 @@ public class FullBackupExporter extends FullBackupBase {
       }
 
       if (!TextUtils.isEmpty(data) && size > 0) {
+        AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
+        String       contentKey   = getContentKey(dataHash, data, size);
+
+        if (base != null && base.contains(contentKey)) {
+          outputStream.writeInBase(attachmentId, contentKey, size);
+          return;
+        }
+
         InputStream inputStream;
 
-        if (random != null && random.length == 32) inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
+        if (random != null && random.length == 32) inputStream = ModernDecryptingPartChannel.createFor(attachmentSecret, random, new File(data)).createInputStream(0);
         else                                       inputStream = ClassicDecryptingPartInputStream.createFor(attachmentSecret, new File(data));
 
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+        outputStream.write(attachmentId, contentKey, inputStream, size);
+        manifest.add(contentKey);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
     }
   }
 
-  private static void exportSticker(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
+  private static void exportSticker(@NonNull AttachmentSecret attachmentSecret,
+                                    @NonNull Cursor cursor,
+                                    @NonNull BackupFrameOutputStream outputStream,
+                                    @Nullable BackupManifest base,
+                                    @NonNull BackupManifest manifest)
+  {
     try {
       long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase._ID));
       long size     = cursor.getLong(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_LENGTH));
@@ -275,14 +366,31 @@ public class FullBackupExporter extends FullBackupBase {
       byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerDatabase.FILE_RANDOM));
 
       if (!TextUtils.isEmpty(data) && size > 0) {
-        InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
-        outputStream.writeSticker(rowId, inputStream, size);
+        String contentKey = getContentKey(null, data, size);
+
+        if (base != null && base.contains(contentKey)) {
+          outputStream.writeStickerInBase(rowId, contentKey, size);
+          return;
+        }
+
+        InputStream inputStream = ModernDecryptingPartChannel.createFor(attachmentSecret, random, new File(data)).createInputStream(0);
+        outputStream.writeSticker(rowId, contentKey, inputStream, size);
+        manifest.add(contentKey);
       }
     } catch (IOException e) {
       Log.w(TAG, e);
     }
   }
 
+  /**
+   * Identifies the data of an attachment or sticker across backups. Files are never written to
+   * again once they're complete, so when there's no hash of the data, its path will do.
+   */
+  private static @NonNull String getContentKey(@Nullable String dataHash, @NonNull String data, long size) {
+    if (!TextUtils.isEmpty(dataHash)) return "hash:" + dataHash;
+    else                              return "file:" + data + ":" + size;
+  }
+
   private static long calculateVeryOldStreamLength(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull String data) throws IOException {
     long result = 0;
     InputStream inputStream;
@@ -305,180 +413,504 @@ public class FullBackupExporter extends FullBackupBase {
            cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.VIEW_ONCE))    <= 0;
   }
 
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long mmsId) {
-    String[] columns = new String[] { MmsDatabase.EXPIRES_IN, MmsDatabase.VIEW_ONCE};
-    String   where   = MmsDatabase.ID + " = ?";
-    String[] args    = new String[] { String.valueOf(mmsId) };
+  /**
+   * Selects the rows of a table that belong to messages that don't expire, which are the only ones
+   * exported, with a join rather than a lookup per row.
+   */
+  private static @NonNull String selectForNonExpiringMessages(@NonNull String table, @NonNull String mmsIdColumn) {
+    return "SELECT " + table + ".* FROM " + table +
+           " INNER JOIN " + MmsDatabase.TABLE_NAME + " ON " + table + "." + mmsIdColumn + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+           " WHERE IFNULL(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.EXPIRES_IN + ", 0) = 0" +
+           " AND IFNULL(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.VIEW_ONCE + ", 0) = 0";
+  }
+
+  /**
+   * Progress is posted at most every {@link #PROGRESS_INTERVAL_MS}, rather than for every row.
+   */
+  private static void postProgress(int count) {
+    long now  = System.currentTimeMillis();
+    long last = lastProgressTime.get();
 
-    try (Cursor mmsCursor = db.query(MmsDatabase.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return mmsCursor.getLong(mmsCursor.getColumnIndexOrThrow(MmsDatabase.EXPIRES_IN)) == 0 &&
-               mmsCursor.getLong(mmsCursor.getColumnIndexOrThrow(MmsDatabase.VIEW_ONCE))  == 0;
-      }
+    if (now - last >= PROGRESS_INTERVAL_MS && lastProgressTime.compareAndSet(last, now)) {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
     }
-
-    return false;
   }
 
+  /**
+   * Writes frames in the backup format, but encrypts them on a pool of workers and writes them out
+   * on a thread of its own, so that reading the database, encrypting, and writing all overlap.
+   *
+   * Each frame is given its counter as it's handed over, so that the output is the same as if it had
+   * been written serially. At most {@link #MAX_PENDING_FRAMES} frames are in flight at once, each
+   * holding at most {@link #MAX_BUFFERED_STREAM} bytes, or a queue of chunks for larger attachments.
+   */
+  static class BackupFrameOutputStream extends BackupStream {
+
+    private static final int MAX_PENDING_FRAMES  = 32;
+    private static final int MAX_BUFFERED_STREAM = 512 * 1024;
+    private static final int MAX_PENDING_CHUNKS  = 8;
+    private static final int CHUNK_SIZE          = 64 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE  = 64 * 1024;
+
+    private final OutputStream                        outputStream;
+    private final byte[]                              cipherKey;
+    private final byte[]                              macKey;
+    private final byte[]                              iv;
+    private final ThreadLocal<Cipher>                 ciphers;
+    private final ThreadLocal<Mac>                    macs;
+    private final ExecutorService                     encryptors;
+    private final ExecutorService                     writer;
+    private final BlockingQueue<Future<EncodedFrame>> pending;
+    private final Future<EncodedFrame>                endOfFrames;
+    private final Future<?>                           writeResult;
+    private final StageStats                          stats;
+
+    private int counter;
+
+    BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, @NonNull byte[] backupId, @Nullable byte[] baseId)
+        throws IOException
+    {
+      byte[]   salt    = Util.getSecretBytes(32);
+      byte[]   key     = getBackupKey(passphrase, salt);
+      byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
+      byte[][] split   = ByteUtil.split(derived, 32, 32);
+
+      this.cipherKey    = split[0];
+      this.macKey       = split[1];
+      this.outputStream = new BufferedOutputStream(output, OUTPUT_BUFFER_SIZE);
+      this.iv           = Util.getSecretBytes(16);
+      this.counter      = Conversions.byteArrayToInt(iv);
+
+      BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                     .setIv(ByteString.copyFrom(iv))
+                                                                     .setSalt(ByteString.copyFrom(salt))
+                                                                     .setBackupId(ByteString.copyFrom(backupId));
+
+      if (baseId != null) headerBuilder.setBaseId(ByteString.copyFrom(baseId));
+
+      byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
+
+      outputStream.write(Conversions.intToByteArray(header.length));
+      outputStream.write(header);
+
+      this.ciphers = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+          try {
+            return Cipher.getInstance("AES/CTR/NoPadding");
+          } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+
+      this.macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+          try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+            return mac;
+          } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            throw new AssertionError(e);
+          }
+        }
+      };
+
+      this.encryptors  = SignalExecutors.newCachedBoundedExecutor("signal-backup-encrypt", Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)));
+      this.writer      = SignalExecutors.newCachedSingleThreadExecutor("signal-backup-write");
+      this.pending     = new ArrayBlockingQueue<>(MAX_PENDING_FRAMES);
+      this.endOfFrames = completed(null);
+      this.stats       = new StageStats();
+      this.writeResult = writer.submit(this::writeFrames);
+    }
 
-  private static class BackupFrameOutputStream extends BackupStream {
+    public void write(BackupProtos.SharedPreference preference) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+    }
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    public void write(BackupProtos.SqlStatement statement) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+    }
 
-    private final byte[]       cipherKey;
-    private final byte[]       macKey;
+    public void write(@NonNull String avatarName, @NonNull String contentKey, @NonNull InputStream in, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                  .setRecipientId(avatarName)
+                                                                  .setLength(Util.toIntExact(size))
+                                                                  .setContentKey(contentKey)
+                                                                  .build())
+                                    .build(), in, size);
+    }
 
-    private byte[] iv;
-    private int    counter;
+    public void write(@NonNull AttachmentId attachmentId, @NonNull String contentKey, @NonNull InputStream in, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                          .setRowId(attachmentId.getRowId())
+                                                                          .setAttachmentId(attachmentId.getUniqueId())
+                                                                          .setLength(Util.toIntExact(size))
+                                                                          .setContentKey(contentKey)
+                                                                          .build())
+                                    .build(), in, size);
+    }
 
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
-      try {
-        byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
-        byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
-        byte[][] split   = ByteUtil.split(derived, 32, 32);
-
-        this.cipherKey = split[0];
-        this.macKey    = split[1];
-
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
-
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
-
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
-        throw new AssertionError(e);
-      }
+    public void writeSticker(long rowId, @NonNull String contentKey, @NonNull InputStream in, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                    .setRowId(rowId)
+                                                                    .setLength(Util.toIntExact(size))
+                                                                    .setContentKey(contentKey)
+                                                                    .build())
+                                    .build(), in, size);
     }
 
-    public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+    void writeAvatarInBase(@NonNull String avatarName, @NonNull String contentKey, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                  .setRecipientId(avatarName)
+                                                                  .setLength(Util.toIntExact(size))
+                                                                  .setContentKey(contentKey)
+                                                                  .setInBase(true)
+                                                                  .build())
+                                    .build());
     }
 
-    public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+    void writeInBase(@NonNull AttachmentId attachmentId, @NonNull String contentKey, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                          .setRowId(attachmentId.getRowId())
+                                                                          .setAttachmentId(attachmentId.getUniqueId())
+                                                                          .setLength(Util.toIntExact(size))
+                                                                          .setContentKey(contentKey)
+                                                                          .setInBase(true)
+                                                                          .build())
+                                    .build());
+    }
+
+    void writeStickerInBase(long rowId, @NonNull String contentKey, long size) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                    .setRowId(rowId)
+                                                                    .setLength(Util.toIntExact(size))
+                                                                    .setContentKey(contentKey)
+                                                                    .setInBase(true)
+                                                                    .build())
+                                    .build());
     }
 
-    public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setRecipientId(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
+    void writeDatabaseVersion(int version) throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                    .build());
+    }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
+    void writeEnd() throws IOException {
+      write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    }
+
+    /**
+     * Waits for every frame to be written, then closes the output.
+     */
+    public void close() throws IOException {
+      enqueue(endOfFrames);
+      awaitWriter();
+      outputStream.close();
+
+      Log.i(TAG, stats.toString());
+    }
+
+    /**
+     * Stops the workers and the writer. Does nothing if the stream was already closed.
+     */
+    void abort() {
+      encryptors.shutdownNow();
+      writer.shutdownNow();
+    }
+
+    private void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      final int frameCounter = counter++;
+
+      enqueue(encryptors.submit(() -> new EncodedBytes(encryptFrame(frame, frameCounter))));
+    }
+
+    /**
+     * Writes a frame describing a stream, followed by the stream itself. Small streams are encrypted
+     * whole by a worker; larger ones are encrypted a chunk at a time as the writer catches up.
+     */
+    private void write(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream in, long size) throws IOException {
+      final int frameCounter  = counter++;
+      final int streamCounter = counter++;
+
+      if (size <= MAX_BUFFERED_STREAM) {
+        enqueue(encryptors.submit(() -> {
+          try (InputStream input = in) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size + 64);
+
+            buffer.write(encryptFrame(frame, frameCounter));
+            encryptStream(input, streamCounter, size, buffer::write);
+
+            return new EncodedBytes(buffer.toByteArray());
+          }
+        }));
+      } else {
+        StreamedFrame streamed = new StreamedFrame();
+
+        encryptors.execute(() -> {
+          try (InputStream input = in) {
+            streamed.put(encryptFrame(frame, frameCounter));
+            encryptStream(input, streamCounter, size, (data, offset, length) -> streamed.put(Arrays.copyOfRange(data, offset, offset + length)));
+            streamed.finish(null);
+          } catch (IOException e) {
+            streamed.finish(e);
+          } catch (RuntimeException e) {
+            streamed.finish(new IOException(e));
+          }
+        });
+
+        enqueue(completed(streamed));
       }
     }
 
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
+    /**
+     * Throws if the writer has stopped, so that the export fails fast rather than carrying on.
+     */
+    void checkWriter() throws IOException {
+      if (writeResult.isDone()) awaitWriter();
+    }
+
+    private void enqueue(@NonNull Future<EncodedFrame> frame) throws IOException {
+      long start = System.nanoTime();
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
+      try {
+        while (!pending.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+          checkWriter();
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while queueing a frame");
+      } finally {
+        stats.readBlockedNanos.addAndGet(System.nanoTime() - start);
       }
+
+      checkWriter();
     }
 
-    public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                  .setRowId(rowId)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                  .build());
+    private void awaitWriter() throws IOException {
+      try {
+        writeResult.get();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while writing");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        else                                     throw new IOException(e.getCause());
+      }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
+      if (!pending.isEmpty()) {
+        throw new IOException("Writer stopped with frames left to write");
       }
     }
 
-    void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
+    /**
+     * Runs on the writer thread, writing frames out in the order they were queued.
+     */
+    private Void writeFrames() throws IOException, InterruptedException, ExecutionException {
+      while (true) {
+        Future<EncodedFrame> next = pending.take();
+
+        if (next == endOfFrames) {
+          outputStream.flush();
+          return null;
+        }
+
+        next.get().writeTo(outputStream, stats);
+      }
     }
 
-    void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    private byte[] encryptFrame(@NonNull BackupProtos.BackupFrame frame, int frameCounter) {
+      long start = System.nanoTime();
+
+      try {
+        Cipher cipher = ciphers.get();
+        Mac    mac    = macs.get();
+
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(ivFor(frameCounter)));
+
+        byte[] plaintext = frame.toByteArray();
+        byte[] encoded   = new byte[4 + plaintext.length + 10];
+        int    length    = cipher.doFinal(plaintext, 0, plaintext.length, encoded, 4);
+
+        mac.update(encoded, 4, length);
+
+        System.arraycopy(mac.doFinal(), 0, encoded, 4 + length, 10);
+        Conversions.intToByteArray(encoded, 0, length + 10);
+
+        stats.encryptedBytes.addAndGet(encoded.length);
+
+        return encoded;
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+        throw new AssertionError(e);
+      } finally {
+        stats.encryptNanos.addAndGet(System.nanoTime() - start);
+      }
     }
 
     /**
-     * @return The amount of data written from the provided InputStream.
+     * Encrypts the stream, followed by the first ten bytes of its MAC.
      */
-    private long writeStream(@NonNull InputStream inputStream) throws IOException {
+    private void encryptStream(@NonNull InputStream inputStream, int streamCounter, long size, @NonNull ChunkConsumer consumer) throws IOException {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
+        Cipher cipher = ciphers.get();
+        Mac    mac    = macs.get();
+        byte[] iv     = ivFor(streamCounter);
+
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
         mac.update(iv);
 
-        byte[] buffer = new byte[8192];
-        long   total  = 0;
-
-        int read;
+        byte[] buffer     = new byte[CHUNK_SIZE];
+        byte[] ciphertext = new byte[CHUNK_SIZE + 16];
+        long   total      = 0;
+        int    read;
 
         while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
+          long start   = System.nanoTime();
+          int  written = cipher.update(buffer, 0, read, ciphertext, 0);
 
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
-          }
+          mac.update(ciphertext, 0, written);
+          stats.encryptNanos.addAndGet(System.nanoTime() - start);
+          stats.encryptedBytes.addAndGet(written);
 
+          consumer.accept(ciphertext, 0, written);
           total += read;
         }
 
         byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
         mac.update(remainder);
 
-        byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
+        consumer.accept(remainder, 0, remainder.length);
+        consumer.accept(mac.doFinal(), 0, 10);
 
-        return total;
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        if (total != size) {
+          Log.w(TAG, "Size mismatch! Expected " + size + " but wrote " + total);
+        }
+      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
         throw new AssertionError(e);
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
-      try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+    private byte[] ivFor(int counter) {
+      byte[] frameIv = iv.clone();
+      Conversions.intToByteArray(frameIv, 0, counter);
+      return frameIv;
+    }
 
-        byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
-        byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
+    private static Future<EncodedFrame> completed(@Nullable EncodedFrame frame) {
+      FutureTask<EncodedFrame> future = new FutureTask<>(() -> frame);
+      future.run();
+      return future;
+    }
 
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
-      } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
-        throw new AssertionError(e);
+    private interface ChunkConsumer {
+      void accept(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private interface EncodedFrame {
+      void writeTo(@NonNull OutputStream out, @NonNull StageStats stats) throws IOException, InterruptedException;
+    }
+
+    private static class EncodedBytes implements EncodedFrame {
+      private final byte[] data;
+
+      private EncodedBytes(byte[] data) {
+        this.data = data;
+      }
+
+      @Override
+      public void writeTo(@NonNull OutputStream out, @NonNull StageStats stats) throws IOException {
+        long start = System.nanoTime();
+
+        out.write(data);
+
+        stats.writeNanos.addAndGet(System.nanoTime() - start);
+        stats.writtenBytes.addAndGet(data.length);
       }
     }
 
+    /**
+     * A frame and stream that a worker hands to the writer a chunk at a time, through a queue that
+     * blocks the worker once it's {@link #MAX_PENDING_CHUNKS} chunks ahead.
+     */
+    private static class StreamedFrame implements EncodedFrame {
+      private static final byte[] END = new byte[0];
 
-    public void close() throws IOException {
-      outputStream.close();
+      private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(MAX_PENDING_CHUNKS);
+
+      private volatile IOException failure;
+
+      void put(@NonNull byte[] chunk) throws IOException {
+        try {
+          chunks.put(chunk);
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException("Interrupted while encrypting");
+        }
+      }
+
+      void finish(@Nullable IOException failure) {
+        this.failure = failure;
+
+        try {
+          chunks.put(END);
+        } catch (InterruptedException e) {
+          Log.w(TAG, "Interrupted before the writer was told the stream had ended", e);
+        }
+      }
+
+      @Override
+      public void writeTo(@NonNull OutputStream out, @NonNull StageStats stats) throws IOException, InterruptedException {
+        byte[] chunk;
+
+        while ((chunk = chunks.take()) != END) {
+          long start = System.nanoTime();
+
+          out.write(chunk);
+
+          stats.writeNanos.addAndGet(System.nanoTime() - start);
+          stats.writtenBytes.addAndGet(chunk.length);
+        }
+
+        if (failure != null) {
+          throw failure;
+        }
+      }
+    }
+
+    /**
+     * How long each stage of the export spent working, as opposed to waiting on the others.
+     */
+    private static class StageStats {
+      private final long       startNanos       = System.nanoTime();
+      private final AtomicLong readBlockedNanos = new AtomicLong();
+      private final AtomicLong encryptNanos     = new AtomicLong();
+      private final AtomicLong encryptedBytes   = new AtomicLong();
+      private final AtomicLong writeNanos       = new AtomicLong();
+      private final AtomicLong writtenBytes     = new AtomicLong();
+
+      @Override
+      public @NonNull String toString() {
+        long total = System.nanoTime() - startNanos;
+
+        return String.format(Locale.US, "[Backup] %.1f MB in %d ms. read: %d ms, encrypt: %d ms (%.1f MB/s per thread), write: %d ms (%.1f MB/s)",
+                             megabytes(writtenBytes.get()), TimeUnit.NANOSECONDS.toMillis(total),
+                             TimeUnit.NANOSECONDS.toMillis(total - readBlockedNanos.get()),
+                             TimeUnit.NANOSECONDS.toMillis(encryptNanos.get()), throughput(encryptedBytes.get(), encryptNanos.get()),
+                             TimeUnit.NANOSECONDS.toMillis(writeNanos.get()), throughput(writtenBytes.get(), writeNanos.get()));
+      }
+
+      private static double megabytes(long bytes) {
+        return bytes / (1024.0 * 1024.0);
+      }
+
+      private static double throughput(long bytes, long nanos) {
+        return nanos > 0 ? megabytes(bytes) / (nanos / 1_000_000_000.0) : 0;
+      }
     }
   }
 }
@@ -8,9 +8,14 @@ import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import android.util.Pair;
 
+import com.annimon.stream.function.Consumer;
+
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
@@ -22,6 +27,7 @@ import org.thoughtcrime.securesms.backup.BackupProtos.Sticker;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.StickerDatabase;
 import org.thoughtcrime.securesms.logging.Log;
@@ -31,23 +37,34 @@ import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.SqlUtil;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -62,12 +79,14 @@ public class FullBackupImporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupImporter.class.getSimpleName();
 
+  private static final int RESTORE_WORKERS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
       throws IOException
   {
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importFile(context, attachmentSecret, db, is, passphrase, baseId -> findBackup(context, baseId));
     }
   }
 
@@ -75,10 +94,41 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
   {
-    int count = 0;
+    importFile(context, attachmentSecret, db, is, passphrase, null);
+  }
+
+  /**
+   * @param baseProvider Opens the base of an incremental backup. The database is restored from the
+   *                     incremental backup alone, and then only the data it refers to is restored
+   *                     from the base. If the base can't be opened, the restore still completes,
+   *                     but without that data.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                @Nullable BaseBackupProvider baseProvider)
+      throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, passphrase, baseProvider, RESTORE_WORKERS);
+  }
+
+  /**
+   * The whole import is one transaction. Inserts reuse a compiled statement per table, and plain
+   * indexes are created once the rows are in. Attachment and sticker streams are decrypted and
+   * re-encrypted to local storage by {@code workers} threads while the next frames are read.
+   */
+  @VisibleForTesting
+  static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                         @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                         @Nullable BaseBackupProvider baseProvider, int workers)
+      throws IOException
+  {
+    int               count      = 0;
+    BatchedStatements statements = new BatchedStatements(db);
+    PartRestorer      restorer   = new PartRestorer(workers);
 
     try {
-      BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+      BackupRecordInputStream        inputStream = new BackupRecordInputStream(is, passphrase);
+      Map<String, List<BackupFrame>> inBase      = new HashMap<>();
 
       db.beginTransaction();
 
@@ -89,22 +139,122 @@ public class FullBackupImporter extends FullBackupBase {
       while (!(frame = inputStream.readFrame()).getEnd()) {
         if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
+        if      (isInBase(frame))       addInBase(inBase, frame);
+        else if (frame.hasVersion())    processVersion(db, frame.getVersion());
+        else if (frame.hasStatement())  processStatement(statements, frame.getStatement());
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
+        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, restorer);
+        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream, restorer);
         else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
       }
 
+      statements.finish();
+      restorer.finish();
+
+      if (!inBase.isEmpty()) {
+        byte[] baseId = inputStream.getBaseId();
+
+        if (baseId == null) {
+          throw new IOException("Backup refers to a base backup, but doesn't say which!");
+        }
+
+        try (InputStream baseStream = baseProvider != null ? baseProvider.open(baseId) : null) {
+          if (baseStream != null) {
+            count = importFromBase(context, attachmentSecret, db, new BackupRecordInputStream(baseStream, passphrase), baseId, inBase, restorer, count);
+          } else {
+            Log.w(TAG, "Couldn't find the base of this incremental backup!");
+          }
+        }
+
+        clearMissingFromBase(db, inBase);
+      }
+
       db.setTransactionSuccessful();
     } finally {
+      restorer.shutdown();
+      statements.close();
       db.endTransaction();
     }
 
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
   }
 
+  /**
+   * Restores the data of the attachments, stickers and avatars that an incremental backup left in
+   * its base. Everything else in the base is skipped. Whatever is restored is removed from
+   * {@code inBase}.
+   */
+  private static int importFromBase(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                    @NonNull SQLiteDatabase db, @NonNull BackupRecordInputStream inputStream,
+                                    @NonNull byte[] baseId, @NonNull Map<String, List<BackupFrame>> inBase,
+                                    @NonNull PartRestorer restorer, int count)
+      throws IOException
+  {
+    if (!Arrays.equals(baseId, inputStream.getBackupId())) {
+      Log.w(TAG, "The base backup provided isn't the one this incremental backup was made from!");
+      return count;
+    }
+
+    BackupFrame frame;
+
+    while (!(frame = inputStream.readFrame()).getEnd()) {
+      if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+
+      String            contentKey = getContentKey(frame);
+      List<BackupFrame> references = contentKey != null ? inBase.remove(contentKey) : null;
+
+      if (frame.hasAttachment()) {
+        if (references == null) inputStream.skipAttachment(frame.getAttachment().getLength());
+        else                    processAttachment(context, attachmentSecret, db, frame.getAttachment().getLength(), references, inputStream, restorer);
+      } else if (frame.hasSticker()) {
+        if (references == null) inputStream.skipAttachment(frame.getSticker().getLength());
+        else                    processSticker(context, attachmentSecret, db, frame.getSticker().getLength(), references, inputStream, restorer);
+      } else if (frame.hasAvatar()) {
+        if (references == null) inputStream.skipAttachment(frame.getAvatar().getLength());
+        else                    processAvatar(context, frame.getAvatar().getLength(), references, inputStream);
+      }
+    }
+
+    restorer.finish();
+
+    return count;
+  }
+
+  private static void clearMissingFromBase(@NonNull SQLiteDatabase db, @NonNull Map<String, List<BackupFrame>> inBase) {
+    for (List<BackupFrame> missing : inBase.values()) {
+      for (BackupFrame reference : missing) {
+        Log.w(TAG, "Data for " + getContentKey(reference) + " wasn't restored from the base backup! Can't restore it.");
+
+        if (reference.hasAttachment()) {
+          updateAttachment(db, reference.getAttachment(), getEmptyAttachmentValues());
+        }
+      }
+    }
+  }
+
+  private static @Nullable InputStream findBackup(@NonNull Context context, @NonNull byte[] backupId) throws IOException {
+    try {
+      for (BackupUtil.BackupInfo backup : BackupUtil.getAllBackupsNewestFirst()) {
+        InputStream in = getInputStream(context, backup.getUri());
+
+        try {
+          if (Arrays.equals(backupId, readHeader(in).getBackupId().toByteArray())) {
+            in.close();
+            return getInputStream(context, backup.getUri());
+          }
+        } catch (IOException e) {
+          Log.w(TAG, "Failed to read the header of " + backup.getUri(), e);
+        }
+
+        in.close();
+      }
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, e);
+    }
+
+    return null;
+  }
+
   private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
@@ -121,7 +271,7 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
+  private static void processStatement(@NonNull BatchedStatements statements, SqlStatement statement) {
     boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
     boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
     boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
@@ -131,49 +281,91 @@ public class FullBackupImporter extends FullBackupBase {
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    statements.execute(statement);
+  }
 
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
-    }
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream, @NonNull PartRestorer restorer)
+      throws IOException
+  {
+    restorer.restore(inputStream, attachment.getLength(),
+                     source -> readAttachmentData(context, attachmentSecret, source),
+                     getEmptyAttachmentValues(),
+                     values -> updateAttachment(db, attachment, values));
+  }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, int length, @NonNull List<BackupFrame> references, BackupRecordInputStream inputStream, @NonNull PartRestorer restorer)
+      throws IOException
+  {
+    restorer.restore(inputStream, length,
+                     source -> readAttachmentData(context, attachmentSecret, source),
+                     getEmptyAttachmentValues(),
+                     values -> {
+                       for (BackupFrame reference : references) {
+                         updateAttachment(db, reference.getAttachment(), values);
+                       }
+                     });
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static @NonNull ContentValues readAttachmentData(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull StreamSource source)
       throws IOException
   {
     File                       partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File                       dataFile       = File.createTempFile("part", ".mms", partsDirectory);
     Pair<byte[], OutputStream> output         = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    ContentValues contentValues = new ContentValues();
-
     try {
-      inputStream.readAttachmentTo(output.second, attachment.getLength());
-
-      contentValues.put(AttachmentDatabase.DATA, dataFile.getAbsolutePath());
-      contentValues.put(AttachmentDatabase.THUMBNAIL, (String)null);
-      contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first);
+      source.readTo(output.second);
     } catch (BadMacException e) {
-      Log.w(TAG, "Bad MAC for attachment " + attachment.getAttachmentId() + "! Can't restore it.", e);
       dataFile.delete();
-      contentValues.put(AttachmentDatabase.DATA, (String) null);
-      contentValues.put(AttachmentDatabase.THUMBNAIL, (String) null);
-      contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+      throw e;
     }
 
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(AttachmentDatabase.DATA, dataFile.getAbsolutePath());
+    contentValues.put(AttachmentDatabase.THUMBNAIL, (String)null);
+    contentValues.put(AttachmentDatabase.DATA_RANDOM, output.first);
+
+    return contentValues;
+  }
+
+  private static @NonNull ContentValues getEmptyAttachmentValues() {
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(AttachmentDatabase.DATA, (String) null);
+    contentValues.put(AttachmentDatabase.THUMBNAIL, (String) null);
+    contentValues.put(AttachmentDatabase.DATA_RANDOM, (String) null);
+
+    return contentValues;
+  }
+
+  private static void updateAttachment(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @NonNull ContentValues contentValues) {
     db.update(AttachmentDatabase.TABLE_NAME, contentValues,
               AttachmentDatabase.ROW_ID + " = ? AND " + AttachmentDatabase.UNIQUE_ID + " = ?",
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream, @NonNull PartRestorer restorer)
+      throws IOException
+  {
+    restorer.restore(inputStream, sticker.getLength(),
+                     source -> readStickerData(context, attachmentSecret, source),
+                     null,
+                     values -> updateSticker(db, sticker.getRowId(), values));
+  }
+
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, int length, @NonNull List<BackupFrame> references, BackupRecordInputStream inputStream, @NonNull PartRestorer restorer)
+      throws IOException
+  {
+    restorer.restore(inputStream, length,
+                     source -> readStickerData(context, attachmentSecret, source),
+                     null,
+                     values -> {
+                       for (BackupFrame reference : references) {
+                         updateSticker(db, reference.getSticker().getRowId(), values);
+                       }
+                     });
+  }
+
+  private static @NonNull ContentValues readStickerData(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull StreamSource source)
       throws IOException
   {
     File stickerDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
@@ -181,15 +373,19 @@ public class FullBackupImporter extends FullBackupBase {
 
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    inputStream.readAttachmentTo(output.second, sticker.getLength());
+    source.readTo(output.second);
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(StickerDatabase.FILE_PATH, dataFile.getAbsolutePath());
     contentValues.put(StickerDatabase.FILE_RANDOM, output.first);
 
+    return contentValues;
+  }
+
+  private static void updateSticker(@NonNull SQLiteDatabase db, long rowId, @NonNull ContentValues contentValues) {
     db.update(StickerDatabase.TABLE_NAME, contentValues,
               StickerDatabase._ID + " = ?",
-              new String[] {String.valueOf(sticker.getRowId())});
+              new String[] {String.valueOf(rowId)});
   }
 
   private static void processAvatar(@NonNull Context context, @NonNull SQLiteDatabase db, @NonNull BackupProtos.Avatar avatar, @NonNull BackupRecordInputStream inputStream) throws IOException {
@@ -211,6 +407,50 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  private static void processAvatar(@NonNull Context context, int length, @NonNull List<BackupFrame> references, @NonNull BackupRecordInputStream inputStream) throws IOException {
+    File first = AvatarHelper.getAvatarFile(context, RecipientId.from(references.get(0).getAvatar().getRecipientId()));
+
+    inputStream.readAttachmentTo(new FileOutputStream(first), length);
+
+    for (int i = 1; i < references.size(); i++) {
+      File copy = AvatarHelper.getAvatarFile(context, RecipientId.from(references.get(i).getAvatar().getRecipientId()));
+
+      try (InputStream in = new FileInputStream(first)) {
+        Util.copy(in, new FileOutputStream(copy));
+      }
+    }
+  }
+
+  private static boolean isInBase(@NonNull BackupFrame frame) {
+    return (frame.hasAttachment() && frame.getAttachment().getInBase()) ||
+           (frame.hasSticker()    && frame.getSticker().getInBase())    ||
+           (frame.hasAvatar()     && frame.getAvatar().getInBase());
+  }
+
+  private static @Nullable String getContentKey(@NonNull BackupFrame frame) {
+    if      (frame.hasAttachment() && frame.getAttachment().hasContentKey()) return frame.getAttachment().getContentKey();
+    else if (frame.hasSticker()    && frame.getSticker().hasContentKey())    return frame.getSticker().getContentKey();
+    else if (frame.hasAvatar()     && frame.getAvatar().hasContentKey())     return frame.getAvatar().getContentKey();
+    else                                                                     return null;
+  }
+
+  private static void addInBase(@NonNull Map<String, List<BackupFrame>> inBase, @NonNull BackupFrame frame) throws IOException {
+    String contentKey = getContentKey(frame);
+
+    if (contentKey == null) {
+      throw new IOException("Frame refers to its base backup without a content key!");
+    }
+
+    List<BackupFrame> references = inBase.get(contentKey);
+
+    if (references == null) {
+      references = new LinkedList<>();
+      inBase.put(contentKey, references);
+    }
+
+    references.add(frame);
+  }
+
   @SuppressLint("ApplySharedPref")
   private static void processPreference(@NonNull Context context, SharedPreference preference) {
     SharedPreferences preferences = context.getSharedPreferences(preference.getFile(), 0);
@@ -230,8 +470,235 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Executes restored statements inside the import's transaction. Inserts are compiled once per
+   * distinct statement, which is once per table, rather than once per row. Plain indexes are created
+   * by {@link #finish()} once the rows are in, rather than being updated as each row is inserted.
+   */
+  private static class BatchedStatements {
+
+    private final SQLiteDatabase               db;
+    private final Map<String, SQLiteStatement> compiled        = new HashMap<>();
+    private final List<String>                 deferredIndexes = new LinkedList<>();
+
+    BatchedStatements(@NonNull SQLiteDatabase db) {
+      this.db = db;
+    }
+
+    void execute(@NonNull SqlStatement statement) {
+      String sql = statement.getStatement();
+
+      if (statement.getParametersCount() == 0) {
+        if (sql.toUpperCase(Locale.US).startsWith("CREATE INDEX ")) deferredIndexes.add(sql);
+        else                                                         db.execSQL(sql);
+        return;
+      }
+
+      SQLiteStatement compiledStatement = compiled.get(sql);
+
+      if (compiledStatement == null) {
+        compiledStatement = db.compileStatement(sql);
+        compiled.put(sql, compiledStatement);
+      }
+
+      compiledStatement.clearBindings();
+
+      int index = 1;
+
+      for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
+        if      (parameter.hasStringParamter())   compiledStatement.bindString(index++, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  compiledStatement.bindDouble(index++, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) compiledStatement.bindLong(index++, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    compiledStatement.bindBlob(index++, parameter.getBlobParameter().toByteArray());
+        else if (parameter.hasNullparameter())    compiledStatement.bindNull(index++);
+      }
+
+      compiledStatement.execute();
+    }
+
+    void finish() {
+      close();
+
+      for (String index : deferredIndexes) {
+        db.execSQL(index);
+      }
+
+      deferredIndexes.clear();
+    }
+
+    void close() {
+      for (SQLiteStatement statement : compiled.values()) {
+        statement.close();
+      }
+
+      compiled.clear();
+    }
+  }
+
+  /**
+   * Restores attachment and sticker streams to local storage. Streams up to
+   * {@link #MAX_BUFFERED_STREAM} are read into memory and decrypted and re-encrypted by a pool of
+   * workers, so the next frames can be read meanwhile, with at most {@link #MAX_BUFFERED_BYTES} held
+   * at once. Larger streams are restored as they're read.
+   *
+   * Only the thread holding the import's transaction can write to the database, so the resulting
+   * row updates are queued, and applied on that thread by {@link #finish()}.
+   */
+  private static class PartRestorer {
+
+    private static final int MAX_BUFFERED_STREAM = 4 * 1024 * 1024;
+    private static final int MAX_BUFFERED_BYTES  = 32 * 1024 * 1024;
+
+    private final ExecutorService     executor;
+    private final Semaphore           bufferedBytes = new Semaphore(MAX_BUFFERED_BYTES);
+    private final List<PendingUpdate> pending       = new LinkedList<>();
+
+    PartRestorer(int workers) {
+      this.executor = SignalExecutors.newCachedBoundedExecutor("signal-backup-restore", workers);
+    }
+
+    /**
+     * @param badMacValues What to update with if the stream fails its MAC check, or null to fail the
+     *                     import instead.
+     */
+    void restore(@NonNull BackupRecordInputStream inputStream,
+                 int length,
+                 @NonNull PartWriter writer,
+                 @Nullable ContentValues badMacValues,
+                 @NonNull Consumer<ContentValues> update)
+        throws IOException
+    {
+      if (length > MAX_BUFFERED_STREAM) {
+        update.accept(write(writer, out -> inputStream.readAttachmentTo(out, length), badMacValues));
+        return;
+      }
+
+      try {
+        bufferedBytes.acquire(length);
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while restoring a stream");
+      }
+
+      EncryptedStream stream;
+
+      try {
+        stream = inputStream.readStream(length);
+      } catch (IOException e) {
+        bufferedBytes.release(length);
+        throw e;
+      }
+
+      Future<ContentValues> values = executor.submit(() -> {
+        try {
+          return write(writer, stream::decryptTo, badMacValues);
+        } finally {
+          bufferedBytes.release(length);
+        }
+      });
+
+      pending.add(new PendingUpdate(values, update));
+    }
+
+    /**
+     * Waits for the streams handed to workers so far, and applies their updates.
+     */
+    void finish() throws IOException {
+      try {
+        for (PendingUpdate update : pending) {
+          update.apply.accept(update.values.get());
+        }
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while restoring streams");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        else                                     throw new IOException(e.getCause());
+      } finally {
+        pending.clear();
+      }
+    }
+
+    void shutdown() {
+      executor.shutdownNow();
+    }
+
+    private static @NonNull ContentValues write(@NonNull PartWriter writer, @NonNull StreamSource source, @Nullable ContentValues badMacValues)
+        throws IOException
+    {
+      try {
+        return writer.write(source);
+      } catch (BadMacException e) {
+        if (badMacValues == null) throw e;
+
+        Log.w(TAG, "Bad MAC for a stream! Can't restore it.", e);
+        return badMacValues;
+      }
+    }
+
+    private static class PendingUpdate {
+      private final Future<ContentValues>   values;
+      private final Consumer<ContentValues> apply;
+
+      private PendingUpdate(@NonNull Future<ContentValues> values, @NonNull Consumer<ContentValues> apply) {
+        this.values = values;
+        this.apply  = apply;
+      }
+    }
+  }
+
+  private interface StreamSource {
+    void readTo(@NonNull OutputStream out) throws IOException;
+  }
+
+  private interface PartWriter {
+    @NonNull ContentValues write(@NonNull StreamSource source) throws IOException;
+  }
+
+  /**
+   * A stream that's been read, but not yet checked or decrypted, which can be done on any thread.
+   */
+  private static class EncryptedStream {
+
+    private final byte[] cipherKey;
+    private final byte[] macKey;
+    private final byte[] iv;
+    private final byte[] ciphertext;
+    private final byte[] theirMac;
+
+    private EncryptedStream(@NonNull byte[] cipherKey, @NonNull byte[] macKey, @NonNull byte[] iv, @NonNull byte[] ciphertext, @NonNull byte[] theirMac) {
+      this.cipherKey  = cipherKey;
+      this.macKey     = macKey;
+      this.iv         = iv;
+      this.ciphertext = ciphertext;
+      this.theirMac   = theirMac;
+    }
+
+    void decryptTo(@NonNull OutputStream out) throws IOException {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        mac.update(iv);
+
+        byte[] ourMac = ByteUtil.trim(mac.doFinal(ciphertext), 10);
+
+        if (!MessageDigest.isEqual(ourMac, theirMac)) {
+          throw new BadMacException();
+        }
+
+        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
+
+        out.write(cipher.doFinal(ciphertext));
+        out.close();
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
   private static class BackupRecordInputStream extends BackupStream {
 
+    private static final int INPUT_BUFFER_SIZE = 64 * 1024;
+
     private final InputStream in;
     private final Cipher      cipher;
     private final Mac         mac;
@@ -239,29 +706,16 @@ public class FullBackupImporter extends FullBackupBase {
     private final byte[] cipherKey;
     private final byte[] macKey;
 
+    private final BackupProtos.Header header;
+
     private byte[] iv;
     private int    counter;
 
     private BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
       try {
-        this.in = in;
-
-        byte[] headerLengthBytes = new byte[4];
-        Util.readFully(in, headerLengthBytes);
-
-        int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-        byte[] headerFrame = new byte[headerLength];
-        Util.readFully(in, headerFrame);
-
-        BackupFrame frame = BackupFrame.parseFrom(headerFrame);
-
-        if (!frame.hasHeader()) {
-          throw new IOException("Backup stream does not start with header!");
-        }
-
-        BackupProtos.Header header = frame.getHeader();
-
-        this.iv = header.getIv().toByteArray();
+        this.in     = new BufferedInputStream(in, INPUT_BUFFER_SIZE);
+        this.header = readHeader(this.in);
+        this.iv     = header.getIv().toByteArray();
 
         if (iv.length != 16) {
           throw new IOException("Invalid IV length!");
@@ -288,7 +742,45 @@ public class FullBackupImporter extends FullBackupBase {
       return readFrame(in);
     }
 
-    void readAttachmentTo(OutputStream out, int length) throws IOException {
+    @Nullable byte[] getBackupId() {
+      return header.hasBackupId() ? header.getBackupId().toByteArray() : null;
+    }
+
+    @Nullable byte[] getBaseId() {
+      return header.hasBaseId() ? header.getBaseId().toByteArray() : null;
+    }
+
+    /**
+     * Reads a stream without decrypting it, so that it can be decrypted elsewhere.
+     */
+    @NonNull EncryptedStream readStream(int length) throws IOException {
+      Conversions.intToByteArray(iv, 0, counter++);
+
+      byte[] streamIv   = iv.clone();
+      byte[] ciphertext = new byte[length];
+      byte[] theirMac   = new byte[10];
+
+      Util.readFully(in, ciphertext);
+      Util.readFully(in, theirMac);
+
+      return new EncryptedStream(cipherKey, macKey, streamIv, ciphertext, theirMac);
+    }
+
+    /**
+     * Reads past a stream, checking its MAC but without decrypting it.
+     */
+    void skipAttachment(int length) throws IOException {
+      try {
+        readAttachmentTo(null, length);
+      } catch (BadMacException e) {
+        Log.w(TAG, "Bad MAC for a skipped stream.", e);
+      }
+    }
+
+    /**
+     * @param out Where to write the decrypted stream, or null to only check its MAC.
+     */
+    void readAttachmentTo(@Nullable OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
@@ -302,22 +794,26 @@ public class FullBackupImporter extends FullBackupBase {
 
           mac.update(buffer, 0, read);
 
-          byte[] plaintext = cipher.update(buffer, 0, read);
+          if (out != null) {
+            byte[] plaintext = cipher.update(buffer, 0, read);
 
-          if (plaintext != null) {
-            out.write(plaintext, 0, plaintext.length);
+            if (plaintext != null) {
+              out.write(plaintext, 0, plaintext.length);
+            }
           }
 
           length -= read;
         }
 
-        byte[] plaintext = cipher.doFinal();
+        if (out != null) {
+          byte[] plaintext = cipher.doFinal();
 
-        if (plaintext != null) {
-          out.write(plaintext, 0, plaintext.length);
-        }
+          if (plaintext != null) {
+            out.write(plaintext, 0, plaintext.length);
+          }
 
-        out.close();
+          out.close();
+        }
 
         byte[] ourMac   = ByteUtil.trim(mac.doFinal(), 10);
         byte[] theirMac = new byte[10];
@@ -366,6 +862,43 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Reads the header of a backup file, which says which backup it is and which base it was taken
+   * against, if any.
+   */
+  public static @NonNull BackupProtos.Header readHeader(@NonNull Context context, @NonNull Uri uri) throws IOException {
+    try (InputStream in = getInputStream(context, uri)) {
+      return readHeader(in);
+    }
+  }
+
+  /**
+   * Reads the header, which isn't encrypted, so that it can be read without the passphrase.
+   */
+  private static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {
+    byte[] headerLengthBytes = new byte[4];
+    Util.readFully(in, headerLengthBytes);
+
+    int    headerLength = Conversions.byteArrayToInt(headerLengthBytes);
+    byte[] headerFrame  = new byte[headerLength];
+    Util.readFully(in, headerFrame);
+
+    BackupFrame frame = BackupFrame.parseFrom(headerFrame);
+
+    if (!frame.hasHeader()) {
+      throw new IOException("Backup stream does not start with header!");
+    }
+
+    return frame.getHeader();
+  }
+
+  public interface BaseBackupProvider {
+    /**
+     * @return The backup with the given id, or null if it can't be found.
+     */
+    @Nullable InputStream open(@NonNull byte[] backupId) throws IOException;
+  }
+
   private static class BadMacException extends IOException {}
 
   public static class DatabaseDowngradeException extends IOException {
@@ -128,7 +128,8 @@ public class ConversationFragment extends Fragment
   implements LoaderManager.LoaderCallbacks<Cursor>
 {
   private static final String TAG       = ConversationFragment.class.getSimpleName();
-  private static final String KEY_LIMIT = "limit";
+  private static final String KEY_LIMIT  = "limit";
+  private static final String KEY_OFFSET = "offset";
 
   private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
@@ -143,8 +144,8 @@ public class ConversationFragment extends Fragment
   private long                        threadId;
   private long                        lastSeen;
   private int                         startingPosition;
-  private int                         previousOffset;
   private int                         activeOffset;
+  private int                         activeLimit;
   private boolean                     firstLoad;
   private boolean                     isReacting;
   private ActionMode                  actionMode;
@@ -182,8 +183,8 @@ public class ConversationFragment extends Fragment
 
     topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
+    initializeLoadMoreView(topLoadMoreView, true);
+    initializeLoadMoreView(bottomLoadMoreView, false);
 
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
@@ -287,13 +288,24 @@ public class ConversationFragment extends Fragment
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
+  /**
+   * Widens the loaded window by another page of older or newer messages, rather than loading the
+   * whole thread.
+   */
+  private void initializeLoadMoreView(ViewSwitcher loadMoreView, boolean older) {
     loadMoreView.setOnClickListener(v -> {
+      if (loadMoreView.getDisplayedChild() != 0) {
+        return;
+      }
+
+      int offset = older ? activeOffset : Math.max(activeOffset - PARTIAL_CONVERSATION_LIMIT, 0);
+      int limit  = activeLimit + (older ? PARTIAL_CONVERSATION_LIMIT : activeOffset - offset);
+
       Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
+      args.putInt(KEY_OFFSET, offset);
+      args.putInt(KEY_LIMIT, limit);
       getLoaderManager().restartLoader(0, args, ConversationFragment.this);
-      loadMoreView.showNext();
-      loadMoreView.setOnClickListener(null);
+      loadMoreView.setDisplayedChild(1);
     });
   }
 
@@ -671,8 +683,8 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
 
     int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
+    int offset = args.getInt(KEY_OFFSET, 0);
+    if (!args.containsKey(KEY_OFFSET) && startingPosition >= limit) {
       offset = Math.max(startingPosition - (limit / 2) + 1, 0);
       startingPosition -= offset - 1;
     }
@@ -690,7 +702,10 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+    topLoadMoreView.setDisplayedChild(0);
+    bottomLoadMoreView.setDisplayedChild(0);
+
+    if (cursor.getCount() >= loader.getLimit()) {
       adapter.setFooterView(topLoadMoreView);
     } else {
       adapter.setFooterView(null);
@@ -718,11 +733,10 @@ public class ConversationFragment extends Fragment
       adapter.setHeaderView(bottomLoadMoreView);
     }
 
-    if (firstLoad || loader.hasOffset()) {
-      previousOffset = loader.getOffset();
-    }
+    int newerLoaded = firstLoad ? 0 : activeOffset - loader.getOffset();
 
     activeOffset = loader.getOffset();
+    activeLimit  = loader.getLimit();
     adapter.changeCursor(cursor);
     listener.onCursorChanged();
 
@@ -739,15 +753,14 @@ public class ConversationFragment extends Fragment
         scrollToLastSeenPosition(lastSeenPosition);
       }
       firstLoad = false;
-    } else if (previousOffset > 0) {
-      int scrollPosition = previousOffset + getListLayoutManager().findFirstVisibleItemPosition();
+    } else if (newerLoaded > 0) {
+      int scrollPosition = newerLoaded + getListLayoutManager().findFirstVisibleItemPosition();
       scrollPosition = Math.min(scrollPosition, count - 1);
 
       View firstView = list.getLayoutManager().getChildAt(scrollPosition);
       int pixelOffset = (firstView == null) ? 0 : (firstView.getBottom() - list.getPaddingBottom());
 
       getListLayoutManager().scrollToPositionWithOffset(scrollPosition, pixelOffset);
-      previousOffset = 0;
     }
 
     if (lastSeenPosition <= 0) {
@@ -845,7 +858,7 @@ public class ConversationFragment extends Fragment
   private void moveToMessagePosition(int position, @Nullable Runnable onMessageNotFound) {
     Log.d(TAG, "Moving to message position: " + position + "  activeOffset: " + activeOffset + "  cursorCount: " + getListAdapter().getCursorCount());
 
-    if (position >= activeOffset && position >= 0 && position < getListAdapter().getCursorCount()) {
+    if (position >= activeOffset && position >= 0 && position < activeOffset + getListAdapter().getCursorCount()) {
       int offset = activeOffset > 0 ? activeOffset - 1 : 0;
       list.scrollToPosition(position - offset);
       getListAdapter().pulseHighlightItem(position - offset);
@@ -0,0 +1,264 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.util.Conversions;
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random access to a file written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * Unlike {@link ModernDecryptingPartInputStream}, seeking doesn't re-open the file or re-derive the
+ * key. The file is read with positional reads a block at a time, and since it's encrypted with
+ * AES/CTR each block can be decrypted on its own by computing its counter. The most recently used
+ * blocks are kept, so the small overlapping reads a media player makes are mostly served from memory.
+ *
+ * Not thread safe, except that {@link #readAt(long, byte[], int, int)} may be called concurrently.
+ */
+public final class ModernDecryptingPartChannel implements Closeable {
+
+  private static final int BLOCK_SIZE   = 32 * 1024;
+  private static final int CACHE_BLOCKS = 8;
+  private static final int RANDOM_SIZE  = 32;
+
+  private static final Map<ByteBuffer, byte[]> DERIVED_KEYS = new LRUCache<>(64);
+
+  private final RandomAccessFile  file;
+  private final FileChannel       channel;
+  private final SecretKeySpec     key;
+  private final long              dataOffset;
+  private final long              size;
+  private final Map<Long, byte[]> blocks = new LRUCache<>(CACHE_BLOCKS);
+
+  private long position;
+
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    return new ModernDecryptingPartChannel(file, deriveKey(attachmentSecret, random), 0);
+  }
+
+  /**
+   * For files that start with their random, as written with {@code inline} set.
+   */
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    byte[] random = new byte[RANDOM_SIZE];
+
+    try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+      in.readFully(random);
+    }
+
+    return new ModernDecryptingPartChannel(file, deriveKey(attachmentSecret, random), RANDOM_SIZE);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull File file, @NonNull byte[] key, long dataOffset) throws IOException {
+    this.file       = new RandomAccessFile(file, "r");
+    this.channel    = this.file.getChannel();
+    this.key        = new SecretKeySpec(key, "AES");
+    this.dataOffset = dataOffset;
+    this.size       = Math.max(0, channel.size() - dataOffset);
+  }
+
+  /**
+   * @return The length of the plaintext.
+   */
+  public long size() {
+    return size;
+  }
+
+  public long position() {
+    return position;
+  }
+
+  public ModernDecryptingPartChannel position(long position) {
+    if (position < 0) throw new IllegalArgumentException("Negative position: " + position);
+
+    this.position = position;
+    return this;
+  }
+
+  /**
+   * Reads from the current position and advances it.
+   */
+  public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+    int read = readAt(position, buffer, offset, length);
+
+    if (read > 0) {
+      position += read;
+    }
+
+    return read;
+  }
+
+  /**
+   * Reads from the given position, without changing the current one. Fills the buffer unless the
+   * end of the file is reached first.
+   *
+   * @return The number of bytes read, or -1 if the position is at or past the end.
+   */
+  public int readAt(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    if (position >= size) return -1;
+
+    length = (int) Math.min(length, size - position);
+
+    int totalRead = 0;
+
+    while (totalRead < length) {
+      long   blockIndex  = (position + totalRead) / BLOCK_SIZE;
+      int    blockOffset = (int) ((position + totalRead) % BLOCK_SIZE);
+      byte[] block       = getBlock(blockIndex);
+      int    read        = Math.min(length - totalRead, block.length - blockOffset);
+
+      if (read <= 0) break;
+
+      System.arraycopy(block, blockOffset, buffer, offset + totalRead, read);
+      totalRead += read;
+    }
+
+    return totalRead > 0 ? totalRead : -1;
+  }
+
+  /**
+   * @return A stream that reads from the given position, and closes this channel when closed.
+   */
+  public @NonNull InputStream createInputStream(long position) {
+    position(position);
+
+    return new InputStream() {
+      @Override
+      public int read() throws IOException {
+        byte[] single = new byte[1];
+        int    read   = ModernDecryptingPartChannel.this.read(single, 0, 1);
+
+        return read == -1 ? -1 : single[0] & 0xFF;
+      }
+
+      @Override
+      public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        return ModernDecryptingPartChannel.this.read(buffer, offset, length);
+      }
+
+      @Override
+      public long skip(long byteCount) {
+        long skipped = Math.max(0, Math.min(byteCount, size - ModernDecryptingPartChannel.this.position));
+        ModernDecryptingPartChannel.this.position += skipped;
+        return skipped;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, size - ModernDecryptingPartChannel.this.position));
+      }
+
+      @Override
+      public void close() throws IOException {
+        ModernDecryptingPartChannel.this.close();
+      }
+    };
+  }
+
+  @Override
+  public void close() throws IOException {
+    synchronized (blocks) {
+      blocks.clear();
+    }
+
+    file.close();
+  }
+
+  private byte[] getBlock(long blockIndex) throws IOException {
+    synchronized (blocks) {
+      byte[] block = blocks.get(blockIndex);
+      if (block != null) return block;
+    }
+
+    byte[] block = decryptBlock(blockIndex);
+
+    synchronized (blocks) {
+      blocks.put(blockIndex, block);
+    }
+
+    return block;
+  }
+
+  private byte[] decryptBlock(long blockIndex) throws IOException {
+    long       start      = blockIndex * BLOCK_SIZE;
+    int        length     = (int) Math.min(BLOCK_SIZE, size - start);
+    ByteBuffer ciphertext = ByteBuffer.allocate(length);
+
+    while (ciphertext.hasRemaining()) {
+      int read = channel.read(ciphertext, dataOffset + start + ciphertext.position());
+
+      if (read == -1) throw new IOException("Prematurely reached end of file!");
+    }
+
+    try {
+      byte[] iv = new byte[16];
+      Conversions.longTo4ByteArray(iv, 12, start / 16);
+
+      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+
+      byte[] plaintext = new byte[length];
+      cipher.doFinal(ciphertext.array(), 0, length, plaintext, 0);
+
+      return plaintext;
+    } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException | ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new IOException(e);
+    }
+  }
+
+  private static byte[] deriveKey(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random) {
+    byte[]     modernKey = attachmentSecret.getModernKey();
+    ByteBuffer cacheKey  = ByteBuffer.allocate(modernKey.length + random.length).put(modernKey).put(random);
+
+    cacheKey.flip();
+
+    synchronized (DERIVED_KEYS) {
+      byte[] cached = DERIVED_KEYS.get(cacheKey);
+      if (cached != null) return cached;
+    }
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(modernKey, "HmacSHA256"));
+
+      byte[] derived = mac.doFinal(random);
+
+      synchronized (DERIVED_KEYS) {
+        DERIVED_KEYS.put(cacheKey, derived);
+      }
+
+      return derived;
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -46,7 +46,7 @@ import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.blurhash.BlurHash;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.logging.Log;
@@ -115,7 +115,7 @@ public class AttachmentDatabase extends Database {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
-  private static final String DATA_HASH              = "data_hash";
+  public  static final String DATA_HASH              = "data_hash";
           static final String BLUR_HASH              = "blur_hash";
           static final String TRANSFORM_PROPERTIES   = "transform_properties";
 
@@ -179,6 +179,22 @@ public class AttachmentDatabase extends Database {
     else                    return dataStream;
   }
 
+  /**
+   * @return A seekable reader over the attachment's data, or null if it has none or was stored in
+   *         the classic format, which can't be read out of order.
+   */
+  public @Nullable ModernDecryptingPartChannel getAttachmentChannel(@NonNull AttachmentId attachmentId)
+      throws IOException
+  {
+    DataInfo dataInfo = getAttachmentDataFileInfo(attachmentId, DATA);
+
+    if (dataInfo == null || dataInfo.random == null || dataInfo.random.length != 32) {
+      return null;
+    }
+
+    return ModernDecryptingPartChannel.createFor(attachmentSecret, dataInfo.random, dataInfo.file);
+  }
+
   public @NonNull InputStream getThumbnailStream(@NonNull AttachmentId attachmentId)
       throws IOException
   {
@@ -265,6 +281,44 @@ public class AttachmentDatabase extends Database {
     }
   }
 
+  /**
+   * Fetches the attachments of several messages in one query, for when rows are read without the
+   * attachments joined in.
+   *
+   * @return The attachments of each message that has any, keyed by message id.
+   */
+  public @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsForMessages(@NonNull List<Long> mmsIds) {
+    if (mmsIds.isEmpty()) {
+      return new HashMap<>();
+    }
+
+    SQLiteDatabase database  = databaseHelper.getReadableDatabase();
+    String         selection = MMS_ID + " IN (" + Util.join(mmsIds, ",") + ")";
+
+    try (Cursor cursor = database.query(TABLE_NAME, PROJECTION, selection, null, null, null, UNIQUE_ID + " ASC, " + ROW_ID + " ASC")) {
+      return getAttachmentsByMessage(cursor);
+    }
+  }
+
+  @VisibleForTesting
+  @NonNull Map<Long, List<DatabaseAttachment>> getAttachmentsByMessage(@NonNull Cursor cursor) {
+    Map<Long, List<DatabaseAttachment>> results = new HashMap<>();
+
+    while (cursor.moveToNext()) {
+      DatabaseAttachment       attachment = getAttachment(cursor).get(0);
+      List<DatabaseAttachment> message    = results.get(attachment.getMmsId());
+
+      if (message == null) {
+        message = new LinkedList<>();
+        results.put(attachment.getMmsId(), message);
+      }
+
+      message.add(attachment);
+    }
+
+    return results;
+  }
+
   public boolean hasAttachmentFilesForMessage(long mmsId) {
     String   selection = MMS_ID + " = ? AND (" + DATA + " NOT NULL OR " + TRANSFER_STATE + " != ?)";
     String[] args      = new String[] { String.valueOf(mmsId), String.valueOf(TRANSFER_PROGRESS_DONE) };
@@ -721,7 +775,7 @@ public class AttachmentDatabase extends Database {
 
     try {
       if (dataInfo.random != null && dataInfo.random.length == 32) {
-        return ModernDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.random, dataInfo.file, offset);
+        return ModernDecryptingPartChannel.createFor(attachmentSecret, dataInfo.random, dataInfo.file).createInputStream(offset);
       } else {
         InputStream stream  = ClassicDecryptingPartInputStream.createFor(attachmentSecret, dataInfo.file);
         long        skipped = stream.skip(offset);
@@ -793,12 +847,33 @@ public class AttachmentDatabase extends Database {
                                               @Nullable AttachmentId attachmentId)
       throws MmsException
   {
+    File tempFile = null;
+
     try {
       File partsDirectory = context.getDir(DIRECTORY, Context.MODE_PRIVATE);
-      File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
-      return setAttachmentData(dataFile, in, isThumbnail, attachmentId);
+      tempFile = File.createTempFile("part", ".tmp", partsDirectory);
+
+      DataInfo dataInfo = setAttachmentData(tempFile, in, isThumbnail, attachmentId);
+
+      if (!dataInfo.file.equals(tempFile)) {
+        return dataInfo;
+      }
+
+      // The stream may only fail once it's been read to the end (e.g. a bad attachment MAC), so
+      // nothing is given a .mms name until all of it has been written.
+      File dataFile = File.createTempFile("part", ".mms", partsDirectory);
+
+      if (!tempFile.renameTo(dataFile)) {
+        throw new IOException("Failed to rename " + tempFile + " to " + dataFile);
+      }
+
+      return new DataInfo(dataFile, dataInfo.length, dataInfo.random, dataInfo.hash);
     } catch (IOException e) {
       throw new MmsException(e);
+    } finally {
+      if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+        Log.w(TAG, "Failed to delete " + tempFile);
+      }
     }
   }
 
@@ -885,7 +960,9 @@ public class AttachmentDatabase extends Database {
 
   public List<DatabaseAttachment> getAttachment(@NonNull Cursor cursor) {
     try {
-      if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
+      if (cursor instanceof LazyAttachmentCursor) {
+        return ((LazyAttachmentCursor) cursor).getAttachments();
+      } else if (cursor.getColumnIndex(AttachmentDatabase.ATTACHMENT_JSON_ALIAS) != -1) {
         if (cursor.isNull(cursor.getColumnIndexOrThrow(ATTACHMENT_JSON_ALIAS))) {
           return new LinkedList<>();
         }
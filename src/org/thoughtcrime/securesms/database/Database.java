@@ -43,6 +43,7 @@ public abstract class Database {
   }
 
   protected void notifyConversationListeners(long threadId) {
+    MessagePositionCache.invalidate(threadId);
     context.getContentResolver().notifyChange(DatabaseContentProviders.Conversation.getUriForThread(threadId), null);
   }
 
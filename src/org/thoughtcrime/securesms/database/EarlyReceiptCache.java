@@ -2,10 +2,12 @@ package org.thoughtcrime.securesms.database;
 
 import androidx.annotation.NonNull;
 
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.LRUCache;
 
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
@@ -23,7 +25,32 @@ public class EarlyReceiptCache {
 
   public synchronized void increment(long timestamp, @NonNull RecipientId origin) {
     Log.i(TAG, String.format(Locale.US, "[%s] Timestamp: %d, Recipient: %s", name, timestamp, origin.serialize()));
+    store(timestamp, origin);
+  }
+
+  /**
+   * Holds on to a batch of receipts at once, logging them as a single entry.
+   */
+  public synchronized void incrementAll(@NonNull Collection<SyncMessageId> messageIds) {
+    if (messageIds.isEmpty()) return;
+
+    Log.i(TAG, String.format(Locale.US, "[%s] Batch of %d receipts", name, messageIds.size()));
+
+    for (SyncMessageId messageId : messageIds) {
+      store(messageId.getTimetamp(), messageId.getRecipientId());
+    }
+  }
+
+  public synchronized Map<RecipientId, Long> remove(long timestamp) {
+    Map<RecipientId, Long> receipts = cache.remove(timestamp);
+
+    Log.i(TAG, this+"");
+    Log.i(TAG, String.format(Locale.US, "Checking early receipts (%d): %d", timestamp, receipts == null ? 0 : receipts.size()));
 
+    return receipts != null ? receipts : new HashMap<>();
+  }
+
+  private void store(long timestamp, @NonNull RecipientId origin) {
     Map<RecipientId, Long> receipts = cache.get(timestamp);
 
     if (receipts == null) {
@@ -40,13 +67,4 @@ public class EarlyReceiptCache {
 
     cache.put(timestamp, receipts);
   }
-
-  public synchronized Map<RecipientId, Long> remove(long timestamp) {
-    Map<RecipientId, Long> receipts = cache.remove(timestamp);
-
-    Log.i(TAG, this+"");
-    Log.i(TAG, String.format(Locale.US, "Checking early receipts (%d): %d", timestamp, receipts == null ? 0 : receipts.size()));
-
-    return receipts != null ? receipts : new HashMap<>();
-  }
 }
@@ -8,6 +8,7 @@ import androidx.annotation.NonNull;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
@@ -41,6 +42,7 @@ public class JobDatabase extends Database {
     private static final String LIFESPAN              = "lifespan";
     private static final String SERIALIZED_DATA       = "serialized_data";
     private static final String IS_RUNNING            = "is_running";
+    private static final String PRIORITY              = "priority";
 
     private static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + "(" + ID                    + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
                                                                                     JOB_SPEC_ID           + " TEXT UNIQUE, " +
@@ -54,7 +56,8 @@ public class JobDatabase extends Database {
                                                                                     MAX_INSTANCES         + " INTEGER, " +
                                                                                     LIFESPAN              + " INTEGER, " +
                                                                                     SERIALIZED_DATA       + " TEXT, " +
-                                                                                    IS_RUNNING            + " INTEGER)";
+                                                                                    IS_RUNNING            + " INTEGER, " +
+                                                                                    PRIORITY              + " INTEGER DEFAULT " + Job.Parameters.PRIORITY_DEFAULT + ")";
   }
 
   private static final class Constraints {
@@ -153,24 +156,7 @@ public class JobDatabase extends Database {
 
     try {
       for (JobSpec job : jobs) {
-        ContentValues values = new ContentValues();
-        values.put(Jobs.JOB_SPEC_ID, job.getId());
-        values.put(Jobs.FACTORY_KEY, job.getFactoryKey());
-        values.put(Jobs.QUEUE_KEY, job.getQueueKey());
-        values.put(Jobs.CREATE_TIME, job.getCreateTime());
-        values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, job.getNextRunAttemptTime());
-        values.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
-        values.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
-        values.put(Jobs.MAX_BACKOFF, job.getMaxBackoff());
-        values.put(Jobs.MAX_INSTANCES, job.getMaxInstances());
-        values.put(Jobs.LIFESPAN, job.getLifespan());
-        values.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
-        values.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
-
-        String   query = Jobs.JOB_SPEC_ID + " = ?";
-        String[] args  = new String[]{ job.getId() };
-
-        db.update(Jobs.TABLE_NAME, values, query, args);
+        updateJobSpec(db, job);
       }
 
       db.setTransactionSuccessful();
@@ -186,12 +172,36 @@ public class JobDatabase extends Database {
 
     try {
       for (String jobId : jobIds) {
-        String[] arg = new String[]{jobId};
+        deleteJob(db, jobId);
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
 
-        db.delete(Jobs.TABLE_NAME, Jobs.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Constraints.TABLE_NAME, Constraints.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Dependencies.TABLE_NAME, Dependencies.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Dependencies.TABLE_NAME, Dependencies.DEPENDS_ON_JOB_SPEC_ID + " = ?", arg);
+  /**
+   * Applies a set of inserts, full job updates and deletes in a single transaction, in that order.
+   */
+  public synchronized void writeBatch(@NonNull List<FullSpec> inserts, @NonNull List<JobSpec> updates, @NonNull List<String> deletes) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+
+    try {
+      for (FullSpec fullSpec : inserts) {
+        insertJobSpec(db, fullSpec.getJobSpec());
+        insertConstraintSpecs(db, fullSpec.getConstraintSpecs());
+        insertDependencySpecs(db, fullSpec.getDependencySpecs());
+      }
+
+      for (JobSpec job : updates) {
+        updateJobSpec(db, job);
+      }
+
+      for (String jobId : deletes) {
+        deleteJob(db, jobId);
       }
 
       db.setTransactionSuccessful();
@@ -238,10 +248,42 @@ public class JobDatabase extends Database {
     contentValues.put(Jobs.LIFESPAN, job.getLifespan());
     contentValues.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
     contentValues.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
+    contentValues.put(Jobs.PRIORITY, job.getPriority());
 
     db.insertWithOnConflict(Jobs.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
   }
 
+  private void updateJobSpec(@NonNull SQLiteDatabase db, @NonNull JobSpec job) {
+    ContentValues values = new ContentValues();
+    values.put(Jobs.JOB_SPEC_ID, job.getId());
+    values.put(Jobs.FACTORY_KEY, job.getFactoryKey());
+    values.put(Jobs.QUEUE_KEY, job.getQueueKey());
+    values.put(Jobs.CREATE_TIME, job.getCreateTime());
+    values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, job.getNextRunAttemptTime());
+    values.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
+    values.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
+    values.put(Jobs.MAX_BACKOFF, job.getMaxBackoff());
+    values.put(Jobs.MAX_INSTANCES, job.getMaxInstances());
+    values.put(Jobs.LIFESPAN, job.getLifespan());
+    values.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
+    values.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
+    values.put(Jobs.PRIORITY, job.getPriority());
+
+    String   query = Jobs.JOB_SPEC_ID + " = ?";
+    String[] args  = new String[]{ job.getId() };
+
+    db.update(Jobs.TABLE_NAME, values, query, args);
+  }
+
+  private void deleteJob(@NonNull SQLiteDatabase db, @NonNull String jobId) {
+    String[] arg = new String[]{jobId};
+
+    db.delete(Jobs.TABLE_NAME, Jobs.JOB_SPEC_ID + " = ?", arg);
+    db.delete(Constraints.TABLE_NAME, Constraints.JOB_SPEC_ID + " = ?", arg);
+    db.delete(Dependencies.TABLE_NAME, Dependencies.JOB_SPEC_ID + " = ?", arg);
+    db.delete(Dependencies.TABLE_NAME, Dependencies.DEPENDS_ON_JOB_SPEC_ID + " = ?", arg);
+  }
+
   private void insertConstraintSpecs(@NonNull SQLiteDatabase db, @NonNull List<ConstraintSpec> constraints) {
     for (ConstraintSpec constraintSpec : constraints) {
       ContentValues contentValues = new ContentValues();
@@ -272,7 +314,9 @@ public class JobDatabase extends Database {
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.LIFESPAN)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.MAX_INSTANCES)),
                        cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
-                       cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1);
+                       cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1,
+                       true,
+                       cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.PRIORITY)));
   }
 
   private @NonNull ConstraintSpec constraintSpecFromCursor(@NonNull Cursor cursor) {
@@ -0,0 +1,173 @@
+package org.thoughtcrime.securesms.database;
+
+import android.database.Cursor;
+import android.database.CursorWrapper;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * A conversation cursor whose rows don't have their attachments joined in. Instead, the attachments
+ * of a page of rows are fetched together, and kept for as long as the cursor is. The first page is
+ * fetched up front, since it's what gets shown first, and each page after it is fetched in the
+ * background as soon as the page before it is read, so that scrolling doesn't wait on the database.
+ *
+ * {@link AttachmentDatabase#getAttachment(Cursor)} reads through this, so readers work unchanged.
+ * A page that fails to load in the background is fetched again when it's read, and if that fails
+ * too, the failure is thrown to the reader rather than the page looking like it has no attachments.
+ */
+public class LazyAttachmentCursor extends CursorWrapper {
+
+  private static final String TAG = LazyAttachmentCursor.class.getSimpleName();
+
+  private static final int  PAGE_SIZE = 50;
+  private static final long NOT_MMS   = -1;
+
+  private final AttachmentDatabase                  attachmentDatabase;
+  private final Executor                            executor;
+  private final long[]                              mmsIds;
+  private final Map<Long, List<DatabaseAttachment>> attachments  = new HashMap<>();
+  private final Set<Integer>                        loadedPages  = new HashSet<>();
+  private final Set<Integer>                        loadingPages = new HashSet<>();
+
+  LazyAttachmentCursor(@NonNull Cursor cursor, @NonNull AttachmentDatabase attachmentDatabase) {
+    super(cursor);
+    this.attachmentDatabase = attachmentDatabase;
+    this.executor           = SignalExecutors.BOUNDED;
+    this.mmsIds             = readMmsIds();
+
+    loadPage(0);
+    prefetchPage(1);
+  }
+
+  /**
+   * @return The attachments of the message at the current position.
+   */
+  @NonNull List<DatabaseAttachment> getAttachments() {
+    if (!isMms()) {
+      return new LinkedList<>();
+    }
+
+    int page = getPosition() / PAGE_SIZE;
+
+    loadPage(page);
+    prefetchPage(page + 1);
+
+    List<DatabaseAttachment> messageAttachments;
+
+    synchronized (this) {
+      messageAttachments = attachments.get(getLong(getColumnIndexOrThrow(MmsSmsColumns.ID)));
+    }
+
+    return messageAttachments != null ? new LinkedList<>(messageAttachments) : new LinkedList<>();
+  }
+
+  /**
+   * Fetches a page on the calling thread, unless it's already been fetched, or waits for it if it's
+   * being fetched in the background.
+   */
+  private void loadPage(int page) {
+    synchronized (this) {
+      while (loadingPages.contains(page)) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      if (loadedPages.contains(page) || !hasPage(page)) {
+        return;
+      }
+
+      loadingPages.add(page);
+    }
+
+    fetchPage(page);
+  }
+
+  private void prefetchPage(int page) {
+    synchronized (this) {
+      if (loadedPages.contains(page) || loadingPages.contains(page) || !hasPage(page)) {
+        return;
+      }
+
+      loadingPages.add(page);
+    }
+
+    executor.execute(() -> {
+      try {
+        fetchPage(page);
+      } catch (RuntimeException e) {
+        Log.w(TAG, "Failed to prefetch attachments for page " + page + ", it'll be fetched when read.", e);
+      }
+    });
+  }
+
+  /**
+   * Must only be called by whoever added the page to {@link #loadingPages}.
+   */
+  private void fetchPage(int page) {
+    Map<Long, List<DatabaseAttachment>> pageAttachments = null;
+
+    try {
+      List<Long> pageIds = new LinkedList<>();
+
+      for (int i = page * PAGE_SIZE; i < Math.min((page + 1) * PAGE_SIZE, mmsIds.length); i++) {
+        if (mmsIds[i] != NOT_MMS) {
+          pageIds.add(mmsIds[i]);
+        }
+      }
+
+      pageAttachments = attachmentDatabase.getAttachmentsForMessages(pageIds);
+    } finally {
+      synchronized (this) {
+        if (pageAttachments != null) {
+          attachments.putAll(pageAttachments);
+          loadedPages.add(page);
+        }
+
+        loadingPages.remove(page);
+        notifyAll();
+      }
+    }
+  }
+
+  private boolean hasPage(int page) {
+    return page >= 0 && page * PAGE_SIZE < mmsIds.length;
+  }
+
+  /**
+   * Reads the id of every MMS row once, on the thread that creates the cursor, so that pages can be
+   * fetched in the background without moving the cursor out from under its reader.
+   */
+  private @NonNull long[] readMmsIds() {
+    long[] ids      = new long[getCount()];
+    int    position = getPosition();
+
+    if (moveToFirst()) {
+      do {
+        ids[getPosition()] = isMms() ? getLong(getColumnIndexOrThrow(MmsSmsColumns.ID)) : NOT_MMS;
+      } while (moveToNext());
+    }
+
+    moveToPosition(position);
+
+    return ids;
+  }
+
+  private boolean isMms() {
+    return MmsSmsDatabase.MMS_TRANSPORT.equals(getString(getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)));
+  }
+}
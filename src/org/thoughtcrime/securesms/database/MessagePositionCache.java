@@ -0,0 +1,42 @@
+package org.thoughtcrime.securesms.database;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.LRUCache;
+
+import java.util.Map;
+
+/**
+ * Remembers where recently looked up messages sit in their conversations, so jumping back and forth
+ * between the same quotes doesn't count through the thread each time.
+ *
+ * Anything that changes a thread can move the messages in it, so a thread's positions are dropped
+ * whenever its listeners are notified.
+ */
+final class MessagePositionCache {
+
+  private static final LRUCache<Long, Map<String, Integer>> cache = new LRUCache<>(10);
+
+  private MessagePositionCache() {}
+
+  static synchronized @Nullable Integer get(long threadId, @NonNull String key) {
+    Map<String, Integer> positions = cache.get(threadId);
+    return positions != null ? positions.get(key) : null;
+  }
+
+  static synchronized void put(long threadId, @NonNull String key, int position) {
+    Map<String, Integer> positions = cache.get(threadId);
+
+    if (positions == null) {
+      positions = new LRUCache<>(50);
+      cache.put(threadId, positions);
+    }
+
+    positions.put(key, position);
+  }
+
+  static synchronized void invalidate(long threadId) {
+    cache.remove(threadId);
+  }
+}
@@ -11,6 +11,7 @@ import com.annimon.stream.Stream;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
 import org.thoughtcrime.securesms.database.documents.Document;
 import org.thoughtcrime.securesms.database.documents.IdentityKeyMismatch;
@@ -28,8 +29,11 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
@@ -360,6 +364,46 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
     db.update(getTableName(), values, query, args);
   }
 
+  /**
+   * Groups receipts by the sent timestamp of the message they're for, so a batch can look up all
+   * of its messages with a few IN queries.
+   */
+  static @NonNull Map<Long, List<SyncMessageId>> groupByTimestamp(@NonNull List<SyncMessageId> messageIds) {
+    Map<Long, List<SyncMessageId>> grouped = new HashMap<>();
+
+    for (SyncMessageId messageId : messageIds) {
+      List<SyncMessageId> receipts = grouped.get(messageId.getTimetamp());
+
+      if (receipts == null) {
+        receipts = new LinkedList<>();
+        grouped.put(messageId.getTimetamp(), receipts);
+      }
+
+      receipts.add(messageId);
+    }
+
+    return grouped;
+  }
+
+  /**
+   * Adds the number of receipts each message got to its receipt count column.
+   */
+  final void applyReceiptCounts(@NonNull SQLiteDatabase db, @NonNull String columnName, @NonNull Map<Long, Integer> counts) {
+    if (counts.isEmpty()) return;
+
+    SQLiteStatement statement = db.compileStatement("UPDATE " + getTableName() + " SET " + columnName + " = " + columnName + " + ? WHERE " + ID + " = ?");
+
+    try {
+      for (Map.Entry<Long, Integer> count : counts.entrySet()) {
+        statement.bindLong(1, count.getValue());
+        statement.bindLong(2, count.getKey());
+        statement.execute();
+      }
+    } finally {
+      statement.close();
+    }
+  }
+
   private long getThreadId(@NonNull SQLiteDatabase db, long messageId) {
     String[] projection = new String[]{ THREAD_ID };
     String   query      = ID + " = ?";
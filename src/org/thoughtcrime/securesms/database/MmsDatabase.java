@@ -74,9 +74,11 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import java.io.Closeable;
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -276,46 +278,84 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
-    boolean        found    = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, RECIPIENT_ID}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
+  /**
+   * Applies a batch of delivery or read receipts, marking the sender's group receipt as well for
+   * group messages. Receipts for messages that aren't stored yet are held in the early receipt
+   * caches until they are.
+   *
+   * @return The threads whose messages were updated. Callers are responsible for updating them and
+   *         notifying their listeners.
+   */
+  @NonNull Set<Long> incrementReceiptCounts(@NonNull List<SyncMessageId> messageIds, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
+    SQLiteDatabase                 database      = databaseHelper.getWritableDatabase();
+    GroupReceiptDatabase           groupReceipts = DatabaseFactory.getGroupReceiptDatabase(context);
+    Map<Long, List<SyncMessageId>> byTimestamp   = groupByTimestamp(messageIds);
+    Map<RecipientId, Boolean>      groups        = new HashMap<>();
+    Map<Long, Integer>             counts        = new HashMap<>();
+    Set<SyncMessageId>             found         = Collections.newSetFromMap(new IdentityHashMap<>());
+    Map<Long, Pair<Long, Long>>    latest        = new HashMap<>();
+    int                            status        = deliveryReceipt ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
+
+    for (List<Long> timestamps : Util.chunk(new ArrayList<>(byTimestamp.keySet()), 500)) {
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, RECIPIENT_ID, DATE_SENT, DATE_RECEIVED},
+                                          DATE_SENT + " IN (" + Util.join(timestamps, ",") + ")", null,
+                                          null, null, null, null))
+      {
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
+            continue;
+          }
 
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
+          long        id               = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long        threadId         = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          long        dateReceived     = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_RECEIVED));
           RecipientId theirRecipientId = RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(RECIPIENT_ID)));
-          RecipientId ourRecipientId   = messageId.getRecipientId();
-          String      columnName       = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
+          boolean     matched          = false;
 
-          if (ourRecipientId.equals(theirRecipientId) || Recipient.resolved(theirRecipientId).isGroup()) {
-            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            int  status   = deliveryReceipt ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
+          for (SyncMessageId messageId : byTimestamp.get(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT)))) {
+            RecipientId ourRecipientId = messageId.getRecipientId();
 
-            found = true;
+            if (ourRecipientId.equals(theirRecipientId) || isGroup(theirRecipientId, groups)) {
+              Integer count = counts.get(id);
 
-            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
+              counts.put(id, count != null ? count + 1 : 1);
+              found.add(messageId);
+              matched = true;
 
-            DatabaseFactory.getGroupReceiptDatabase(context).update(ourRecipientId, id, status, timestamp);
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
+              groupReceipts.update(ourRecipientId, id, status, timestamp);
+            }
+          }
+
+          if (matched && (!latest.containsKey(threadId) || latest.get(threadId).second < dateReceived)) {
+            latest.put(threadId, new Pair<>(id, dateReceived));
           }
         }
       }
+    }
 
-      if (!found) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    applyReceiptCounts(database, deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT, counts);
+
+    List<SyncMessageId> early = Stream.of(messageIds).filterNot(found::contains).toList();
+
+    if (deliveryReceipt) earlyDeliveryReceiptCache.incrementAll(early);
+    if (readReceipt)     earlyReadReceiptCache.incrementAll(early);
+
+    for (Pair<Long, Long> message : latest.values()) {
+      updateThreadForChange(message.first, false);
+    }
+
+    return new HashSet<>(latest.keySet());
+  }
+
+  private static boolean isGroup(@NonNull RecipientId recipientId, @NonNull Map<RecipientId, Boolean> resolved) {
+    Boolean isGroup = resolved.get(recipientId);
+
+    if (isGroup == null) {
+      isGroup = Recipient.resolved(recipientId).isGroup();
+      resolved.put(recipientId, isGroup);
     }
+
+    return isGroup;
   }
 
   public long getThreadIdForMessage(long id) {
@@ -394,7 +434,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      updateThreadForChange(id, false);
     }
   }
 
@@ -637,9 +677,8 @@ public class MmsDatabase extends MessagingDatabase {
                "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    long threadId = updateThreadForChange(messageId, true);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -931,7 +970,6 @@ public class MmsDatabase extends MessagingDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     }
 
     notifyConversationListeners(threadId);
@@ -1121,9 +1159,11 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, body);
     contentValues.put(PART_COUNT, allAttachments.size());
 
+    long messageId;
+
     db.beginTransaction();
     try {
-      long messageId = db.insert(TABLE_NAME, null, contentValues);
+      messageId = db.insert(TABLE_NAME, null, contentValues);
 
       Map<Attachment, AttachmentId> insertedAttachments = partsDatabase.insertAttachmentsForMessage(messageId, allAttachments, quoteAttachments);
       String                        serializedContacts  = getSerializedSharedContacts(insertedAttachments, sharedContacts);
@@ -1154,7 +1194,6 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       db.setTransactionSuccessful();
-      return messageId;
     } finally {
       db.endTransaction();
 
@@ -1163,12 +1202,16 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
     }
+
+    updateThreadForInsert(contentValues.getAsLong(THREAD_ID), messageId);
+
+    return messageId;
   }
 
   public boolean delete(long messageId) {
-    long               threadId           = getThreadIdForMessage(messageId);
+    long               threadId           = -1;
+    long               dateReceived       = 0;
     AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
     attachmentDatabase.deleteAttachmentsForMessage(messageId);
 
@@ -1176,14 +1219,50 @@ public class MmsDatabase extends MessagingDatabase {
     groupReceiptDatabase.deleteRowsForMessage(messageId);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE, new String[] {messageId+""}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId     = cursor.getLong(0);
+        dateReceived = cursor.getLong(1);
+      }
+    }
+
     database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, dateReceived);
     notifyConversationListeners(threadId);
     notifyStickerListeners();
     notifyStickerPackListeners();
     return threadDeleted;
   }
 
+  /**
+   * Brings the thread of a message that was just inserted up to date without counting it again.
+   */
+  private void updateThreadForInsert(long threadId, long messageId) {
+    try {
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, getMessageRecord(messageId), true);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Inserted message is missing, updating the whole thread.", e);
+      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    }
+  }
+
+  /**
+   * Refreshes the thread's snippet if it was taken from the message that was just changed.
+   *
+   * @return The id of the message's thread, or -1 if the message no longer exists.
+   */
+  private long updateThreadForChange(long messageId, boolean unarchive) {
+    try {
+      MessageRecord record = getMessageRecord(messageId);
+
+      DatabaseFactory.getThreadDatabase(context).updateForChange(record.getThreadId(), record, unarchive);
+      return record.getThreadId();
+    } catch (NoSuchMessageException e) {
+      return -1;
+    }
+  }
+
   public void deleteThread(long threadId) {
     Set<Long> singleThreadSet = new HashSet<>();
     singleThreadSet.add(threadId);
@@ -1567,7 +1646,7 @@ public class MmsDatabase extends MessagingDatabase {
       List<LinkPreview>         previews           = getLinkPreviews(cursor, attachments);
       Set<Attachment>           previewAttachments = Stream.of(previews).filter(lp -> lp.getThumbnail().isPresent()).map(lp -> lp.getThumbnail().get()).collect(Collectors.toSet());
       SlideDeck                 slideDeck          = getSlideDeck(Stream.of(attachments).filterNot(contactAttachments::contains).filterNot(previewAttachments::contains).toList());
-      Quote                     quote              = getQuote(cursor);
+      Quote                     quote              = getQuote(cursor, attachments);
 
       return new MediaMmsMessageRecord(id, recipient, recipient,
                                        addressDeviceId, dateSent, dateReceived, deliveryReceiptCount,
@@ -1607,12 +1686,11 @@ public class MmsDatabase extends MessagingDatabase {
       return new SlideDeck(context, messageAttachments);
     }
 
-    private @Nullable Quote getQuote(@NonNull Cursor cursor) {
+    private @Nullable Quote getQuote(@NonNull Cursor cursor, @NonNull List<DatabaseAttachment> attachments) {
       long                       quoteId          = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_ID));
       long                       quoteAuthor      = cursor.getLong(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_AUTHOR));
       String                     quoteText        = cursor.getString(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_BODY));
       boolean                    quoteMissing     = cursor.getInt(cursor.getColumnIndexOrThrow(MmsDatabase.QUOTE_MISSING)) == 1;
-      List<DatabaseAttachment>   attachments      = DatabaseFactory.getAttachmentDatabase(context).getAttachment(cursor);
       List<? extends Attachment> quoteAttachments = Stream.of(attachments).filter(Attachment::isQuote).toList();
       SlideDeck                  quoteDeck        = new SlideDeck(context, quoteAttachments);
 
@@ -21,6 +21,9 @@ import android.database.Cursor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import com.annimon.stream.Stream;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
@@ -31,7 +34,9 @@ import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
@@ -43,6 +48,8 @@ public class MmsSmsDatabase extends Database {
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
 
+  private static final String CONVERSATION_ORDER = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + TRANSPORT + " DESC, " + MmsSmsColumns.ID + " DESC";
+
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
                                               MmsSmsColumns.THREAD_ID,
@@ -80,6 +87,10 @@ public class MmsSmsDatabase extends Database {
                                               MmsSmsColumns.REACTIONS_UNREAD,
                                               MmsSmsColumns.REACTIONS_LAST_SEEN};
 
+  private static final String[] CONVERSATION_PROJECTION = Stream.of(PROJECTION)
+                                                                .filterNot(AttachmentDatabase.ATTACHMENT_JSON_ALIAS::equals)
+                                                                .toArray(String[]::new);
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -104,12 +115,51 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
+  /**
+   * Retrieves up to {@code limit} messages of a conversation, newest first, skipping the newest
+   * {@code offset}. The page is fetched from the key of the message just before it, so that a page
+   * deep into a thread doesn't read and discard every message in front of it.
+   */
   public Cursor getConversation(long threadId, long offset, long limit) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+    String query;
+
+    if (limit > 0 && offset > 0) {
+      PageKey before = getPageKeyAt(threadId, offset - 1);
+
+      if (before != null) {
+        return getConversationPage(threadId, before, limit);
+      }
+
+      query = buildConversationQuery(threadId, null, offset, limit, false);
+    } else if (limit > 0) {
+      query = buildConversationQuery(threadId, null, 0, limit, false);
+    } else {
+      String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+      String limitStr  = offset > 0 ? offset + ", " + limit : null;
+
+      query = buildQuery(CONVERSATION_PROJECTION, SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME, selection, CONVERSATION_ORDER, limitStr, false);
+    }
+
+    return queryConversation(threadId, query);
+  }
+
+  /**
+   * Retrieves up to {@code limit} messages of a conversation, newest first, starting after the
+   * message described by {@code before}, or with the newest message if it's null.
+   *
+   * Unlike paging with an offset, the cost of a page doesn't depend on how far back it is.
+   */
+  public Cursor getConversationPage(long threadId, @Nullable PageKey before, long limit) {
+    return queryConversation(threadId, buildConversationQuery(threadId, before, 0, limit, false));
+  }
 
-    Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
+  /**
+   * Conversations are read without their attachments joined in, which would mean building and then
+   * parsing JSON for every row. They're fetched a page of rows at a time instead, when first needed.
+   */
+  private Cursor queryConversation(long threadId, @NonNull String query) {
+    Cursor cursor = new LazyAttachmentCursor(databaseHelper.getReadableDatabase().rawQuery(query, null),
+                                             DatabaseFactory.getAttachmentDatabase(context));
     setNotifyConverationListeners(cursor, threadId);
 
     return cursor;
@@ -119,6 +169,16 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0, 0);
   }
 
+  /**
+   * @return The date received of the message at the given position in the conversation, newest
+   *         first, or null if the conversation is shorter than that. Unlike reading it from
+   *         {@link #getConversation(long)}, no rows or attachments are loaded.
+   */
+  public @Nullable Long getDateReceivedAt(long threadId, long position) {
+    PageKey key = getPageKeyAt(threadId, position);
+    return key != null ? key.dateReceived : null;
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -195,51 +255,47 @@ public class MmsSmsDatabase extends Database {
   }
 
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+    incrementReceiptCounts(Collections.singletonList(syncMessageId), timestamp, true, false);
   }
 
-  public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
+  public void incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    incrementReceiptCounts(syncMessageIds, timestamp, true, false);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull RecipientId recipientId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
+    incrementReceiptCounts(Collections.singletonList(syncMessageId), timestamp, false, true);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.RECIPIENT_ID}, selection, order, null)) {
-      boolean isOwnNumber = Recipient.resolved(recipientId).isLocalNumber();
+  public void incrementReadReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    incrementReceiptCounts(syncMessageIds, timestamp, false, true);
+  }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches     = cursor.getLong(0) == quoteId;
-        boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
+  /**
+   * Applies a batch of receipts in a single transaction. Each affected thread's snippet is refreshed
+   * at most once per table, and its listeners are notified once the batch is committed.
+   */
+  private void incrementReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    Set<Long>      threadIds = new HashSet<>();
 
-        if (quoteIdMatches && (recipientIdMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
+    db.beginTransaction();
+    try {
+      threadIds.addAll(DatabaseFactory.getSmsDatabase(context).incrementReceiptCounts(syncMessageIds, deliveryReceipt, readReceipt));
+      threadIds.addAll(DatabaseFactory.getMmsDatabase(context).incrementReceiptCounts(syncMessageIds, timestamp, deliveryReceipt, readReceipt));
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
     }
-    return -1;
-  }
 
-  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.RECIPIENT_ID}, selection, order, null)) {
-      boolean isOwnNumber = Recipient.resolved(recipientId).isLocalNumber();
+    notifyConversationListeners(threadIds);
+  }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches   = cursor.getLong(0) == receivedTimestamp;
-        boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
+  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull RecipientId recipientId) {
+    return getMessagePosition(threadId, SmsDatabase.DATE_SENT, MmsDatabase.DATE_SENT, quoteId, recipientId);
+  }
 
-        if (timestampMatches && (recipientIdMatches || isOwnNumber)) {
-          return cursor.getPosition();
-        }
-      }
-    }
-    return -1;
+  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
+    return getMessagePosition(threadId, SmsDatabase.DATE_RECEIVED, MmsDatabase.DATE_RECEIVED, receivedTimestamp, recipientId);
   }
 
   boolean hasReceivedAnyCallsSince(long threadId, long timestamp) {
@@ -255,49 +311,188 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+    return count(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + " > " + receivedTimestamp, threadId) +
+           count(MmsDatabase.TABLE_NAME, MmsDatabase.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + " > " + receivedTimestamp, threadId);
+  }
+
+  /**
+   * Finds the newest message in the thread with the given timestamp in the given columns that's
+   * from the author, or any with that timestamp if the author is us, and counts the messages before
+   * it. Both steps are lookups on the tables' indexes rather than a walk through the conversation.
+   */
+  private int getMessagePosition(long threadId, @NonNull String smsColumn, @NonNull String mmsColumn, long timestamp, @NonNull RecipientId author) {
+    String  cacheKey = smsColumn + ":" + timestamp + ":" + author.serialize();
+    Integer cached   = MessagePositionCache.get(threadId, cacheKey);
+
+    if (cached != null) {
+      return cached;
+    }
+
+    PageKey sms      = findMessage(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, smsColumn, false, threadId, timestamp, author);
+    PageKey mms      = findMessage(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, mmsColumn, true, threadId, timestamp, author);
+    PageKey message  = sms == null || (mms != null && mms.compareTo(sms) < 0) ? mms : sms;
+    int     position = -1;
+
+    if (message != null) {
+      position = count(SmsDatabase.TABLE_NAME, SmsDatabase.THREAD_ID + " = ? AND " + message.getNewerSelection(SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED), threadId) +
+                 count(MmsDatabase.TABLE_NAME, MmsDatabase.THREAD_ID + " = ? AND " + message.getNewerSelection(MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED), threadId);
+    }
+
+    MessagePositionCache.put(threadId, cacheKey, position);
+
+    return position;
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
+  private @Nullable PageKey findMessage(@NonNull String table, @NonNull String dateReceivedColumn, @NonNull String column, boolean mms, long threadId, long timestamp, @NonNull RecipientId author) {
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    String[]       columns   = new String[] { MmsSmsColumns.ID, dateReceivedColumn, MmsSmsColumns.RECIPIENT_ID };
+    String         selection = MmsSmsColumns.THREAD_ID + " = ? AND " + column + " = ?";
+    String[]       args      = new String[] { String.valueOf(threadId), String.valueOf(timestamp) };
+    PageKey        newest    = null;
+    Boolean        isSelf    = null;
+
+    try (Cursor cursor = db.query(table, columns, selection, args, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        boolean authorMatches = author.equals(RecipientId.from(cursor.getLong(2)));
+
+        if (!authorMatches && isSelf == null) {
+          isSelf = author.equals(Recipient.self().getId());
+        }
+
+        if (authorMatches || isSelf) {
+          PageKey candidate = new PageKey(cursor.getLong(1), mms, cursor.getLong(0));
+
+          if (newest == null || candidate.compareTo(newest) < 0) {
+            newest = candidate;
+          }
+        }
+      }
+    }
+
+    return newest;
+  }
+
+  /**
+   * @return The key of the message at the given position in the conversation, newest first, or null
+   *         if the conversation is shorter than that. Only the columns in the tables' (thread_id,
+   *         date) indexes are read on the way, never whole rows or their attachments.
+   */
+  private @Nullable PageKey getPageKeyAt(long threadId, long position) {
+    String sms = "SELECT * FROM (SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + SmsDatabase.ID + " AS " + MmsSmsColumns.ID +
+                 " FROM " + SmsDatabase.TABLE_NAME +
+                 " WHERE " + SmsDatabase.THREAD_ID + " = " + threadId +
+                 " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC, " + SmsDatabase.ID + " DESC" +
+                 " LIMIT " + (position + 1) + ")";
+    String mms = "SELECT * FROM (SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + MmsDatabase.ID + " AS " + MmsSmsColumns.ID +
+                 " FROM " + MmsDatabase.TABLE_NAME +
+                 " WHERE " + MmsDatabase.THREAD_ID + " = " + threadId +
+                 " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC, " + MmsDatabase.ID + " DESC" +
+                 " LIMIT " + (position + 1) + ")";
+
+    String query = sms + " UNION ALL " + mms + " ORDER BY " + CONVERSATION_ORDER + " LIMIT 1 OFFSET " + position;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return new PageKey(cursor.getLong(0), MMS_TRANSPORT.equals(cursor.getString(1)), cursor.getLong(2));
+      }
+    }
+
+    return null;
+  }
+
+  private int count(@NonNull String table, @NonNull String selection, long threadId) {
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+
+    try (Cursor cursor = db.query(table, new String[] { "COUNT(*)" }, selection, new String[] { String.valueOf(threadId) }, null, null, null)) {
       if (cursor != null && cursor.moveToFirst()) {
         return cursor.getInt(0);
       }
     }
-    return -1;
+
+    return 0;
+  }
+
+  /**
+   * Builds the query for a page of a conversation. When the page starts at the newest message or at
+   * a {@link PageKey}, each table is first cut down to the rows the page could contain using its
+   * (thread_id, date) index, so the attachment join and the sort only happen for those rather than
+   * for the whole thread. Pages at an offset still have to order everything before them.
+   */
+  @VisibleForTesting
+  static @NonNull String buildConversationQuery(long threadId, @Nullable PageKey before, long offset, long limit, boolean withAttachments) {
+    String[] projection = withAttachments ? PROJECTION : CONVERSATION_PROJECTION;
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String limitStr  = offset + ", " + limit;
+
+    if (offset > 0) {
+      return buildQuery(projection, SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME, selection, CONVERSATION_ORDER, limitStr, withAttachments);
+    }
+
+    String smsSelection = selection;
+    String mmsSelection = selection;
+
+    if (before != null) {
+      smsSelection += " AND " + before.getOlderSelection(SMS_TRANSPORT, SmsDatabase.DATE_RECEIVED);
+      mmsSelection += " AND " + before.getOlderSelection(MMS_TRANSPORT, MmsDatabase.DATE_RECEIVED);
+    }
+
+    String smsTable = "(SELECT * FROM " + SmsDatabase.TABLE_NAME +
+                      " WHERE " + smsSelection +
+                      " ORDER BY " + SmsDatabase.DATE_RECEIVED + " DESC, " + SmsDatabase.ID + " DESC" +
+                      " LIMIT " + limit + ") AS " + SmsDatabase.TABLE_NAME;
+    String mmsTable = "(SELECT * FROM " + MmsDatabase.TABLE_NAME +
+                      " WHERE " + mmsSelection +
+                      " ORDER BY " + MmsDatabase.DATE_RECEIVED + " DESC, " + MmsDatabase.ID + " DESC" +
+                      " LIMIT " + limit + ") AS " + MmsDatabase.TABLE_NAME;
+
+    return buildQuery(projection, smsTable, mmsTable, selection, CONVERSATION_ORDER, limitStr, withAttachments);
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
+    String query = buildQuery(projection, SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME, selection, order, limit, true);
+
+    SQLiteDatabase db = databaseHelper.getReadableDatabase();
+    return db.rawQuery(query, null);
+  }
+
+  private static @NonNull String buildQuery(String[] projection, String smsTable, String mmsTable, String selection, String order, String limit, boolean withAttachments) {
+    String attachmentsColumn = "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+
+    if (withAttachments) {
+      attachmentsColumn = "json_group_array(json_object(" +
+                              "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
+                              "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
+                              "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
+                              "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
+                              "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
+                              "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
+                              "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
+                              "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
+                              "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
+                              "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
+                              "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
+                              "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
+                              "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
+                              "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
+                              "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
+                              "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
+                              "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
+                              "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
+                              "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
+                              "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
+                              "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID + ", " +
+                              "'" + AttachmentDatabase.BLUR_HASH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.BLUR_HASH + ", " +
+                              "'" + AttachmentDatabase.TRANSFORM_PROPERTIES + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFORM_PROPERTIES +
+                              ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS;
+    }
+
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
                               "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
                                   + " || '::' || " + MmsDatabase.DATE_SENT
                                   + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
-                              "json_group_array(json_object(" +
-                                  "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
-                                  "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
-                                  "'" + AttachmentDatabase.MMS_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + "," +
-                                  "'" + AttachmentDatabase.SIZE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.SIZE + ", " +
-                                  "'" + AttachmentDatabase.FILE_NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FILE_NAME + ", " +
-                                  "'" + AttachmentDatabase.DATA + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.DATA + ", " +
-                                  "'" + AttachmentDatabase.THUMBNAIL + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.THUMBNAIL + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_TYPE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_TYPE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_LOCATION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_LOCATION + ", " +
-                                  "'" + AttachmentDatabase.FAST_PREFLIGHT_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.FAST_PREFLIGHT_ID + ", " +
-                                  "'" + AttachmentDatabase.VOICE_NOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.VOICE_NOTE + ", " +
-                                  "'" + AttachmentDatabase.WIDTH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.WIDTH + ", " +
-                                  "'" + AttachmentDatabase.HEIGHT + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.HEIGHT + ", " +
-                                  "'" + AttachmentDatabase.QUOTE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.QUOTE + ", " +
-                                  "'" + AttachmentDatabase.CONTENT_DISPOSITION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CONTENT_DISPOSITION + ", " +
-                                  "'" + AttachmentDatabase.NAME + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.NAME + ", " +
-                                  "'" + AttachmentDatabase.TRANSFER_STATE + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFER_STATE + ", " +
-                                  "'" + AttachmentDatabase.CAPTION + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.CAPTION + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_ID + ", " +
-                                  "'" + AttachmentDatabase.STICKER_PACK_KEY + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_PACK_KEY + ", " +
-                                  "'" + AttachmentDatabase.STICKER_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.STICKER_ID + ", " +
-                                  "'" + AttachmentDatabase.BLUR_HASH + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.BLUR_HASH + ", " +
-                                  "'" + AttachmentDatabase.TRANSFORM_PROPERTIES + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.TRANSFORM_PROPERTIES +
-                                  ")) AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
+                              attachmentsColumn,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.RECIPIENT_ID, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
                               MmsDatabase.MESSAGE_BOX, SmsDatabase.STATUS, MmsDatabase.PART_COUNT,
@@ -357,10 +552,15 @@ public class MmsSmsDatabase extends Database {
     mmsQueryBuilder.setDistinct(true);
     smsQueryBuilder.setDistinct(true);
 
-    smsQueryBuilder.setTables(SmsDatabase.TABLE_NAME);
-    mmsQueryBuilder.setTables(MmsDatabase.TABLE_NAME + " LEFT OUTER JOIN " +
-                              AttachmentDatabase.TABLE_NAME +
-                              " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    smsQueryBuilder.setTables(smsTable);
+
+    if (withAttachments) {
+      mmsQueryBuilder.setTables(mmsTable + " LEFT OUTER JOIN " +
+                                AttachmentDatabase.TABLE_NAME +
+                                " ON " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    } else {
+      mmsQueryBuilder.setTables(mmsTable);
+    }
 
 
     Set<String> mmsColumnsPresent = new HashSet<>();
@@ -450,7 +650,7 @@ public class MmsSmsDatabase extends Database {
     smsColumnsPresent.add(SmsDatabase.REACTIONS_LAST_SEEN);
 
     @SuppressWarnings("deprecation")
-    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID, null);
+    String mmsSubQuery = mmsQueryBuilder.buildUnionSubQuery(TRANSPORT, mmsProjection, mmsColumnsPresent, 4, MMS_TRANSPORT, selection, null, withAttachments ? MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID : null, null);
     @SuppressWarnings("deprecation")
     String smsSubQuery = smsQueryBuilder.buildUnionSubQuery(TRANSPORT, smsProjection, smsColumnsPresent, 4, SMS_TRANSPORT, selection, null, null, null);
 
@@ -461,10 +661,68 @@ public class MmsSmsDatabase extends Database {
     outerQueryBuilder.setTables("(" + unionQuery + ")");
 
     @SuppressWarnings("deprecation")
-    String query      = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    String query = outerQueryBuilder.buildQuery(projection, null, null, null, null, null, null);
+    return query;
+  }
 
-    SQLiteDatabase db = databaseHelper.getReadableDatabase();
-    return db.rawQuery(query, null);
+  /**
+   * Where a message sits in a conversation, for fetching the messages older than it. Messages are
+   * ordered by date received, with ties broken by transport and then id so the order is total.
+   */
+  public static final class PageKey implements Comparable<PageKey> {
+
+    private final long    dateReceived;
+    private final boolean mms;
+    private final long    id;
+
+    public PageKey(long dateReceived, boolean mms, long id) {
+      this.dateReceived = dateReceived;
+      this.mms          = mms;
+      this.id           = id;
+    }
+
+    public static @NonNull PageKey forRecord(@NonNull MessageRecord record) {
+      return new PageKey(record.getDateReceived(), record.isMms(), record.getId());
+    }
+
+    /**
+     * Orders keys as their messages are in a conversation, newest first.
+     */
+    @Override
+    public int compareTo(@NonNull PageKey other) {
+      if (dateReceived != other.dateReceived) return dateReceived > other.dateReceived ? -1 : 1;
+      if (mms != other.mms)                   return mms ? 1 : -1;
+      if (id != other.id)                     return id > other.id ? -1 : 1;
+      return 0;
+    }
+
+    /**
+     * @return A selection on the table for the given transport matching the messages that come
+     *         after this one in the conversation.
+     */
+    private @NonNull String getOlderSelection(@NonNull String transport, @NonNull String dateReceivedColumn) {
+      int comparison = transport.compareTo(getTransport());
+
+      if      (comparison < 0) return dateReceivedColumn + " <= " + dateReceived;
+      else if (comparison > 0) return dateReceivedColumn + " < " + dateReceived;
+      else                     return "(" + dateReceivedColumn + " < " + dateReceived + " OR (" + dateReceivedColumn + " = " + dateReceived + " AND " + MmsSmsColumns.ID + " < " + id + "))";
+    }
+
+    /**
+     * @return A selection on the table for the given transport matching the messages that come
+     *         before this one in the conversation.
+     */
+    private @NonNull String getNewerSelection(@NonNull String transport, @NonNull String dateReceivedColumn) {
+      int comparison = transport.compareTo(getTransport());
+
+      if      (comparison < 0) return dateReceivedColumn + " > " + dateReceived;
+      else if (comparison > 0) return dateReceivedColumn + " >= " + dateReceived;
+      else                     return "(" + dateReceivedColumn + " > " + dateReceived + " OR (" + dateReceivedColumn + " = " + dateReceived + " AND " + MmsSmsColumns.ID + " > " + id + "))";
+    }
+
+    private @NonNull String getTransport() {
+      return mms ? MMS_TRANSPORT : SMS_TRANSPORT;
+    }
   }
 
   public Reader readerFor(@NonNull Cursor cursor) {
@@ -20,6 +20,8 @@ import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.UUID;
 
 public class PushDatabase extends Database {
@@ -67,6 +69,28 @@ public class PushDatabase extends Database {
     }
   }
 
+  /**
+   * Inserts a batch of envelopes in a single transaction.
+   *
+   * @return The ID of each envelope, in the same order.
+   */
+  public @NonNull List<Long> insert(@NonNull List<SignalServiceEnvelope> envelopes) {
+    SQLiteDatabase db  = databaseHelper.getWritableDatabase();
+    List<Long>     ids = new ArrayList<>(envelopes.size());
+
+    db.beginTransaction();
+    try {
+      for (SignalServiceEnvelope envelope : envelopes) {
+        ids.add(insert(envelope));
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    return ids;
+  }
+
   public SignalServiceEnvelope get(long id) throws NoSuchMessageException {
     Cursor cursor = null;
 
@@ -50,7 +50,11 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -156,9 +160,8 @@ public class SmsDatabase extends MessagingDatabase {
                " SET " + TYPE + " = (" + TYPE + " & " + (Types.TOTAL_MASK - maskOff) + " | " + maskOn + " )" +
                " WHERE " + ID + " = ?", new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
+    long threadId = updateThreadForChange(id, false);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
   }
 
@@ -309,9 +312,8 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
 
-    long threadId = getThreadIdForMessage(id);
+    long threadId = updateThreadForChange(id, false);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
     notifyConversationListeners(threadId);
   }
 
@@ -323,8 +325,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
-    long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    long threadId = updateThreadForChange(id, false);
     notifyConversationListeners(threadId);
   }
 
@@ -341,46 +342,65 @@ public class SmsDatabase extends MessagingDatabase {
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
+  /**
+   * Applies a batch of delivery or read receipts. Receipts for messages that aren't stored yet are
+   * held in the early receipt caches until they are.
+   *
+   * @return The threads whose messages were updated. Callers are responsible for updating them and
+   *         notifying their listeners.
+   */
+  @NonNull Set<Long> incrementReceiptCounts(@NonNull List<SyncMessageId> messageIds, boolean deliveryReceipt, boolean readReceipt) {
+    SQLiteDatabase                 database    = databaseHelper.getWritableDatabase();
+    Map<Long, List<SyncMessageId>> byTimestamp = groupByTimestamp(messageIds);
+    Map<Long, Integer>             counts      = new HashMap<>();
+    Set<SyncMessageId>             found       = Collections.newSetFromMap(new IdentityHashMap<>());
+    Map<Long, Pair<Long, Long>>    latest      = new HashMap<>();
+
+    for (List<Long> timestamps : Util.chunk(new ArrayList<>(byTimestamp.keySet()), 500)) {
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, RECIPIENT_ID, TYPE, DATE_SENT, DATE_RECEIVED},
+                                          DATE_SENT + " IN (" + Util.join(timestamps, ",") + ")", null,
+                                          null, null, null, null))
+      {
+        while (cursor.moveToNext()) {
+          if (!Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
+            continue;
+          }
 
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, RECIPIENT_ID, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null);
+          long        id             = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
+          long        threadId       = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
+          long        dateReceived   = cursor.getLong(cursor.getColumnIndexOrThrow(DATE_RECEIVED));
+          RecipientId outRecipientId = RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(RECIPIENT_ID)));
+          boolean     matched        = false;
 
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          RecipientId theirRecipientId = messageId.getRecipientId();
-          RecipientId outRecipientId   = RecipientId.from(cursor.getLong(cursor.getColumnIndexOrThrow(RECIPIENT_ID)));
-          String      columnName       = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
-
-          if (outRecipientId.equals(theirRecipientId)) {
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
-                             ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
-            foundMessage = true;
+          for (SyncMessageId messageId : byTimestamp.get(cursor.getLong(cursor.getColumnIndexOrThrow(DATE_SENT)))) {
+            if (outRecipientId.equals(messageId.getRecipientId())) {
+              Integer count = counts.get(id);
+
+              counts.put(id, count != null ? count + 1 : 1);
+              found.add(messageId);
+              matched = true;
+            }
+          }
+
+          if (matched && (!latest.containsKey(threadId) || latest.get(threadId).second < dateReceived)) {
+            latest.put(threadId, new Pair<>(id, dateReceived));
           }
         }
       }
+    }
 
-      if (!foundMessage) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getRecipientId());
-      }
+    applyReceiptCounts(database, deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT, counts);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    List<SyncMessageId> early = Stream.of(messageIds).filterNot(found::contains).toList();
+
+    if (deliveryReceipt) earlyDeliveryReceiptCache.incrementAll(early);
+    if (readReceipt)     earlyReadReceiptCache.incrementAll(early);
+
+    for (Pair<Long, Long> message : latest.values()) {
+      updateThreadForChange(message.first, false);
     }
+
+    return new HashSet<>(latest.keySet());
   }
 
   public List<Pair<Long, Long>> setTimestampRead(SyncMessageId messageId, long proposedExpireStarted) {
@@ -487,9 +507,8 @@ public class SmsDatabase extends MessagingDatabase {
                    "WHERE " + ID + " = ?",
                new String[] {body, messageId + ""});
 
-    long threadId = getThreadIdForMessage(messageId);
+    long threadId = updateThreadForChange(messageId, true);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -515,7 +534,7 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db           = databaseHelper.getWritableDatabase();
       long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-      DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+      updateThreadForInsert(record.getThreadId(), newMessageId, true);
       notifyConversationListeners(record.getThreadId());
 
       ApplicationDependencies.getJobManager().add(new TrimThreadJob(record.getThreadId()));
@@ -568,7 +587,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    updateThreadForInsert(threadId, messageId, true);
     notifyConversationListeners(threadId);
     ApplicationDependencies.getJobManager().add(new TrimThreadJob(threadId));
 
@@ -653,9 +672,7 @@ public class SmsDatabase extends MessagingDatabase {
         DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
       }
 
-      if (!message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault()) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
-      }
+      updateThreadForInsert(threadId, messageId, !message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault());
 
       if (message.getSubscriptionId() != -1) {
         DatabaseFactory.getRecipientDatabase(context).setDefaultSubscriptionId(recipient.getId(), message.getSubscriptionId());
@@ -712,8 +729,9 @@ public class SmsDatabase extends MessagingDatabase {
       insertListener.onComplete();
     }
 
+    updateThreadForInsert(threadId, messageId, !message.isIdentityVerified() && !message.isIdentityDefault());
+
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
     }
 
@@ -766,14 +784,51 @@ public class SmsDatabase extends MessagingDatabase {
 
   public boolean deleteMessage(long messageId) {
     Log.i("MessageDatabase", "Deleting: " + messageId);
-    SQLiteDatabase db = databaseHelper.getWritableDatabase();
-    long threadId     = getThreadIdForMessage(messageId);
+    SQLiteDatabase db           = databaseHelper.getWritableDatabase();
+    long           threadId     = -1;
+    long           dateReceived = 0;
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {THREAD_ID, DATE_RECEIVED}, ID_WHERE, new String[] {messageId+""}, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        threadId     = cursor.getLong(0);
+        dateReceived = cursor.getLong(1);
+      }
+    }
+
     db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateForDelete(threadId, dateReceived);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
 
+  /**
+   * Brings the thread of a message that was just inserted up to date without counting it again.
+   */
+  private void updateThreadForInsert(long threadId, long messageId, boolean unarchive) {
+    try {
+      DatabaseFactory.getThreadDatabase(context).updateForInsert(threadId, getMessage(messageId), unarchive);
+    } catch (NoSuchMessageException e) {
+      Log.w(TAG, "Inserted message is missing, updating the whole thread.", e);
+      DatabaseFactory.getThreadDatabase(context).update(threadId, unarchive);
+    }
+  }
+
+  /**
+   * Refreshes the thread's snippet if it was taken from the message that was just changed.
+   *
+   * @return The id of the message's thread, or -1 if the message no longer exists.
+   */
+  private long updateThreadForChange(long messageId, boolean unarchive) {
+    try {
+      SmsMessageRecord record = getMessage(messageId);
+
+      DatabaseFactory.getThreadDatabase(context).updateForChange(record.getThreadId(), record, unarchive);
+      return record.getThreadId();
+    } catch (NoSuchMessageException e) {
+      return -1;
+    }
+  }
+
   public void ensureMigration() {
     databaseHelper.getWritableDatabase();
   }
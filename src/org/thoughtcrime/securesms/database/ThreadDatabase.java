@@ -74,6 +74,7 @@ public class ThreadDatabase extends Database {
   public  static final String SNIPPET_URI            = "snippet_uri";
   public  static final String SNIPPET_CONTENT_TYPE   = "snippet_content_type";
   public  static final String SNIPPET_EXTRAS         = "snippet_extras";
+  private static final String SNIPPET_DATE_RECEIVED  = "snippet_date_received";
   public  static final String ARCHIVED               = "archived";
   public  static final String STATUS                 = "status";
   public  static final String DELIVERY_RECEIPT_COUNT = "delivery_receipt_count";
@@ -92,7 +93,13 @@ public class ThreadDatabase extends Database {
     ARCHIVED + " INTEGER DEFAULT 0, " + STATUS + " INTEGER DEFAULT 0, "                            +
     DELIVERY_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + EXPIRES_IN + " INTEGER DEFAULT 0, "          +
     LAST_SEEN + " INTEGER DEFAULT 0, " + HAS_SENT + " INTEGER DEFAULT 0, "                         +
-    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0);";
+    READ_RECEIPT_COUNT + " INTEGER DEFAULT 0, " + UNREAD_COUNT + " INTEGER DEFAULT 0, "            +
+    SNIPPET_DATE_RECEIVED + " INTEGER DEFAULT 0);";
+
+  /**
+   * Matches a thread whose snippet was taken from a message received no later than the given time.
+   */
+  private static final String SNIPPET_NOT_NEWER_WHERE = ID + " = ? AND " + SNIPPET_DATE_RECEIVED + " <= ?";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS thread_recipient_ids_index ON " + TABLE_NAME + " (" + RECIPIENT_ID + ");",
@@ -137,34 +144,7 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
-                            @Nullable String contentType, @Nullable Extra extra,
-                            long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
-                            long expiresIn, int readReceiptCount)
-  {
-    String extraSerialized = null;
-
-    if (extra != null) {
-      try {
-        extraSerialized = JsonUtils.toJson(extra);
-      } catch (IOException e) {
-        throw new AssertionError(e);
-      }
-    }
-
-    ContentValues contentValues = new ContentValues(7);
-    contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
-    contentValues.put(SNIPPET, body);
-    contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
-    contentValues.put(SNIPPET_TYPE, type);
-    contentValues.put(SNIPPET_CONTENT_TYPE, contentType);
-    contentValues.put(SNIPPET_EXTRAS, extraSerialized);
-    contentValues.put(STATUS, status);
-    contentValues.put(DELIVERY_RECEIPT_COUNT, deliveryReceiptCount);
-    contentValues.put(READ_RECEIPT_COUNT, readReceiptCount);
-    contentValues.put(EXPIRES_IN, expiresIn);
-
+  private void updateThread(long threadId, @NonNull ContentValues contentValues, boolean unarchive) {
     if (unarchive) {
       contentValues.put(ARCHIVED, 0);
     }
@@ -242,28 +222,23 @@ public class ThreadDatabase extends Database {
 
   public void trimThread(long threadId, int length) {
     Log.i("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
 
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
 
-      if (cursor != null && length > 0 && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(length - 1);
+    if (length > 0 && mmsSmsDatabase.getConversationCount(threadId) > length) {
+      Log.w("ThreadDatabase", "Conversation count is greater than length!");
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+      Long lastTweetDate = mmsSmsDatabase.getDateReceivedAt(threadId, length - 1);
 
-        Log.i("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+      if (lastTweetDate == null) return;
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+      Log.i("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
 
-        update(threadId, false);
-        notifyConversationListeners(threadId);
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+      DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+      DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+
+      update(threadId, false);
+      notifyConversationListeners(threadId);
     }
   }
 
@@ -602,8 +577,11 @@ public class ThreadDatabase extends Database {
   }
 
   public boolean update(long threadId, boolean unarchive) {
+    return update(threadId, DatabaseFactory.getMmsSmsDatabase(context).getConversationCount(threadId), unarchive);
+  }
+
+  private boolean update(long threadId, long count, boolean unarchive) {
     MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
 
     if (count == 0) {
       deleteThread(threadId);
@@ -618,10 +596,10 @@ public class ThreadDatabase extends Database {
       MessageRecord record;
 
       if (reader != null && (record = reader.getNext()) != null) {
-        updateThread(threadId, count, getFormattedBodyFor(record), getAttachmentUriFor(record),
-                     getContentTypeFor(record), getExtrasFor(record),
-                     record.getTimestamp(), record.getDeliveryStatus(), record.getDeliveryReceiptCount(),
-                     record.getType(), unarchive, record.getExpiresIn(), record.getReadReceiptCount());
+        ContentValues contentValues = getSnippetValues(record);
+        contentValues.put(MESSAGE_COUNT, count);
+
+        updateThread(threadId, contentValues, unarchive);
         notifyConversationListListeners();
         return false;
       } else {
@@ -635,6 +613,156 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  /**
+   * Accounts for a message that was just added to a thread without counting the thread again. The
+   * message becomes the snippet if it's at least as recent as the current one.
+   */
+  public void updateForInsert(long threadId, @NonNull MessageRecord record, boolean unarchive) {
+    incrementMessageCount(threadId, 1);
+
+    if (!updateForChange(threadId, record, unarchive)) {
+      notifyConversationListListeners();
+    }
+  }
+
+  /**
+   * Refreshes the snippet from a message that was just changed, if it's the message the snippet was
+   * taken from. Changes to older messages leave the thread alone. The comparison is made by the
+   * update itself, so a newer snippet written concurrently is never overwritten.
+   *
+   * @return True if the thread was updated.
+   */
+  public boolean updateForChange(long threadId, @NonNull MessageRecord record, boolean unarchive) {
+    ContentValues contentValues = getSnippetValues(record);
+
+    if (unarchive) {
+      contentValues.put(ARCHIVED, 0);
+    }
+
+    SQLiteDatabase db   = databaseHelper.getWritableDatabase();
+    String[]       args = new String[] {String.valueOf(threadId), String.valueOf(record.getDateReceived())};
+
+    if (db.update(TABLE_NAME, contentValues, SNIPPET_NOT_NEWER_WHERE, args) > 0) {
+      notifyConversationListListeners();
+      return true;
+    } else if (unarchive) {
+      updateThread(threadId, new ContentValues(1), true);
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Accounts for a message that was just removed from a thread. The snippet is only looked up again
+   * if the removed message may have been the one it was taken from. The thread is read and written
+   * in one transaction so that a message inserted concurrently isn't lost.
+   *
+   * @return True if the thread was deleted because it has no messages left.
+   */
+  public boolean updateForDelete(long threadId, long dateReceived) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      long count       = 0;
+      long snippetDate = 0;
+
+      try (Cursor cursor = db.query(TABLE_NAME, new String[] {MESSAGE_COUNT, SNIPPET_DATE_RECEIVED}, ID_WHERE, new String[] {String.valueOf(threadId)}, null, null, null)) {
+        if (cursor != null && cursor.moveToFirst()) {
+          count       = cursor.getLong(0);
+          snippetDate = cursor.getLong(1);
+        }
+      }
+
+      boolean deleted;
+
+      if (count <= 1) {
+        deleted = update(threadId, false);
+      } else if (dateReceived < snippetDate) {
+        incrementMessageCount(threadId, -1);
+        deleted = false;
+      } else {
+        deleted = update(threadId, count - 1, false);
+      }
+
+      db.setTransactionSuccessful();
+      return deleted;
+    } finally {
+      db.endTransaction();
+      notifyConversationListListeners();
+    }
+  }
+
+  private void incrementMessageCount(long threadId, int amount) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
+    db.execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = " + MESSAGE_COUNT + " + ? WHERE " + ID + " = ?",
+               new String[] {String.valueOf(amount), String.valueOf(threadId)});
+  }
+
+  /**
+   * Counts every thread with messages in it again and reads its snippet again, correcting anything
+   * the incremental updates missed. Threads without messages are left alone, since they may have
+   * just been created for a conversation that's open. Each thread is counted and written in one
+   * transaction, so a message inserted in between isn't lost from the count.
+   */
+  public void reconcile() {
+    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
+    SQLiteDatabase db             = databaseHelper.getWritableDatabase();
+    List<Long>     threadIds      = new LinkedList<>();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {ID}, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        threadIds.add(cursor.getLong(0));
+      }
+    }
+
+    for (long threadId : threadIds) {
+      db.beginTransaction();
+      try {
+        int count = mmsSmsDatabase.getConversationCount(threadId);
+
+        if (count > 0) {
+          update(threadId, count, false);
+        }
+
+        db.setTransactionSuccessful();
+      } finally {
+        db.endTransaction();
+      }
+    }
+  }
+
+  private @NonNull ContentValues getSnippetValues(@NonNull MessageRecord record) {
+    Uri    attachment      = getAttachmentUriFor(record);
+    Extra  extra           = getExtrasFor(record);
+    String extraSerialized = null;
+    long   date            = record.getTimestamp();
+
+    if (extra != null) {
+      try {
+        extraSerialized = JsonUtils.toJson(extra);
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    ContentValues contentValues = new ContentValues(12);
+    contentValues.put(DATE, date - date % 1000);
+    contentValues.put(SNIPPET, getFormattedBodyFor(record));
+    contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
+    contentValues.put(SNIPPET_TYPE, record.getType());
+    contentValues.put(SNIPPET_CONTENT_TYPE, getContentTypeFor(record));
+    contentValues.put(SNIPPET_EXTRAS, extraSerialized);
+    contentValues.put(SNIPPET_DATE_RECEIVED, record.getDateReceived());
+    contentValues.put(STATUS, record.getDeliveryStatus());
+    contentValues.put(DELIVERY_RECEIPT_COUNT, record.getDeliveryReceiptCount());
+    contentValues.put(READ_RECEIPT_COUNT, record.getReadReceiptCount());
+    contentValues.put(EXPIRES_IN, record.getExpiresIn());
+
+    return contentValues;
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms() && ((MmsMessageRecord) messageRecord).getSharedContacts().size() > 0) {
       Contact contact = ((MmsMessageRecord) messageRecord).getSharedContacts().get(0);
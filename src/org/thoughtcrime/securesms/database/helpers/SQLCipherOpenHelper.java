@@ -98,8 +98,10 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int REACTIONS                        = 37;
   private static final int STORAGE_SERVICE                  = 38;
   private static final int REACTIONS_UNREAD_INDEX           = 39;
+  private static final int JOB_PRIORITY                     = 40;
+  private static final int THREAD_SNIPPET_DATE              = 41;
 
-  private static final int    DATABASE_VERSION = 39;
+  private static final int    DATABASE_VERSION = 41;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -679,6 +681,16 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX IF NOT EXISTS mms_reactions_unread_index ON mms (reactions_unread);");
       }
 
+      if (oldVersion < JOB_PRIORITY) {
+        db.execSQL("ALTER TABLE job_spec ADD COLUMN priority INTEGER DEFAULT 1");
+      }
+
+      if (oldVersion < THREAD_SNIPPET_DATE) {
+        db.execSQL("ALTER TABLE thread ADD COLUMN snippet_date_received INTEGER DEFAULT 0");
+        db.execSQL("UPDATE thread SET snippet_date_received = MAX(IFNULL((SELECT MAX(date) FROM sms WHERE sms.thread_id = thread._id), 0), " +
+                                                                 "IFNULL((SELECT MAX(date_received) FROM mms WHERE mms.thread_id = thread._id), 0))");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -23,8 +23,8 @@ public class ConversationLoader extends AbstractCursorLoader {
     this.hasSent  = true;
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  public int getLimit() {
+    return limit;
   }
 
   public boolean hasOffset() {
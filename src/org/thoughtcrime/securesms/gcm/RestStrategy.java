@@ -15,8 +15,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Retrieves messages over the REST endpoint.
@@ -26,6 +24,7 @@ public class RestStrategy implements MessageRetriever.Strategy {
   private static final String TAG = Log.tag(RestStrategy.class);
 
   private static final long SOCKET_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+  private static final int  BATCH_SIZE     = 100;
 
   @WorkerThread
   @Override
@@ -33,27 +32,21 @@ public class RestStrategy implements MessageRetriever.Strategy {
     long startTime = System.currentTimeMillis();
 
     try (IncomingMessageProcessor.Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-      SignalServiceMessageReceiver receiver  = ApplicationDependencies.getSignalServiceMessageReceiver();
-      AtomicReference<String>      lastJobId = new AtomicReference<>(null);
-      AtomicInteger                jobCount  = new AtomicInteger(0);
+      SignalServiceMessageReceiver receiver = ApplicationDependencies.getSignalServiceMessageReceiver();
+      List<String>                 jobIds   = new ArrayList<>();
 
       receiver.setSoTimeoutMillis(SOCKET_TIMEOUT);
 
-      receiver.retrieveMessages(envelope -> {
-        Log.i(TAG, "Retrieved an envelope." + timeSuffix(startTime));
-        String jobId = processor.processEnvelope(envelope);
-
-        if (jobId != null) {
-          lastJobId.set(jobId);
-          jobCount.incrementAndGet();
-        }
-        Log.i(TAG, "Successfully processed an envelope." + timeSuffix(startTime));
+      receiver.retrieveMessages(BATCH_SIZE, envelopes -> {
+        Log.i(TAG, "Retrieved " + envelopes.size() + " envelope(s)." + timeSuffix(startTime));
+        jobIds.addAll(processor.processEnvelopes(envelopes));
+        Log.i(TAG, "Successfully processed " + envelopes.size() + " envelope(s)." + timeSuffix(startTime));
       });
 
-      Log.d(TAG, jobCount.get() + " PushDecryptJob(s) were enqueued.");
+      Log.d(TAG, "PushDecryptJob(s) were enqueued on " + jobIds.size() + " queue(s).");
 
-      if (lastJobId.get() != null) {
-        blockUntilJobIsFinished(lastJobId.get());
+      if (!jobIds.isEmpty()) {
+        blockUntilJobsAreFinished(jobIds);
       }
 
       return true;
@@ -63,19 +56,25 @@ public class RestStrategy implements MessageRetriever.Strategy {
       return false;
     }
   }
-  private static void blockUntilJobIsFinished(@NonNull String jobId) {
+  /**
+   * Decryption jobs are spread over several queues, so the last job on each of them has to be
+   * waited on rather than just the last job overall.
+   */
+  private static void blockUntilJobsAreFinished(@NonNull List<String> jobIds) {
     long           startTime = System.currentTimeMillis();
-    CountDownLatch latch     = new CountDownLatch(1);
-
-    ApplicationDependencies.getJobManager().addListener(jobId, new JobTracker.JobListener() {
-      @Override
-      public void onStateChanged(@NonNull JobTracker.JobState jobState) {
-        if (jobState.isComplete()) {
-          ApplicationDependencies.getJobManager().removeListener(this);
-          latch.countDown();
+    CountDownLatch latch     = new CountDownLatch(jobIds.size());
+
+    for (String jobId : jobIds) {
+      ApplicationDependencies.getJobManager().addListener(jobId, new JobTracker.JobListener() {
+        @Override
+        public void onStateChanged(@NonNull JobTracker.JobState jobState) {
+          if (jobState.isComplete()) {
+            ApplicationDependencies.getJobManager().removeListener(this);
+            latch.countDown();
+          }
         }
-      }
-    });
+      });
+    }
 
     try {
       if (!latch.await(10, TimeUnit.SECONDS)) {
@@ -0,0 +1,546 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Base64;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A compact binary {@link Data.Serializer}. The binary form is Base64-encoded so that it can live
+ * in the same text column as the JSON it replaces.
+ *
+ * The encoded data starts with a version byte, followed by a table of every key used, and then a
+ * section for each non-empty type. Each entry in a section refers to its key by its index in the
+ * key table, so a key that is used by several types is only stored once. All lengths and counts
+ * are varints.
+ *
+ * Anything that looks like JSON is handed to {@link JsonDataSerializer}, so data that was
+ * persisted before this serializer was introduced can still be read.
+ */
+public class BinaryDataSerializer implements Data.Serializer {
+
+  private static final String TAG = Log.tag(BinaryDataSerializer.class);
+
+  private static final int VERSION = 2;
+
+  private static final int TYPE_STRING        = 1;
+  private static final int TYPE_STRING_ARRAY  = 2;
+  private static final int TYPE_INT           = 3;
+  private static final int TYPE_INT_ARRAY     = 4;
+  private static final int TYPE_LONG          = 5;
+  private static final int TYPE_LONG_ARRAY    = 6;
+  private static final int TYPE_FLOAT         = 7;
+  private static final int TYPE_FLOAT_ARRAY   = 8;
+  private static final int TYPE_DOUBLE        = 9;
+  private static final int TYPE_DOUBLE_ARRAY  = 10;
+  private static final int TYPE_BOOLEAN       = 11;
+  private static final int TYPE_BOOLEAN_ARRAY = 12;
+
+  private final JsonDataSerializer legacySerializer = new JsonDataSerializer();
+
+  @Override
+  public @NonNull String serialize(@NonNull Data data) {
+    return Base64.encodeBytes(encode(data));
+  }
+
+  @Override
+  public @NonNull Data deserialize(@NonNull String serialized) {
+    if (isJson(serialized)) {
+      return legacySerializer.deserialize(serialized);
+    }
+
+    try {
+      return decode(Base64.decode(serialized));
+    } catch (IOException | IndexOutOfBoundsException e) {
+      Log.e(TAG, "Failed to deserialize binary data.", e);
+      throw new AssertionError(e);
+    }
+  }
+
+  private static boolean isJson(@NonNull String serialized) {
+    for (int i = 0; i < serialized.length(); i++) {
+      char c = serialized.charAt(i);
+
+      if (!Character.isWhitespace(c)) {
+        return c == '{';
+      }
+    }
+
+    return false;
+  }
+
+  private static @NonNull byte[] encode(@NonNull Data data) {
+    Map<String, String>    strings       = data.strings();
+    Map<String, String[]>  stringArrays  = data.stringArrays();
+    Map<String, Integer>   integers      = data.integers();
+    Map<String, int[]>     integerArrays = data.integerArrays();
+    Map<String, Long>      longs         = data.longs();
+    Map<String, long[]>    longArrays    = data.longArrays();
+    Map<String, Float>     floats        = data.floats();
+    Map<String, float[]>   floatArrays   = data.floatArrays();
+    Map<String, Double>    doubles       = data.doubles();
+    Map<String, double[]>  doubleArrays  = data.doubleArrays();
+    Map<String, Boolean>   booleans      = data.booleans();
+    Map<String, boolean[]> booleanArrays = data.booleanArrays();
+
+    Map<String, Integer> keys = new LinkedHashMap<>();
+
+    indexKeys(keys, strings);
+    indexKeys(keys, stringArrays);
+    indexKeys(keys, integers);
+    indexKeys(keys, integerArrays);
+    indexKeys(keys, longs);
+    indexKeys(keys, longArrays);
+    indexKeys(keys, floats);
+    indexKeys(keys, floatArrays);
+    indexKeys(keys, doubles);
+    indexKeys(keys, doubleArrays);
+    indexKeys(keys, booleans);
+    indexKeys(keys, booleanArrays);
+
+    Writer writer = new Writer();
+
+    writer.writeVarInt(VERSION);
+    writer.writeVarInt(keys.size());
+
+    for (String key : keys.keySet()) {
+      writer.writeString(key);
+    }
+
+    if (!strings.isEmpty()) {
+      writer.writeSectionHeader(TYPE_STRING, strings.size());
+      for (Map.Entry<String, String> entry : strings.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeString(entry.getValue());
+      }
+    }
+
+    if (!stringArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_STRING_ARRAY, stringArrays.size());
+      for (Map.Entry<String, String[]> entry : stringArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (String value : entry.getValue()) {
+          writer.writeString(value);
+        }
+      }
+    }
+
+    if (!integers.isEmpty()) {
+      writer.writeSectionHeader(TYPE_INT, integers.size());
+      for (Map.Entry<String, Integer> entry : integers.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeSignedVarLong(entry.getValue());
+      }
+    }
+
+    if (!integerArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_INT_ARRAY, integerArrays.size());
+      for (Map.Entry<String, int[]> entry : integerArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (int value : entry.getValue()) {
+          writer.writeSignedVarLong(value);
+        }
+      }
+    }
+
+    if (!longs.isEmpty()) {
+      writer.writeSectionHeader(TYPE_LONG, longs.size());
+      for (Map.Entry<String, Long> entry : longs.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeSignedVarLong(entry.getValue());
+      }
+    }
+
+    if (!longArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_LONG_ARRAY, longArrays.size());
+      for (Map.Entry<String, long[]> entry : longArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (long value : entry.getValue()) {
+          writer.writeSignedVarLong(value);
+        }
+      }
+    }
+
+    if (!floats.isEmpty()) {
+      writer.writeSectionHeader(TYPE_FLOAT, floats.size());
+      for (Map.Entry<String, Float> entry : floats.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeFixed32(Float.floatToIntBits(entry.getValue()));
+      }
+    }
+
+    if (!floatArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_FLOAT_ARRAY, floatArrays.size());
+      for (Map.Entry<String, float[]> entry : floatArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (float value : entry.getValue()) {
+          writer.writeFixed32(Float.floatToIntBits(value));
+        }
+      }
+    }
+
+    if (!doubles.isEmpty()) {
+      writer.writeSectionHeader(TYPE_DOUBLE, doubles.size());
+      for (Map.Entry<String, Double> entry : doubles.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeFixed64(Double.doubleToLongBits(entry.getValue()));
+      }
+    }
+
+    if (!doubleArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_DOUBLE_ARRAY, doubleArrays.size());
+      for (Map.Entry<String, double[]> entry : doubleArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (double value : entry.getValue()) {
+          writer.writeFixed64(Double.doubleToLongBits(value));
+        }
+      }
+    }
+
+    if (!booleans.isEmpty()) {
+      writer.writeSectionHeader(TYPE_BOOLEAN, booleans.size());
+      for (Map.Entry<String, Boolean> entry : booleans.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeBoolean(entry.getValue());
+      }
+    }
+
+    if (!booleanArrays.isEmpty()) {
+      writer.writeSectionHeader(TYPE_BOOLEAN_ARRAY, booleanArrays.size());
+      for (Map.Entry<String, boolean[]> entry : booleanArrays.entrySet()) {
+        writer.writeVarInt(keys.get(entry.getKey()));
+        writer.writeArrayLength(entry.getValue());
+        if (entry.getValue() == null) continue;
+        for (boolean value : entry.getValue()) {
+          writer.writeBoolean(value);
+        }
+      }
+    }
+
+    return writer.toByteArray();
+  }
+
+  private static @NonNull Data decode(@NonNull byte[] encoded) throws IOException {
+    Reader reader  = new Reader(encoded);
+    int    version = reader.readVarInt();
+
+    if (version < 1 || version > VERSION) {
+      throw new IOException("Unsupported version: " + version);
+    }
+
+    reader.setNullableArrays(version >= 2);
+
+    String[] keys = new String[reader.readVarInt()];
+
+    for (int i = 0; i < keys.length; i++) {
+      //noinspection ConstantConditions
+      keys[i] = reader.readString().intern();
+    }
+
+    Map<String, String>    strings       = new HashMap<>();
+    Map<String, String[]>  stringArrays  = new HashMap<>();
+    Map<String, Integer>   integers      = new HashMap<>();
+    Map<String, int[]>     integerArrays = new HashMap<>();
+    Map<String, Long>      longs         = new HashMap<>();
+    Map<String, long[]>    longArrays    = new HashMap<>();
+    Map<String, Float>     floats        = new HashMap<>();
+    Map<String, float[]>   floatArrays   = new HashMap<>();
+    Map<String, Double>    doubles       = new HashMap<>();
+    Map<String, double[]>  doubleArrays  = new HashMap<>();
+    Map<String, Boolean>   booleans      = new HashMap<>();
+    Map<String, boolean[]> booleanArrays = new HashMap<>();
+
+    while (reader.hasRemaining()) {
+      int type  = reader.readVarInt();
+      int count = reader.readVarInt();
+
+      for (int i = 0; i < count; i++) {
+        String key = keys[reader.readVarInt()];
+
+        switch (type) {
+          case TYPE_STRING:
+            strings.put(key, reader.readString());
+            break;
+          case TYPE_STRING_ARRAY:
+            stringArrays.put(key, readStringArray(reader));
+            break;
+          case TYPE_INT:
+            integers.put(key, (int) reader.readSignedVarLong());
+            break;
+          case TYPE_INT_ARRAY:
+            integerArrays.put(key, readIntArray(reader));
+            break;
+          case TYPE_LONG:
+            longs.put(key, reader.readSignedVarLong());
+            break;
+          case TYPE_LONG_ARRAY:
+            longArrays.put(key, readLongArray(reader));
+            break;
+          case TYPE_FLOAT:
+            floats.put(key, Float.intBitsToFloat(reader.readFixed32()));
+            break;
+          case TYPE_FLOAT_ARRAY:
+            floatArrays.put(key, readFloatArray(reader));
+            break;
+          case TYPE_DOUBLE:
+            doubles.put(key, Double.longBitsToDouble(reader.readFixed64()));
+            break;
+          case TYPE_DOUBLE_ARRAY:
+            doubleArrays.put(key, readDoubleArray(reader));
+            break;
+          case TYPE_BOOLEAN:
+            booleans.put(key, reader.readBoolean());
+            break;
+          case TYPE_BOOLEAN_ARRAY:
+            booleanArrays.put(key, readBooleanArray(reader));
+            break;
+          default:
+            throw new IOException("Unknown type: " + type);
+        }
+      }
+    }
+
+    return new Data(strings, stringArrays, integers, integerArrays, longs, longArrays, floats, floatArrays, doubles, doubleArrays, booleans, booleanArrays);
+  }
+
+  private static @Nullable String[] readStringArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    String[] array = new String[length];
+    for (int i = 0; i < length; i++) array[i] = reader.readString();
+    return array;
+  }
+
+  private static @Nullable int[] readIntArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    int[] array = new int[length];
+    for (int i = 0; i < length; i++) array[i] = (int) reader.readSignedVarLong();
+    return array;
+  }
+
+  private static @Nullable long[] readLongArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    long[] array = new long[length];
+    for (int i = 0; i < length; i++) array[i] = reader.readSignedVarLong();
+    return array;
+  }
+
+  private static @Nullable float[] readFloatArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    float[] array = new float[length];
+    for (int i = 0; i < length; i++) array[i] = Float.intBitsToFloat(reader.readFixed32());
+    return array;
+  }
+
+  private static @Nullable double[] readDoubleArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    double[] array = new double[length];
+    for (int i = 0; i < length; i++) array[i] = Double.longBitsToDouble(reader.readFixed64());
+    return array;
+  }
+
+  private static @Nullable boolean[] readBooleanArray(@NonNull Reader reader) throws IOException {
+    int length = reader.readArrayLength();
+    if (length < 0) return null;
+
+    boolean[] array = new boolean[length];
+    for (int i = 0; i < length; i++) array[i] = reader.readBoolean();
+    return array;
+  }
+
+  private static void indexKeys(@NonNull Map<String, Integer> keys, @NonNull Map<String, ?> values) {
+    for (String key : values.keySet()) {
+      if (!keys.containsKey(key)) {
+        keys.put(key, keys.size());
+      }
+    }
+  }
+
+  private static final class Writer {
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+
+    void writeSectionHeader(int type, int count) {
+      writeVarInt(type);
+      writeVarInt(count);
+    }
+
+    void writeVarInt(int value) {
+      writeVarLong(value & 0xFFFFFFFFL);
+    }
+
+    void writeSignedVarLong(long value) {
+      writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    void writeFixed32(int value) {
+      for (int i = 0; i < 4; i++) {
+        out.write((value >>> (i * 8)) & 0xFF);
+      }
+    }
+
+    void writeFixed64(long value) {
+      for (int i = 0; i < 8; i++) {
+        out.write((int) ((value >>> (i * 8)) & 0xFF));
+      }
+    }
+
+    void writeBoolean(boolean value) {
+      out.write(value ? 1 : 0);
+    }
+
+    /**
+     * Strings are prefixed with their length plus one, so that a length of zero can mean null.
+     */
+    void writeString(@Nullable String value) {
+      if (value == null) {
+        writeVarInt(0);
+      } else {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length + 1);
+        out.write(bytes, 0, bytes.length);
+      }
+    }
+
+    /**
+     * Arrays are prefixed with their length plus one as well, since they can be null too.
+     */
+    void writeArrayLength(@Nullable Object array) {
+      writeVarInt(array != null ? Array.getLength(array) + 1 : 0);
+    }
+
+    @NonNull byte[] toByteArray() {
+      return out.toByteArray();
+    }
+
+    private void writeVarLong(long value) {
+      while ((value & ~0x7FL) != 0) {
+        out.write((int) ((value & 0x7F) | 0x80));
+        value >>>= 7;
+      }
+      out.write((int) value);
+    }
+  }
+
+  private static final class Reader {
+
+    private final byte[] buffer;
+
+    private int     position;
+    private boolean nullableArrays;
+
+    Reader(@NonNull byte[] buffer) {
+      this.buffer = buffer;
+    }
+
+    /**
+     * Version 1 wrote array lengths as they are, with no way to write a null array.
+     */
+    void setNullableArrays(boolean nullableArrays) {
+      this.nullableArrays = nullableArrays;
+    }
+
+    boolean hasRemaining() {
+      return position < buffer.length;
+    }
+
+    int readVarInt() throws IOException {
+      long value = readVarLong();
+
+      if (value < 0 || value > Integer.MAX_VALUE) {
+        throw new IOException("Invalid varint: " + value);
+      }
+
+      return (int) value;
+    }
+
+    long readSignedVarLong() throws IOException {
+      long value = readVarLong();
+      return (value >>> 1) ^ -(value & 1);
+    }
+
+    int readFixed32() {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value |= (buffer[position++] & 0xFF) << (i * 8);
+      }
+      return value;
+    }
+
+    long readFixed64() {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value |= (buffer[position++] & 0xFFL) << (i * 8);
+      }
+      return value;
+    }
+
+    boolean readBoolean() {
+      return buffer[position++] != 0;
+    }
+
+    /**
+     * @return The length of the next array, or -1 if it's null.
+     */
+    int readArrayLength() throws IOException {
+      return nullableArrays ? readVarInt() - 1 : readVarInt();
+    }
+
+    @Nullable String readString() throws IOException {
+      int length = readVarInt();
+
+      if (length == 0) {
+        return null;
+      }
+
+      String value = new String(buffer, position, length - 1, StandardCharsets.UTF_8);
+      position += length - 1;
+
+      return value;
+    }
+
+    private long readVarLong() throws IOException {
+      long value = 0;
+
+      for (int shift = 0; shift < 64; shift += 7) {
+        byte b = buffer[position++];
+        value |= (long) (b & 0x7F) << shift;
+
+        if ((b & 0x80) == 0) {
+          return value;
+        }
+      }
+
+      throw new IOException("Malformed varint.");
+    }
+  }
+}
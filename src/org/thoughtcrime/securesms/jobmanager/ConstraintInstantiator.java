@@ -5,17 +5,31 @@ import androidx.annotation.NonNull;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * Constraints are expected to be stateless, so only a single instance is ever created for each
+ * factory key and it is shared by every job that has that constraint.
+ */
 public class ConstraintInstantiator {
 
   private final Map<String, Constraint.Factory> constraintFactories;
+  private final Map<String, Constraint>         instances;
 
   ConstraintInstantiator(@NonNull Map<String, Constraint.Factory> constraintFactories) {
     this.constraintFactories = new HashMap<>(constraintFactories);
+    this.instances           = new HashMap<>();
   }
 
-  public @NonNull Constraint instantiate(@NonNull String constraintFactoryKey) {
+  public synchronized @NonNull Constraint instantiate(@NonNull String constraintFactoryKey) {
+    Constraint constraint = instances.get(constraintFactoryKey);
+
+    if (constraint != null) {
+      return constraint;
+    }
+
     if (constraintFactories.containsKey(constraintFactoryKey)) {
-      return constraintFactories.get(constraintFactoryKey).create();
+      constraint = constraintFactories.get(constraintFactoryKey).create();
+      instances.put(constraintFactoryKey, constraint);
+      return constraint;
     } else {
       throw new IllegalStateException("Tried to instantiate a constraint with key '" + constraintFactoryKey + "', but no matching factory was found.");
     }
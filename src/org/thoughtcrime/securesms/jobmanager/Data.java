@@ -5,6 +5,8 @@ import androidx.annotation.Nullable;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
 
+import java.lang.reflect.Array;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -52,6 +54,106 @@ public class Data {
     this.booleanArrays = booleanArrays;
   }
 
+  public @NonNull Map<String, String> getStrings() {
+    return Collections.unmodifiableMap(strings);
+  }
+
+  public @NonNull Map<String, String[]> getStringArrays() {
+    return copyArrays(stringArrays);
+  }
+
+  public @NonNull Map<String, Integer> getIntegers() {
+    return Collections.unmodifiableMap(integers);
+  }
+
+  public @NonNull Map<String, int[]> getIntegerArrays() {
+    return copyArrays(integerArrays);
+  }
+
+  public @NonNull Map<String, Long> getLongs() {
+    return Collections.unmodifiableMap(longs);
+  }
+
+  public @NonNull Map<String, long[]> getLongArrays() {
+    return copyArrays(longArrays);
+  }
+
+  public @NonNull Map<String, Float> getFloats() {
+    return Collections.unmodifiableMap(floats);
+  }
+
+  public @NonNull Map<String, float[]> getFloatArrays() {
+    return copyArrays(floatArrays);
+  }
+
+  public @NonNull Map<String, Double> getDoubles() {
+    return Collections.unmodifiableMap(doubles);
+  }
+
+  public @NonNull Map<String, double[]> getDoubleArrays() {
+    return copyArrays(doubleArrays);
+  }
+
+  public @NonNull Map<String, Boolean> getBooleans() {
+    return Collections.unmodifiableMap(booleans);
+  }
+
+  public @NonNull Map<String, boolean[]> getBooleanArrays() {
+    return copyArrays(booleanArrays);
+  }
+
+  /**
+   * The maps themselves, for {@link BinaryDataSerializer}. Unlike {@link #getStrings()} and the other
+   * getters above, none of these are copied, so they must only be read.
+   */
+  @NonNull Map<String, String> strings() {
+    return strings;
+  }
+
+  @NonNull Map<String, String[]> stringArrays() {
+    return stringArrays;
+  }
+
+  @NonNull Map<String, Integer> integers() {
+    return integers;
+  }
+
+  @NonNull Map<String, int[]> integerArrays() {
+    return integerArrays;
+  }
+
+  @NonNull Map<String, Long> longs() {
+    return longs;
+  }
+
+  @NonNull Map<String, long[]> longArrays() {
+    return longArrays;
+  }
+
+  @NonNull Map<String, Float> floats() {
+    return floats;
+  }
+
+  @NonNull Map<String, float[]> floatArrays() {
+    return floatArrays;
+  }
+
+  @NonNull Map<String, Double> doubles() {
+    return doubles;
+  }
+
+  @NonNull Map<String, double[]> doubleArrays() {
+    return doubleArrays;
+  }
+
+  @NonNull Map<String, Boolean> booleans() {
+    return booleans;
+  }
+
+  @NonNull Map<String, boolean[]> booleanArrays() {
+    return booleanArrays;
+  }
+
   public boolean hasString(@NonNull String key) {
     return strings.containsKey(key);
   }
@@ -208,6 +310,31 @@ public class Data {
     }
   }
 
+  /**
+   * Copies each array as well as the map, since arrays can't be made read-only.
+   */
+  @SuppressWarnings("unchecked")
+  private static @NonNull <T> Map<String, T> copyArrays(@NonNull Map<String, T> arrays) {
+    Map<String, T> copy = new HashMap<>(arrays.size());
+
+    for (Map.Entry<String, T> entry : arrays.entrySet()) {
+      T array = entry.getValue();
+
+      if (array == null) {
+        copy.put(entry.getKey(), null);
+        continue;
+      }
+
+      int length = Array.getLength(array);
+      T   clone  = (T) Array.newInstance(array.getClass().getComponentType(), length);
+
+      System.arraycopy(array, 0, clone, 0, length);
+      copy.put(entry.getKey(), clone);
+    }
+
+    return Collections.unmodifiableMap(copy);
+  }
+
 
   public static class Builder {
 
@@ -198,6 +198,10 @@ public abstract class Job {
     public static final int    IMMORTAL            = -1;
     public static final int    UNLIMITED           = -1;
 
+    public static final int PRIORITY_LOW     = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    public static final int PRIORITY_HIGH    = 2;
+
     private final String       id;
     private final long         createTime;
     private final long         lifespan;
@@ -206,6 +210,8 @@ public abstract class Job {
     private final int          maxInstances;
     private final String       queue;
     private final List<String> constraintKeys;
+    private final boolean      durable;
+    private final int          priority;
 
     private Parameters(@NonNull String id,
                        long createTime,
@@ -214,7 +220,9 @@ public abstract class Job {
                        long maxBackoff,
                        int maxInstances,
                        @Nullable String queue,
-                       @NonNull List<String> constraintKeys)
+                       @NonNull List<String> constraintKeys,
+                       boolean durable,
+                       int priority)
     {
       this.id             = id;
       this.createTime     = createTime;
@@ -224,6 +232,8 @@ public abstract class Job {
       this.maxInstances   = maxInstances;
       this.queue          = queue;
       this.constraintKeys = constraintKeys;
+      this.durable        = durable;
+      this.priority       = priority;
     }
 
     @NonNull String getId() {
@@ -258,8 +268,16 @@ public abstract class Job {
       return constraintKeys;
     }
 
+    boolean isDurable() {
+      return durable;
+    }
+
+    int getPriority() {
+      return priority;
+    }
+
     public Builder toBuilder() {
-      return new Builder(id, createTime, maxBackoff, lifespan, maxAttempts, maxInstances, queue, constraintKeys);
+      return new Builder(id, createTime, maxBackoff, lifespan, maxAttempts, maxInstances, queue, constraintKeys, durable, priority);
     }
 
 
@@ -273,13 +291,15 @@ public abstract class Job {
       private int          maxInstances;
       private String       queue;
       private List<String> constraintKeys;
+      private boolean      durable;
+      private int          priority;
 
       public Builder() {
         this(UUID.randomUUID().toString());
       }
 
       Builder(@NonNull String id) {
-        this(id, System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(30), IMMORTAL, 1, UNLIMITED, null, new LinkedList<>());
+        this(id, System.currentTimeMillis(), TimeUnit.SECONDS.toMillis(30), IMMORTAL, 1, UNLIMITED, null, new LinkedList<>(), true, PRIORITY_DEFAULT);
       }
 
       private Builder(@NonNull String id,
@@ -289,7 +309,9 @@ public abstract class Job {
                       int maxAttempts,
                       int maxInstances,
                       @Nullable String queue,
-                      @NonNull List<String> constraintKeys)
+                      @NonNull List<String> constraintKeys,
+                      boolean durable,
+                      int priority)
       {
         this.id             = id;
         this.createTime     = createTime;
@@ -299,6 +321,8 @@ public abstract class Job {
         this.maxInstances   = maxInstances;
         this.queue          = queue;
         this.constraintKeys = constraintKeys;
+        this.durable        = durable;
+        this.priority       = priority;
       }
 
       /** Should only be invoked by {@link JobController} */
@@ -376,8 +400,30 @@ public abstract class Job {
         return this;
       }
 
+      /**
+       * Specify whether or not this job must be written to disk as soon as it is enqueued, and
+       * whenever it is retried or finishes. Non-durable jobs are written in batches shortly after
+       * they change, and may be lost if the app is killed before then. Only use this for jobs that
+       * are safe to lose, or that will be re-created if lost. Defaults to true.
+       */
+      public @NonNull Builder setDurable(boolean durable) {
+        this.durable = durable;
+        return this;
+      }
+
+      /**
+       * Specify how urgently this job should be run relative to others. When several jobs are
+       * eligible to run, higher priority jobs are started first, and one runner is held back for
+       * {@link #PRIORITY_HIGH} jobs alone. {@link #PRIORITY_LOW} jobs are never allowed to occupy
+       * every runner. Ordering within a queue is unaffected. Defaults to {@link #PRIORITY_DEFAULT}.
+       */
+      public @NonNull Builder setPriority(int priority) {
+        this.priority = priority;
+        return this;
+      }
+
       public @NonNull Parameters build() {
-        return new Parameters(id, createTime, lifespan, maxAttempts, maxBackoff, maxInstances, queue, constraintKeys);
+        return new Parameters(id, createTime, lifespan, maxAttempts, maxBackoff, maxInstances, queue, constraintKeys, durable, priority);
       }
     }
   }
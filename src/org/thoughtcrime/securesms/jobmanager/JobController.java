@@ -14,33 +14,67 @@ import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.util.Debouncer;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * Idle {@link JobRunner}s wait on this class' monitor. Rather than waking every runner whenever
+ * something changes, a single runner is woken per state change, and a runner that successfully
+ * pulls a job will wake one more if there is still other eligible work. This avoids every runner
+ * contending for the monitor only for all but one of them to go back to sleep.
+ *
+ * When a job is found to have an unmet constraint, that constraint is remembered as unmet and the
+ * job is parked in a wait set for it, so later passes skip the job without re-checking anything.
+ * Constraints only become met when a {@link ConstraintObserver} fires, at which point every wait
+ * set is released. Unmet states also expire after {@link #UNMET_CONSTRAINT_LIFESPAN} in case an
+ * observer misses a change. Met states are never remembered past a single pass, because observers
+ * don't report when a constraint stops being met.
+ *
+ * Among the jobs that are eligible to run, higher priority ones are handed out first (see
+ * {@link Job.Parameters.Builder#setPriority(int)}). Runners may ask only for jobs of a minimum
+ * priority, which is how runners are reserved for interactive work. Low priority jobs are never
+ * allowed to occupy every runner, and individual factories may be capped to a number of concurrent
+ * jobs.
  */
 class JobController {
 
   private static final String TAG = JobController.class.getSimpleName();
 
-  private final Application            application;
-  private final JobStorage             jobStorage;
-  private final JobInstantiator        jobInstantiator;
-  private final ConstraintInstantiator constraintInstantiator;
-  private final Data.Serializer        dataSerializer;
-  private final JobTracker             jobTracker;
-  private final Scheduler              scheduler;
-  private final Debouncer              debouncer;
-  private final Callback               callback;
-  private final Set<String>            runningJobs;
+  private static final long UNMET_CONSTRAINT_LIFESPAN = TimeUnit.MINUTES.toMillis(1);
+
+  private final Application              application;
+  private final JobStorage               jobStorage;
+  private final JobInstantiator          jobInstantiator;
+  private final ConstraintInstantiator   constraintInstantiator;
+  private final Data.Serializer          dataSerializer;
+  private final JobTracker               jobTracker;
+  private final Scheduler                scheduler;
+  private final Debouncer                debouncer;
+  private final Callback                 callback;
+  private final Map<String, Long>        runningJobs;
+  private final Map<String, Long>        unmetConstraints;
+  private final Map<String, Set<String>> jobsWaitingOnConstraint;
+  private final Map<String, String>      waitingJobs;
+  private final Map<String, Integer>     concurrencyLimits;
+  private final Map<String, Integer>     runningJobsByFactory;
+  private final int[]                    runningJobsByPriority;
+  private final int                      maxLowPriorityJobs;
+  private final WaitTime[]               waitTimesByPriority;
 
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
@@ -50,28 +84,54 @@ class JobController {
                 @NonNull JobTracker jobTracker,
                 @NonNull Scheduler scheduler,
                 @NonNull Debouncer debouncer,
-                @NonNull Callback callback)
+                @NonNull Callback callback,
+                int runnerCount,
+                @NonNull Map<String, Integer> concurrencyLimits)
   {
-    this.application            = application;
-    this.jobStorage             = jobStorage;
-    this.jobInstantiator        = jobInstantiator;
-    this.constraintInstantiator = constraintInstantiator;
-    this.dataSerializer         = dataSerializer;
-    this.jobTracker             = jobTracker;
-    this.scheduler              = scheduler;
-    this.debouncer              = debouncer;
-    this.callback               = callback;
-    this.runningJobs            = new HashSet<>();
+    this.application             = application;
+    this.jobStorage              = jobStorage;
+    this.jobInstantiator         = jobInstantiator;
+    this.constraintInstantiator  = constraintInstantiator;
+    this.dataSerializer          = dataSerializer;
+    this.jobTracker              = jobTracker;
+    this.scheduler               = scheduler;
+    this.debouncer               = debouncer;
+    this.callback                = callback;
+    this.runningJobs             = new HashMap<>();
+    this.unmetConstraints        = new HashMap<>();
+    this.jobsWaitingOnConstraint = new HashMap<>();
+    this.waitingJobs             = new HashMap<>();
+    this.concurrencyLimits       = new HashMap<>(concurrencyLimits);
+    this.runningJobsByFactory    = new HashMap<>();
+    this.runningJobsByPriority   = new int[Job.Parameters.PRIORITY_HIGH + 1];
+    this.maxLowPriorityJobs      = Math.max(1, runnerCount - 1);
+    this.waitTimesByPriority     = new WaitTime[Job.Parameters.PRIORITY_HIGH + 1];
+
+    for (int i = 0; i < waitTimesByPriority.length; i++) {
+      waitTimesByPriority[i] = new WaitTime();
+    }
   }
 
   @WorkerThread
   synchronized void init() {
     jobStorage.updateAllJobsToBePending();
-    notifyAll();
+    Stream.of(jobStorage.getAllJobSpecs()).forEach(jobSpec -> jobTracker.onJobQueued(jobSpec.getQueueKey()));
+    notify();
   }
 
   synchronized void wakeUp() {
-    notifyAll();
+    notify();
+  }
+
+  /**
+   * Forgets every constraint that was found to be unmet and releases all jobs that were waiting on
+   * them.
+   */
+  synchronized void onConstraintMet() {
+    unmetConstraints.clear();
+    jobsWaitingOnConstraint.clear();
+    waitingJobs.clear();
+    notify();
   }
 
   @WorkerThread
@@ -91,19 +151,25 @@ class JobController {
     }
 
     insertJobChain(chain);
+    Stream.of(chain).forEach(list -> Stream.of(list).forEach(job -> jobTracker.onJobQueued(job.getParameters().getQueue())));
     scheduleJobs(chain.get(0));
     triggerOnSubmit(chain);
-    notifyAll();
+    notify();
   }
 
+  /**
+   * Storage is updated outside of this class' monitor, so the write only holds up runners pulling
+   * jobs for as long as the {@link JobStorage} itself keeps them waiting.
+   */
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job) {
+  void onRetry(@NonNull Job job) {
     int    nextRunAttempt     = job.getRunAttempt() + 1;
     long   nextRunAttemptTime = calculateNextRunAttemptTime(System.currentTimeMillis(), nextRunAttempt, job.getParameters().getMaxBackoff());
     String serializedData     = dataSerializer.serialize(job.serialize());
 
     jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime, serializedData);
     jobTracker.onStateChange(job.getId(), JobTracker.JobState.PENDING);
+    jobTracker.onJobRetried(job.getFactoryKey());
 
     List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
                                          .map(ConstraintSpec::getFactoryKey)
@@ -116,18 +182,35 @@ class JobController {
     Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
     scheduler.schedule(delay, constraints);
 
-    notifyAll();
+    synchronized (this) {
+      notify();
+    }
   }
 
   synchronized void onJobFinished(@NonNull Job job) {
-    runningJobs.remove(job.getId());
+    Long startTime = runningJobs.remove(job.getId());
+
+    if (startTime != null) {
+      jobTracker.onJobRunFinished(job.getFactoryKey(), System.currentTimeMillis() - startTime);
+      runningJobsByPriority[priorityIndex(job.getParameters().getPriority())]--;
+      runningJobsByFactory.put(job.getFactoryKey(), Util.getOrDefault(runningJobsByFactory, job.getFactoryKey(), 1) - 1);
+    }
   }
 
+  /**
+   * Storage is updated outside of this class' monitor, so the write only holds up runners pulling
+   * jobs for as long as the {@link JobStorage} itself keeps them waiting.
+   */
   @WorkerThread
-  synchronized void onSuccess(@NonNull Job job) {
+  void onSuccess(@NonNull Job job) {
     jobStorage.deleteJob(job.getId());
     jobTracker.onStateChange(job.getId(), JobTracker.JobState.SUCCESS);
-    notifyAll();
+    jobTracker.onJobRemoved(job.getFactoryKey(), job.getParameters().getQueue(), job.getRunAttempt() + 1, true);
+
+    synchronized (this) {
+      stopWaiting(Collections.singletonList(job.getId()));
+      notify();
+    }
   }
 
   /**
@@ -149,9 +232,20 @@ class JobController {
     all.add(job);
     all.addAll(dependents);
 
-    jobStorage.deleteJobs(Stream.of(all).map(Job::getId).toList());
+    List<String> ids = Stream.of(all).map(Job::getId).toList();
+
+    jobStorage.deleteJobs(ids);
+    stopWaiting(ids);
     Stream.of(all).forEach(j -> jobTracker.onStateChange(j.getId(), JobTracker.JobState.FAILURE));
 
+    jobTracker.onJobRemoved(job.getFactoryKey(), job.getParameters().getQueue(), job.getRunAttempt() + 1, false);
+    Stream.of(dependents).forEach(d -> {
+      jobTracker.onJobFailed(d.getFactoryKey(), "Dependency failed");
+      jobTracker.onJobRemoved(d.getFactoryKey(), d.getParameters().getQueue(), 0, false);
+    });
+
+    notify();
+
     return dependents;
   }
 
@@ -159,27 +253,45 @@ class JobController {
    * Retrieves the next job that is eligible for execution. To be 'eligible' means that the job:
    *  - Has no dependencies
    *  - Has no unmet constraints
+   *  - Has at least the requested priority
+   *  - Wouldn't put its factory or priority over their concurrency limits
    *
    * This method will block until a job is available.
    * When the job returned from this method has been run, you must call {@link #onJobFinished(Job)}.
+   *
+   * @param minimumPriority Jobs below this priority are left for other runners. Only one runner
+   *                        should ask for anything above {@link Job.Parameters#PRIORITY_LOW}, as
+   *                        it'll pass its wakeup on to another runner if it can't take the work.
    */
   @WorkerThread
-  synchronized @NonNull Job pullNextEligibleJobForExecution() {
+  synchronized @NonNull Job pullNextEligibleJobForExecution(int minimumPriority) {
     try {
-      Job job;
+      EligibleJob eligible;
 
-      while ((job = getNextEligibleJobForExecution()) == null) {
+      while ((eligible = getNextEligibleJobForExecution(minimumPriority)).job == null) {
         if (runningJobs.isEmpty()) {
           debouncer.publish(callback::onEmpty);
         }
 
-        wait();
+        if (eligible.hasMoreCandidates) {
+          notify();
+        }
+
+        wait(getTimeUntilNextExpiry(System.currentTimeMillis()));
       }
 
+      Job job = eligible.job;
+
       jobStorage.updateJobRunningState(job.getId(), true);
-      runningJobs.add(job.getId());
+      runningJobs.put(job.getId(), System.currentTimeMillis());
+      runningJobsByPriority[priorityIndex(job.getParameters().getPriority())]++;
+      runningJobsByFactory.put(job.getFactoryKey(), Util.getOrDefault(runningJobsByFactory, job.getFactoryKey(), 0) + 1);
       jobTracker.onStateChange(job.getId(), JobTracker.JobState.RUNNING);
 
+      if (eligible.hasMoreCandidates) {
+        notify();
+      }
+
       return job;
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted.");
@@ -187,6 +299,11 @@ class JobController {
     }
   }
 
+  @WorkerThread
+  synchronized boolean isQueueEmpty(@NonNull String queueKey) {
+    return jobStorage.isQueueEmpty(queueKey);
+  }
+
   /**
    * Retrieves a string representing the state of the job queue. Intended for debugging.
    */
@@ -219,6 +336,21 @@ class JobController {
       info.append("None\n");
     }
 
+    info.append("\n-- Unmet Constraints\n");
+    if (!unmetConstraints.isEmpty()) {
+      Stream.of(unmetConstraints.keySet()).forEach(key -> info.append(key).append(" (waiting jobs: ").append(getWaitingJobCount(key)).append(")\n"));
+    } else {
+      info.append("None\n");
+    }
+
+    info.append("\n-- Wait Times\n");
+    for (int i = waitTimesByPriority.length - 1; i >= 0; i--) {
+      info.append(priorityName(i)).append(": ").append(waitTimesByPriority[i]).append('\n');
+    }
+
+    info.append("\n-- Storage\n");
+    info.append(jobStorage.getDebugInfo()).append('\n');
+
     return info.toString();
   }
 
@@ -275,7 +407,9 @@ class JobController {
                                   job.getParameters().getLifespan(),
                                   job.getParameters().getMaxInstances(),
                                   dataSerializer.serialize(job.serialize()),
-                                  false);
+                                  false,
+                                  job.getParameters().isDurable(),
+                                  job.getParameters().getPriority());
 
     List<ConstraintSpec> constraintSpecs = Stream.of(job.getParameters().getConstraintKeys())
                                                  .map(key -> new ConstraintSpec(jobSpec.getId(), key))
@@ -301,25 +435,183 @@ class JobController {
     }
   }
 
+  /**
+   * Finds the highest priority job that the calling runner may take, preferring older jobs within
+   * a priority. The job will be null if there's nothing the runner can take, but there may still be
+   * work for other runners.
+   */
   @WorkerThread
-  private @Nullable Job getNextEligibleJobForExecution() {
-    List<JobSpec> jobSpecs = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis());
+  private @NonNull EligibleJob getNextEligibleJobForExecution(int minimumPriority) {
+    long                 now           = System.currentTimeMillis();
+    List<JobSpec>        jobSpecs      = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(now);
+    Map<String, Boolean> checkedInPass = new HashMap<>();
+
+    expireUnmetConstraints(now);
+
+    JobSpec              best            = null;
+    List<ConstraintSpec> bestConstraints = null;
+    boolean              othersAvailable = false;
+
+    for (int i = 0; i < jobSpecs.size(); i++) {
+      JobSpec jobSpec = jobSpecs.get(i);
+
+      if (waitingJobs.containsKey(jobSpec.getId()) || !hasCapacityFor(jobSpec)) {
+        continue;
+      }
+
+      if (best != null && jobSpec.getPriority() <= best.getPriority()) {
+        othersAvailable = true;
+        continue;
+      }
 
-    for (JobSpec jobSpec : jobSpecs) {
       List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
+      String               unmetConstraint = findUnmetConstraint(constraintSpecs, checkedInPass, now);
+
+      if (unmetConstraint != null) {
+        waitOnConstraint(jobSpec.getId(), unmetConstraint);
+        continue;
+      }
+
+      if (jobSpec.getPriority() < minimumPriority) {
+        othersAvailable = true;
+        continue;
+      }
+
+      othersAvailable |= best != null;
+      best             = jobSpec;
+      bestConstraints  = constraintSpecs;
+
+      if (best.getPriority() >= Job.Parameters.PRIORITY_HIGH) {
+        othersAvailable |= i < jobSpecs.size() - 1;
+        break;
+      }
+    }
+
+    if (best == null) {
+      return new EligibleJob(null, othersAvailable);
+    }
+
+    Job  job      = createJob(best, bestConstraints);
+    long waitTime = now - Math.max(best.getCreateTime(), best.getNextRunAttemptTime());
+
+    waitTimesByPriority[priorityIndex(best.getPriority())].add(waitTime);
+    jobTracker.onJobStarted(best.getFactoryKey(), waitTime);
+
+    return new EligibleJob(job, othersAvailable);
+  }
+
+  private boolean hasCapacityFor(@NonNull JobSpec jobSpec) {
+    Integer limit = concurrencyLimits.get(jobSpec.getFactoryKey());
+
+    if (limit != null && Util.getOrDefault(runningJobsByFactory, jobSpec.getFactoryKey(), 0) >= limit) {
+      return false;
+    }
+
+    return jobSpec.getPriority() > Job.Parameters.PRIORITY_LOW ||
+           runningJobsByPriority[Job.Parameters.PRIORITY_LOW] < maxLowPriorityJobs;
+  }
+
+  /**
+   * @return The factory key of the first constraint that isn't met, or null if they all are.
+   */
+  private @Nullable String findUnmetConstraint(@NonNull List<ConstraintSpec> constraintSpecs, @NonNull Map<String, Boolean> checkedInPass, long now) {
+    for (ConstraintSpec constraintSpec : constraintSpecs) {
+      String key = constraintSpec.getFactoryKey();
+
+      if (unmetConstraints.containsKey(key)) {
+        return key;
+      }
+
+      Boolean met = checkedInPass.get(key);
+
+      if (met == null) {
+        met = constraintInstantiator.instantiate(key).isMet();
+        checkedInPass.put(key, met);
+
+        if (!met) {
+          unmetConstraints.put(key, now);
+        }
+      }
 
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
-        return createJob(jobSpec, constraintSpecs);
+      if (!met) {
+        return key;
       }
     }
 
     return null;
   }
 
+  private void waitOnConstraint(@NonNull String jobId, @NonNull String constraintKey) {
+    Set<String> waiting = jobsWaitingOnConstraint.get(constraintKey);
+
+    if (waiting == null) {
+      waiting = new HashSet<>();
+      jobsWaitingOnConstraint.put(constraintKey, waiting);
+    }
+
+    waiting.add(jobId);
+    waitingJobs.put(jobId, constraintKey);
+  }
+
+  private void expireUnmetConstraints(long now) {
+    Iterator<Map.Entry<String, Long>> iterator = unmetConstraints.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<String, Long> entry = iterator.next();
+
+      if (now - entry.getValue() >= UNMET_CONSTRAINT_LIFESPAN || now < entry.getValue()) {
+        iterator.remove();
+
+        Set<String> waiting = jobsWaitingOnConstraint.remove(entry.getKey());
+
+        if (waiting != null) {
+          waitingJobs.keySet().removeAll(waiting);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return How long until the oldest unmet constraint expires and its jobs may be tried again, or
+   *         0 if there are none, which {@link #wait(long)} treats as no timeout. Without this, jobs
+   *         waiting on an unmet constraint would only be retried when something else woke a runner.
+   */
+  private long getTimeUntilNextExpiry(long now) {
+    if (unmetConstraints.isEmpty()) {
+      return 0;
+    }
+
+    long oldest = Long.MAX_VALUE;
+
+    for (long foundAt : unmetConstraints.values()) {
+      oldest = Math.min(oldest, foundAt);
+    }
+
+    return Math.max(1, oldest + UNMET_CONSTRAINT_LIFESPAN - now);
+  }
+
+  /**
+   * Forgets that the given jobs were waiting on a constraint, for jobs that have been removed.
+   */
+  private void stopWaiting(@NonNull Collection<String> jobIds) {
+    for (String jobId : jobIds) {
+      String constraintKey = waitingJobs.remove(jobId);
+
+      if (constraintKey != null) {
+        Set<String> waiting = jobsWaitingOnConstraint.get(constraintKey);
+
+        if (waiting != null) {
+          waiting.remove(jobId);
+        }
+      }
+    }
+  }
+
+  private int getWaitingJobCount(@NonNull String constraintKey) {
+    Set<String> waiting = jobsWaitingOnConstraint.get(constraintKey);
+    return waiting != null ? waiting.size() : 0;
+  }
+
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
     Job.Parameters parameters = buildJobParameters(jobSpec, constraintSpecs);
 
@@ -335,12 +627,24 @@ class JobController {
     } catch (RuntimeException e) {
       Log.e(TAG, "Failed to instantiate job! Failing it and its dependencies without calling Job#onCanceled. Crash imminent.");
 
-      List<String> failIds = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(jobSpec.getId()))
-                                   .map(DependencySpec::getJobId)
-                                   .toList();
+      List<JobSpec> failSpecs = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(jobSpec.getId()))
+                                      .map(DependencySpec::getJobId)
+                                      .map(jobStorage::getJobSpec)
+                                      .withoutNulls()
+                                      .toList();
+      List<String>  failIds   = Stream.of(failSpecs).map(JobSpec::getId).toList();
 
       jobStorage.deleteJob(jobSpec.getId());
       jobStorage.deleteJobs(failIds);
+      stopWaiting(Collections.singletonList(jobSpec.getId()));
+      stopWaiting(failIds);
+
+      jobTracker.onJobFailed(jobSpec.getFactoryKey(), "Failed to instantiate");
+      jobTracker.onJobRemoved(jobSpec.getFactoryKey(), jobSpec.getQueueKey(), 0, false);
+      Stream.of(failSpecs).forEach(failSpec -> {
+        jobTracker.onJobFailed(failSpec.getFactoryKey(), "Dependency failed");
+        jobTracker.onJobRemoved(failSpec.getFactoryKey(), failSpec.getQueueKey(), 0, false);
+      });
 
       Log.e(TAG, "Failed " + failIds.size() + " dependent jobs.");
 
@@ -355,6 +659,8 @@ class JobController {
                   .setMaxAttempts(jobSpec.getMaxAttempts())
                   .setQueue(jobSpec.getQueueKey())
                   .setConstraints(Stream.of(constraintSpecs).map(ConstraintSpec::getFactoryKey).toList())
+                  .setDurable(jobSpec.isDurable())
+                  .setPriority(jobSpec.getPriority())
                   .build();
   }
 
@@ -369,4 +675,49 @@ class JobController {
   interface Callback {
     void onEmpty();
   }
+
+  private static int priorityIndex(int priority) {
+    return Math.max(Job.Parameters.PRIORITY_LOW, Math.min(Job.Parameters.PRIORITY_HIGH, priority));
+  }
+
+  private static @NonNull String priorityName(int priority) {
+    switch (priority) {
+      case Job.Parameters.PRIORITY_LOW:     return "Low";
+      case Job.Parameters.PRIORITY_DEFAULT: return "Default";
+      case Job.Parameters.PRIORITY_HIGH:    return "High";
+      default:                              return String.valueOf(priority);
+    }
+  }
+
+  private static final class EligibleJob {
+    private final Job     job;
+    private final boolean hasMoreCandidates;
+
+    private EligibleJob(@Nullable Job job, boolean hasMoreCandidates) {
+      this.job               = job;
+      this.hasMoreCandidates = hasMoreCandidates;
+    }
+  }
+
+  /**
+   * How long jobs were eligible to run before they were handed to a runner.
+   */
+  private static final class WaitTime {
+    private long count;
+    private long total;
+    private long max;
+
+    void add(long waitTime) {
+      waitTime = Math.max(0, waitTime);
+
+      count++;
+      total += waitTime;
+      max    = Math.max(max, waitTime);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return "count: " + count + " | average: " + (count > 0 ? total / count : 0) + " ms | max: " + max + " ms";
+    }
+  }
 }
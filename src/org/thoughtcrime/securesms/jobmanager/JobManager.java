@@ -8,7 +8,6 @@ import androidx.annotation.WorkerThread;
 import androidx.lifecycle.LiveData;
 
 import org.thoughtcrime.securesms.jobmanager.impl.DefaultExecutorFactory;
-import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.workmanager.WorkManagerMigrator;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.logging.Log;
@@ -34,7 +33,7 @@ public class JobManager implements ConstraintObserver.Notifier {
 
   private static final String TAG = JobManager.class.getSimpleName();
 
-  public static final int CURRENT_VERSION = 4;
+  public static final int CURRENT_VERSION = 5;
 
   private final Application     application;
   private final Configuration   configuration;
@@ -58,7 +57,9 @@ public class JobManager implements ConstraintObserver.Notifier {
                                            Build.VERSION.SDK_INT < 26 ? new AlarmManagerScheduler(application)
                                                                       : new CompositeScheduler(new InAppScheduler(this), new JobSchedulerScheduler(application)),
                                            new Debouncer(500),
-                                           this::onEmptyQueue);
+                                           this::onEmptyQueue,
+                                           configuration.getJobThreadCount(),
+                                           configuration.getConcurrencyLimits());
 
     executor.execute(() -> {
       if (WorkManagerMigrator.needsMigration(application)) {
@@ -90,8 +91,10 @@ public class JobManager implements ConstraintObserver.Notifier {
   public void beginJobLoop() {
     executor.execute(() -> {
       for (int i = 0; i < configuration.getJobThreadCount(); i++) {
-        new JobRunner(application, i + 1, jobController).start();
+        new JobRunner(application, i + 1, jobController, jobTracker, Job.Parameters.PRIORITY_LOW).start();
       }
+
+      new JobRunner(application, configuration.getJobThreadCount() + 1, jobController, jobTracker, Job.Parameters.PRIORITY_HIGH).start();
       wakeUp();
     });
   }
@@ -149,6 +152,28 @@ public class JobManager implements ConstraintObserver.Notifier {
     }
   }
 
+  /**
+   * Whether every job in the queue has finished, including jobs that were persisted before the
+   * app last restarted. Jobs enqueued before this is called count even if they aren't stored yet.
+   */
+  @WorkerThread
+  public boolean isQueueEmpty(@NonNull String queueKey) {
+    Future<Boolean> result = executor.submit(() -> jobController.isQueueEmpty(queueKey));
+    try {
+      return result.get();
+    } catch (ExecutionException | InterruptedException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Retrieves per-factory timing, retry and failure metrics along with the current queue depths.
+   * Doesn't touch storage, so it's safe to call from any thread.
+   */
+  public @NonNull JobMetrics.Snapshot getMetricsSnapshot() {
+    return jobTracker.getMetricsSnapshot();
+  }
+
   /**
    * Adds a listener that will be notified when the job queue has been drained.
    */
@@ -170,7 +195,7 @@ public class JobManager implements ConstraintObserver.Notifier {
   @Override
   public void onConstraintMet(@NonNull String reason) {
     Log.i(TAG, "onConstraintMet(" + reason + ")");
-    wakeUp();
+    executor.execute(jobController::onConstraintMet);
   }
 
   /**
@@ -253,6 +278,7 @@ public class JobManager implements ConstraintObserver.Notifier {
     private final JobStorage               jobStorage;
     private final JobMigrator              jobMigrator;
     private final JobTracker               jobTracker;
+    private final Map<String, Integer>     concurrencyLimits;
 
     private Configuration(int jobThreadCount,
                           @NonNull ExecutorFactory executorFactory,
@@ -262,7 +288,8 @@ public class JobManager implements ConstraintObserver.Notifier {
                           @NonNull Data.Serializer dataSerializer,
                           @NonNull JobStorage jobStorage,
                           @NonNull JobMigrator jobMigrator,
-                          @NonNull JobTracker jobTracker)
+                          @NonNull JobTracker jobTracker,
+                          @NonNull Map<String, Integer> concurrencyLimits)
     {
       this.executorFactory        = executorFactory;
       this.jobThreadCount         = jobThreadCount;
@@ -273,6 +300,7 @@ public class JobManager implements ConstraintObserver.Notifier {
       this.jobStorage             = jobStorage;
       this.jobMigrator            = jobMigrator;
       this.jobTracker             = jobTracker;
+      this.concurrencyLimits      = concurrencyLimits;
     }
 
     int getJobThreadCount() {
@@ -312,6 +340,10 @@ public class JobManager implements ConstraintObserver.Notifier {
       return jobTracker;
     }
 
+    @NonNull Map<String, Integer> getConcurrencyLimits() {
+      return concurrencyLimits;
+    }
+
     public static class Builder {
 
       private ExecutorFactory                 executorFactory     = new DefaultExecutorFactory();
@@ -319,10 +351,11 @@ public class JobManager implements ConstraintObserver.Notifier {
       private Map<String, Job.Factory>        jobFactories        = new HashMap<>();
       private Map<String, Constraint.Factory> constraintFactories = new HashMap<>();
       private List<ConstraintObserver>        constraintObservers = new ArrayList<>();
-      private Data.Serializer                 dataSerializer      = new JsonDataSerializer();
+      private Data.Serializer                 dataSerializer      = new BinaryDataSerializer();
       private JobStorage                      jobStorage          = null;
       private JobMigrator                     jobMigrator         = null;
       private JobTracker                      jobTracker          = new JobTracker();
+      private Map<String, Integer>            concurrencyLimits   = new HashMap<>();
 
       public @NonNull Builder setJobThreadCount(int jobThreadCount) {
         this.jobThreadCount = jobThreadCount;
@@ -364,6 +397,15 @@ public class JobManager implements ConstraintObserver.Notifier {
         return this;
       }
 
+      /**
+       * Limits how many jobs created by a given factory may run at once, keyed by factory key.
+       * Factories that aren't present are only limited by the number of runners.
+       */
+      public @NonNull Builder setConcurrencyLimits(@NonNull Map<String, Integer> concurrencyLimits) {
+        this.concurrencyLimits = concurrencyLimits;
+        return this;
+      }
+
       public @NonNull Configuration build() {
         return new Configuration(jobThreadCount,
                                  executorFactory,
@@ -373,7 +415,8 @@ public class JobManager implements ConstraintObserver.Notifier {
                                  dataSerializer,
                                  jobStorage,
                                  jobMigrator,
-                                 jobTracker);
+                                 jobTracker,
+                                 new HashMap<>(concurrencyLimits));
       }
     }
   }
@@ -0,0 +1,413 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records how jobs of each factory behave: how long they wait to start, how long they run, how
+ * many attempts they take and why they fail, along with the number of jobs in each queue.
+ *
+ * Samples are kept in fixed-size ring buffers, so only the most recent {@link #SAMPLE_COUNT} of
+ * each are remembered. Recording a sample never blocks. The cost of sorting samples into
+ * histograms is only paid when a {@link Snapshot} is taken.
+ */
+public final class JobMetrics {
+
+  private static final int SAMPLE_COUNT = 128;
+  private static final int REMOVED      = -1;
+
+  private final ConcurrentHashMap<String, FactoryMetrics> factoryMetrics = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, AtomicInteger>  queueDepths    = new ConcurrentHashMap<>();
+
+  JobMetrics() {}
+
+  void onJobQueued(@Nullable String queueKey) {
+    if (queueKey == null) return;
+
+    while (true) {
+      AtomicInteger depth   = getQueueDepth(queueKey);
+      int           current = depth.get();
+
+      if (current == REMOVED) {
+        queueDepths.remove(queueKey, depth);
+      } else if (depth.compareAndSet(current, current + 1)) {
+        return;
+      }
+    }
+  }
+
+  void onJobStarted(@NonNull String factoryKey, long waitTime) {
+    FactoryMetrics metrics = getFactoryMetrics(factoryKey);
+    metrics.started.incrementAndGet();
+    metrics.waitTimes.add(waitTime);
+  }
+
+  void onJobRunFinished(@NonNull String factoryKey, long runTime) {
+    getFactoryMetrics(factoryKey).runTimes.add(runTime);
+  }
+
+  void onJobRetried(@NonNull String factoryKey) {
+    getFactoryMetrics(factoryKey).retried.incrementAndGet();
+  }
+
+  void onJobFailureCause(@NonNull String factoryKey, @NonNull String cause) {
+    ConcurrentHashMap<String, AtomicLong> causes  = getFactoryMetrics(factoryKey).failureCauses;
+    AtomicLong                            counter = causes.get(cause);
+
+    if (counter == null) {
+      AtomicLong created  = new AtomicLong();
+      AtomicLong existing = causes.putIfAbsent(cause, created);
+
+      counter = existing != null ? existing : created;
+    }
+
+    counter.incrementAndGet();
+  }
+
+  /**
+   * @param runAttempts The number of times the job was run, or 0 if it never ran.
+   */
+  void onJobRemoved(@NonNull String factoryKey, @Nullable String queueKey, int runAttempts, boolean success) {
+    FactoryMetrics metrics = getFactoryMetrics(factoryKey);
+
+    if (success) {
+      metrics.succeeded.incrementAndGet();
+    } else {
+      metrics.failed.incrementAndGet();
+    }
+
+    if (runAttempts > 0) {
+      metrics.attempts.add(runAttempts);
+    }
+
+    if (queueKey != null) {
+      decrementQueueDepth(queueKey);
+    }
+  }
+
+  @NonNull Snapshot getSnapshot() {
+    List<FactorySnapshot> factories = new ArrayList<>(factoryMetrics.size());
+
+    for (Map.Entry<String, FactoryMetrics> entry : new TreeMap<>(factoryMetrics).entrySet()) {
+      factories.add(entry.getValue().snapshot(entry.getKey()));
+    }
+
+    Map<String, Integer> depths = new TreeMap<>();
+
+    for (Map.Entry<String, AtomicInteger> entry : queueDepths.entrySet()) {
+      int depth = entry.getValue().get();
+
+      if (depth > 0) {
+        depths.put(entry.getKey(), depth);
+      }
+    }
+
+    return new Snapshot(factories, depths);
+  }
+
+  private @NonNull FactoryMetrics getFactoryMetrics(@NonNull String factoryKey) {
+    FactoryMetrics metrics = factoryMetrics.get(factoryKey);
+
+    if (metrics == null) {
+      FactoryMetrics created  = new FactoryMetrics();
+      FactoryMetrics existing = factoryMetrics.putIfAbsent(factoryKey, created);
+
+      metrics = existing != null ? existing : created;
+    }
+
+    return metrics;
+  }
+
+  @VisibleForTesting
+  int getTrackedQueueCount() {
+    return queueDepths.size();
+  }
+
+  /**
+   * A queue's counter is removed once the queue empties. It's marked as {@link #REMOVED} first, so
+   * a job queued while that happens sees the mark and retries against a new counter rather than
+   * being counted on the one that's going away.
+   */
+  private void decrementQueueDepth(@NonNull String queueKey) {
+    while (true) {
+      AtomicInteger depth = queueDepths.get(queueKey);
+
+      if (depth == null) return;
+
+      int current = depth.get();
+
+      if (current == REMOVED) {
+        queueDepths.remove(queueKey, depth);
+      } else if (current <= 1) {
+        if (depth.compareAndSet(current, REMOVED)) {
+          queueDepths.remove(queueKey, depth);
+          return;
+        }
+      } else if (depth.compareAndSet(current, current - 1)) {
+        return;
+      }
+    }
+  }
+
+  private @NonNull AtomicInteger getQueueDepth(@NonNull String queueKey) {
+    AtomicInteger depth = queueDepths.get(queueKey);
+
+    if (depth == null) {
+      AtomicInteger created  = new AtomicInteger();
+      AtomicInteger existing = queueDepths.putIfAbsent(queueKey, created);
+
+      depth = existing != null ? existing : created;
+    }
+
+    return depth;
+  }
+
+  private static final class FactoryMetrics {
+    private final SampleBuffer waitTimes = new SampleBuffer(SAMPLE_COUNT);
+    private final SampleBuffer runTimes  = new SampleBuffer(SAMPLE_COUNT);
+    private final SampleBuffer attempts  = new SampleBuffer(SAMPLE_COUNT);
+    private final AtomicLong   started   = new AtomicLong();
+    private final AtomicLong   succeeded = new AtomicLong();
+    private final AtomicLong   failed    = new AtomicLong();
+    private final AtomicLong   retried   = new AtomicLong();
+
+    private final ConcurrentHashMap<String, AtomicLong> failureCauses = new ConcurrentHashMap<>();
+
+    @NonNull FactorySnapshot snapshot(@NonNull String factoryKey) {
+      Map<String, Long> causes = new TreeMap<>();
+
+      for (Map.Entry<String, AtomicLong> entry : failureCauses.entrySet()) {
+        causes.put(entry.getKey(), entry.getValue().get());
+      }
+
+      return new FactorySnapshot(factoryKey,
+                                 started.get(),
+                                 succeeded.get(),
+                                 failed.get(),
+                                 retried.get(),
+                                 waitTimes.toHistogram(),
+                                 runTimes.toHistogram(),
+                                 attempts.toHistogram(),
+                                 causes);
+    }
+  }
+
+  /**
+   * A lock-free ring buffer of the most recent samples. A sample that is being overwritten while
+   * a histogram is built may be read as either its old or new value, which is fine for metrics.
+   */
+  private static final class SampleBuffer {
+    private final AtomicLongArray samples;
+    private final AtomicLong      written;
+
+    SampleBuffer(int size) {
+      this.samples = new AtomicLongArray(size);
+      this.written = new AtomicLong();
+    }
+
+    void add(long sample) {
+      long index = written.getAndIncrement();
+      samples.set((int) (index % samples.length()), Math.max(0, sample));
+    }
+
+    @NonNull Histogram toHistogram() {
+      int    count  = (int) Math.min(written.get(), samples.length());
+      long[] sorted = new long[count];
+
+      for (int i = 0; i < count; i++) {
+        sorted[i] = samples.get(i);
+      }
+
+      Arrays.sort(sorted);
+
+      return new Histogram(written.get(), sorted);
+    }
+  }
+
+  public static final class Snapshot {
+
+    private final List<FactorySnapshot> factories;
+    private final Map<String, Integer>  queueDepths;
+
+    private Snapshot(@NonNull List<FactorySnapshot> factories, @NonNull Map<String, Integer> queueDepths) {
+      this.factories   = Collections.unmodifiableList(factories);
+      this.queueDepths = Collections.unmodifiableMap(queueDepths);
+    }
+
+    public @NonNull List<FactorySnapshot> getFactories() {
+      return factories;
+    }
+
+    /**
+     * The number of jobs in each queue that isn't empty, including running jobs.
+     */
+    public @NonNull Map<String, Integer> getQueueDepths() {
+      return queueDepths;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      StringBuilder out = new StringBuilder();
+
+      out.append("-- Factories\n");
+      if (!factories.isEmpty()) {
+        for (FactorySnapshot factory : factories) {
+          out.append(factory).append('\n');
+        }
+      } else {
+        out.append("None\n");
+      }
+
+      out.append("\n-- Queue Depths\n");
+      if (!queueDepths.isEmpty()) {
+        for (Map.Entry<String, Integer> entry : queueDepths.entrySet()) {
+          out.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        }
+      } else {
+        out.append("None\n");
+      }
+
+      return out.toString();
+    }
+  }
+
+  public static final class FactorySnapshot {
+
+    private final String            factoryKey;
+    private final long              started;
+    private final long              succeeded;
+    private final long              failed;
+    private final long              retried;
+    private final Histogram         waitTimes;
+    private final Histogram         runTimes;
+    private final Histogram         attempts;
+    private final Map<String, Long> failureCauses;
+
+    private FactorySnapshot(@NonNull String factoryKey,
+                            long started,
+                            long succeeded,
+                            long failed,
+                            long retried,
+                            @NonNull Histogram waitTimes,
+                            @NonNull Histogram runTimes,
+                            @NonNull Histogram attempts,
+                            @NonNull Map<String, Long> failureCauses)
+    {
+      this.factoryKey    = factoryKey;
+      this.started       = started;
+      this.succeeded     = succeeded;
+      this.failed        = failed;
+      this.retried       = retried;
+      this.waitTimes     = waitTimes;
+      this.runTimes      = runTimes;
+      this.attempts      = attempts;
+      this.failureCauses = Collections.unmodifiableMap(failureCauses);
+    }
+
+    public @NonNull String getFactoryKey() {
+      return factoryKey;
+    }
+
+    public long getStarted() {
+      return started;
+    }
+
+    public long getSucceeded() {
+      return succeeded;
+    }
+
+    public long getFailed() {
+      return failed;
+    }
+
+    public long getRetried() {
+      return retried;
+    }
+
+    /**
+     * Time between a job being enqueued (or its retry becoming due) and it starting, in ms.
+     */
+    public @NonNull Histogram getWaitTimes() {
+      return waitTimes;
+    }
+
+    /**
+     * Time spent running each attempt, in ms.
+     */
+    public @NonNull Histogram getRunTimes() {
+      return runTimes;
+    }
+
+    /**
+     * Number of attempts each finished job took.
+     */
+    public @NonNull Histogram getAttempts() {
+      return attempts;
+    }
+
+    public @NonNull Map<String, Long> getFailureCauses() {
+      return failureCauses;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US, "%s | started: %d | succeeded: %d | failed: %d | retried: %d | wait (ms): %s | run (ms): %s | attempts: %s | failure causes: %s",
+                           factoryKey, started, succeeded, failed, retried, waitTimes, runTimes, attempts, failureCauses);
+    }
+  }
+
+  public static final class Histogram {
+
+    private final long   totalCount;
+    private final long[] sortedSamples;
+
+    private Histogram(long totalCount, @NonNull long[] sortedSamples) {
+      this.totalCount    = totalCount;
+      this.sortedSamples = sortedSamples;
+    }
+
+    /**
+     * The number of samples ever recorded, which may be more than the number still remembered.
+     */
+    public long getTotalCount() {
+      return totalCount;
+    }
+
+    /**
+     * @param percentile Between 0 and 100.
+     * @return The value at the percentile of the remembered samples, or 0 if there are none.
+     */
+    public long getPercentile(double percentile) {
+      if (sortedSamples.length == 0) return 0;
+
+      int index = (int) Math.ceil(percentile / 100 * sortedSamples.length) - 1;
+
+      return sortedSamples[Math.max(0, Math.min(sortedSamples.length - 1, index))];
+    }
+
+    public long getMax() {
+      return sortedSamples.length > 0 ? sortedSamples[sortedSamples.length - 1] : 0;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      if (sortedSamples.length == 0) return "-";
+
+      return String.format(Locale.US, "p50 %d, p90 %d, p99 %d, max %d (n=%d)",
+                           getPercentile(50), getPercentile(90), getPercentile(99), getMax(), totalCount);
+    }
+  }
+}
@@ -75,7 +75,9 @@ public class JobMigrator {
                                               jobSpec.getLifespan(),
                                               jobSpec.getMaxInstances(),
                                               dataSerializer.serialize(updatedJobData.getData()),
-                                              jobSpec.isRunning());
+                                              jobSpec.isRunning(),
+                                              jobSpec.isDurable(),
+                                              jobSpec.getPriority());
 
         iter.set(updatedJobSpec);
       }
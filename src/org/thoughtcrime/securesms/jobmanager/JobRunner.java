@@ -19,6 +19,9 @@ import java.util.concurrent.TimeUnit;
  *
  * {@link JobRunner} and {@link JobController} were written such that you should be able to have
  * N concurrent {@link JobRunner}s operating over the same {@link JobController}.
+ *
+ * A runner may be restricted to jobs of a minimum priority, in which case it is effectively
+ * reserved for that kind of work.
  */
 class JobRunner extends Thread {
 
@@ -29,20 +32,24 @@ class JobRunner extends Thread {
   private final Application   application;
   private final int           id;
   private final JobController jobController;
+  private final JobTracker    jobTracker;
+  private final int           minimumPriority;
 
-  JobRunner(@NonNull Application application, int id, @NonNull JobController jobController) {
+  JobRunner(@NonNull Application application, int id, @NonNull JobController jobController, @NonNull JobTracker jobTracker, int minimumPriority) {
     super("signal-JobRunner-" + id);
 
-    this.application   = application;
-    this.id            = id;
-    this.jobController = jobController;
+    this.application     = application;
+    this.id              = id;
+    this.jobController   = jobController;
+    this.jobTracker      = jobTracker;
+    this.minimumPriority = minimumPriority;
   }
 
   @Override
   public synchronized void run() {
     //noinspection InfiniteLoopStatement
     while (true) {
-      Job        job    = jobController.pullNextEligibleJobForExecution();
+      Job        job    = jobController.pullNextEligibleJobForExecution(minimumPriority);
       Job.Result result = run(job);
 
       jobController.onJobFinished(job);
@@ -71,6 +78,7 @@ class JobRunner extends Thread {
 
     if (isJobExpired(job)) {
       Log.w(TAG, JobLogger.format(job, String.valueOf(id), "Failing after surpassing its lifespan."));
+      jobTracker.onJobFailed(job.getFactoryKey(), "Expired");
       return Job.Result.failure();
     }
 
@@ -82,6 +90,7 @@ class JobRunner extends Thread {
       result = job.run();
     } catch (Exception e) {
       Log.w(TAG, JobLogger.format(job, String.valueOf(id), "Failing due to an unexpected exception."), e);
+      jobTracker.onJobFailed(job.getFactoryKey(), "Unexpected " + e.getClass().getSimpleName());
       return Job.Result.failure();
     } finally {
       if (wakeLock != null) {
@@ -96,6 +105,7 @@ class JobRunner extends Thread {
         job.getParameters().getMaxAttempts() != Job.Parameters.UNLIMITED)
     {
       Log.w(TAG, JobLogger.format(job, String.valueOf(id), "Failing after surpassing its max number of attempts."));
+      jobTracker.onJobFailed(job.getFactoryKey(), "Max attempts");
       return Job.Result.failure();
     }
 
@@ -115,8 +125,10 @@ class JobRunner extends Thread {
   private void printResult(@NonNull Job job, @NonNull Job.Result result) {
     if (result.getException() != null) {
       Log.e(TAG, JobLogger.format(job, String.valueOf(id), "Job failed with a fatal exception. Crash imminent."));
+      jobTracker.onJobFailed(job.getFactoryKey(), "Fatal " + result.getException().getClass().getSimpleName());
     } else if (result.isFailure()) {
       Log.w(TAG, JobLogger.format(job, String.valueOf(id), "Job failed."));
+      jobTracker.onJobFailed(job.getFactoryKey(), "Job failed");
     } else {
       Log.i(TAG, JobLogger.format(job, String.valueOf(id), "Job finished with result: " + result));
     }
@@ -77,7 +77,8 @@ public class JobSchedulerScheduler implements Scheduler {
         }
       });
 
-      jobManager.wakeUp();
+      // The system only starts us once the constraints we scheduled with are met
+      jobManager.onConstraintMet(TAG);
 
       return true;
     }
@@ -13,16 +13,19 @@ import java.util.concurrent.CopyOnWriteArraySet;
 import java.util.concurrent.Executor;
 
 /**
- * Tracks the state of {@link Job}s and allows callers to listen to changes.
+ * Tracks the state of {@link Job}s and allows callers to listen to changes. Also keeps
+ * {@link JobMetrics} on how jobs of each factory behave.
  */
 public class JobTracker {
 
   private final Map<String, TrackingState> trackingStates;
   private final Executor                   listenerExecutor;
+  private final JobMetrics                 metrics;
 
   JobTracker() {
     this.trackingStates   = new LRUCache<>(1000);
     this.listenerExecutor = SignalExecutors.BOUNDED;
+    this.metrics          = new JobMetrics();
   }
 
   /**
@@ -64,6 +67,40 @@ public class JobTracker {
     }
   }
 
+  void onJobQueued(@Nullable String queueKey) {
+    metrics.onJobQueued(queueKey);
+  }
+
+  /**
+   * @param waitTime How long the job was waiting to run, in ms.
+   */
+  void onJobStarted(@NonNull String factoryKey, long waitTime) {
+    metrics.onJobStarted(factoryKey, waitTime);
+  }
+
+  void onJobRunFinished(@NonNull String factoryKey, long runTime) {
+    metrics.onJobRunFinished(factoryKey, runTime);
+  }
+
+  void onJobRetried(@NonNull String factoryKey) {
+    metrics.onJobRetried(factoryKey);
+  }
+
+  void onJobFailed(@NonNull String factoryKey, @NonNull String cause) {
+    metrics.onJobFailureCause(factoryKey, cause);
+  }
+
+  /**
+   * Called once a job is removed from its queue for good, whether it ran or not.
+   */
+  void onJobRemoved(@NonNull String factoryKey, @Nullable String queueKey, int runAttempts, boolean success) {
+    metrics.onJobRemoved(factoryKey, queueKey, runAttempts, success);
+  }
+
+  @NonNull JobMetrics.Snapshot getMetricsSnapshot() {
+    return metrics.getSnapshot();
+  }
+
   private @NonNull TrackingState getOrCreateTrackingState(@NonNull String id) {
     TrackingState state = trackingStates.get(id);
 
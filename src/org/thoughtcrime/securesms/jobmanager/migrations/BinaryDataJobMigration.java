@@ -0,0 +1,23 @@
+package org.thoughtcrime.securesms.jobmanager.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.BinaryDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.JobMigration;
+
+/**
+ * Doesn't change any job data. Its only purpose is to have every persisted job read and re-written
+ * by the {@link org.thoughtcrime.securesms.jobmanager.JobMigrator}, which moves data that was
+ * stored as JSON over to the {@link BinaryDataSerializer} format.
+ */
+public class BinaryDataJobMigration extends JobMigration {
+
+  public BinaryDataJobMigration() {
+    super(5);
+  }
+
+  @Override
+  protected @NonNull JobData migrate(@NonNull JobData jobData) {
+    return jobData;
+  }
+}
@@ -4,6 +4,8 @@ import android.annotation.SuppressLint;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import org.thoughtcrime.securesms.jobmanager.Job;
+
 import java.util.Objects;
 
 public final class JobSpec {
@@ -20,6 +22,8 @@ public final class JobSpec {
   private final int     maxInstances;
   private final String  serializedData;
   private final boolean isRunning;
+  private final boolean isDurable;
+  private final int     priority;
 
   public JobSpec(@NonNull String id,
                  @NonNull String factoryKey,
@@ -33,6 +37,24 @@ public final class JobSpec {
                  int maxInstances,
                  @NonNull String serializedData,
                  boolean isRunning)
+  {
+    this(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, lifespan, maxInstances, serializedData, isRunning, true, Job.Parameters.PRIORITY_DEFAULT);
+  }
+
+  public JobSpec(@NonNull String id,
+                 @NonNull String factoryKey,
+                 @Nullable String queueKey,
+                 long createTime,
+                 long nextRunAttemptTime,
+                 int runAttempt,
+                 int maxAttempts,
+                 long maxBackoff,
+                 long lifespan,
+                 int maxInstances,
+                 @NonNull String serializedData,
+                 boolean isRunning,
+                 boolean isDurable,
+                 int priority)
   {
     this.id                 = id;
     this.factoryKey         = factoryKey;
@@ -46,6 +68,8 @@ public final class JobSpec {
     this.maxInstances       = maxInstances;
     this.serializedData     = serializedData;
     this.isRunning          = isRunning;
+    this.isDurable          = isDurable;
+    this.priority           = priority;
   }
 
   public @NonNull String getId() {
@@ -96,6 +120,18 @@ public final class JobSpec {
     return isRunning;
   }
 
+  /**
+   * Whether or not every change to this job must be written to disk before returning. This is not
+   * itself persisted -- any job read back from disk is considered durable.
+   */
+  public boolean isDurable() {
+    return isDurable;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
   @Override
   public boolean equals(Object o) {
     if (this == o) return true;
@@ -109,6 +145,8 @@ public final class JobSpec {
            lifespan == jobSpec.lifespan &&
            maxInstances == jobSpec.maxInstances &&
            isRunning == jobSpec.isRunning &&
+           isDurable == jobSpec.isDurable &&
+           priority == jobSpec.priority &&
            Objects.equals(id, jobSpec.id) &&
            Objects.equals(factoryKey, jobSpec.factoryKey) &&
            Objects.equals(queueKey, jobSpec.queueKey) &&
@@ -117,13 +155,13 @@ public final class JobSpec {
 
   @Override
   public int hashCode() {
-    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, lifespan, maxInstances, serializedData, isRunning);
+    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, lifespan, maxInstances, serializedData, isRunning, isDurable, priority);
   }
 
   @SuppressLint("DefaultLocale")
   @Override
   public @NonNull String toString() {
-    return String.format("id: JOB::%s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | maxBackoff: %d | maxInstances: %d | lifespan: %d | isRunning: %b | data: %s",
-                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, maxInstances, lifespan, isRunning, serializedData);
+    return String.format("id: JOB::%s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | maxBackoff: %d | maxInstances: %d | lifespan: %d | isRunning: %b | isDurable: %b | priority: %d | data: %s",
+                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, maxInstances, lifespan, isRunning, isDurable, priority, serializedData);
   }
 }
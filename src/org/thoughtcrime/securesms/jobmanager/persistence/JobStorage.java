@@ -26,6 +26,9 @@ public interface JobStorage {
   @WorkerThread
   int getJobInstanceCount(@NonNull String factoryKey);
 
+  @WorkerThread
+  boolean isQueueEmpty(@NonNull String queueKey);
+
   @WorkerThread
   void updateJobRunningState(@NonNull String id, boolean isRunning);
 
@@ -55,4 +58,6 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  @NonNull String getDebugInfo();
 }
@@ -38,6 +38,7 @@ public class DirectoryRefreshJob extends BaseJob {
                            .setQueue("DirectoryRefreshJob")
                            .addConstraint(NetworkConstraint.KEY)
                            .setMaxAttempts(10)
+                           .setDurable(recipient == null)
                            .build(),
          recipient,
          notifyOfNewUsers);
@@ -2,8 +2,8 @@ package org.thoughtcrime.securesms.jobs;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
-import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
 import org.thoughtcrime.securesms.database.JobDatabase;
@@ -14,32 +14,69 @@ import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobStorage;
 import org.thoughtcrime.securesms.util.Util;
-import org.whispersystems.libsignal.util.guava.Optional;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-memory cache of the {@link JobDatabase} that is indexed for the lookups the
+ * {@link org.thoughtcrime.securesms.jobmanager.JobManager} performs on every job pull.
+ *
+ * Jobs are kept in an id index, a per-queue index ordered by creation time, and a reverse index
+ * of dependencies. Only jobs that could currently run (not running, first in their queue, and
+ * without dependencies) are held as 'candidates', which are ordered first by their next run
+ * time and then, once that time has passed, by their creation time.
+ *
+ * Writes go through a {@link JobDatabaseJournal}. Changes to durable jobs (see
+ * {@link JobSpec#isDurable()}) are on disk before the method returns, with the exception of their
+ * running state, which is reset on launch anyway. All other changes are written in batches.
+ */
 public class FastJobStorage implements JobStorage {
 
-  private final JobDatabase jobDatabase;
+  private final JobDatabase        jobDatabase;
+  private final JobDatabaseJournal journal;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobsById;
+  private final Map<String, Long>                 insertOrderById;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final Map<String, Integer>              instanceCountByFactory;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, Set<String>>          dependentsByJobId;
+  private final TreeSet<JobSpec>                  delayedCandidates;
+  private final TreeSet<JobSpec>                  readyCandidates;
+
+  private long nextInsertOrder;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
-    this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
-    this.constraintsByJobId  = new HashMap<>();
-    this.dependenciesByJobId = new HashMap<>();
+    this(jobDatabase, SignalExecutors.newCachedSingleThreadExecutor("signal-JobStorageJournal"));
+  }
+
+  @VisibleForTesting
+  FastJobStorage(@NonNull JobDatabase jobDatabase, @NonNull Executor journalExecutor) {
+    this.jobDatabase            = jobDatabase;
+    this.journal                = new JobDatabaseJournal(jobDatabase, journalExecutor);
+    this.jobsById               = new LinkedHashMap<>();
+    this.insertOrderById        = new HashMap<>();
+    this.jobsByQueue            = new HashMap<>();
+    this.instanceCountByFactory = new HashMap<>();
+    this.constraintsByJobId     = new HashMap<>();
+    this.dependenciesByJobId    = new HashMap<>();
+    this.dependentsByJobId      = new HashMap<>();
+    this.delayedCandidates      = new TreeSet<>(new RunTimeComparator());
+    this.readyCandidates        = new TreeSet<>(new CreateTimeComparator());
   }
 
   @Override
@@ -48,8 +85,6 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
-
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
       jobConstraints.add(constraintSpec);
@@ -57,210 +92,248 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (DependencySpec dependencySpec : dependencySpecs) {
-      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
-      jobDependencies.add(dependencySpec);
-      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependency(dependencySpec);
+    }
+
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
     }
   }
 
   @Override
-  public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
-    jobDatabase.insertJobs(fullSpecs);
+  public void insertJobs(@NonNull List<FullSpec> fullSpecs) {
+    boolean hasDurableJob = false;
+
+    synchronized (this) {
+      for (FullSpec fullSpec : fullSpecs) {
+        String jobId = fullSpec.getJobSpec().getId();
 
-    for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
-      constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+        journal.insert(fullSpec);
+        hasDurableJob |= fullSpec.getJobSpec().isDurable();
+
+        constraintsByJobId.put(jobId, new LinkedList<>(fullSpec.getConstraintSpecs()));
+
+        for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+          addDependency(dependencySpec);
+        }
+
+        addJob(fullSpec.getJobSpec());
+      }
+    }
+
+    if (hasDurableJob) {
+      journal.flush();
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobsById.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobsById.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    Optional<JobSpec> migrationJob = getMigrationJob();
+    JobSpec migrationJob = getMigrationJob();
 
-    if (migrationJob.isPresent() && !migrationJob.get().isRunning() && migrationJob.get().getNextRunAttemptTime() <= currentTime) {
-      return Collections.singletonList(migrationJob.get());
-    } else if (migrationJob.isPresent()) {
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
       return Collections.emptyList();
-    } else {
-      return Stream.of(jobs)
-                   .filterNot(JobSpec::isRunning)
-                   .filter(this::firstInQueue)
-                   .filter(j -> !dependenciesByJobId.containsKey(j.getId()) || dependenciesByJobId.get(j.getId()).isEmpty())
-                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                   .toList();
     }
-  }
 
-  private Optional<JobSpec> getMigrationJob() {
-    return Optional.fromNullable(Stream.of(jobs)
-                                       .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                       .filter(this::firstInQueue)
-                                       .findFirst()
-                                       .orElse(null));
-  }
+    while (!delayedCandidates.isEmpty() && delayedCandidates.first().getNextRunAttemptTime() <= currentTime) {
+      readyCandidates.add(delayedCandidates.pollFirst());
+    }
+
+    List<JobSpec> pending = new ArrayList<>(readyCandidates.size());
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+    for (JobSpec candidate : readyCandidates) {
+      if (candidate.getNextRunAttemptTime() <= currentTime) {
+        pending.add(candidate);
+      }
     }
 
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    return pending;
+  }
+
+  private @Nullable JobSpec getMigrationJob() {
+    TreeSet<JobSpec> migrationQueue = jobsByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
+    return migrationQueue != null ? migrationQueue.first() : null;
   }
 
   @Override
   public synchronized int getJobInstanceCount(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
-                       .filter(j -> j.getFactoryKey().equals(factoryKey))
-                       .count();
+    return Util.getOrDefault(instanceCountByFactory, factoryKey, 0);
+  }
+
+  @Override
+  public synchronized boolean isQueueEmpty(@NonNull String queueKey) {
+    return !jobsByQueue.containsKey(queueKey);
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    jobDatabase.updateJobRunningState(id, isRunning);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      existing.getSerializedData(),
-                                      isRunning);
-        iter.set(updated);
-      }
+    JobSpec existing = jobsById.get(id);
+
+    if (existing != null) {
+      replaceJob(existing, new JobSpec(existing.getId(),
+                                       existing.getFactoryKey(),
+                                       existing.getQueueKey(),
+                                       existing.getCreateTime(),
+                                       existing.getNextRunAttemptTime(),
+                                       existing.getRunAttempt(),
+                                       existing.getMaxAttempts(),
+                                       existing.getMaxBackoff(),
+                                       existing.getLifespan(),
+                                       existing.getMaxInstances(),
+                                       existing.getSerializedData(),
+                                       isRunning,
+                                       existing.isDurable(),
+                                       existing.getPriority()));
     }
   }
 
   @Override
-  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
-    jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      serializedData,
-                                      isRunning);
-        iter.set(updated);
+  public void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
+    boolean durable;
+
+    synchronized (this) {
+      JobSpec existing = jobsById.get(id);
+
+      if (existing == null) {
+        return;
       }
+
+      replaceJob(existing, new JobSpec(existing.getId(),
+                                       existing.getFactoryKey(),
+                                       existing.getQueueKey(),
+                                       existing.getCreateTime(),
+                                       nextRunAttemptTime,
+                                       runAttempt,
+                                       existing.getMaxAttempts(),
+                                       existing.getMaxBackoff(),
+                                       existing.getLifespan(),
+                                       existing.getMaxInstances(),
+                                       serializedData,
+                                       isRunning,
+                                       existing.isDurable(),
+                                       existing.getPriority()));
+
+      durable = existing.isDurable();
+    }
+
+    if (durable) {
+      journal.flush();
     }
   }
 
   @Override
   public synchronized void updateAllJobsToBePending() {
-    jobDatabase.updateAllJobsToBePending();
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getMaxBackoff(),
-                                     existing.getLifespan(),
-                                     existing.getMaxInstances(),
-                                     existing.getSerializedData(),
-                                     false);
-      iter.set(updated);
+    journal.flushAndWrite(jobDatabase::updateAllJobsToBePending);
+
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      if (existing.isRunning()) {
+        replaceJob(existing, new JobSpec(existing.getId(),
+                                         existing.getFactoryKey(),
+                                         existing.getQueueKey(),
+                                         existing.getCreateTime(),
+                                         existing.getNextRunAttemptTime(),
+                                         existing.getRunAttempt(),
+                                         existing.getMaxAttempts(),
+                                         existing.getMaxBackoff(),
+                                         existing.getLifespan(),
+                                         existing.getMaxInstances(),
+                                         existing.getSerializedData(),
+                                         false,
+                                         existing.isDurable(),
+                                         existing.getPriority()),
+                   false);
+      }
     }
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
-    jobDatabase.updateJobs(jobSpecs);
-
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+    journal.flushAndWrite(() -> jobDatabase.updateJobs(jobSpecs));
 
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobsById.get(update.getId());
 
-      if (update != null) {
-        iter.set(update);
+      if (existing != null) {
+        replaceJob(existing, update, false);
       }
     }
   }
 
   @Override
-  public synchronized void deleteJob(@NonNull String jobId) {
+  public void deleteJob(@NonNull String jobId) {
     deleteJobs(Collections.singletonList(jobId));
   }
 
   @Override
-  public synchronized void deleteJobs(@NonNull List<String> jobIds) {
-    jobDatabase.deleteJobs(jobIds);
+  public void deleteJobs(@NonNull List<String> jobIds) {
+    boolean hasDurableJob = false;
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    synchronized (this) {
+      for (String jobId : jobIds) {
+        JobSpec existing = jobsById.remove(jobId);
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
-      }
-    }
+        journal.delete(jobId, dependentsByJobId.containsKey(jobId));
+        hasDurableJob |= existing == null || existing.isDurable();
+
+        if (existing != null) {
+          unindexJob(existing);
+          insertOrderById.remove(jobId);
+        }
+
+        constraintsByJobId.remove(jobId);
+
+        List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+
+        if (dependencies != null) {
+          for (DependencySpec dependency : dependencies) {
+            Set<String> siblings = dependentsByJobId.get(dependency.getDependsOnJobId());
+
+            if (siblings != null) {
+              siblings.remove(jobId);
+              if (siblings.isEmpty()) {
+                dependentsByJobId.remove(dependency.getDependsOnJobId());
+              }
+            }
+          }
+        }
+
+        Set<String> dependents = dependentsByJobId.remove(jobId);
+
+        if (dependents != null) {
+          for (String dependentId : dependents) {
+            List<DependencySpec>     dependentDependencies = dependenciesByJobId.get(dependentId);
+            Iterator<DependencySpec> dependencyIter        = dependentDependencies.iterator();
 
-    for (String jobId : jobIds) {
-      constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
+            while (dependencyIter.hasNext()) {
+              if (dependencyIter.next().getDependsOnJobId().equals(jobId)) {
+                dependencyIter.remove();
+              }
+            }
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
+            JobSpec dependent = jobsById.get(dependentId);
 
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+            if (dependent != null) {
+              refreshCandidacy(dependent);
+            }
           }
         }
       }
     }
+
+    if (hasDurableJob) {
+      journal.flush();
+    }
   }
 
   @Override
@@ -284,7 +357,12 @@ public class FastJobStorage implements JobStorage {
     Set<String> activeJobIds;
 
     do {
-      activeJobIds = Stream.of(layer).map(DependencySpec::getJobId).collect(Collectors.toSet());
+      activeJobIds = new LinkedHashSet<>();
+
+      for (DependencySpec dependencySpec : layer) {
+        activeJobIds.add(dependencySpec.getJobId());
+      }
+
       layer.clear();
 
       for (String activeJobId : activeJobIds) {
@@ -298,18 +376,189 @@ public class FastJobStorage implements JobStorage {
   }
 
   private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-                 .map(Map.Entry::getValue)
-                 .flatMap(Stream::of)
-                 .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
-                 .toList();
+    Set<String> dependents = dependentsByJobId.get(jobSpecId);
+
+    if (dependents == null) {
+      return new LinkedList<>();
+    }
+
+    List<DependencySpec> layer = new LinkedList<>();
+
+    for (String dependentId : dependents) {
+      for (DependencySpec dependencySpec : dependenciesByJobId.get(dependentId)) {
+        if (dependencySpec.getDependsOnJobId().equals(jobSpecId)) {
+          layer.add(dependencySpec);
+        }
+      }
+    }
+
+    return layer;
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
                  .map(Map.Entry::getValue)
                  .flatMap(Stream::of)
                  .toList();
   }
+
+  private void addDependency(@NonNull DependencySpec dependencySpec) {
+    List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
+    jobDependencies.add(dependencySpec);
+    dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+
+    Set<String> dependents = Util.getOrDefault(dependentsByJobId, dependencySpec.getDependsOnJobId(), new LinkedHashSet<>());
+    dependents.add(dependencySpec.getJobId());
+    dependentsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+
+    JobSpec jobSpec = jobsById.get(dependencySpec.getJobId());
+
+    if (jobSpec != null) {
+      refreshCandidacy(jobSpec);
+    }
+  }
+
+  private void addJob(@NonNull JobSpec jobSpec) {
+    JobSpec existing = jobsById.get(jobSpec.getId());
+
+    if (existing != null) {
+      unindexJob(existing);
+    }
+
+    insertOrderById.put(jobSpec.getId(), nextInsertOrder++);
+    jobsById.put(jobSpec.getId(), jobSpec);
+    indexJob(jobSpec);
+  }
+
+  @Override
+  public @NonNull String getDebugInfo() {
+    return journal.getDebugInfo();
+  }
+
+  /**
+   * Writes any pending changes to disk.
+   */
+  @VisibleForTesting
+  void flush() {
+    journal.flush();
+  }
+
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    replaceJob(existing, updated, true);
+  }
+
+  /**
+   * Swaps out a job for an updated version of itself, keeping its position in every ordering.
+   *
+   * @param record Whether or not the change still needs to be recorded in the journal.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated, boolean record) {
+    unindexJob(existing);
+    jobsById.put(updated.getId(), updated);
+    indexJob(updated);
+
+    if (record) {
+      journal.update(updated);
+    }
+  }
+
+  private void indexJob(@NonNull JobSpec jobSpec) {
+    instanceCountByFactory.put(jobSpec.getFactoryKey(), getJobInstanceCount(jobSpec.getFactoryKey()) + 1);
+
+    if (jobSpec.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueue.get(jobSpec.getQueueKey());
+
+      if (queue == null) {
+        queue = new TreeSet<>(new CreateTimeComparator());
+        jobsByQueue.put(jobSpec.getQueueKey(), queue);
+      }
+
+      JobSpec previousHead = queue.isEmpty() ? null : queue.first();
+
+      queue.add(jobSpec);
+
+      if (previousHead != null && queue.first() != previousHead) {
+        removeCandidate(previousHead);
+      }
+    }
+
+    refreshCandidacy(jobSpec);
+  }
+
+  private void unindexJob(@NonNull JobSpec jobSpec) {
+    int instanceCount = getJobInstanceCount(jobSpec.getFactoryKey()) - 1;
+
+    if (instanceCount > 0) {
+      instanceCountByFactory.put(jobSpec.getFactoryKey(), instanceCount);
+    } else {
+      instanceCountByFactory.remove(jobSpec.getFactoryKey());
+    }
+
+    removeCandidate(jobSpec);
+
+    if (jobSpec.getQueueKey() != null) {
+      TreeSet<JobSpec> queue   = jobsByQueue.get(jobSpec.getQueueKey());
+      boolean          wasHead = queue.first() == jobSpec;
+
+      queue.remove(jobSpec);
+
+      if (queue.isEmpty()) {
+        jobsByQueue.remove(jobSpec.getQueueKey());
+      } else if (wasHead) {
+        refreshCandidacy(queue.first());
+      }
+    }
+  }
+
+  private void refreshCandidacy(@NonNull JobSpec jobSpec) {
+    removeCandidate(jobSpec);
+
+    if (isCandidate(jobSpec)) {
+      delayedCandidates.add(jobSpec);
+    }
+  }
+
+  private void removeCandidate(@NonNull JobSpec jobSpec) {
+    delayedCandidates.remove(jobSpec);
+    readyCandidates.remove(jobSpec);
+  }
+
+  private boolean isCandidate(@NonNull JobSpec jobSpec) {
+    if (jobSpec.isRunning()) {
+      return false;
+    }
+
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobSpec.getId());
+
+    if (dependencies != null && !dependencies.isEmpty()) {
+      return false;
+    }
+
+    return jobSpec.getQueueKey() == null || jobsByQueue.get(jobSpec.getQueueKey()).first() == jobSpec;
+  }
+
+  private int compareInsertOrder(@NonNull JobSpec j1, @NonNull JobSpec j2) {
+    return Long.compare(insertOrderById.get(j1.getId()), insertOrderById.get(j2.getId()));
+  }
+
+  /**
+   * Orders jobs by creation time, falling back to the order in which they were added, which
+   * matches a stable sort of the jobs as they were loaded and inserted.
+   */
+  private final class CreateTimeComparator implements Comparator<JobSpec> {
+    @Override
+    public int compare(JobSpec j1, JobSpec j2) {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      return result != 0 ? result : compareInsertOrder(j1, j2);
+    }
+  }
+
+  private final class RunTimeComparator implements Comparator<JobSpec> {
+    @Override
+    public int compare(JobSpec j1, JobSpec j2) {
+      int result = Long.compare(j1.getNextRunAttemptTime(), j2.getNextRunAttemptTime());
+      return result != 0 ? result : compareInsertOrder(j1, j2);
+    }
+  }
 }
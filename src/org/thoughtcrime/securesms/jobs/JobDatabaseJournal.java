@@ -0,0 +1,206 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.WorkerThread;
+
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.logging.Log;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Buffers writes to the {@link JobDatabase} so that they can be coalesced and written in a single
+ * transaction. For instance, a job that is inserted, marked as running and then deleted before the
+ * journal is flushed will never be written to disk at all.
+ *
+ * Pending mutations are flushed on a background thread at most {@link #FLUSH_INTERVAL} after they
+ * are recorded, or sooner once {@link #MAX_PENDING} have built up. Callers that need a mutation to
+ * be on disk before continuing can call {@link #flush()} themselves.
+ *
+ * Recording a mutation never waits on disk I/O. All writes to disk happen in the order that the
+ * mutations were recorded.
+ */
+final class JobDatabaseJournal {
+
+  private static final String TAG = Log.tag(JobDatabaseJournal.class);
+
+  private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+  private static final int  MAX_PENDING    = 250;
+
+  private final JobDatabase jobDatabase;
+  private final Executor    flushExecutor;
+  private final Object      writeLock;
+
+  private final Map<String, FullSpec> pendingInserts;
+  private final Map<String, JobSpec>  pendingUpdates;
+  private final Set<String>           pendingDeletes;
+
+  private boolean flushScheduled;
+  private long    mutationsRecorded;
+  private long    mutationsCoalesced;
+  private long    mutationsWritten;
+  private long    flushCount;
+
+  JobDatabaseJournal(@NonNull JobDatabase jobDatabase, @NonNull Executor flushExecutor) {
+    this.jobDatabase    = jobDatabase;
+    this.flushExecutor  = flushExecutor;
+    this.writeLock      = new Object();
+    this.pendingInserts = new LinkedHashMap<>();
+    this.pendingUpdates = new LinkedHashMap<>();
+    this.pendingDeletes = new LinkedHashSet<>();
+  }
+
+  synchronized void insert(@NonNull FullSpec fullSpec) {
+    mutationsRecorded++;
+    pendingInserts.put(fullSpec.getJobSpec().getId(), fullSpec);
+    scheduleFlush();
+  }
+
+  /**
+   * Records the latest version of a job. Only the most recent version of a job is ever written.
+   */
+  synchronized void update(@NonNull JobSpec jobSpec) {
+    mutationsRecorded++;
+
+    FullSpec pendingInsert = pendingInserts.get(jobSpec.getId());
+
+    if (pendingInsert != null) {
+      pendingInserts.put(jobSpec.getId(), new FullSpec(jobSpec, pendingInsert.getConstraintSpecs(), pendingInsert.getDependencySpecs()));
+      mutationsCoalesced++;
+    } else if (pendingUpdates.put(jobSpec.getId(), jobSpec) != null) {
+      mutationsCoalesced++;
+    }
+
+    scheduleFlush();
+  }
+
+  /**
+   * @param hasDependents Whether or not other jobs depend on this one. If so, the delete still has
+   *                      to be written to clear out their dependencies on disk, even if this job
+   *                      itself was never written.
+   */
+  synchronized void delete(@NonNull String jobId, boolean hasDependents) {
+    mutationsRecorded++;
+
+    if (pendingInserts.remove(jobId) != null) {
+      mutationsCoalesced++;
+
+      if (hasDependents) {
+        removePendingDependenciesOn(jobId);
+      } else {
+        mutationsCoalesced++;
+        return;
+      }
+    }
+
+    if (pendingUpdates.remove(jobId) != null) {
+      mutationsCoalesced++;
+    }
+
+    pendingDeletes.add(jobId);
+    scheduleFlush();
+  }
+
+  /**
+   * Writes all pending mutations to disk in a single transaction, blocking until they're written.
+   */
+  @WorkerThread
+  void flush() {
+    synchronized (writeLock) {
+      List<FullSpec> inserts;
+      List<JobSpec>  updates;
+      List<String>   deletes;
+
+      synchronized (this) {
+        if (pendingInserts.isEmpty() && pendingUpdates.isEmpty() && pendingDeletes.isEmpty()) {
+          return;
+        }
+
+        inserts = new ArrayList<>(pendingInserts.values());
+        updates = new ArrayList<>(pendingUpdates.values());
+        deletes = new ArrayList<>(pendingDeletes);
+
+        pendingInserts.clear();
+        pendingUpdates.clear();
+        pendingDeletes.clear();
+
+        mutationsWritten += inserts.size() + updates.size() + deletes.size();
+        flushCount++;
+      }
+
+      jobDatabase.writeBatch(inserts, updates, deletes);
+    }
+  }
+
+  /**
+   * Flushes any pending mutations and then performs the provided write, such that nothing else is
+   * written in between.
+   */
+  @WorkerThread
+  void flushAndWrite(@NonNull Runnable write) {
+    synchronized (writeLock) {
+      flush();
+      write.run();
+    }
+  }
+
+  synchronized @NonNull String getDebugInfo() {
+    return String.format(Locale.US, "Mutations recorded: %d, coalesced: %d, written: %d, flushes: %d, pending: %d",
+                         mutationsRecorded, mutationsCoalesced, mutationsWritten, flushCount, getPendingCount());
+  }
+
+  private void removePendingDependenciesOn(@NonNull String jobId) {
+    for (Map.Entry<String, FullSpec> entry : pendingInserts.entrySet()) {
+      FullSpec             fullSpec     = entry.getValue();
+      List<DependencySpec> dependencies = new ArrayList<>(fullSpec.getDependencySpecs().size());
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        if (!dependencySpec.getDependsOnJobId().equals(jobId)) {
+          dependencies.add(dependencySpec);
+        }
+      }
+
+      if (dependencies.size() != fullSpec.getDependencySpecs().size()) {
+        entry.setValue(new FullSpec(fullSpec.getJobSpec(), fullSpec.getConstraintSpecs(), dependencies));
+      }
+    }
+  }
+
+  private int getPendingCount() {
+    return pendingInserts.size() + pendingUpdates.size() + pendingDeletes.size();
+  }
+
+  private void scheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      flushExecutor.execute(this::flushAfterDelay);
+    } else if (getPendingCount() >= MAX_PENDING) {
+      notify();
+    }
+  }
+
+  private void flushAfterDelay() {
+    synchronized (this) {
+      try {
+        wait(FLUSH_INTERVAL);
+      } catch (InterruptedException e) {
+        Log.w(TAG, "Interrupted while waiting to flush.", e);
+      }
+
+      flushScheduled = false;
+    }
+
+    flush();
+  }
+}
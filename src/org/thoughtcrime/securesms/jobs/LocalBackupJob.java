@@ -2,11 +2,15 @@ package org.thoughtcrime.securesms.jobs;
 
 
 import android.Manifest;
+import android.content.Context;
+import android.net.Uri;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -29,6 +33,7 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.TimeUnit;
 
 public class LocalBackupJob extends BaseJob {
 
@@ -41,6 +46,8 @@ public class LocalBackupJob extends BaseJob {
   public static final String TEMP_BACKUP_FILE_PREFIX = ".backup";
   public static final String TEMP_BACKUP_FILE_SUFFIX = ".tmp";
 
+  private static final long FULL_BACKUP_INTERVAL = TimeUnit.DAYS.toMillis(7);
+
   public static void enqueue() {
     JobManager         jobManager = ApplicationDependencies.getJobManager();
     Parameters.Builder parameters = new Parameters.Builder()
@@ -100,23 +107,70 @@ public class LocalBackupJob extends BaseJob {
         throw new IOException("Backup password is null");
       }
 
-      File tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, StorageUtil.getBackupCacheDirectory(context));
+      File           tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, StorageUtil.getBackupCacheDirectory(context));
+      BackupManifest base     = getIncrementalBase(context);
 
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
+      BackupManifest manifest = FullBackupExporter.export(context,
+                                                          AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                                          DatabaseFactory.getBackupDatabase(context),
+                                                          tempFile,
+                                                          backupPassword,
+                                                          base);
 
       if (!tempFile.renameTo(backupFile)) {
         tempFile.delete();
         throw new IOException("Renaming temporary backup file failed!");
       }
 
+      if (base == null) {
+        setIncrementalBase(context, manifest, Uri.fromFile(backupFile));
+      }
+
       BackupUtil.deleteOldBackups();
     }
   }
 
+  /**
+   * @return The full backup to take an incremental backup against, or null if a full backup is due.
+   */
+  static @Nullable BackupManifest getIncrementalBase(@NonNull Context context) {
+    BackupManifest base = BackupManifest.get(context);
+
+    if (base == null || base.getLocation() == null) {
+      return null;
+    }
+
+    if (System.currentTimeMillis() - base.getTimestamp() > FULL_BACKUP_INTERVAL) {
+      Log.i(TAG, "Base backup is over a week old. Taking a full backup.");
+      return null;
+    }
+
+    try {
+      for (BackupUtil.BackupInfo backup : BackupUtil.getAllBackupsNewestFirst()) {
+        if (backup.getUri().toString().equals(base.getLocation())) {
+          Log.i(TAG, "Taking an incremental backup.");
+          return base;
+        }
+      }
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, e);
+    }
+
+    Log.i(TAG, "Base backup is missing. Taking a full backup.");
+    return null;
+  }
+
+  static void setIncrementalBase(@NonNull Context context, @NonNull BackupManifest manifest, @NonNull Uri location) {
+    manifest.setLocation(location.toString());
+
+    try {
+      BackupManifest.set(context, manifest);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to save the backup manifest. The next backup will be a full one.", e);
+      BackupManifest.clear(context);
+    }
+  }
+
   private static void deleteOldTemporaryBackups(@NonNull File backupDirectory) {
     for (File file : backupDirectory.listFiles()) {
       if (file.isFile()) {
@@ -7,6 +7,7 @@ import androidx.annotation.NonNull;
 import androidx.documentfile.provider.DocumentFile;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -96,11 +97,13 @@ public class LocalBackupJobApi29 extends BaseJob {
         throw new IOException("Backup password is null");
       }
 
-      FullBackupExporter.export(context,
+      BackupManifest base     = LocalBackupJob.getIncrementalBase(context);
+      BackupManifest manifest = FullBackupExporter.export(context,
               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
               DatabaseFactory.getBackupDatabase(context),
               temporaryFile,
-              backupPassword);
+              backupPassword,
+              base);
 
       if (!temporaryFile.renameTo(fileName)) {
         DocumentFile fileToCleanUp = backupDirectory.findFile(temporaryName);
@@ -110,6 +113,16 @@ public class LocalBackupJobApi29 extends BaseJob {
         throw new IOException("Renaming temporary backup file failed!");
       }
 
+      if (base == null) {
+        DocumentFile backupFile = backupDirectory.findFile(fileName);
+
+        if (backupFile != null) {
+          LocalBackupJob.setIncrementalBase(context, manifest, backupFile.getUri());
+        } else {
+          Log.w(TAG, "Couldn't find the backup after renaming it. The next backup will be a full one.");
+        }
+      }
+
       BackupUtil.deleteOldBackups();
     }
   }
@@ -70,6 +70,9 @@ import org.whispersystems.signalservice.internal.push.UnsupportedDataMessageExce
 import java.security.MessageDigest;
 import java.security.SecureRandom;
 import java.util.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class PushDecryptJob extends BaseJob {
 
@@ -77,9 +80,26 @@ public class PushDecryptJob extends BaseJob {
 
   public static final String TAG = PushDecryptJob.class.getSimpleName();
 
+  public static final String QUEUE = "__PUSH_DECRYPT_JOB__";
+
   private static final String KEY_MESSAGE_ID     = "message_id";
   private static final String KEY_SMS_MESSAGE_ID = "sms_message_id";
 
+  /**
+   * Sessions are loaded, advanced and stored without a lock of their own, so two messages from the
+   * same sender mustn't be decrypted at once, even from different queues. A message from a known
+   * sender holds the read lock and that sender's lock. A sealed sender message could be from
+   * anyone until it's decrypted, so it holds the write lock.
+   */
+  private static final ReentrantReadWriteLock DECRYPT_LOCK = new ReentrantReadWriteLock();
+  private static final Lock[]                 SENDER_LOCKS = new Lock[32];
+
+  static {
+    for (int i = 0; i < SENDER_LOCKS.length; i++) {
+      SENDER_LOCKS[i] = new ReentrantLock();
+    }
+  }
+
   private long messageId;
   private long smsMessageId;
 
@@ -88,8 +108,20 @@ public class PushDecryptJob extends BaseJob {
   }
 
   public PushDecryptJob(Context context, long pushMessageId, long smsMessageId) {
+    this(context, pushMessageId, smsMessageId, QUEUE);
+  }
+
+  /**
+   * @param queue Messages in the same queue are decrypted in the order they were received. See
+   *              {@link #queueFor(RecipientId)}.
+   */
+  public PushDecryptJob(Context context, long pushMessageId, @NonNull String queue) {
+    this(context, pushMessageId, -1, queue);
+  }
+
+  private PushDecryptJob(Context context, long pushMessageId, long smsMessageId, @NonNull String queue) {
     this(new Job.Parameters.Builder()
-                           .setQueue("__PUSH_DECRYPT_JOB__")
+                           .setQueue(queue)
                            .setMaxAttempts(Parameters.UNLIMITED)
                            .build(),
          pushMessageId,
@@ -97,6 +129,14 @@ public class PushDecryptJob extends BaseJob {
     setContext(context);
   }
 
+  /**
+   * @return The queue for messages from a known sender, so that messages from different senders
+   *         can be decrypted in parallel while each sender's stay in order.
+   */
+  public static @NonNull String queueFor(@NonNull RecipientId sender) {
+    return QUEUE + "::" + sender.serialize();
+  }
+
   private PushDecryptJob(@NonNull Job.Parameters parameters, long pushMessageId, long smsMessageId) {
     super(parameters);
 
@@ -141,6 +181,11 @@ public class PushDecryptJob extends BaseJob {
   public void onCanceled() {
   }
 
+  private @NonNull Lock getSenderLock(@NonNull SignalServiceEnvelope envelope) {
+    RecipientId sender = Recipient.externalPush(context, envelope.getSourceAddress()).getId();
+    return SENDER_LOCKS[Math.abs(sender.hashCode() % SENDER_LOCKS.length)];
+  }
+
   private boolean needsMigration() {
     return !IdentityKeyUtil.hasIdentityKey(context) || TextSecurePreferences.getNeedsSqlCipherMigration(context);
   }
@@ -167,7 +212,18 @@ public class PushDecryptJob extends BaseJob {
       SignalServiceAddress localAddress  = new SignalServiceAddress(Optional.of(TextSecurePreferences.getLocalUuid(context)), Optional.of(TextSecurePreferences.getLocalNumber(context)));
       SignalServiceCipher  cipher        = new SignalServiceCipher(localAddress, axolotlStore, UnidentifiedAccessUtil.getCertificateValidator());
 
-      SignalServiceContent content = cipher.decrypt(envelope);
+      SignalServiceContent content;
+      Lock                 decryptLock = envelope.hasSource() ? DECRYPT_LOCK.readLock() : DECRYPT_LOCK.writeLock();
+      Lock                 senderLock  = envelope.hasSource() ? getSenderLock(envelope) : null;
+
+      decryptLock.lock();
+      if (senderLock != null) senderLock.lock();
+      try {
+        content = cipher.decrypt(envelope);
+      } finally {
+        if (senderLock != null) senderLock.unlock();
+        decryptLock.unlock();
+      }
 
       if (shouldIgnore(content)) {
         Log.i(TAG, "Ignoring message.");
@@ -1099,11 +1155,15 @@ public class PushDecryptJob extends BaseJob {
   private void handleDeliveryReceipt(@NonNull SignalServiceContent content,
                                      @NonNull SignalServiceReceiptMessage message)
   {
+    RecipientId         sender = Recipient.externalPush(context, content.getSender()).getId();
+    List<SyncMessageId> ids    = new ArrayList<>(message.getTimestamps().size());
+
     for (long timestamp : message.getTimestamps()) {
       Log.i(TAG, String.format("Received encrypted delivery receipt: (XXXXX, %d)", timestamp));
-      DatabaseFactory.getMmsSmsDatabase(context)
-                     .incrementDeliveryReceiptCount(new SyncMessageId(Recipient.externalPush(context, content.getSender()).getId(), timestamp), System.currentTimeMillis());
+      ids.add(new SyncMessageId(sender, timestamp));
     }
+
+    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(ids, System.currentTimeMillis());
   }
 
   @SuppressLint("DefaultLocale")
@@ -1111,12 +1171,15 @@ public class PushDecryptJob extends BaseJob {
                                  @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
+      RecipientId         sender = Recipient.externalPush(context, content.getSender()).getId();
+      List<SyncMessageId> ids    = new ArrayList<>(message.getTimestamps().size());
+
       for (long timestamp : message.getTimestamps()) {
         Log.i(TAG, String.format("Received encrypted read receipt: (XXXXX, %d)", timestamp));
-
-        DatabaseFactory.getMmsSmsDatabase(context)
-                       .incrementReadReceiptCount(new SyncMessageId(Recipient.externalPush(context, content.getSender()).getId(), timestamp), content.getTimestamp());
+        ids.add(new SyncMessageId(sender, timestamp));
       }
+
+      DatabaseFactory.getMmsSmsDatabase(context).incrementReadReceiptCounts(ids, content.getTimestamp());
     }
   }
 
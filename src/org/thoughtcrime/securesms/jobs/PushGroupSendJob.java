@@ -73,6 +73,7 @@ public class PushGroupSendJob extends PushSendJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(Parameters.PRIORITY_HIGH)
                            .build(),
          messageId, filterRecipient, xMembers);
 
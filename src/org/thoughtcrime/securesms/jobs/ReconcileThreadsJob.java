@@ -0,0 +1,66 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.logging.Log;
+
+/**
+ * Threads keep their message counts and snippets up to date incrementally as messages are added,
+ * changed and removed. This counts every thread again from scratch, fixing anything that drifted.
+ */
+public class ReconcileThreadsJob extends BaseJob {
+
+  public static final String KEY = "ReconcileThreadsJob";
+
+  private static final String TAG = ReconcileThreadsJob.class.getSimpleName();
+
+  public ReconcileThreadsJob() {
+    this(new Job.Parameters.Builder()
+                           .setQueue(KEY)
+                           .setMaxInstances(1)
+                           .build());
+  }
+
+  private ReconcileThreadsJob(@NonNull Job.Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return Data.EMPTY;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  public void onRun() {
+    long startTime = System.currentTimeMillis();
+
+    DatabaseFactory.getThreadDatabase(context).reconcile();
+
+    Log.i(TAG, "Reconciled threads in " + (System.currentTimeMillis() - startTime) + " ms.");
+  }
+
+  @Override
+  public boolean onShouldRetry(@NonNull Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to reconcile threads.");
+  }
+
+  public static final class Factory implements Job.Factory<ReconcileThreadsJob> {
+    @Override
+    public @NonNull ReconcileThreadsJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new ReconcileThreadsJob(parameters);
+    }
+  }
+}
@@ -41,6 +41,7 @@ public class SendDeliveryReceiptJob extends BaseJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setDurable(false)
                            .build(),
          recipientId,
          messageId,
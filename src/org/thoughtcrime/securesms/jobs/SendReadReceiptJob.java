@@ -46,6 +46,8 @@ public class SendReadReceiptJob extends BaseJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(Parameters.PRIORITY_HIGH)
+                           .setDurable(false)
                            .build(),
          recipientId,
          messageIds,
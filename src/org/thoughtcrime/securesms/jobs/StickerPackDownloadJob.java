@@ -45,6 +45,7 @@ public class StickerPackDownloadJob extends BaseJob {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setQueue("StickerPackDownloadJob_" + packKey)
+                           .setPriority(Parameters.PRIORITY_LOW)
                            .build(),
         packId,
         packKey,
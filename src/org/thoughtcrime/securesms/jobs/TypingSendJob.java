@@ -42,6 +42,8 @@ public class TypingSendJob extends BaseJob {
                            .setQueue("TYPING_" + threadId)
                            .setMaxAttempts(1)
                            .setLifespan(TimeUnit.SECONDS.toMillis(5))
+                           .setPriority(Parameters.PRIORITY_HIGH)
+                           .setDurable(false)
                            .build(),
          threadId,
          typing);
@@ -0,0 +1,145 @@
+package org.thoughtcrime.securesms.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * A fixed-size ring of log entries shared by any number of logging threads and a single writer.
+ * Appending only copies an entry's fields into a preallocated slot, so nothing is allocated or
+ * formatted on the caller's thread. Callers only wait if the writer falls an entire ring behind.
+ *
+ * The writer is expected to run {@link #awaitFlush(long)} followed by {@link #drainTo(Entry[])}
+ * whenever {@link #append(long, String, String, String, Throwable)} asks it to.
+ */
+final class LogBuffer {
+
+  private final Entry[] slots;
+  private final int     flushThreshold;
+
+  private int     head;
+  private int     size;
+  private boolean flushScheduled;
+  private boolean flushRequested;
+
+  /**
+   * @param flushThreshold The number of buffered entries at which the writer is woken up without
+   *                       waiting out the rest of its delay.
+   */
+  LogBuffer(int capacity, int flushThreshold) {
+    this.slots          = newEntries(capacity);
+    this.flushThreshold = flushThreshold;
+  }
+
+  static @NonNull Entry[] newEntries(int count) {
+    Entry[] entries = new Entry[count];
+
+    for (int i = 0; i < count; i++) {
+      entries[i] = new Entry();
+    }
+
+    return entries;
+  }
+
+  /**
+   * @return True if a flush needs to be scheduled on the writer. False if one is already pending.
+   */
+  synchronized boolean append(long time, @NonNull String level, @Nullable String tag, @Nullable String message, @Nullable Throwable throwable) {
+    while (size == slots.length) {
+      flushRequested = true;
+      notifyAll();
+
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+
+    slots[(head + size) % slots.length].set(time, level, tag, message, throwable);
+    size++;
+
+    if (size >= flushThreshold && !flushRequested) {
+      flushRequested = true;
+      notifyAll();
+    }
+
+    if (!flushScheduled) {
+      flushScheduled = true;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * Wakes up a writer that's waiting in {@link #awaitFlush(long)}, or keeps the next one from
+   * waiting at all.
+   */
+  synchronized void requestFlush() {
+    flushRequested = true;
+    notifyAll();
+  }
+
+  /**
+   * Waits until either the delay passes or a flush is requested. Entries appended after this
+   * returns will schedule another flush.
+   */
+  synchronized void awaitFlush(long delay) {
+    if (!flushRequested) {
+      try {
+        wait(delay);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    flushScheduled = false;
+    flushRequested = false;
+  }
+
+  /**
+   * Moves buffered entries, oldest first, into the provided entries.
+   *
+   * @return The number of entries that were moved.
+   */
+  synchronized int drainTo(@NonNull Entry[] out) {
+    int count = Math.min(size, out.length);
+
+    for (int i = 0; i < count; i++) {
+      Entry slot = slots[(head + i) % slots.length];
+
+      out[i].set(slot.time, slot.level, slot.tag, slot.message, slot.throwable);
+      slot.clear();
+    }
+
+    head  = (head + count) % slots.length;
+    size -= count;
+
+    if (count > 0) {
+      notifyAll();
+    }
+
+    return count;
+  }
+
+  static final class Entry {
+    long      time;
+    String    level;
+    String    tag;
+    String    message;
+    Throwable throwable;
+
+    void set(long time, @Nullable String level, @Nullable String tag, @Nullable String message, @Nullable Throwable throwable) {
+      this.time      = time;
+      this.level     = level;
+      this.tag       = tag;
+      this.message   = message;
+      this.throwable = throwable;
+    }
+
+    void clear() {
+      set(0, null, null, null, null);
+    }
+  }
+}
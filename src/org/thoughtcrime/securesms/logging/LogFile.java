@@ -1,64 +1,164 @@
 package org.thoughtcrime.securesms.logging;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+/**
+ * Log files are written as a short header followed by a series of blocks, each holding any number
+ * of newline-terminated entries:
+ *
+ * [12 byte IV][4 byte ciphertext length][AES/GCM ciphertext + tag]
+ *
+ * Files without the header were written before blocks existed, and hold one record per entry:
+ *
+ * [16 byte IV][4 byte ciphertext length][AES/CBC ciphertext]
+ *
+ * New entries are only ever written in the block format, but both can be read.
+ */
 class LogFile {
 
+  private static final byte[] BLOCK_FORMAT_HEADER = { 'S', 'L', 'O', 'G', 'B', 'L', 'K', '1' };
+
+  static final int HEADER_LENGTH = BLOCK_FORMAT_HEADER.length;
+
+  private static final int GCM_IV_LENGTH    = 12;
+  private static final int GCM_TAG_BITS     = 128;
+  private static final int MAX_BLOCK_LENGTH = 4 * 1024 * 1024;
+
+  /**
+   * @return True if new blocks can be appended to the file, meaning it's either empty or already
+   *         in the block format.
+   */
+  static boolean canAppendBlocks(@NonNull File file) throws IOException {
+    if (!file.exists() || file.length() == 0) {
+      return true;
+    }
+
+    try (InputStream inputStream = new FileInputStream(file)) {
+      return hasBlockFormatHeader(inputStream);
+    }
+  }
+
+  private static boolean hasBlockFormatHeader(@NonNull InputStream inputStream) throws IOException {
+    byte[] header = new byte[BLOCK_FORMAT_HEADER.length];
+
+    try {
+      Util.readFully(inputStream, header);
+    } catch (EOFException e) {
+      return false;
+    }
+
+    return Arrays.equals(header, BLOCK_FORMAT_HEADER);
+  }
+
+  /**
+   * Cuts a block format file off after the last block that can be read. A block that was only
+   * partially written when the process died would otherwise end the file for readers, hiding
+   * every block appended after it. Must be called before the file is opened for writing.
+   */
+  static void truncateUnreadableTail(@NonNull byte[] secret, @NonNull File file) throws IOException {
+    if (!file.exists() || file.length() == 0) {
+      return;
+    }
+
+    long readableLength;
+
+    try (Reader reader = new Reader(secret, file)) {
+      if (!reader.isBlockFormat()) {
+        return;
+      }
+
+      while (reader.readBlockText() != null) {
+        // Skip to the end of the last block that authenticates
+      }
+
+      readableLength = reader.getPosition();
+    }
+
+    if (readableLength < file.length()) {
+      try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+        randomAccessFile.setLength(readableLength);
+      }
+    }
+  }
+
   public static class Writer {
 
-    private final byte[]        ivBuffer         = new byte[16];
+    private final byte[]        ivBuffer         = new byte[GCM_IV_LENGTH];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
 
-    private final byte[]               secret;
+    private final SecretKeySpec        key;
     private final File                 file;
+    private final SecureRandom         random;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
+    /**
+     * The file must be empty or already in the block format. See {@link #canAppendBlocks(File)}.
+     */
     Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret       = secret;
+      boolean isNew = file.length() == 0;
+
+      this.key          = new SecretKeySpec(secret, "AES");
       this.file         = file;
+      this.random       = new SecureRandom();
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
 
       try {
-        this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
       } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
+
+      if (isNew) {
+        outputStream.write(BLOCK_FORMAT_HEADER);
+        outputStream.flush();
+      }
     }
 
-    void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+    /**
+     * Encrypts the first {@code length} bytes of the plaintext as a single block and flushes it to
+     * disk. The plaintext should be a series of newline-terminated entries.
+     */
+    void writeBlock(@NonNull byte[] plaintext, int length) throws IOException {
+      random.nextBytes(ivBuffer);
 
-      byte[] plaintext = entry.getBytes();
       try {
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, ivBuffer));
 
-        int    cipherLength = cipher.getOutputSize(plaintext.length);
+        int    cipherLength = cipher.getOutputSize(length);
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
-        cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
+        cipherLength = cipher.doFinal(plaintext, 0, length, ciphertext);
 
         outputStream.write(ivBuffer);
         outputStream.write(Conversions.intToByteArray(cipherLength));
@@ -79,36 +179,160 @@ class LogFile {
     }
   }
 
-  static class Reader {
+  static class Reader implements Closeable {
 
-    private final byte[]        ivBuffer         = new byte[16];
     private final byte[]        intBuffer        = new byte[4];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final GrowingBuffer plaintextBuffer  = new GrowingBuffer();
 
-    private final byte[]              secret;
-    private final Cipher              cipher;
-    private final BufferedInputStream inputStream;
+    private final SecretKeySpec   key;
+    private final Cipher          cipher;
+    private final FileInputStream fileInputStream;
+    private final boolean         blockFormat;
+    private final byte[]          ivBuffer;
+
+    private BufferedInputStream inputStream;
+    private long                position;
+    private String              block;
+    private int                 blockPosition;
 
     Reader(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret      = secret;
-      this.inputStream = new BufferedInputStream(new FileInputStream(file));
+      this.key             = new SecretKeySpec(secret, "AES");
+      this.fileInputStream = new FileInputStream(file);
+      this.inputStream     = new BufferedInputStream(fileInputStream);
+
+      inputStream.mark(BLOCK_FORMAT_HEADER.length);
+      this.blockFormat = hasBlockFormatHeader(inputStream);
+
+      if (blockFormat) {
+        position = BLOCK_FORMAT_HEADER.length;
+      } else {
+        inputStream.reset();
+      }
+
+      this.ivBuffer = new byte[blockFormat ? GCM_IV_LENGTH : 16];
 
       try {
-        this.cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        this.cipher = Cipher.getInstance(blockFormat ? "AES/GCM/NoPadding" : "AES/CBC/PKCS5Padding");
       } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
-    String readAll() throws IOException {
-      StringBuilder builder = new StringBuilder();
+    /**
+     * Reads entries one at a time, decrypting blocks as they're needed, so that at most one block is
+     * in memory at once.
+     *
+     * @return The next entry without its trailing newline, or null at the end of the file.
+     */
+    @Nullable String readLine() throws IOException {
+      if (!blockFormat) {
+        return readEntry();
+      }
+
+      while (block == null || blockPosition >= block.length()) {
+        block         = readBlock();
+        blockPosition = 0;
+
+        if (block == null) {
+          return null;
+        }
+      }
+
+      int end = block.indexOf('\n', blockPosition);
+
+      if (end < 0) {
+        end = block.length();
+      }
+
+      String line = block.substring(blockPosition, end);
+      blockPosition = end + 1;
+
+      return line;
+    }
+
+    /**
+     * Reads the next block, or for files in the old format the next entry, as newline-terminated
+     * entries.
+     *
+     * @return The entries, or null at the end of the file.
+     */
+    @Nullable String readBlockText() throws IOException {
+      block = null;
 
-      String entry;
-      while ((entry = readEntry()) != null) {
-        builder.append(entry).append('\n');
+      if (blockFormat) {
+        return readBlock();
       }
 
-      return builder.toString();
+      String entry = readEntry();
+      return entry != null ? entry + '\n' : null;
+    }
+
+    boolean isBlockFormat() {
+      return blockFormat;
+    }
+
+    /**
+     * @return The offset in the file of the next block, or for files in the old format the next
+     *         entry.
+     */
+    long getPosition() {
+      return position;
+    }
+
+    /**
+     * Moves to an offset previously returned by {@link #getPosition()}.
+     */
+    void seek(long position) throws IOException {
+      fileInputStream.getChannel().position(position);
+
+      this.inputStream   = new BufferedInputStream(fileInputStream);
+      this.position      = position;
+      this.block         = null;
+      this.blockPosition = 0;
+    }
+
+    @Override
+    public void close() {
+      Util.close(inputStream);
+    }
+
+    /**
+     * @return The entries in the next block, or null at the end of the file. A block that was only
+     *         partially written or fails authentication is treated as the end of the file.
+     */
+    private @Nullable String readBlock() throws IOException {
+      try {
+        Util.readFully(inputStream, ivBuffer);
+        Util.readFully(inputStream, intBuffer);
+
+        int length = Conversions.byteArrayToInt(intBuffer);
+
+        if (length < 0 || length > MAX_BLOCK_LENGTH) {
+          return null;
+        }
+
+        byte[] ciphertext = ciphertextBuffer.get(length);
+
+        Util.readFully(inputStream, ciphertext, length);
+
+        try {
+          cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, ivBuffer));
+
+          byte[] plaintext       = plaintextBuffer.get(cipher.getOutputSize(length));
+          int    plaintextLength = cipher.doFinal(ciphertext, 0, length, plaintext);
+
+          position += ivBuffer.length + intBuffer.length + length;
+
+          return new String(plaintext, 0, plaintextLength, StandardCharsets.UTF_8);
+        } catch (AEADBadTagException e) {
+          return null;
+        } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
+          throw new AssertionError(e);
+        }
+      } catch (EOFException e) {
+        return null;
+      }
     }
 
     private String readEntry() throws IOException {
@@ -120,9 +344,10 @@ class LogFile {
         byte[] ciphertext = ciphertextBuffer.get(length);
 
         Util.readFully(inputStream, ciphertext, length);
+        position += ivBuffer.length + intBuffer.length + length;
 
         try {
-          cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+          cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(ivBuffer));
           byte[] plaintext = cipher.doFinal(ciphertext, 0, length);
 
           return new String(plaintext);
@@ -0,0 +1,352 @@
+package org.thoughtcrime.securesms.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A sidecar file kept next to each block format {@link LogFile}, with one fixed-size record per
+ * block describing where it is, the times of its first and last entries, which levels it holds and
+ * a small bloom filter of its tags. Searches use it to decrypt only the blocks that might match.
+ *
+ * Each record is encrypted on its own with the log's secret, the same way as a block:
+ *
+ * [12 byte IV][AES/GCM ciphertext + tag]
+ *
+ * so records keep a fixed size and the last one can be read without the rest. A log file with
+ * blocks that aren't in its index, such as one written before indexes existed, or whose index
+ * can't be decrypted, has no index at all, and searches fall back to reading all of it.
+ */
+final class LogIndex {
+
+  static final String SUFFIX = ".idx";
+
+  private static final int GCM_IV_LENGTH  = 12;
+  private static final int GCM_TAG_BITS   = 128;
+  private static final int PLAINTEXT_SIZE = 8 + 4 + 8 + 8 + 4 + 8 + 8;
+  private static final int RECORD_SIZE    = GCM_IV_LENGTH + PLAINTEXT_SIZE + GCM_TAG_BITS / 8;
+
+  private LogIndex() {}
+
+  static @NonNull File fileFor(@NonNull File log) {
+    return new File(log.getPath() + SUFFIX);
+  }
+
+  static boolean isIndexFile(@NonNull File file) {
+    return file.getName().endsWith(SUFFIX);
+  }
+
+  static void delete(@NonNull File log) {
+    File index = fileFor(log);
+
+    if (index.exists()) {
+      index.delete();
+    }
+  }
+
+  /**
+   * @return Every record in the log's index, in the order the blocks were written. Empty if the log
+   *         has no index, or an index that can't be decrypted, in which case it's deleted.
+   */
+  static @NonNull List<Record> read(@NonNull byte[] secret, @NonNull File log) throws IOException {
+    File index = fileFor(log);
+
+    if (!index.exists()) {
+      return Collections.emptyList();
+    }
+
+    RecordCipher recordCipher = new RecordCipher(secret);
+    List<Record> records      = new ArrayList<>((int) (index.length() / RECORD_SIZE));
+    byte[]       record       = new byte[RECORD_SIZE];
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(index))) {
+      for (long i = index.length() / RECORD_SIZE; i > 0; i--) {
+        Util.readFully(in, record);
+
+        Record decrypted = recordCipher.decrypt(record);
+
+        if (decrypted == null) {
+          delete(log);
+          return Collections.emptyList();
+        }
+
+        records.add(decrypted);
+      }
+    } catch (EOFException e) {
+      // The index shrank while being read
+    }
+
+    return records;
+  }
+
+  static final class Record {
+    final long offset;
+    final int  length;
+    final long firstTime;
+    final long lastTime;
+    final int  levelMask;
+    final long tagBitsLow;
+    final long tagBitsHigh;
+
+    private Record(long offset, int length, long firstTime, long lastTime, int levelMask, long tagBitsLow, long tagBitsHigh) {
+      this.offset      = offset;
+      this.length      = length;
+      this.firstTime   = firstTime;
+      this.lastTime    = lastTime;
+      this.levelMask   = levelMask;
+      this.tagBitsLow  = tagBitsLow;
+      this.tagBitsHigh = tagBitsHigh;
+    }
+
+    /**
+     * @return False if no entry in the block can match the query. True doesn't guarantee a match.
+     */
+    boolean mayMatch(@NonNull LogQuery query) {
+      if (lastTime < query.getStartTime() || firstTime > query.getEndTime()) {
+        return false;
+      }
+
+      if ((levelMask & query.getLevelMask()) == 0) {
+        return false;
+      }
+
+      if (query.getTags().isEmpty()) {
+        return true;
+      }
+
+      for (String tag : query.getTags()) {
+        int hash = hash(tag);
+
+        if (isTagBitSet(hash & 127) && isTagBitSet((hash >>> 7) & 127)) {
+          return true;
+        }
+      }
+
+      return false;
+    }
+
+    /**
+     * @return True if every entry in the block is within the query's time range.
+     */
+    boolean isWithinTimeRange(@NonNull LogQuery query) {
+      return firstTime >= query.getStartTime() && lastTime <= query.getEndTime();
+    }
+
+    private boolean isTagBitSet(int bit) {
+      return bit < 64 ? (tagBitsLow & (1L << bit)) != 0 : (tagBitsHigh & (1L << (bit - 64))) != 0;
+    }
+  }
+
+  /**
+   * Collects what the index needs to know about a block while its entries are being written.
+   */
+  static final class BlockStats {
+    private long firstTime;
+    private long lastTime;
+    private int  levelMask;
+    private long tagBitsLow;
+    private long tagBitsHigh;
+
+    BlockStats() {
+      reset();
+    }
+
+    void add(long time, @Nullable String level, @Nullable String tag) {
+      firstTime = Math.min(firstTime, time);
+      lastTime  = Math.max(lastTime, time);
+
+      int levelIndex = level != null && level.length() == 1 ? LogQuery.LEVELS.indexOf(level.charAt(0)) : -1;
+      levelMask |= levelIndex >= 0 ? 1 << levelIndex : (1 << LogQuery.LEVELS.length()) - 1;
+
+      int hash = hash(String.valueOf(tag));
+      setTagBit(hash & 127);
+      setTagBit((hash >>> 7) & 127);
+    }
+
+    void reset() {
+      firstTime   = Long.MAX_VALUE;
+      lastTime    = Long.MIN_VALUE;
+      levelMask   = 0;
+      tagBitsLow  = 0;
+      tagBitsHigh = 0;
+    }
+
+    private void setTagBit(int bit) {
+      if (bit < 64) tagBitsLow  |= 1L << bit;
+      else          tagBitsHigh |= 1L << (bit - 64);
+    }
+  }
+
+  static final class Writer {
+
+    private final RecordCipher         recordCipher;
+    private final BufferedOutputStream outputStream;
+
+    private Writer(@NonNull RecordCipher recordCipher, @NonNull File index) throws IOException {
+      this.recordCipher = recordCipher;
+      this.outputStream = new BufferedOutputStream(new FileOutputStream(index, true));
+    }
+
+    /**
+     * Opens the index for a log that's about to be appended to. Must be called before anything is
+     * written to the log.
+     *
+     * @return The writer, or null if the log has blocks that aren't in its index, in which case
+     *         any existing index is deleted. An index that can't be decrypted counts as missing.
+     */
+    static @Nullable Writer open(@NonNull byte[] secret, @NonNull File log, long headerLength) throws IOException {
+      RecordCipher recordCipher = new RecordCipher(secret);
+      File         index        = fileFor(log);
+      long         logLength    = log.exists() ? log.length() : 0;
+
+      if (logLength == 0) {
+        delete(log);
+        return new Writer(recordCipher, index);
+      }
+
+      long indexLength = index.exists() ? index.length() : 0;
+
+      if (indexLength % RECORD_SIZE != 0 || getIndexedLength(recordCipher, index, indexLength, headerLength) != logLength) {
+        delete(log);
+        return null;
+      }
+
+      return new Writer(recordCipher, index);
+    }
+
+    /**
+     * @return The offset just past the last block in the index, or -1 if its record can't be
+     *         decrypted.
+     */
+    private static long getIndexedLength(@NonNull RecordCipher recordCipher, @NonNull File index, long indexLength, long headerLength) throws IOException {
+      if (indexLength == 0) {
+        return headerLength;
+      }
+
+      byte[] record = new byte[RECORD_SIZE];
+
+      try (RandomAccessFile file = new RandomAccessFile(index, "r")) {
+        file.seek(indexLength - RECORD_SIZE);
+        file.readFully(record);
+      }
+
+      Record last = recordCipher.decrypt(record);
+
+      return last != null ? last.offset + last.length : -1;
+    }
+
+    /**
+     * Records a block that has been written to the log.
+     */
+    void append(long offset, int length, @NonNull BlockStats stats) throws IOException {
+      outputStream.write(recordCipher.encrypt(offset, length, stats));
+      outputStream.flush();
+    }
+
+    void close() {
+      Util.close(outputStream);
+    }
+  }
+
+  private static final class RecordCipher {
+
+    private final byte[] plaintext = new byte[PLAINTEXT_SIZE];
+
+    private final SecretKeySpec key;
+    private final SecureRandom  random;
+    private final Cipher        cipher;
+
+    RecordCipher(@NonNull byte[] secret) {
+      this.key    = new SecretKeySpec(secret, "AES");
+      this.random = new SecureRandom();
+
+      try {
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @NonNull byte[] encrypt(long offset, int length, @NonNull BlockStats stats) {
+      byte[] record = new byte[RECORD_SIZE];
+
+      random.nextBytes(record);
+
+      ByteBuffer.wrap(plaintext)
+                .putLong(offset)
+                .putInt(length)
+                .putLong(stats.firstTime)
+                .putLong(stats.lastTime)
+                .putInt(stats.levelMask)
+                .putLong(stats.tagBitsLow)
+                .putLong(stats.tagBitsHigh);
+
+      try {
+        cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, record, 0, GCM_IV_LENGTH));
+        cipher.doFinal(plaintext, 0, PLAINTEXT_SIZE, record, GCM_IV_LENGTH);
+      } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
+        throw new AssertionError(e);
+      }
+
+      return record;
+    }
+
+    /**
+     * @return The record, or null if it fails authentication.
+     */
+    @Nullable Record decrypt(@NonNull byte[] record) {
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_BITS, record, 0, GCM_IV_LENGTH));
+        cipher.doFinal(record, GCM_IV_LENGTH, RECORD_SIZE - GCM_IV_LENGTH, plaintext, 0);
+      } catch (AEADBadTagException e) {
+        return null;
+      } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
+        throw new AssertionError(e);
+      }
+
+      ByteBuffer buffer = ByteBuffer.wrap(plaintext);
+
+      return new Record(buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getLong(), buffer.getLong());
+    }
+  }
+
+  private static int hash(@NonNull String tag) {
+    int hash = tag.hashCode();
+
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    hash ^= hash >>> 16;
+
+    return hash;
+  }
+}
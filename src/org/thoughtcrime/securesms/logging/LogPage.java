@@ -0,0 +1,47 @@
+package org.thoughtcrime.securesms.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of log lines matching a {@link LogQuery}, oldest first.
+ */
+public final class LogPage {
+
+  private final List<String> lines;
+  private final Cursor       next;
+
+  LogPage(@NonNull List<String> lines, @Nullable Cursor next) {
+    this.lines = Collections.unmodifiableList(lines);
+    this.next  = next;
+  }
+
+  public @NonNull List<String> getLines() {
+    return lines;
+  }
+
+  /**
+   * @return Where the next page starts, or null if this is the last page.
+   */
+  public @Nullable Cursor getNext() {
+    return next;
+  }
+
+  /**
+   * A position in the persisted logs, just after the last line of a page.
+   */
+  public static final class Cursor {
+    final String fileName;
+    final long   position;
+    final int    skipLines;
+
+    Cursor(@NonNull String fileName, long position, int skipLines) {
+      this.fileName  = fileName;
+      this.position  = position;
+      this.skipLines = skipLines;
+    }
+  }
+}
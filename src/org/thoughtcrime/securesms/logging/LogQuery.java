@@ -0,0 +1,172 @@
+package org.thoughtcrime.securesms.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Describes which persisted log lines to return from
+ * {@link PersistentLogger#queryLogs(LogQuery, LogPage.Cursor, int)}.
+ */
+public final class LogQuery {
+
+  /**
+   * Every level, from least to most severe.
+   */
+  static final String LEVELS = "VDIWEA";
+
+  private final long        startTime;
+  private final long        endTime;
+  private final Set<String> tags;
+  private final int         minimumLevel;
+
+  private LogQuery(@NonNull Builder builder) {
+    this.startTime    = builder.startTime;
+    this.endTime      = builder.endTime;
+    this.tags         = Collections.unmodifiableSet(new HashSet<>(builder.tags));
+    this.minimumLevel = builder.minimumLevel;
+  }
+
+  long getStartTime() {
+    return startTime;
+  }
+
+  long getEndTime() {
+    return endTime;
+  }
+
+  /**
+   * @return The tags to match, or an empty set to match any tag.
+   */
+  @NonNull Set<String> getTags() {
+    return tags;
+  }
+
+  /**
+   * @return A mask of the {@link #LEVELS} to match.
+   */
+  int getLevelMask() {
+    return ~((1 << minimumLevel) - 1) & ((1 << LEVELS.length()) - 1);
+  }
+
+  boolean hasTimeRange() {
+    return startTime != Long.MIN_VALUE || endTime != Long.MAX_VALUE;
+  }
+
+  /**
+   * Matches a single formatted log line. Lines that can't be parsed, such as the continuation of a
+   * message that contained a newline, are reported as {@link Match#UNKNOWN}.
+   *
+   * @param checkTime Whether the line's time needs to be checked, which can be skipped when the
+   *                  whole block is already known to be within range.
+   */
+  @NonNull Match match(@NonNull String line, @NonNull SimpleDateFormat dateFormat, boolean checkTime) {
+    // <date> <time> <zone> <level> <tag>: <message>
+    int zoneEnd  = nthIndexOf(line, ' ', 3);
+    int levelEnd = zoneEnd >= 0 ? line.indexOf(' ', zoneEnd + 1) : -1;
+    int tagEnd   = levelEnd >= 0 ? line.indexOf(": ", levelEnd + 1) : -1;
+
+    if (tagEnd < 0 || levelEnd - zoneEnd != 2) {
+      return Match.UNKNOWN;
+    }
+
+    int level = LEVELS.indexOf(line.charAt(zoneEnd + 1));
+
+    if (level < 0) {
+      return Match.UNKNOWN;
+    }
+
+    if (level < minimumLevel) {
+      return Match.NO;
+    }
+
+    if (!tags.isEmpty() && !tags.contains(line.substring(levelEnd + 1, tagEnd))) {
+      return Match.NO;
+    }
+
+    if (checkTime && hasTimeRange()) {
+      Date date;
+
+      try {
+        date = dateFormat.parse(line.substring(0, zoneEnd));
+      } catch (ParseException e) {
+        return Match.UNKNOWN;
+      }
+
+      if (date == null || date.getTime() < startTime || date.getTime() > endTime) {
+        return Match.NO;
+      }
+    }
+
+    return Match.YES;
+  }
+
+  private static int nthIndexOf(@NonNull String string, char c, int n) {
+    int index = -1;
+
+    for (int i = 0; i < n; i++) {
+      index = string.indexOf(c, index + 1);
+
+      if (index < 0) {
+        return -1;
+      }
+    }
+
+    return index;
+  }
+
+  enum Match {
+    YES, NO, UNKNOWN
+  }
+
+  public static final class Builder {
+
+    private final Set<String> tags = new HashSet<>();
+
+    private long startTime    = Long.MIN_VALUE;
+    private long endTime      = Long.MAX_VALUE;
+    private int  minimumLevel = 0;
+
+    /**
+     * Only match lines logged between the two times, inclusive.
+     */
+    public @NonNull Builder setTimeRange(long startTime, long endTime) {
+      this.startTime = startTime;
+      this.endTime   = endTime;
+      return this;
+    }
+
+    /**
+     * Only match lines with one of the added tags. If none are added, any tag matches.
+     */
+    public @NonNull Builder addTag(@NonNull String tag) {
+      tags.add(tag);
+      return this;
+    }
+
+    /**
+     * Only match lines at or above the provided level, where the level is one of "V", "D", "I",
+     * "W", "E" or "A". Null matches every level.
+     */
+    public @NonNull Builder setMinimumLevel(@Nullable String level) {
+      if (level == null) {
+        this.minimumLevel = 0;
+      } else if (level.length() == 1 && LEVELS.contains(level)) {
+        this.minimumLevel = LEVELS.indexOf(level);
+      } else {
+        throw new IllegalArgumentException("Unknown level: " + level);
+      }
+      return this;
+    }
+
+    public @NonNull LogQuery build() {
+      return new LogQuery(this);
+    }
+  }
+}
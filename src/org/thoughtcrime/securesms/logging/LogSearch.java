@@ -0,0 +1,168 @@
+package org.thoughtcrime.securesms.logging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the lines in a set of log files that match a {@link LogQuery}, a page at a time.
+ *
+ * Where a file has a {@link LogIndex}, only the blocks that might match are decrypted, and the
+ * time of each line is only parsed for blocks that straddle the edges of the time range. Anything
+ * that isn't indexed is read in full.
+ */
+final class LogSearch {
+
+  private final byte[] secret;
+
+  LogSearch(@NonNull byte[] secret) {
+    this.secret = secret;
+  }
+
+  /**
+   * @param logs   The log files to search, oldest first.
+   * @param cursor Where to resume from, or null to start at the beginning.
+   * @param limit  The maximum number of lines to return.
+   */
+  @WorkerThread
+  @NonNull LogPage query(@NonNull File[] logs, @NonNull LogQuery query, @Nullable LogPage.Cursor cursor, int limit) throws IOException {
+    Search search = new Search(query, limit);
+
+    for (File log : logs) {
+      long startPosition = 0;
+      int  skipLines     = 0;
+
+      if (cursor != null) {
+        int order = log.getName().compareTo(cursor.fileName);
+
+        if (order < 0) {
+          continue;
+        } else if (order == 0) {
+          startPosition = cursor.position;
+          skipLines     = cursor.skipLines;
+        }
+      }
+
+      LogPage.Cursor next;
+
+      try (LogFile.Reader reader = new LogFile.Reader(secret, log)) {
+        next = search.searchFile(log.getName(), reader, reader.isBlockFormat() ? LogIndex.read(secret, log) : new ArrayList<>(), startPosition, skipLines);
+      }
+
+      if (next != null) {
+        return new LogPage(search.lines, next);
+      }
+    }
+
+    return new LogPage(search.lines, null);
+  }
+
+  private static final class Search {
+    private final LogQuery         query;
+    private final int              limit;
+    private final SimpleDateFormat dateFormat;
+    private final List<String>     lines;
+
+    private Search(@NonNull LogQuery query, int limit) {
+      this.query      = query;
+      this.limit      = limit;
+      this.dateFormat = new SimpleDateFormat(PersistentLogger.DATE_PATTERN);
+      this.lines      = new ArrayList<>(Math.min(limit, 1000));
+    }
+
+    /**
+     * @return A cursor if the page filled up before the end of the file, otherwise null.
+     */
+    private @Nullable LogPage.Cursor searchFile(@NonNull String fileName,
+                                                @NonNull LogFile.Reader reader,
+                                                @NonNull List<LogIndex.Record> index,
+                                                long startPosition,
+                                                int skipLines)
+        throws IOException
+    {
+      long indexedEnd = reader.getPosition();
+
+      for (LogIndex.Record record : index) {
+        indexedEnd = record.offset + record.length;
+
+        if (record.offset < startPosition || !record.mayMatch(query)) {
+          continue;
+        }
+
+        reader.seek(record.offset);
+
+        String text = reader.readBlockText();
+
+        if (text == null) {
+          return null;
+        }
+
+        LogPage.Cursor next = searchBlock(fileName, record.offset, text, record.offset == startPosition ? skipLines : 0, !record.isWithinTimeRange(query));
+
+        if (next != null) {
+          return next;
+        }
+      }
+
+      reader.seek(Math.max(indexedEnd, startPosition));
+
+      while (true) {
+        long   offset = reader.getPosition();
+        String text   = reader.readBlockText();
+
+        if (text == null) {
+          return null;
+        }
+
+        LogPage.Cursor next = searchBlock(fileName, offset, text, offset == startPosition ? skipLines : 0, true);
+
+        if (next != null) {
+          return next;
+        }
+      }
+    }
+
+    private @Nullable LogPage.Cursor searchBlock(@NonNull String fileName, long offset, @NonNull String text, int skipLines, boolean checkTime) {
+      boolean previousMatched = false;
+      int     lineIndex       = 0;
+      int     start           = 0;
+
+      while (start < text.length()) {
+        int end = text.indexOf('\n', start);
+
+        if (end < 0) {
+          end = text.length();
+        }
+
+        if (lineIndex >= skipLines) {
+          String         line  = text.substring(start, end);
+          LogQuery.Match match = query.match(line, dateFormat, checkTime);
+          boolean        add   = match == LogQuery.Match.YES || (match == LogQuery.Match.UNKNOWN && previousMatched);
+
+          if (match != LogQuery.Match.UNKNOWN) {
+            previousMatched = match == LogQuery.Match.YES;
+          }
+
+          if (add) {
+            lines.add(line);
+
+            if (lines.size() >= limit) {
+              return new LogPage.Cursor(fileName, offset, lineIndex + 1);
+            }
+          }
+        }
+
+        lineIndex++;
+        start = end + 1;
+      }
+
+      return null;
+    }
+  }
+}
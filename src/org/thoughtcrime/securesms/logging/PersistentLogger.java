@@ -2,29 +2,42 @@ package org.thoughtcrime.securesms.logging;
 
 import android.content.Context;
 import androidx.annotation.AnyThread;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
-import org.thoughtcrime.securesms.util.concurrent.ListenableFuture;
-import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+/**
+ * Writes logs to encrypted files on disk.
+ *
+ * Logging threads only copy their entry into a {@link LogBuffer}. The entries are formatted and
+ * written on a background thread in blocks of many entries, either {@link #FLUSH_INTERVAL} after
+ * the first one is logged or once {@link #FLUSH_THRESHOLD} have built up, whichever is sooner.
+ * See {@link LogFile} for the format on disk.
+ */
 public class PersistentLogger extends Log.Logger {
 
   private static final String TAG     = PersistentLogger.class.getSimpleName();
 
+  /**
+   * The format of the time at the start of each persisted line.
+   */
+  static final String DATE_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS zzz";
+
   private static final String LOG_V   = "V";
   private static final String LOG_D   = "D";
   private static final String LOG_I   = "I";
@@ -36,18 +49,36 @@ public class PersistentLogger extends Log.Logger {
   private static final String           FILENAME_PREFIX = "log-";
   private static final int              MAX_LOG_FILES   = 7;
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
-  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
-
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
-
-  private LogFile.Writer writer;
+  private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat(DATE_PATTERN);
+
+  private static final int  BUFFER_SIZE     = 1024;
+  private static final int  FLUSH_THRESHOLD = 256;
+  private static final long FLUSH_INTERVAL  = 250;
+  private static final int  MAX_BLOCK_SIZE  = 32 * 1024;
+
+  private final Context             context;
+  private final Executor            executor;
+  private final byte[]              secret;
+  private final LogBuffer           buffer;
+  private final LogBuffer.Entry[]   drained;
+  private final BlockBuffer         blockBuffer;
+  private final StringBuilder       entryBuilder;
+  private final Date                date;
+  private final LogIndex.BlockStats blockStats;
+
+  private LogFile.Writer  writer;
+  private LogIndex.Writer indexWriter;
 
   public PersistentLogger(Context context) {
-    this.context  = context.getApplicationContext();
-    this.secret   = LogSecretProvider.getOrCreateAttachmentSecret(context);
-    this.executor = Executors.newSingleThreadExecutor(r -> {
+    this.context      = context.getApplicationContext();
+    this.secret       = LogSecretProvider.getOrCreateAttachmentSecret(context);
+    this.buffer       = new LogBuffer(BUFFER_SIZE, FLUSH_THRESHOLD);
+    this.drained      = LogBuffer.newEntries(BUFFER_SIZE);
+    this.blockBuffer  = new BlockBuffer(MAX_BLOCK_SIZE);
+    this.entryBuilder = new StringBuilder();
+    this.date         = new Date();
+    this.blockStats   = new LogIndex.BlockStats();
+    this.executor     = Executors.newSingleThreadExecutor(r -> {
       Thread thread = new Thread(r, "signal-PersistentLogger");
       thread.setPriority(Thread.MIN_PRIORITY);
       return thread;
@@ -90,7 +121,11 @@ public class PersistentLogger extends Log.Logger {
   public void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    executor.execute(latch::countDown);
+    buffer.requestFlush();
+    executor.execute(() -> {
+      flush();
+      latch.countDown();
+    });
 
     try {
       latch.await();
@@ -99,76 +134,188 @@ public class PersistentLogger extends Log.Logger {
     }
   }
 
+  /**
+   * Hands every log entry to the callback one line at a time, oldest first. Logs are decrypted as
+   * they're read, so no more than a single block of them is held in memory at once. Runs on the
+   * calling thread, and doesn't keep new logs from being written in the meantime.
+   */
   @WorkerThread
-  public ListenableFuture<String> getLogs() {
-    final SettableFuture<String> future = new SettableFuture<>();
+  public void readLogs(@NonNull LineCallback callback) throws IOException, NoExternalStorageException {
+    blockUntilAllWritesFinished();
 
-    executor.execute(() -> {
-      StringBuilder builder = new StringBuilder();
+    File[] logs = getSortedLogFiles();
+
+    for (int i = logs.length - 1; i >= 0; i--) {
+      LogFile.Reader reader;
 
       try {
-        File[] logs = getSortedLogFiles();
-        for (int i = logs.length - 1; i >= 0; i--) {
-          try {
-            LogFile.Reader reader = new LogFile.Reader(secret, logs[i]);
-            builder.append(reader.readAll());
-          } catch (IOException e) {
-            android.util.Log.w(TAG, "Failed to read log at index " + i + ". Removing reference.");
-            logs[i].delete();
-          }
-        }
+        reader = new LogFile.Reader(secret, logs[i]);
+      } catch (IOException e) {
+        android.util.Log.w(TAG, "Failed to open log at index " + i + ". Skipping.");
+        continue;
+      }
 
-        future.set(builder.toString());
-      } catch (NoExternalStorageException e) {
-        future.setException(e);
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          callback.onLine(line);
+        }
+      } finally {
+        reader.close();
       }
-    });
+    }
+  }
+
+  /**
+   * Returns up to {@code limit} lines matching the query, oldest first. Blocks that can't match
+   * are skipped using each log's {@link LogIndex} rather than decrypted. Runs on the calling
+   * thread.
+   *
+   * @param cursor The {@link LogPage#getNext()} of the previous page, or null for the first page.
+   */
+  @WorkerThread
+  public @NonNull LogPage queryLogs(@NonNull LogQuery query, @Nullable LogPage.Cursor cursor, int limit) throws IOException, NoExternalStorageException {
+    blockUntilAllWritesFinished();
+
+    File[] logs = getSortedLogFiles();
+    Collections.reverse(Arrays.asList(logs));
 
-    return future;
+    return new LogSearch(secret).query(logs, query, cursor, limit);
   }
 
   @WorkerThread
   private void initializeWriter() {
     try {
-      writer = new LogFile.Writer(secret, getOrCreateActiveLogFile());
+      File logFile = getOrCreateActiveLogFile();
+
+      if (LogFile.canAppendBlocks(logFile)) {
+        LogFile.truncateUnreadableTail(secret, logFile);
+      } else {
+        logFile = createNewLogFile();
+      }
+
+      openWriter(logFile);
     } catch (NoExternalStorageException | IOException e) {
       android.util.Log.e(TAG, "Failed to initialize writer.", e);
     }
   }
 
+  @WorkerThread
+  private void openWriter(@NonNull File logFile) throws IOException {
+    indexWriter = LogIndex.Writer.open(secret, logFile, LogFile.HEADER_LENGTH);
+    writer      = new LogFile.Writer(secret, logFile);
+  }
+
   @AnyThread
   private void write(String level, String tag, String message, Throwable t) {
-    executor.execute(() -> {
-      try {
-        if (writer == null) {
-          return;
-        }
+    if (buffer.append(System.currentTimeMillis(), level, tag, message, t)) {
+      executor.execute(this::flushAfterDelay);
+    }
+  }
 
-        if (writer.getLogSize() >= MAX_LOG_SIZE) {
-          writer.close();
-          writer = new LogFile.Writer(secret, createNewLogFile());
-          trimLogFilesOverMax();
-        }
+  @WorkerThread
+  private void flushAfterDelay() {
+    buffer.awaitFlush(FLUSH_INTERVAL);
+    flush();
+  }
 
-        for (String entry : buildLogEntries(level, tag, message, t)) {
-          writer.writeEntry(entry);
+  /**
+   * Writes every buffered entry to disk.
+   */
+  @WorkerThread
+  private void flush() {
+    int count;
+
+    while ((count = buffer.drainTo(drained)) > 0) {
+      for (int i = 0; i < count; i++) {
+        appendEntries(drained[i]);
+        drained[i].clear();
+
+        if (blockBuffer.size() >= MAX_BLOCK_SIZE) {
+          writeBlock();
         }
+      }
+    }
 
-      } catch (NoExternalStorageException e) {
-        android.util.Log.w(TAG, "Cannot persist logs.", e);
-      } catch (IOException e) {
-        android.util.Log.w(TAG, "Failed to write line. Deleting all logs and starting over.");
-        deleteAllLogs();
-        initializeWriter();
+    writeBlock();
+  }
+
+  @WorkerThread
+  private void writeBlock() {
+    if (blockBuffer.size() == 0) {
+      return;
+    }
+
+    try {
+      if (writer == null) {
+        return;
       }
-    });
+
+      if (writer.getLogSize() >= MAX_LOG_SIZE) {
+        writer.close();
+        closeIndexWriter();
+        openWriter(createNewLogFile());
+        trimLogFilesOverMax();
+      }
+
+      long offset = writer.getLogSize();
+
+      writer.writeBlock(blockBuffer.getBuffer(), blockBuffer.size());
+      writeIndexRecord(offset, (int) (writer.getLogSize() - offset));
+    } catch (NoExternalStorageException e) {
+      android.util.Log.w(TAG, "Cannot persist logs.", e);
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write block. Deleting all logs and starting over.");
+      closeIndexWriter();
+      deleteAllLogs();
+      initializeWriter();
+    } finally {
+      blockBuffer.reset();
+      blockStats.reset();
+    }
+  }
+
+  /**
+   * A log that's missing index records can't be indexed at all, so if a record can't be written
+   * the index is dropped and the rest of the log goes unindexed.
+   */
+  @WorkerThread
+  private void writeIndexRecord(long offset, int length) {
+    if (indexWriter == null) {
+      return;
+    }
+
+    try {
+      indexWriter.append(offset, length, blockStats);
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to write index record. Dropping the index.", e);
+      closeIndexWriter();
+
+      try {
+        LogIndex.delete(getOrCreateActiveLogFile());
+      } catch (NoExternalStorageException e2) {
+        android.util.Log.w(TAG, "Failed to delete index.", e2);
+      }
+    }
+  }
+
+  private void closeIndexWriter() {
+    if (indexWriter != null) {
+      indexWriter.close();
+      indexWriter = null;
+    }
+  }
+
+  private void deleteLog(@NonNull File log) {
+    log.delete();
+    LogIndex.delete(log);
   }
 
   private void trimLogFilesOverMax() throws NoExternalStorageException {
     File[] logs = getSortedLogFiles();
     if (logs.length > MAX_LOG_FILES) {
       for (int i = MAX_LOG_FILES; i < logs.length; i++) {
-        logs[i].delete();
+        deleteLog(logs[i]);
       }
     }
   }
@@ -177,7 +324,7 @@ public class PersistentLogger extends Log.Logger {
     try {
       File[] logs = getSortedLogFiles();
       for (File log : logs) {
-        log.delete();
+        deleteLog(log);
       }
     } catch (NoExternalStorageException e) {
       android.util.Log.w(TAG, "Was unable to delete logs.", e);
@@ -198,7 +345,7 @@ public class PersistentLogger extends Log.Logger {
   }
 
   private File[] getSortedLogFiles() throws NoExternalStorageException {
-    File[] logs = getOrCreateLogDirectory().listFiles();
+    File[] logs = getOrCreateLogDirectory().listFiles(file -> !LogIndex.isIndexFile(file));
     if (logs != null) {
       Arrays.sort(logs, (o1, o2) -> o2.getName().compareTo(o1.getName()));
       return logs;
@@ -215,28 +362,44 @@ public class PersistentLogger extends Log.Logger {
     return logDir;
   }
 
-  private List<String> buildLogEntries(String level, String tag, String message, Throwable t) {
-    List<String> entries = new LinkedList<>();
-    Date         date    = new Date();
+  private void appendEntries(LogBuffer.Entry entry) {
+    date.setTime(entry.time);
+    blockStats.add(entry.time, entry.level, entry.tag);
 
-    entries.add(buildEntry(level, tag, message, date));
+    appendEntry(entry.level, entry.tag, entry.message);
 
-    if (t != null) {
+    if (entry.throwable != null) {
       ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-      t.printStackTrace(new PrintStream(outputStream));
+      entry.throwable.printStackTrace(new PrintStream(outputStream));
 
       String   trace = new String(outputStream.toByteArray());
       String[] lines = trace.split("\\n");
 
       for (String line : lines) {
-        entries.add(buildEntry(level, tag, line, date));
+        appendEntry(entry.level, entry.tag, line);
       }
     }
+  }
 
-    return entries;
+  private void appendEntry(String level, String tag, String message) {
+    entryBuilder.setLength(0);
+    entryBuilder.append(DATE_FORMAT.format(date)).append(' ').append(level).append(' ').append(tag).append(": ").append(message).append('\n');
+
+    byte[] bytes = entryBuilder.toString().getBytes(StandardCharsets.UTF_8);
+    blockBuffer.write(bytes, 0, bytes.length);
   }
 
-  private String buildEntry(String level, String tag, String message, Date date) {
-    return DATE_FORMAT.format(date) + ' ' + level + ' ' + tag + ": " + message;
+  public interface LineCallback {
+    void onLine(@NonNull String line) throws IOException;
+  }
+
+  private static final class BlockBuffer extends ByteArrayOutputStream {
+    BlockBuffer(int size) {
+      super(size);
+    }
+
+    byte[] getBuffer() {
+      return buf;
+    }
   }
 }
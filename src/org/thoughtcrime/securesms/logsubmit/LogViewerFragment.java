@@ -0,0 +1,234 @@
+package org.thoughtcrime.securesms.logsubmit;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.EditText;
+import android.widget.Spinner;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.fragment.app.Fragment;
+import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.RecyclerView;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.contactshare.SimpleTextWatcher;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.logging.LogPage;
+import org.thoughtcrime.securesms.logging.LogQuery;
+import org.thoughtcrime.securesms.logging.PersistentLogger;
+import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SimpleTask;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shows the persisted logs filtered by tag, time and level, loading a page at a time as the user
+ * scrolls rather than reading every log up front.
+ */
+public class LogViewerFragment extends Fragment {
+
+  private static final String TAG = LogViewerFragment.class.getSimpleName();
+
+  private static final int      PAGE_SIZE      = 500;
+  private static final int      PREFETCH_LINES = 100;
+  private static final long     SEARCH_DELAY   = 300;
+  private static final long[]   TIME_RANGES    = { TimeUnit.HOURS.toMillis(1), TimeUnit.DAYS.toMillis(1), 0 };
+  private static final String[] LEVELS         = { null, "I", "W", "E" };
+
+  private final Runnable search = this::startQuery;
+
+  private EditText       tagText;
+  private Spinner        timeRangeSpinner;
+  private Spinner        levelSpinner;
+  private TextView       emptyView;
+  private View           progressView;
+  private LogLineAdapter adapter;
+
+  private LogQuery       query;
+  private LogPage.Cursor next;
+  private boolean        loading;
+  private int            generation;
+
+  public static LogViewerFragment newInstance() {
+    return new LogViewerFragment();
+  }
+
+  @Override
+  public View onCreateView(@NonNull LayoutInflater inflater, @Nullable ViewGroup container, @Nullable Bundle savedInstanceState) {
+    return inflater.inflate(R.layout.fragment_log_viewer, container, false);
+  }
+
+  @Override
+  public void onViewCreated(@NonNull View view, @Nullable Bundle savedInstanceState) {
+    tagText          = view.findViewById(R.id.log_viewer_tag);
+    timeRangeSpinner = view.findViewById(R.id.log_viewer_time_range);
+    levelSpinner     = view.findViewById(R.id.log_viewer_level);
+    emptyView        = view.findViewById(R.id.log_viewer_empty);
+    progressView     = view.findViewById(R.id.log_viewer_progress);
+    adapter          = new LogLineAdapter();
+
+    RecyclerView        lines         = view.findViewById(R.id.log_viewer_lines);
+    LinearLayoutManager layoutManager = new LinearLayoutManager(requireContext());
+
+    lines.setLayoutManager(layoutManager);
+    lines.setAdapter(adapter);
+    lines.addOnScrollListener(new RecyclerView.OnScrollListener() {
+      @Override
+      public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+        if (layoutManager.findLastVisibleItemPosition() >= adapter.getItemCount() - PREFETCH_LINES) {
+          loadNextPage();
+        }
+      }
+    });
+
+    AdapterView.OnItemSelectedListener onFilterSelected = new AdapterView.OnItemSelectedListener() {
+      @Override
+      public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+        startQuery();
+      }
+
+      @Override
+      public void onNothingSelected(AdapterView<?> parent) {}
+    };
+
+    timeRangeSpinner.setOnItemSelectedListener(onFilterSelected);
+    levelSpinner.setOnItemSelectedListener(onFilterSelected);
+    tagText.addTextChangedListener(new SimpleTextWatcher() {
+      @Override
+      public void onTextChanged(String text) {
+        Util.cancelRunnableOnMain(search);
+        Util.runOnMainDelayed(search, SEARCH_DELAY);
+      }
+    });
+
+    startQuery();
+  }
+
+  @Override
+  public void onDestroyView() {
+    super.onDestroyView();
+    Util.cancelRunnableOnMain(search);
+  }
+
+  private void startQuery() {
+    LogQuery.Builder builder   = new LogQuery.Builder();
+    String           tag       = tagText.getText().toString().trim();
+    long             timeRange = TIME_RANGES[Math.max(0, timeRangeSpinner.getSelectedItemPosition())];
+
+    if (!TextUtils.isEmpty(tag)) {
+      builder.addTag(tag);
+    }
+
+    if (timeRange > 0) {
+      long now = System.currentTimeMillis();
+      builder.setTimeRange(now - timeRange, now);
+    }
+
+    builder.setMinimumLevel(LEVELS[Math.max(0, levelSpinner.getSelectedItemPosition())]);
+
+    query   = builder.build();
+    next    = null;
+    loading = false;
+    generation++;
+
+    adapter.clear();
+    emptyView.setVisibility(View.GONE);
+
+    loadPage(null);
+  }
+
+  private void loadNextPage() {
+    if (next != null) {
+      loadPage(next);
+    }
+  }
+
+  private void loadPage(@Nullable LogPage.Cursor cursor) {
+    if (loading) {
+      return;
+    }
+
+    PersistentLogger logger         = ApplicationContext.getInstance(requireContext()).getPersistentLogger();
+    LogQuery         pageQuery      = query;
+    int              pageGeneration = generation;
+
+    loading = true;
+    progressView.setVisibility(View.VISIBLE);
+
+    SimpleTask.run(getViewLifecycleOwner().getLifecycle(), () -> {
+      try {
+        return logger.queryLogs(pageQuery, cursor, PAGE_SIZE);
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to query logs.", e);
+        return null;
+      }
+    }, page -> {
+      if (pageGeneration != generation) {
+        return;
+      }
+
+      loading = false;
+      progressView.setVisibility(View.GONE);
+
+      if (page == null) {
+        Toast.makeText(requireContext(), R.string.log_viewer_fragment__failed_to_read_logs, Toast.LENGTH_SHORT).show();
+        return;
+      }
+
+      next = page.getNext();
+      adapter.addLines(page.getLines());
+      emptyView.setVisibility(adapter.getItemCount() == 0 ? View.VISIBLE : View.GONE);
+    });
+  }
+
+  private static final class LogLineAdapter extends RecyclerView.Adapter<LogLineViewHolder> {
+
+    private final List<String> lines = new ArrayList<>();
+
+    @Override
+    public @NonNull LogLineViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
+      return new LogLineViewHolder(LayoutInflater.from(parent.getContext()).inflate(R.layout.item_log_line, parent, false));
+    }
+
+    @Override
+    public void onBindViewHolder(@NonNull LogLineViewHolder holder, int position) {
+      holder.text.setText(lines.get(position));
+    }
+
+    @Override
+    public int getItemCount() {
+      return lines.size();
+    }
+
+    void addLines(@NonNull List<String> page) {
+      int start = lines.size();
+      lines.addAll(page);
+      notifyItemRangeInserted(start, page.size());
+    }
+
+    void clear() {
+      lines.clear();
+      notifyDataSetChanged();
+    }
+  }
+
+  private static final class LogLineViewHolder extends RecyclerView.ViewHolder {
+
+    private final TextView text;
+
+    LogLineViewHolder(@NonNull View itemView) {
+      super(itemView);
+      this.text = (TextView) itemView;
+    }
+  }
+}
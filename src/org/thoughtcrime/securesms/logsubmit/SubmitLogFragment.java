@@ -58,6 +58,7 @@ import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contactshare.SimpleTextWatcher;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
@@ -69,9 +70,17 @@ import org.thoughtcrime.securesms.util.task.ProgressDialogAsyncTask;
 import org.whispersystems.libsignal.util.Pair;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -81,7 +90,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 
 import okhttp3.MediaType;
@@ -109,12 +117,17 @@ public class SubmitLogFragment extends Fragment {
 
   private static final String HEADER_SYSINFO     = "========= SYSINFO =========";
   private static final String HEADER_JOBS        = "=========== JOBS ==========";
+  private static final String HEADER_JOB_METRICS = "======= JOB METRICS =======";
   private static final String HEADER_POWER       = "========== POWER ==========";
   private static final String HEADER_THREADS     = "===== BLOCKED THREADS =====";
   private static final String HEADER_PERMISSIONS = "======= PERMISSIONS =======";
   private static final String HEADER_LOGCAT      = "========== LOGCAT =========";
   private static final String HEADER_LOGGER      = "========== LOGGER =========";
 
+  private static final String REPORT_FILE       = "submit-log.txt";
+  private static final String UPLOAD_FILE       = "submit-log-upload.txt";
+  private static final int    MAX_PREVIEW_LINES = 5000;
+
   private Button   okButton;
   private View     scrollButton;
   private String   supportEmailAddress;
@@ -193,6 +206,18 @@ public class SubmitLogFragment extends Fragment {
     mListener = null;
   }
 
+  @Override
+  public void onDestroy() {
+    super.onDestroy();
+
+    File cacheDir = requireContext().getCacheDir();
+
+    AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+      new File(cacheDir, REPORT_FILE).delete();
+      new File(cacheDir, UPLOAD_FILE).delete();
+    });
+  }
+
   private void initializeResources() {
     okButton     = getView().findViewById(R.id.ok);
     logPreview   = getView().findViewById(R.id.log_preview);
@@ -226,25 +251,82 @@ public class SubmitLogFragment extends Fragment {
     new PopulateLogcatAsyncTask(getActivity()).execute();
   }
 
-  private static String grabLogcat() {
+  private static void writeLogcat(@NonNull Writer writer) throws IOException {
+    final Process process;
+
     try {
-      final Process         process        = Runtime.getRuntime().exec("logcat -d");
-      final BufferedReader  bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-      final StringBuilder   log            = new StringBuilder();
-      final String          separator      = System.getProperty("line.separator");
+      process = Runtime.getRuntime().exec("logcat -d");
+    } catch (IOException ioe) {
+      Log.w(TAG, "IOException when trying to read logcat.", ioe);
+      return;
+    }
+
+    final String separator = System.getProperty("line.separator");
 
+    try (BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
       String line;
       while ((line = bufferedReader.readLine()) != null) {
-        log.append(line);
-        log.append(separator);
+        writer.append(Scrubber.scrub(line)).append(separator);
       }
-      return log.toString();
-    } catch (IOException ioe) {
-      Log.w(TAG, "IOException when trying to read logcat.", ioe);
-      return null;
     }
   }
 
+  private static void writeLogs(@NonNull Context context, @NonNull Writer writer) throws IOException {
+    try {
+      ApplicationContext.getInstance(context).getPersistentLogger().readLogs(line -> writer.append(Scrubber.scrub(line)).append('\n'));
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, "Failed to retrieve new logs.", e);
+      writer.append("Failed to retrieve logs.");
+    }
+  }
+
+  /**
+   * Reads the last {@link #MAX_PREVIEW_LINES} lines of the report, so that the preview never holds
+   * more than that in memory no matter how large the report is.
+   */
+  private static @NonNull ReportPreview readPreview(@NonNull File report) throws IOException {
+    ArrayDeque<String> lines = new ArrayDeque<>();
+    int                total = 0;
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(report), StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (lines.size() == MAX_PREVIEW_LINES) {
+          lines.removeFirst();
+        }
+
+        lines.addLast(line);
+        total++;
+      }
+    }
+
+    return new ReportPreview(report, total - lines.size(), lines.toArray(new String[0]));
+  }
+
+  /**
+   * Writes the lines of the report that weren't previewed followed by the (possibly edited)
+   * previewed lines into a file that can be uploaded.
+   */
+  private static @NonNull File writeUploadFile(@NonNull File report, int omittedLines, @NonNull String[] previewLines) throws IOException {
+    File upload = new File(report.getParentFile(), UPLOAD_FILE);
+
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(report), StandardCharsets.UTF_8));
+         Writer         writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(upload), StandardCharsets.UTF_8)))
+    {
+      for (int i = 0; i < omittedLines; i++) {
+        String line = reader.readLine();
+
+        if (line == null) break;
+
+        writer.append(line).append('\n');
+      }
+
+      writer.append(Util.join(previewLines, "\n"));
+    }
+
+    return upload;
+  }
+
   private Intent getIntentForSupportEmail(String logUrl) {
     Intent emailSendIntent = new Intent(Intent.ACTION_SEND);
 
@@ -345,78 +427,78 @@ public class SubmitLogFragment extends Fragment {
     hackSavedLogUrl = logUrl;
   }
 
-  private class PopulateLogcatAsyncTask extends AsyncTask<Void,Void,String> {
+  private class PopulateLogcatAsyncTask extends AsyncTask<Void,Void,ReportPreview> {
     private WeakReference<Context> weakContext;
 
     public PopulateLogcatAsyncTask(Context context) {
       this.weakContext = new WeakReference<>(context);
     }
 
+    /**
+     * The report is streamed to a file one scrubbed line at a time rather than built up in memory,
+     * since the logs alone can run to several megabytes.
+     */
     @Override
-    protected String doInBackground(Void... voids) {
+    protected ReportPreview doInBackground(Void... voids) {
       Context context = weakContext.get();
       if (context == null) return null;
 
-      CharSequence newLogs;
-      try {
-        long t1 = System.currentTimeMillis();
-        String logs = ApplicationContext.getInstance(context).getPersistentLogger().getLogs().get();
-        Log.i(TAG, "Fetch our logs : " + (System.currentTimeMillis() - t1) + " ms");
-
-        long t2 = System.currentTimeMillis();
-        newLogs = Scrubber.scrub(logs);
-        Log.i(TAG, "Scrub our logs: " + (System.currentTimeMillis() - t2) + " ms");
-      } catch (InterruptedException | ExecutionException e) {
-        Log.w(TAG, "Failed to retrieve new logs.", e);
-        newLogs = "Failed to retrieve logs.";
-      }
-
-      long t3 = System.currentTimeMillis();
-      String logcat = grabLogcat();
-      Log.i(TAG, "Fetch logcat: " + (System.currentTimeMillis() - t3) + " ms");
-
-      long t4 = System.currentTimeMillis();
-      CharSequence scrubbedLogcat = Scrubber.scrub(logcat);
-      Log.i(TAG, "Scrub logcat: " + (System.currentTimeMillis() - t4) + " ms");
+      File report = new File(context.getCacheDir(), REPORT_FILE);
+
+      try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(report), StandardCharsets.UTF_8))) {
+        writer.append(HEADER_SYSINFO)
+              .append("\n\n")
+              .append(buildDescription(context))
+              .append("\n\n\n")
+              .append(HEADER_JOBS)
+              .append("\n\n")
+              .append(Scrubber.scrub(ApplicationDependencies.getJobManager().getDebugInfo()))
+              .append("\n\n\n")
+              .append(HEADER_JOB_METRICS)
+              .append("\n\n")
+              .append(Scrubber.scrub(ApplicationDependencies.getJobManager().getMetricsSnapshot().toString()))
+              .append("\n\n\n");
+
+        if (VERSION.SDK_INT >= 28) {
+          writer.append(HEADER_POWER)
+                .append("\n\n")
+                .append(buildPower(context))
+                .append("\n\n\n");
+        }
 
+        writer.append(HEADER_THREADS)
+              .append("\n\n")
+              .append(buildBlockedThreads())
+              .append("\n\n\n");
 
-      StringBuilder stringBuilder = new StringBuilder();
+        writer.append(HEADER_PERMISSIONS)
+              .append("\n\n")
+              .append(buildPermissions(context))
+              .append("\n\n\n");
 
-      stringBuilder.append(HEADER_SYSINFO)
-                   .append("\n\n")
-                   .append(buildDescription(context))
-                   .append("\n\n\n")
-                   .append(HEADER_JOBS)
-                   .append("\n\n")
-                   .append(Scrubber.scrub(ApplicationDependencies.getJobManager().getDebugInfo()))
-                   .append("\n\n\n");
+        long t1 = System.currentTimeMillis();
+        writer.append(HEADER_LOGCAT)
+              .append("\n\n");
+        writeLogcat(writer);
+        Log.i(TAG, "Fetch and scrub logcat: " + (System.currentTimeMillis() - t1) + " ms");
 
-      if (VERSION.SDK_INT >= 28) {
-        stringBuilder.append(HEADER_POWER)
-                     .append("\n\n")
-                     .append(buildPower(context))
-                     .append("\n\n\n");
+        long t2 = System.currentTimeMillis();
+        writer.append("\n\n\n")
+              .append(HEADER_LOGGER)
+              .append("\n\n");
+        writeLogs(context, writer);
+        Log.i(TAG, "Fetch and scrub our logs: " + (System.currentTimeMillis() - t2) + " ms");
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write the log report.", e);
+        return null;
       }
 
-      stringBuilder.append(HEADER_THREADS)
-                   .append("\n\n")
-                   .append(buildBlockedThreads())
-                   .append("\n\n\n");
-
-      stringBuilder.append(HEADER_PERMISSIONS)
-                   .append("\n\n")
-                   .append(buildPermissions(context))
-                   .append("\n\n\n");
-
-      stringBuilder.append(HEADER_LOGCAT)
-                   .append("\n\n")
-                   .append(scrubbedLogcat)
-                   .append("\n\n\n")
-                   .append(HEADER_LOGGER)
-                   .append("\n\n")
-                   .append(newLogs);
-
-      return stringBuilder.toString();
+      try {
+        return readPreview(report);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to read the log report.", e);
+        return null;
+      }
     }
 
     @Override
@@ -427,27 +509,33 @@ public class SubmitLogFragment extends Fragment {
     }
 
     @Override
-    protected void onPostExecute(String logcat) {
-      super.onPostExecute(logcat);
-      if (TextUtils.isEmpty(logcat)) {
+    protected void onPostExecute(ReportPreview preview) {
+      super.onPostExecute(preview);
+      if (preview == null || preview.lines.length == 0) {
         if (mListener != null) mListener.onFailure();
         return;
       }
-      logPreviewAdapter.setText(logcat);
+      logPreviewAdapter.setPreview(preview, getResources().getQuantityString(R.plurals.log_submit_activity__earlier_lines_not_shown, preview.omittedLines, preview.omittedLines));
       okButton.setEnabled(true);
     }
   }
 
   private class SubmitToPastebinAsyncTask extends ProgressDialogAsyncTask<Void,Void,String> {
-    private final String         paste;
+    private final File     report;
+    private final int      omittedLines;
+    private final String[] previewLines;
 
-    public SubmitToPastebinAsyncTask(String paste) {
+    public SubmitToPastebinAsyncTask(@NonNull ReportPreview preview, @NonNull String[] previewLines) {
       super(getActivity(), R.string.log_submit_activity__submitting, R.string.log_submit_activity__uploading_logs);
-      this.paste = paste;
+      this.report       = preview.report;
+      this.omittedLines = preview.omittedLines;
+      this.previewLines = previewLines;
     }
 
     @Override
     protected String doInBackground(Void... voids) {
+      File upload = null;
+
       try {
         OkHttpClient client   = new OkHttpClient.Builder().build();
         Response     response = client.newCall(new Request.Builder().url(API_ENDPOINT).get().build()).execute();
@@ -471,7 +559,8 @@ public class SubmitLogFragment extends Fragment {
           post.addFormDataPart(key, fields.getString(key));
         }
 
-        post.addFormDataPart("file", "file", RequestBody.create(MediaType.parse("text/plain"), paste));
+        upload = writeUploadFile(report, omittedLines, previewLines);
+        post.addFormDataPart("file", "file", RequestBody.create(MediaType.parse("text/plain"), upload));
 
         Response postResponse = client.newCall(new Request.Builder().url(url).post(post.build()).build()).execute();
 
@@ -479,9 +568,13 @@ public class SubmitLogFragment extends Fragment {
           throw new IOException("Bad response: " + postResponse);
         }
 
+        report.delete();
+
         return API_ENDPOINT + "/" + item;
       } catch (IOException | JSONException e) {
         Log.w("ImageActivity", e);
+      } finally {
+        if (upload != null) upload.delete();
       }
       return null;
     }
@@ -649,9 +742,26 @@ public class SubmitLogFragment extends Fragment {
     public void onCancel();
   }
 
+  private static final class ReportPreview {
+    private final File     report;
+    private final int      omittedLines;
+    private final String[] lines;
+
+    private ReportPreview(@NonNull File report, int omittedLines, @NonNull String[] lines) {
+      this.report       = report;
+      this.omittedLines = omittedLines;
+      this.lines        = lines;
+    }
+  }
+
+  /**
+   * Shows the lines of the report that were previewed, preceded by a note about how many earlier
+   * lines weren't, if any.
+   */
   private static final class LogPreviewAdapter extends RecyclerView.Adapter<LogPreviewViewHolder> {
 
     private String[] lines = new String[0];
+    private String   omittedNote;
 
     @Override
     public LogPreviewViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
@@ -660,7 +770,11 @@ public class SubmitLogFragment extends Fragment {
 
     @Override
     public void onBindViewHolder(LogPreviewViewHolder holder, int position) {
-      holder.bind(lines, position);
+      if (omittedNote != null && position == 0) {
+        holder.bindNote(omittedNote);
+      } else {
+        holder.bind(lines, omittedNote != null ? position - 1 : position);
+      }
     }
 
     @Override
@@ -670,16 +784,23 @@ public class SubmitLogFragment extends Fragment {
 
     @Override
     public int getItemCount() {
-      return lines.length;
+      return lines.length + (omittedNote != null ? 1 : 0);
     }
 
     void setText(@NonNull String text) {
-      lines = text.split("\n");
+      lines       = text.split("\n");
+      omittedNote = null;
       notifyDataSetChanged();
     }
 
-    String getText() {
-      return Util.join(lines, "\n");
+    void setPreview(@NonNull ReportPreview preview, @NonNull String omittedNote) {
+      this.lines       = preview.lines;
+      this.omittedNote = preview.omittedLines > 0 ? omittedNote : null;
+      notifyDataSetChanged();
+    }
+
+    @NonNull String[] getLines() {
+      return lines;
     }
   }
 
@@ -698,10 +819,18 @@ public class SubmitLogFragment extends Fragment {
       this.lines = lines;
       this.index = index;
 
+      text.setEnabled(true);
       text.setText(lines[index]);
       text.addTextChangedListener(textWatcher);
     }
 
+    void bindNote(@NonNull String note) {
+      this.lines = null;
+
+      text.setEnabled(false);
+      text.setText(note);
+    }
+
     void unbind() {
       text.removeTextChangedListener(textWatcher);
     }
@@ -38,7 +38,7 @@ public class ApplicationMigrations {
 
   private static final int LEGACY_CANONICAL_VERSION = 455;
 
-  public static final int CURRENT_VERSION = 8;
+  public static final int CURRENT_VERSION = 9;
 
   private static final class Version {
     static final int LEGACY             = 1;
@@ -49,6 +49,7 @@ public class ApplicationMigrations {
     static final int UUIDS              = 6;
     static final int CACHED_ATTACHMENTS = 7;
     static final int PIN_TO_SIGNATURE   = 8;
+    static final int THREAD_SUMMARIES   = 9;
   }
 
   /**
@@ -193,6 +194,10 @@ public class ApplicationMigrations {
       jobs.put(Version.PIN_TO_SIGNATURE, new PinToSignatureMigrationJob());
     }
 
+    if (lastSeenVersion < Version.THREAD_SUMMARIES) {
+      jobs.put(Version.THREAD_SUMMARIES, new ThreadSummaryMigrationJob());
+    }
+
     return jobs;
   }
 
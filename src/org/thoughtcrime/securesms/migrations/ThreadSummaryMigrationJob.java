@@ -0,0 +1,53 @@
+package org.thoughtcrime.securesms.migrations;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobs.ReconcileThreadsJob;
+
+/**
+ * Message counts used to be recounted on every change, which also picked up messages that never
+ * touched the thread, like identity updates. Counts are now kept incrementally, so they're
+ * reconciled once to start from an accurate total.
+ */
+public class ThreadSummaryMigrationJob extends MigrationJob {
+
+  public static final String KEY = "ThreadSummaryMigrationJob";
+
+  ThreadSummaryMigrationJob() {
+    this(new Parameters.Builder().build());
+  }
+
+  private ThreadSummaryMigrationJob(@NonNull Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  boolean isUiBlocking() {
+    return false;
+  }
+
+  @Override
+  void performMigration() {
+    ApplicationDependencies.getJobManager().add(new ReconcileThreadsJob());
+  }
+
+  @Override
+  boolean shouldRetry(@NonNull Exception e) {
+    return false;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  public static class Factory implements Job.Factory<ThreadSummaryMigrationJob> {
+    @Override
+    public @NonNull ThreadSummaryMigrationJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new ThreadSummaryMigrationJob(parameters);
+    }
+  }
+}
@@ -44,6 +44,8 @@ import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
+import org.thoughtcrime.securesms.jobs.ReconcileThreadsJob;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.notifications.NotificationChannels;
 import org.thoughtcrime.securesms.service.LocalBackupListener;
@@ -252,6 +254,7 @@ public final class RestoreBackupFragment extends BaseRegistrationFragment {
 
           DatabaseFactory.upgradeRestored(context, database);
           NotificationChannels.restoreContactNotificationChannels(context);
+          ApplicationDependencies.getJobManager().add(new ReconcileThreadsJob());
 
           enableBackups(context);
 
@@ -14,8 +14,14 @@ import androidx.annotation.Nullable;
 
 import androidx.annotation.RequiresApi;
 import androidx.documentfile.provider.DocumentFile;
+
+import com.google.protobuf.ByteString;
+
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
+import org.thoughtcrime.securesms.backup.BackupProtos;
+import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.logging.Log;
@@ -23,13 +29,16 @@ import org.thoughtcrime.securesms.permissions.Permissions;
 import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
+import java.io.IOException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 public class BackupUtil {
 
@@ -91,16 +100,46 @@ public class BackupUtil {
     Log.i(TAG, "Deleting older backups");
 
     try {
-      List<BackupInfo> backups = getAllBackupsNewestFirst();
+      Context          context  = ApplicationDependencies.getApplication();
+      List<BackupInfo> backups  = getAllBackupsNewestFirst();
+      BackupManifest   manifest = BackupManifest.get(context);
+      String           base     = manifest != null ? manifest.getLocation() : null;
+      Set<ByteString>  baseIds  = new HashSet<>();
+
+      for (int i = 0; i < Math.min(2, backups.size()); i++) {
+        BackupProtos.Header header = FullBackupImporter.readHeader(context, backups.get(i).getUri());
+
+        if (header.hasBaseId()) {
+          baseIds.add(header.getBaseId());
+        }
+      }
 
       for (int i = 2; i < backups.size(); i++) {
-        backups.get(i).delete();
+        BackupInfo backup = backups.get(i);
+
+        if (backup.getUri().toString().equals(base) || (!baseIds.isEmpty() && isBackupIn(context, backup, baseIds))) {
+          Log.i(TAG, "Keeping the base of a kept incremental backup.");
+          continue;
+        }
+
+        backup.delete();
       }
+    } catch (IOException e) {
+      Log.w(TAG, "Couldn't tell which bases the kept backups need, keeping everything.", e);
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
     }
   }
 
+  private static boolean isBackupIn(@NonNull Context context, @NonNull BackupInfo backup, @NonNull Set<ByteString> backupIds) {
+    try {
+      return backupIds.contains(FullBackupImporter.readHeader(context, backup.getUri()).getBackupId());
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read the header of " + backup.getUri() + ", keeping it.", e);
+      return true;
+    }
+  }
+
   public static void disableBackups(@NonNull Context context) {
     BackupPassphrase.set(context, null);
     TextSecurePreferences.setBackupEnabled(context, false);
@@ -126,7 +165,7 @@ public class BackupUtil {
     }
   }
 
-  private static List<BackupInfo> getAllBackupsNewestFirst() throws NoExternalStorageException {
+  public static List<BackupInfo> getAllBackupsNewestFirst() throws NoExternalStorageException {
     if (isUserSelectionRequired(ApplicationDependencies.getApplication())) {
       return getAllBackupsNewestFirstApi29();
     } else {
@@ -11,9 +11,12 @@ import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
 
 import org.thoughtcrime.securesms.attachments.Attachment;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartChannel;
 import org.thoughtcrime.securesms.database.AttachmentDatabase;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.mms.PartUriParser;
+import org.thoughtcrime.securesms.util.Util;
 
 import java.io.EOFException;
 import java.io.IOException;
@@ -21,14 +24,23 @@ import java.io.InputStream;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class PartDataSource implements DataSource {
 
+  private static final String TAG = PartDataSource.class.getSimpleName();
+
+  private static final long CHANNEL_IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(5);
+
   private final @NonNull  Context          context;
   private final @Nullable TransferListener listener;
+  private final           Runnable         releaseIdleChannel = this::releaseIdleChannel;
 
-  private Uri         uri;
-  private InputStream inputSteam;
+  private Uri                         uri;
+  private InputStream                 inputSteam;
+  private Uri                         channelUri;
+  private ModernDecryptingPartChannel channel;
+  private boolean                     opened;
 
   PartDataSource(@NonNull Context context, @Nullable TransferListener listener) {
     this.context  = context.getApplicationContext();
@@ -40,8 +52,11 @@ public class PartDataSource implements DataSource {
   }
 
   @Override
-  public long open(DataSpec dataSpec) throws IOException {
-    this.uri = dataSpec.uri;
+  public synchronized long open(DataSpec dataSpec) throws IOException {
+    Util.cancelRunnableOnMain(releaseIdleChannel);
+
+    this.uri    = dataSpec.uri;
+    this.opened = true;
 
     AttachmentDatabase attachmentDatabase = DatabaseFactory.getAttachmentDatabase(context);
     PartUriParser      partUri            = new PartUriParser(uri);
@@ -49,7 +64,19 @@ public class PartDataSource implements DataSource {
 
     if (attachment == null) throw new IOException("Attachment not found");
 
-    this.inputSteam = attachmentDatabase.getAttachmentStream(partUri.getPartId(), dataSpec.position);
+    if (!uri.equals(channelUri)) {
+      releaseChannel();
+
+      this.channel    = attachmentDatabase.getAttachmentChannel(partUri.getPartId());
+      this.channelUri = uri;
+    }
+
+    if (channel != null) {
+      channel.position(dataSpec.position);
+      this.inputSteam = null;
+    } else {
+      this.inputSteam = attachmentDatabase.getAttachmentStream(partUri.getPartId(), dataSpec.position);
+    }
 
     if (listener != null) {
       listener.onTransferStart(this, dataSpec, false);
@@ -62,7 +89,7 @@ public class PartDataSource implements DataSource {
 
   @Override
   public int read(byte[] buffer, int offset, int readLength) throws IOException {
-    int read = inputSteam.read(buffer, offset, readLength);
+    int read = channel != null ? channel.read(buffer, offset, readLength) : inputSteam.read(buffer, offset, readLength);
 
     if (read > 0 && listener != null) {
       listener.onBytesTransferred(this, null, false, read);
@@ -82,7 +109,41 @@ public class PartDataSource implements DataSource {
   }
 
   @Override
-  public void close() throws IOException {
-    inputSteam.close();
+  public synchronized void close() throws IOException {
+    opened = false;
+
+    if (inputSteam != null) {
+      inputSteam.close();
+      inputSteam = null;
+    }
+
+    if (channel != null) {
+      Util.runOnMainDelayed(releaseIdleChannel, CHANNEL_IDLE_TIMEOUT);
+    }
+  }
+
+  /**
+   * The player closes and re-opens its source every time it seeks, so the channel is kept open for
+   * a short while after the source is closed, and released if it isn't opened again by then.
+   */
+  private synchronized void releaseIdleChannel() {
+    if (opened) {
+      return;
+    }
+
+    try {
+      releaseChannel();
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to release channel.", e);
+    }
+  }
+
+  private void releaseChannel() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+
+    channel    = null;
+    channelUri = null;
   }
 }
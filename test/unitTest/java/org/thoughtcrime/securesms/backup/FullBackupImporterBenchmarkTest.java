@@ -0,0 +1,177 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.content.Context;
+
+import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Restores a synthetic backup with the database mocked out, so what's measured is reading frames,
+ * preparing statements, and moving attachments from the backup to local storage.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class FullBackupImporterBenchmarkTest {
+
+  private static final String PASSPHRASE  = "000000000000000000000000000000";
+  private static final int    STATEMENTS  = 20_000;
+  private static final int    ATTACHMENTS = 200;
+  private static final int    SEED        = 42;
+  private static final int[]  WORKERS     = { 1, 2, 4 };
+
+  private Context          context;
+  private AttachmentSecret attachmentSecret;
+  private File             backup;
+
+  @Before
+  public void setUp() throws IOException {
+    context          = RuntimeEnvironment.application;
+    attachmentSecret = new AttachmentSecret(null, null, Util.getSecretBytes(32));
+    backup           = File.createTempFile("benchmark", ".backup");
+
+    writeSyntheticBackup(backup);
+  }
+
+  @After
+  public void tearDown() {
+    backup.delete();
+    deleteParts();
+  }
+
+  @Test
+  public void benchmark_restoreThroughput() throws Exception {
+    StringBuilder report = new StringBuilder();
+    double        sizeMb = backup.length() / (1024.0 * 1024.0);
+
+    for (int workers : WORKERS) {
+      SQLiteDatabase  db        = mock(SQLiteDatabase.class);
+      SQLiteStatement statement = mock(SQLiteStatement.class);
+
+      when(db.getVersion()).thenReturn(Integer.MAX_VALUE);
+      when(db.compileStatement(anyString())).thenReturn(statement);
+
+      long start = System.nanoTime();
+
+      try (InputStream in = new FileInputStream(backup)) {
+        FullBackupImporter.importFile(context, attachmentSecret, db, in, PASSPHRASE, null, workers);
+      }
+
+      double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+
+      report.append(String.format(Locale.US, "\n  %d worker(s): %5.2f s, %6.1f MB/s", workers, seconds, sizeMb / seconds));
+
+      ArgumentCaptor<ContentValues> values    = ArgumentCaptor.forClass(ContentValues.class);
+      ArgumentCaptor<String[]>      whereArgs = ArgumentCaptor.forClass(String[].class);
+
+      verify(statement, times(STATEMENTS)).execute();
+      verify(db, times(ATTACHMENTS)).update(eq(AttachmentDatabase.TABLE_NAME), values.capture(), anyString(), whereArgs.capture());
+
+      assertRestored(values.getAllValues(), whereArgs.getAllValues());
+      deleteParts();
+    }
+
+    System.out.println(String.format(Locale.US, "%.1f MB backup", sizeMb) + report);
+  }
+
+  private void writeSyntheticBackup(File file) throws IOException {
+    FullBackupExporter.BackupFrameOutputStream out = new FullBackupExporter.BackupFrameOutputStream(new FileOutputStream(file), PASSPHRASE, Util.getSecretBytes(16), null);
+
+    try {
+      Random random = new Random(SEED);
+
+      out.writeDatabaseVersion(1);
+      out.write(BackupProtos.SqlStatement.newBuilder().setStatement("CREATE TABLE sms (_id INTEGER PRIMARY KEY, thread_id INTEGER, body TEXT, date INTEGER)").build());
+      out.write(BackupProtos.SqlStatement.newBuilder().setStatement("CREATE INDEX IF NOT EXISTS sms_thread_id_index ON sms (thread_id)").build());
+
+      for (int i = 0; i < STATEMENTS; i++) {
+        out.write(BackupProtos.SqlStatement.newBuilder()
+                                           .setStatement("INSERT INTO sms VALUES (?,?,?,?)")
+                                           .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(i))
+                                           .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(random.nextInt(500)))
+                                           .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter("Message body " + random.nextLong()))
+                                           .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(System.currentTimeMillis()))
+                                           .build());
+      }
+
+      for (int i = 0; i < ATTACHMENTS; i++) {
+        byte[] data = attachmentData(i);
+        out.write(new AttachmentId(i, i), "hash:" + i, new ByteArrayInputStream(data), data.length);
+      }
+
+      out.writeEnd();
+      out.close();
+    } finally {
+      out.abort();
+    }
+  }
+
+  /**
+   * Mostly the size of photos, with every 50th larger than the importer will buffer.
+   */
+  private static byte[] attachmentData(int index) {
+    Random random = new Random(SEED + index);
+    byte[] data   = new byte[index % 50 == 0 ? 6 * 1024 * 1024 : 32 * 1024 + random.nextInt(1024 * 1024)];
+
+    random.nextBytes(data);
+    return data;
+  }
+
+  private void assertRestored(List<ContentValues> updates, List<String[]> whereArgs) throws IOException {
+    for (int i = 0; i < updates.size(); i++) {
+      ContentValues update   = updates.get(i);
+      byte[]        expected = attachmentData(Integer.parseInt(whereArgs.get(i)[0]));
+      byte[]        actual   = new byte[expected.length];
+      File          file     = new File(update.getAsString(AttachmentDatabase.DATA));
+
+      try (InputStream in = ModernDecryptingPartInputStream.createFor(attachmentSecret, update.getAsByteArray(AttachmentDatabase.DATA_RANDOM), file, 0)) {
+        Util.readFully(in, actual);
+      }
+
+      assertArrayEquals(expected, actual);
+    }
+  }
+
+  private void deleteParts() {
+    File[] parts = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE).listFiles();
+
+    if (parts != null) {
+      for (File part : parts) {
+        part.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,107 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ModernDecryptingPartChannelTest {
+
+  private static final int LENGTH = 100 * 1024 + 13;
+
+  private final Random random = new Random(42);
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           plaintext;
+  private byte[]           partRandom;
+  private File             file;
+
+  @Before
+  public void setUp() throws Exception {
+    attachmentSecret = new AttachmentSecret(null, null, randomBytes(32));
+    plaintext        = randomBytes(LENGTH);
+    partRandom       = randomBytes(32);
+    file             = File.createTempFile("part", ".mms");
+
+    try (FileOutputStream out = new FileOutputStream(file)) {
+      out.write(encrypt(plaintext));
+    }
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void readAt_matchesPlaintextAtArbitraryPositions() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, partRandom, file)) {
+      assertEquals(LENGTH, channel.size());
+
+      for (int i = 0; i < 200; i++) {
+        int    position = random.nextInt(LENGTH);
+        int    length   = Math.min(1 + random.nextInt(70 * 1024), LENGTH - position);
+        byte[] buffer   = new byte[length];
+
+        assertEquals(length, channel.readAt(position, buffer, 0, length));
+        assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + length), buffer);
+      }
+
+      assertEquals(-1, channel.readAt(LENGTH, new byte[1], 0, 1));
+    }
+  }
+
+  @Test
+  public void createInputStream_matchesModernDecryptingPartInputStream() throws IOException {
+    long offset = 12345;
+
+    try (InputStream expected = ModernDecryptingPartInputStream.createFor(attachmentSecret, partRandom, file, offset);
+         InputStream actual   = ModernDecryptingPartChannel.createFor(attachmentSecret, partRandom, file).createInputStream(offset))
+    {
+      assertArrayEquals(readFully(expected), readFully(actual));
+    }
+  }
+
+  private byte[] encrypt(byte[] data) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(partRandom), "AES"), new IvParameterSpec(new byte[16]));
+
+    return cipher.doFinal(data);
+  }
+
+  private byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    random.nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out    = new ByteArrayOutputStream();
+    byte[]                buffer = new byte[4096];
+    int                   read;
+
+    while ((read = in.read(buffer)) != -1) {
+      out.write(buffer, 0, read);
+    }
+
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,184 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeNoException;
+
+/**
+ * Reads the attachments of a media heavy conversation page by page, comparing attachments joined
+ * into each row as JSON with fetching them for the whole page in one query.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class ConversationAttachmentBenchmarkTest {
+
+  private static final long THREAD_ID   = 1;
+  private static final int  MESSAGES    = 5_000;
+  private static final int  ATTACHMENTS = 3;
+  private static final int  PAGE_SIZE   = 50;
+  private static final int  PAGES       = 40;
+
+  private SQLiteDatabase     db;
+  private AttachmentDatabase attachmentDatabase;
+
+  @Before
+  public void setUp() {
+    db                 = SQLiteDatabase.create(null);
+    attachmentDatabase = new AttachmentDatabase(RuntimeEnvironment.application, null, null);
+
+    try {
+      db.rawQuery("SELECT json_group_array(1)", null).close();
+    } catch (SQLiteException e) {
+      assumeNoException("Attachments joined as JSON need the JSON1 extension.", e);
+    }
+
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    db.execSQL(MmsDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+
+    for (String[] indexes : new String[][] { SmsDatabase.CREATE_INDEXS, MmsDatabase.CREATE_INDEXS, AttachmentDatabase.CREATE_INDEXS }) {
+      for (String index : indexes) {
+        db.execSQL(index);
+      }
+    }
+
+    insertThread();
+  }
+
+  @After
+  public void tearDown() {
+    if (db != null) db.close();
+  }
+
+  @Test
+  public void benchmark_pageDecodeTime() {
+    long json = 0;
+    long lazy = 0;
+
+    MmsSmsDatabase.PageKey before = null;
+
+    for (int page = 0; page < PAGES; page++) {
+      Map<Long, Set<AttachmentId>> fromJson = new HashMap<>();
+      Map<Long, Set<AttachmentId>> fromPage = new HashMap<>();
+
+      long start = System.nanoTime();
+      MmsSmsDatabase.PageKey next = readJoined(before, fromJson);
+      json += System.nanoTime() - start;
+
+      start = System.nanoTime();
+      readLazily(before, fromPage);
+      lazy += System.nanoTime() - start;
+
+      assertEquals(PAGE_SIZE, fromJson.size());
+      assertEquals(fromJson, fromPage);
+
+      before = next;
+    }
+
+    System.out.println(String.format(Locale.US, "%d messages with %d attachments each, %d pages of %d\n  joined as JSON: %6.2f ms per page\n  fetched by page: %6.2f ms per page",
+                                     MESSAGES, ATTACHMENTS, PAGES, PAGE_SIZE, json / 1_000_000.0 / PAGES, lazy / 1_000_000.0 / PAGES));
+  }
+
+  /**
+   * The way pages used to be read, with the JSON parsed for the message and again for its quote.
+   */
+  private MmsSmsDatabase.PageKey readJoined(MmsSmsDatabase.PageKey before, Map<Long, Set<AttachmentId>> results) {
+    MmsSmsDatabase.PageKey last = null;
+
+    try (Cursor cursor = db.rawQuery(MmsSmsDatabase.buildConversationQuery(THREAD_ID, before, 0, PAGE_SIZE, true), null)) {
+      while (cursor.moveToNext()) {
+        long id = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
+
+        results.put(id, attachmentIds(attachmentDatabase.getAttachment(cursor)));
+        attachmentDatabase.getAttachment(cursor);
+
+        last = new MmsSmsDatabase.PageKey(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)), true, id);
+      }
+    }
+
+    return last;
+  }
+
+  private void readLazily(MmsSmsDatabase.PageKey before, Map<Long, Set<AttachmentId>> results) {
+    List<Long> ids = new LinkedList<>();
+
+    try (Cursor cursor = db.rawQuery(MmsSmsDatabase.buildConversationQuery(THREAD_ID, before, 0, PAGE_SIZE, false), null)) {
+      while (cursor.moveToNext()) {
+        ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)));
+      }
+    }
+
+    String selection = AttachmentDatabase.MMS_ID + " IN (" + Util.join(ids, ",") + ")";
+
+    try (Cursor cursor = db.query(AttachmentDatabase.TABLE_NAME, null, selection, null, null, null, AttachmentDatabase.UNIQUE_ID + " ASC, " + AttachmentDatabase.ROW_ID + " ASC")) {
+      for (Map.Entry<Long, List<DatabaseAttachment>> message : attachmentDatabase.getAttachmentsByMessage(cursor).entrySet()) {
+        results.put(message.getKey(), attachmentIds(message.getValue()));
+      }
+    }
+  }
+
+  private void insertThread() {
+    SQLiteStatement mms  = db.compileStatement("INSERT INTO " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.THREAD_ID + ", " + MmsDatabase.RECIPIENT_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.DATE_SENT + ", " + MmsDatabase.MESSAGE_BOX + ", " + MmsDatabase.BODY + ", " + MmsDatabase.MESSAGE_TYPE + ") VALUES (?, 1, ?, ?, 20, ?, 128)");
+    SQLiteStatement part = db.compileStatement("INSERT INTO " + AttachmentDatabase.TABLE_NAME + " (" + AttachmentDatabase.MMS_ID + ", " + AttachmentDatabase.UNIQUE_ID + ", " + AttachmentDatabase.CONTENT_TYPE + ", " + AttachmentDatabase.SIZE + ", " + AttachmentDatabase.FILE_NAME + ", " + AttachmentDatabase.WIDTH + ", " + AttachmentDatabase.HEIGHT + ", " + AttachmentDatabase.CAPTION + ", " + AttachmentDatabase.TRANSFER_STATE + ") VALUES (?, ?, 'image/jpeg', 524288, ?, 1920, 1080, ?, 0)");
+
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < MESSAGES; i++) {
+        long date = 1_500_000_000_000L + i;
+
+        mms.bindLong(1, THREAD_ID);
+        mms.bindLong(2, date);
+        mms.bindLong(3, date);
+        mms.bindString(4, "Message " + i);
+
+        long id = mms.executeInsert();
+
+        for (int j = 0; j < ATTACHMENTS; j++) {
+          part.bindLong(1, id);
+          part.bindLong(2, (long) i * ATTACHMENTS + j);
+          part.bindString(3, "IMG_" + i + "_" + j + ".jpg");
+          part.bindString(4, "Caption " + j);
+          part.executeInsert();
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private static Set<AttachmentId> attachmentIds(List<DatabaseAttachment> attachments) {
+    Set<AttachmentId> ids = new HashSet<>();
+
+    for (DatabaseAttachment attachment : attachments) {
+      ids.add(attachment.getAttachmentId());
+    }
+
+    return ids;
+  }
+}
@@ -0,0 +1,174 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Pages back through a synthetic 100k message thread, comparing offset paging with paging from
+ * where the previous page ended. Runs the real conversation query against the real schema.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public class MmsSmsDatabaseConversationBenchmarkTest {
+
+  private static final long  THREAD_ID = 1;
+  private static final int   MESSAGES  = 100_000;
+  private static final int   PAGE_SIZE = 100;
+  private static final int[] DEPTHS    = { 0, 100, 250, 500, 750, 999 };
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    db.execSQL(MmsDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+
+    for (String[] indexes : new String[][] { SmsDatabase.CREATE_INDEXS, MmsDatabase.CREATE_INDEXS, AttachmentDatabase.CREATE_INDEXS }) {
+      for (String index : indexes) {
+        db.execSQL(index);
+      }
+    }
+
+    insertThread();
+  }
+
+  @After
+  public void tearDown() {
+    if (db != null) db.close();
+  }
+
+  @Test
+  public void benchmark_pageLoadTimeByDepth() {
+    List<MmsSmsDatabase.PageKey> pageEnds = new ArrayList<>();
+    Set<String>                  seen     = new HashSet<>();
+    long[]                       keyset   = new long[DEPTHS.length];
+    MmsSmsDatabase.PageKey       before   = null;
+
+    for (int page = 0, depth = 0; ; page++) {
+      long      start = System.nanoTime();
+      List<Row> rows  = query(MmsSmsDatabase.buildConversationQuery(THREAD_ID, before, 0, PAGE_SIZE, false));
+      long      time  = System.nanoTime() - start;
+
+      if (depth < DEPTHS.length && DEPTHS[depth] == page) {
+        keyset[depth++] = time;
+      }
+
+      if (rows.isEmpty()) break;
+
+      for (Row row : rows) {
+        assertTrue("Duplicate row " + row, seen.add(row.toString()));
+      }
+
+      before = rows.get(rows.size() - 1).toPageKey();
+      pageEnds.add(before);
+    }
+
+    assertEquals(MESSAGES, seen.size());
+
+    StringBuilder report = new StringBuilder();
+
+    for (int i = 0; i < DEPTHS.length; i++) {
+      int       page  = DEPTHS[i];
+      long      start = System.nanoTime();
+      List<Row> rows  = query(MmsSmsDatabase.buildConversationQuery(THREAD_ID, null, (long) page * PAGE_SIZE, PAGE_SIZE, false));
+      long      time  = System.nanoTime() - start;
+
+      assertEquals(query(MmsSmsDatabase.buildConversationQuery(THREAD_ID, page > 0 ? pageEnds.get(page - 1) : null, 0, PAGE_SIZE, false)).toString(), rows.toString());
+
+      report.append(String.format(Locale.US, "\n  page %4d: offset %7.2f ms, keyset %7.2f ms", page, time / 1_000_000.0, keyset[i] / 1_000_000.0));
+    }
+
+    System.out.println(MESSAGES + " messages, " + PAGE_SIZE + " per page" + report);
+  }
+
+  /**
+   * Alternates SMS and MMS, with runs of messages received in the same millisecond so the order
+   * depends on the tiebreaks. Every MMS has an attachment.
+   */
+  private void insertThread() {
+    SQLiteStatement sms  = db.compileStatement("INSERT INTO " + SmsDatabase.TABLE_NAME + " (" + SmsDatabase.THREAD_ID + ", " + SmsDatabase.RECIPIENT_ID + ", " + SmsDatabase.DATE_RECEIVED + ", " + SmsDatabase.DATE_SENT + ", " + SmsDatabase.TYPE + ", " + SmsDatabase.BODY + ") VALUES (?, 1, ?, ?, 20, ?)");
+    SQLiteStatement mms  = db.compileStatement("INSERT INTO " + MmsDatabase.TABLE_NAME + " (" + MmsDatabase.THREAD_ID + ", " + MmsDatabase.RECIPIENT_ID + ", " + MmsDatabase.DATE_RECEIVED + ", " + MmsDatabase.DATE_SENT + ", " + MmsDatabase.MESSAGE_BOX + ", " + MmsDatabase.BODY + ", " + MmsDatabase.MESSAGE_TYPE + ") VALUES (?, 1, ?, ?, 20, ?, 128)");
+    SQLiteStatement part = db.compileStatement("INSERT INTO " + AttachmentDatabase.TABLE_NAME + " (" + AttachmentDatabase.MMS_ID + ", " + AttachmentDatabase.UNIQUE_ID + ", " + AttachmentDatabase.CONTENT_TYPE + ", " + AttachmentDatabase.SIZE + ") VALUES (?, ?, 'image/jpeg', 1024)");
+
+    db.beginTransaction();
+    try {
+      for (int i = 0; i < MESSAGES; i++) {
+        long            date      = 1_500_000_000_000L + i / 3;
+        SQLiteStatement statement = i % 2 == 0 ? sms : mms;
+
+        statement.bindLong(1, THREAD_ID);
+        statement.bindLong(2, date);
+        statement.bindLong(3, date);
+        statement.bindString(4, "Message " + i);
+
+        long id = statement.executeInsert();
+
+        if (statement == mms) {
+          part.bindLong(1, id);
+          part.bindLong(2, i);
+          part.executeInsert();
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  private List<Row> query(String query) {
+    List<Row> rows = new ArrayList<>(PAGE_SIZE);
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        rows.add(new Row(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED)),
+                         cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT)),
+                         cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID))));
+      }
+    }
+
+    return rows;
+  }
+
+  private static final class Row {
+    private final long   dateReceived;
+    private final String transport;
+    private final long   id;
+
+    private Row(long dateReceived, String transport, long id) {
+      this.dateReceived = dateReceived;
+      this.transport    = transport;
+      this.id           = id;
+    }
+
+    MmsSmsDatabase.PageKey toPageKey() {
+      return new MmsSmsDatabase.PageKey(dateReceived, MmsSmsDatabase.MMS_TRANSPORT.equals(transport), id);
+    }
+
+    @Override
+    public String toString() {
+      return transport + ":" + id + "@" + dateReceived;
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+
+import java.util.Locale;
+
+/**
+ * Compares the size and round trip speed of the binary and JSON serializers.
+ */
+public final class BinaryDataSerializerBenchmarkTest {
+
+  private static final int BENCHMARK_ITERATIONS = 20000;
+
+  @Test
+  public void benchmark_againstJson() {
+    Data typical = new Data.Builder().putString("message_id", "1234")
+                                     .putLong("message_id", 1234)
+                                     .putBoolean("is_mms", true)
+                                     .putString("recipient", "5")
+                                     .putLongArray("recipients", new long[]{ 1, 2, 3, 4, 5 })
+                                     .build();
+
+    benchmark("typical", typical);
+    benchmark("full", BinaryDataSerializerTest.fullData());
+  }
+
+  private static void benchmark(String name, Data data) {
+    Data.Serializer json   = new JsonDataSerializer();
+    Data.Serializer binary = new BinaryDataSerializer();
+
+    String jsonSerialized   = json.serialize(data);
+    String binarySerialized = binary.serialize(data);
+
+    // Warm up
+    run(json, data, BENCHMARK_ITERATIONS / 4);
+    run(binary, data, BENCHMARK_ITERATIONS / 4);
+
+    long jsonNanos   = run(json, data, BENCHMARK_ITERATIONS);
+    long binaryNanos = run(binary, data, BENCHMARK_ITERATIONS);
+
+    System.out.println(String.format(Locale.US, "%s: json %d bytes, %.0f round trips/sec | binary %d bytes, %.0f round trips/sec",
+                                     name,
+                                     jsonSerialized.length(),
+                                     BENCHMARK_ITERATIONS * 1e9 / jsonNanos,
+                                     binarySerialized.length(),
+                                     BENCHMARK_ITERATIONS * 1e9 / binaryNanos));
+  }
+
+  private static long run(Data.Serializer serializer, Data data, int iterations) {
+    long start = System.nanoTime();
+
+    for (int i = 0; i < iterations; i++) {
+      serializer.deserialize(serializer.serialize(data));
+    }
+
+    return System.nanoTime() - start;
+  }
+}
@@ -0,0 +1,144 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.util.Util;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public final class BinaryDataSerializerTest {
+
+  private static final float FloatDelta = 0.00001f;
+
+  @Test
+  public void serialize_roundTripsAllTypes() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 data       = serializer.deserialize(serializer.serialize(fullData()));
+
+    assertFullData(data);
+  }
+
+  @Test
+  public void serialize_roundTripsNullsAndUnicode() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 input      = new Data.Builder().putString("null", null)
+                                                        .putString("empty", "")
+                                                        .putString("unicode", "é中😀")
+                                                        .putStringArray("array", new String[]{ "a", null, "" })
+                                                        .build();
+
+    Data data = serializer.deserialize(serializer.serialize(input));
+
+    assertTrue(data.hasString("null"));
+    assertNull(data.getString("null"));
+    assertEquals("", data.getString("empty"));
+    assertEquals("é中😀", data.getString("unicode"));
+    assertArrayEquals(new String[]{ "a", null, "" }, data.getStringArray("array"));
+  }
+
+  @Test
+  public void serialize_roundTripsNullArrays() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 input      = new Data.Builder().putStringArray("strings", null)
+                                                        .putLongArray("longs", null)
+                                                        .build();
+
+    Data data = serializer.deserialize(serializer.serialize(input));
+
+    assertTrue(data.hasStringArray("strings"));
+    assertNull(data.getStringArray("strings"));
+    assertTrue(data.hasLongArray("longs"));
+    assertNull(data.getLongArrays().get("longs"));
+  }
+
+  @Test
+  public void deserialize_readsVersionOne() {
+    Data data = new BinaryDataSerializer().deserialize("AQECYQQBAAICBA==");
+
+    assertArrayEquals(new int[]{ 1, 2 }, data.getIntegerArray("a"));
+  }
+
+  @Test
+  public void serialize_empty() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    Data                 data       = serializer.deserialize(serializer.serialize(Data.EMPTY));
+
+    assertFalse(data.hasString("s1"));
+    assertFalse(data.hasInt("i1"));
+  }
+
+  @Test
+  public void deserialize_readsLegacyJson() throws IOException {
+    Data data = new BinaryDataSerializer().deserialize(Util.readFullyAsString(ClassLoader.getSystemClassLoader().getResourceAsStream("data/data_serialized.json")));
+
+    assertEquals("s1 value", data.getString("s1"));
+    assertEquals(Integer.MIN_VALUE, data.getInt("min"));
+    assertEquals(Long.MIN_VALUE, data.getLong("min"));
+    assertArrayEquals(new boolean[]{ false, true }, data.getBooleanArray("b_array_1"));
+  }
+
+  @Test
+  public void serialize_isSmallerThanJson() {
+    Data data = fullData();
+
+    assertTrue(new BinaryDataSerializer().serialize(data).length() < new JsonDataSerializer().serialize(data).length());
+  }
+
+  static Data fullData() {
+    return new Data.Builder().putString("s1", "s1 value")
+                             .putString("s2", "s2 value")
+                             .putStringArray("s_array_1", new String[]{ "a", "b", "c" })
+                             .putInt("i1", 1)
+                             .putInt("i2", 2)
+                             .putInt("max", Integer.MAX_VALUE)
+                             .putInt("min", Integer.MIN_VALUE)
+                             .putIntArray("i_array_1", new int[]{ 1, 2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE })
+                             .putLong("l1", 10)
+                             .putLong("l2", 20)
+                             .putLong("max", Long.MAX_VALUE)
+                             .putLong("min", Long.MIN_VALUE)
+                             .putLongArray("l_array_1", new long[]{ 1, 2, 3, Long.MAX_VALUE, Long.MIN_VALUE })
+                             .putFloat("f1", 1.2f)
+                             .putFloat("f2", 3.4f)
+                             .putFloatArray("f_array_1", new float[]{ 5.6f, 7.8f })
+                             .putDouble("d1", 10.2)
+                             .putDouble("d2", 30.4)
+                             .putDoubleArray("d_array_1", new double[]{ 50.6, 70.8 })
+                             .putBoolean("b1", true)
+                             .putBoolean("b2", false)
+                             .putBooleanArray("b_array_1", new boolean[]{ false, true })
+                             .build();
+  }
+
+  private static void assertFullData(Data data) {
+    assertEquals("s1 value", data.getString("s1"));
+    assertEquals("s2 value", data.getString("s2"));
+    assertArrayEquals(new String[]{ "a", "b", "c" }, data.getStringArray("s_array_1"));
+
+    assertEquals(1, data.getInt("i1"));
+    assertEquals(2, data.getInt("i2"));
+    assertEquals(Integer.MAX_VALUE, data.getInt("max"));
+    assertEquals(Integer.MIN_VALUE, data.getInt("min"));
+    assertArrayEquals(new int[]{ 1, 2, 3, Integer.MAX_VALUE, Integer.MIN_VALUE }, data.getIntegerArray("i_array_1"));
+
+    assertEquals(10, data.getLong("l1"));
+    assertEquals(20, data.getLong("l2"));
+    assertEquals(Long.MAX_VALUE, data.getLong("max"));
+    assertEquals(Long.MIN_VALUE, data.getLong("min"));
+    assertArrayEquals(new long[]{ 1, 2, 3, Long.MAX_VALUE, Long.MIN_VALUE }, data.getLongArray("l_array_1"));
+
+    assertEquals(1.2f, data.getFloat("f1"), FloatDelta);
+    assertEquals(3.4f, data.getFloat("f2"), FloatDelta);
+    assertArrayEquals(new float[]{ 5.6f, 7.8f }, data.getFloatArray("f_array_1"), FloatDelta);
+
+    assertEquals(10.2, data.getDouble("d1"), FloatDelta);
+    assertEquals(30.4, data.getDouble("d2"), FloatDelta);
+    assertArrayEquals(new double[]{ 50.6, 70.8 }, data.getDoubleArray("d_array_1"), FloatDelta);
+
+    assertTrue(data.getBoolean("b1"));
+    assertFalse(data.getBoolean("b2"));
+    assertArrayEquals(new boolean[]{ false, true }, data.getBooleanArray("b_array_1"));
+  }
+}
@@ -0,0 +1,382 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+import android.app.job.JobInfo;
+import android.text.TextUtils;
+
+import androidx.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.powermock.api.mockito.PowerMockito.mock;
+import static org.powermock.api.mockito.PowerMockito.mockStatic;
+import static org.powermock.api.mockito.PowerMockito.when;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ Log.class, TextUtils.class })
+public class JobControllerTest {
+
+  private static final int JOB_COUNT   = 5000;
+  private static final int QUEUE_COUNT = 64;
+  private static final int BATCH_SIZE  = 100;
+
+  private final List<Thread> runners = new ArrayList<>();
+
+  @Before
+  public void setUp() {
+    mockStatic(Log.class);
+    mockStatic(TextUtils.class);
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    for (Thread runner : runners) {
+      runner.interrupt();
+    }
+
+    for (Thread runner : runners) {
+      runner.join(TimeUnit.SECONDS.toMillis(5));
+    }
+  }
+
+  /**
+   * Runs {@link #JOB_COUNT} trivial jobs spread over {@link #QUEUE_COUNT} queues through several
+   * runner threads, verifying that every job runs exactly once and in order within its queue.
+   */
+  @Test
+  public void stress_everyJobRunsOnceInQueueOrder() throws Exception {
+    int                        runnerCount = 8;
+    CountDownLatch             latch       = new CountDownLatch(JOB_COUNT);
+    Map<String, List<Integer>> runsByQueue = new ConcurrentHashMap<>();
+    Map<String, Job.Factory>   factories   = new HashMap<>();
+
+    factories.put(TestJob.KEY, (parameters, data) -> new TestJob(parameters, data.getInt(TestJob.KEY_INDEX), runsByQueue, latch));
+
+    JobController controller = new JobController(mock(Application.class),
+                                                 new FastJobStorage(noopDatabase()),
+                                                 new JobInstantiator(factories),
+                                                 new ConstraintInstantiator(Collections.emptyMap()),
+                                                 new JsonDataSerializer(),
+                                                 new JobTracker(),
+                                                 mock(Scheduler.class),
+                                                 mock(Debouncer.class),
+                                                 () -> {},
+                                                 runnerCount,
+                                                 Collections.emptyMap());
+
+    controller.init();
+    startRunners(controller, runnerCount, Job.Parameters.PRIORITY_LOW);
+
+    for (int i = 0; i < JOB_COUNT; i += BATCH_SIZE) {
+      List<Job> batch = new ArrayList<>(BATCH_SIZE);
+
+      for (int j = i; j < i + BATCH_SIZE; j++) {
+        batch.add(new TestJob(new Job.Parameters.Builder().setQueue(queueForIndex(j)).build(), j, runsByQueue, latch));
+      }
+
+      controller.submitNewJobChain(Collections.singletonList(batch));
+    }
+
+    assertTrue("Timed out waiting for jobs to finish.", latch.await(60, TimeUnit.SECONDS));
+
+    int total = 0;
+
+    for (Map.Entry<String, List<Integer>> entry : runsByQueue.entrySet()) {
+      List<Integer> runs = entry.getValue();
+
+      for (int i = 1; i < runs.size(); i++) {
+        assertTrue("Out of order in " + entry.getKey(), runs.get(i - 1) < runs.get(i));
+      }
+
+      total += runs.size();
+    }
+
+    assertEquals(JOB_COUNT, total);
+  }
+
+  @Test
+  public void unmetConstraint_checkedOnceUntilObserverFires() throws Exception {
+    CountDownLatch             unconstrainedLatch = new CountDownLatch(50);
+    CountDownLatch             constrainedLatch   = new CountDownLatch(50);
+    Map<String, List<Integer>> runsByQueue        = new ConcurrentHashMap<>();
+    TestConstraint             constraint         = new TestConstraint();
+    Map<String, Job.Factory>   factories          = new HashMap<>();
+
+    factories.put(TestJob.KEY, (parameters, data) -> new TestJob(parameters,
+                                                                 data.getInt(TestJob.KEY_INDEX),
+                                                                 runsByQueue,
+                                                                 parameters.getConstraintKeys().isEmpty() ? unconstrainedLatch : constrainedLatch));
+
+    JobController controller = new JobController(mock(Application.class),
+                                                 new FastJobStorage(noopDatabase()),
+                                                 new JobInstantiator(factories),
+                                                 new ConstraintInstantiator(Collections.singletonMap(TestConstraint.KEY, () -> constraint)),
+                                                 new JsonDataSerializer(),
+                                                 new JobTracker(),
+                                                 mock(Scheduler.class),
+                                                 mock(Debouncer.class),
+                                                 () -> {},
+                                                 4,
+                                                 Collections.emptyMap());
+
+    controller.init();
+
+    for (int i = 0; i < 50; i++) {
+      Job.Parameters parameters = new Job.Parameters.Builder().setQueue(queueForIndex(i)).addConstraint(TestConstraint.KEY).build();
+      controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(new TestJob(parameters, i, runsByQueue, constrainedLatch))));
+    }
+
+    startRunners(controller, 4, Job.Parameters.PRIORITY_LOW);
+
+    for (int i = 0; i < 50; i++) {
+      Job.Parameters parameters = new Job.Parameters.Builder().setQueue("unconstrained-" + i).build();
+      controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(new TestJob(parameters, i, runsByQueue, unconstrainedLatch))));
+    }
+
+    assertTrue("Timed out waiting for unconstrained jobs.", unconstrainedLatch.await(10, TimeUnit.SECONDS));
+    assertEquals(50, constrainedLatch.getCount());
+    assertEquals(1, constraint.checks.get());
+
+    constraint.met = true;
+    controller.onConstraintMet();
+
+    assertTrue("Timed out waiting for constrained jobs.", constrainedLatch.await(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void priorities_lowPriorityCappedAndHighPriorityReserved() throws Exception {
+    CountDownLatch           release   = new CountDownLatch(1);
+    List<Integer>            started   = Collections.synchronizedList(new ArrayList<>());
+    CountDownLatch           finished  = new CountDownLatch(5);
+    Map<String, Job.Factory> factories = new HashMap<>();
+
+    factories.put(BlockingJob.KEY, (parameters, data) -> new BlockingJob(parameters, started, release, finished));
+
+    JobController controller = new JobController(mock(Application.class),
+                                                 new FastJobStorage(noopDatabase()),
+                                                 new JobInstantiator(factories),
+                                                 new ConstraintInstantiator(Collections.emptyMap()),
+                                                 new JsonDataSerializer(),
+                                                 new JobTracker(),
+                                                 mock(Scheduler.class),
+                                                 mock(Debouncer.class),
+                                                 () -> {},
+                                                 2,
+                                                 Collections.emptyMap());
+
+    controller.init();
+    startRunners(controller, 2, Job.Parameters.PRIORITY_LOW);
+    startRunners(controller, 1, Job.Parameters.PRIORITY_HIGH);
+
+    for (int i = 0; i < 3; i++) {
+      submit(controller, new BlockingJob(new Job.Parameters.Builder().setQueue("low-" + i).setPriority(Job.Parameters.PRIORITY_LOW).build(), started, release, finished));
+    }
+
+    Thread.sleep(200);
+    assertEquals(Collections.singletonList(Job.Parameters.PRIORITY_LOW), new ArrayList<>(started));
+
+    submit(controller, new BlockingJob(new Job.Parameters.Builder().setQueue("default").build(), started, release, finished));
+    waitForStartedCount(started, 2);
+    assertEquals(Job.Parameters.PRIORITY_DEFAULT, (int) started.get(1));
+
+    submit(controller, new BlockingJob(new Job.Parameters.Builder().setQueue("high").setPriority(Job.Parameters.PRIORITY_HIGH).build(), started, release, finished));
+    waitForStartedCount(started, 3);
+    assertEquals(Job.Parameters.PRIORITY_HIGH, (int) started.get(2));
+
+    release.countDown();
+
+    assertTrue("Timed out waiting for jobs to finish.", finished.await(10, TimeUnit.SECONDS));
+    assertTrue(controller.getDebugInfo().contains("-- Wait Times"));
+  }
+
+  private static void submit(@NonNull JobController controller, @NonNull Job job) {
+    controller.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+  }
+
+  private static void waitForStartedCount(@NonNull List<Integer> started, int count) throws InterruptedException {
+    long timeout = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+    while (started.size() < count && System.currentTimeMillis() < timeout) {
+      Thread.sleep(10);
+    }
+
+    assertEquals(count, started.size());
+  }
+
+  /**
+   * Runners stop when interrupted by {@link #tearDown()}. The controller surfaces an interrupted
+   * wait as an {@link AssertionError} wrapping the {@link InterruptedException}.
+   */
+  private void startRunners(@NonNull JobController controller, int runnerCount, int minimumPriority) {
+    for (int i = 0; i < runnerCount; i++) {
+      Thread runner = new Thread(() -> {
+        try {
+          while (!Thread.currentThread().isInterrupted()) {
+            Job job = controller.pullNextEligibleJobForExecution(minimumPriority);
+            job.run();
+            controller.onJobFinished(job);
+            controller.onSuccess(job);
+          }
+        } catch (AssertionError e) {
+          if (!(e.getCause() instanceof InterruptedException)) {
+            throw e;
+          }
+        }
+      }, "test-JobRunner-" + i);
+
+      runner.setDaemon(true);
+      runner.start();
+      runners.add(runner);
+    }
+  }
+
+  private static @NonNull String queueForIndex(int index) {
+    return "queue-" + (index % QUEUE_COUNT);
+  }
+
+  private static @NonNull JobDatabase noopDatabase() {
+    JobDatabase database = mock(JobDatabase.class);
+
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    return database;
+  }
+
+  private static final class TestConstraint implements Constraint {
+
+    private static final String KEY = "TestConstraint";
+
+    private final AtomicInteger checks = new AtomicInteger();
+
+    private volatile boolean met;
+
+    @Override
+    public boolean isMet() {
+      checks.incrementAndGet();
+      return met;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public void applyToJobInfo(@NonNull JobInfo.Builder jobInfoBuilder) {
+    }
+  }
+
+  private static final class BlockingJob extends Job {
+
+    private static final String KEY = "BlockingJob";
+
+    private final List<Integer>  started;
+    private final CountDownLatch release;
+    private final CountDownLatch finished;
+
+    private BlockingJob(@NonNull Parameters parameters, @NonNull List<Integer> started, @NonNull CountDownLatch release, @NonNull CountDownLatch finished) {
+      super(parameters);
+      this.started  = started;
+      this.release  = release;
+      this.finished = finished;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      started.add(getParameters().getPriority());
+
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      finished.countDown();
+      return Result.success();
+    }
+
+    @Override
+    public void onCanceled() {
+    }
+  }
+
+  private static final class TestJob extends Job {
+
+    private static final String KEY       = "TestJob";
+    private static final String KEY_INDEX = "index";
+
+    private final int                        index;
+    private final Map<String, List<Integer>> runsByQueue;
+    private final CountDownLatch             latch;
+
+    private TestJob(@NonNull Parameters parameters, int index, @NonNull Map<String, List<Integer>> runsByQueue, @NonNull CountDownLatch latch) {
+      super(parameters);
+      this.index       = index;
+      this.runsByQueue = runsByQueue;
+      this.latch       = latch;
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return new Data.Builder().putInt(KEY_INDEX, index).build();
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      List<Integer> runs = runsByQueue.get(getParameters().getQueue());
+
+      if (runs == null) {
+        runsByQueue.putIfAbsent(getParameters().getQueue(), Collections.synchronizedList(new ArrayList<>()));
+        runs = runsByQueue.get(getParameters().getQueue());
+      }
+
+      runs.add(index);
+      latch.countDown();
+
+      return Result.success();
+    }
+
+    @Override
+    public void onCanceled() {
+    }
+  }
+}
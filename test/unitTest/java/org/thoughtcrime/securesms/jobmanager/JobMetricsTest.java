@@ -0,0 +1,123 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public final class JobMetricsTest {
+
+  @Test
+  public void histogram_keepsOnlyMostRecentSamples() {
+    JobMetrics metrics = new JobMetrics();
+
+    for (int i = 1; i <= 1000; i++) {
+      metrics.onJobStarted("factory", i);
+    }
+
+    JobMetrics.Histogram waitTimes = metrics.getSnapshot().getFactories().get(0).getWaitTimes();
+
+    assertEquals(1000, waitTimes.getTotalCount());
+    assertEquals(1000, waitTimes.getMax());
+    assertTrue(waitTimes.getPercentile(0) > 800);
+    assertTrue(waitTimes.getPercentile(50) > 900);
+  }
+
+  @Test
+  public void histogram_percentiles() {
+    JobMetrics metrics = new JobMetrics();
+
+    for (int i = 100; i >= 1; i--) {
+      metrics.onJobRunFinished("factory", i);
+    }
+
+    JobMetrics.Histogram runTimes = metrics.getSnapshot().getFactories().get(0).getRunTimes();
+
+    assertEquals(50, runTimes.getPercentile(50));
+    assertEquals(90, runTimes.getPercentile(90));
+    assertEquals(99, runTimes.getPercentile(99));
+    assertEquals(100, runTimes.getMax());
+  }
+
+  @Test
+  public void queueDepth_removedOnceEmpty() {
+    JobMetrics metrics = new JobMetrics();
+
+    metrics.onJobQueued("queue");
+    metrics.onJobQueued("queue");
+    metrics.onJobQueued(null);
+
+    assertEquals(Integer.valueOf(2), metrics.getSnapshot().getQueueDepths().get("queue"));
+
+    metrics.onJobRemoved("factory", "queue", 1, true);
+    metrics.onJobRemoved("factory", "queue", 3, false);
+
+    JobMetrics.Snapshot        snapshot = metrics.getSnapshot();
+    JobMetrics.FactorySnapshot factory  = snapshot.getFactories().get(0);
+
+    assertFalse(snapshot.getQueueDepths().containsKey("queue"));
+    assertEquals(0, metrics.getTrackedQueueCount());
+    assertEquals(1, factory.getSucceeded());
+    assertEquals(1, factory.getFailed());
+    assertEquals(3, factory.getAttempts().getMax());
+  }
+
+  @Test
+  public void queueDepth_concurrentQueueAndRemove_neverLosesACount() throws InterruptedException {
+    JobMetrics   metrics = new JobMetrics();
+    List<Thread> threads = new ArrayList<>();
+
+    metrics.onJobQueued("queue-0");
+
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10000; i++) {
+          String queueKey = "queue-" + (i % 4);
+
+          metrics.onJobQueued(queueKey);
+          metrics.onJobRemoved("factory", queueKey, 1, true);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertEquals(Integer.valueOf(1), metrics.getSnapshot().getQueueDepths().get("queue-0"));
+    assertEquals(1, metrics.getTrackedQueueCount());
+  }
+
+  @Test
+  public void concurrentRecording_countsEverySample() throws InterruptedException {
+    JobMetrics   metrics = new JobMetrics();
+    List<Thread> threads = new ArrayList<>();
+
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread(() -> {
+        for (int i = 0; i < 10000; i++) {
+          metrics.onJobStarted("factory", i);
+          metrics.onJobFailureCause("factory", "cause");
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    JobMetrics.FactorySnapshot factory = metrics.getSnapshot().getFactories().get(0);
+
+    assertEquals(40000, factory.getStarted());
+    assertEquals(40000, factory.getWaitTimes().getTotalCount());
+    assertEquals(Long.valueOf(40000), factory.getFailureCauses().get("cause"));
+  }
+}
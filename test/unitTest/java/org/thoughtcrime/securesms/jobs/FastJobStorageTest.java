@@ -13,16 +13,22 @@ import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyList;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -49,7 +55,7 @@ public class FastJobStorageTest {
 
     subject.insertJobs(DataSet1.FULL_SPECS);
 
-    verify(database).insertJobs(DataSet1.FULL_SPECS);
+    verify(database).writeBatch(DataSet1.FULL_SPECS, Collections.emptyList(), Collections.emptyList());
   }
 
   @Test
@@ -139,13 +145,18 @@ public class FastJobStorageTest {
   }
 
   @Test
-  public void updateJobRunningState_writesToDatabase() {
+  public void updateJobRunningState_writesToDatabaseOnFlush() {
     JobDatabase    database = noopDatabase();
-    FastJobStorage subject  = new FastJobStorage(database);
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
 
-    subject.updateJobRunningState("1", true);
+    subject.insertJobs(Collections.singletonList(DataSet1.FULL_SPEC_1));
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+
+    verify(database, never()).writeBatch(Collections.emptyList(), Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())), Collections.emptyList());
+
+    subject.flush();
 
-    verify(database).updateJobRunningState("1", true);
+    verify(database).writeBatch(Collections.emptyList(), Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())), Collections.emptyList());
   }
 
   @Test
@@ -163,11 +174,25 @@ public class FastJobStorageTest {
   @Test
   public void updateJobAfterRetry_writesToDatabase() {
     JobDatabase    database = noopDatabase();
-    FastJobStorage subject  = new FastJobStorage(database);
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
 
-    subject.updateJobAfterRetry("1", true, 1, 10, "a");
+    subject.insertJobs(Collections.singletonList(DataSet1.FULL_SPEC_1));
+    subject.updateJobAfterRetry(DataSet1.JOB_1.getId(), true, 1, 10, "a");
 
-    verify(database).updateJobAfterRetry("1", true, 1, 10, "a");
+    verify(database).writeBatch(Collections.emptyList(), Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())), Collections.emptyList());
+  }
+
+  @Test
+  public void updateJobAfterRetry_coalescesPendingRunningState() {
+    JobDatabase    database = noopDatabase();
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
+
+    subject.insertJobs(Collections.singletonList(DataSet1.FULL_SPEC_1));
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+    subject.updateJobAfterRetry(DataSet1.JOB_1.getId(), false, 1, 10, "a");
+
+    verify(database, times(2)).writeBatch(anyList(), anyList(), anyList());
+    verify(database).writeBatch(Collections.emptyList(), Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())), Collections.emptyList());
   }
 
   @Test
@@ -406,7 +431,74 @@ public class FastJobStorageTest {
 
     subject.deleteJobs(ids);
 
-    verify(database).deleteJobs(ids);
+    verify(database).writeBatch(Collections.emptyList(), Collections.emptyList(), ids);
+  }
+
+  @Test
+  public void deleteJobs_durableJobDoesNotWriteRunningState() {
+    JobDatabase    database = noopDatabase();
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
+
+    subject.insertJobs(Collections.singletonList(DataSet1.FULL_SPEC_1));
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+    subject.deleteJob(DataSet1.JOB_1.getId());
+    subject.flush();
+
+    verify(database, times(2)).writeBatch(anyList(), anyList(), anyList());
+    verify(database).writeBatch(Collections.emptyList(), Collections.emptyList(), Collections.singletonList(DataSet1.JOB_1.getId()));
+  }
+
+  @Test
+  public void deleteJobs_nonDurableJobNeverWritten() {
+    JobDatabase    database = noopDatabase();
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
+    FullSpec       fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false, false, Job.Parameters.PRIORITY_DEFAULT),
+                                           Collections.emptyList(),
+                                           Collections.emptyList());
+
+    subject.insertJobs(Collections.singletonList(fullSpec));
+    subject.updateJobRunningState("1", true);
+    subject.deleteJob("1");
+    subject.flush();
+
+    verify(database, never()).writeBatch(anyList(), anyList(), anyList());
+  }
+
+  @Test
+  public void deleteJobs_nonDurableJobWithDependentsStillClearsDependencies() {
+    JobDatabase    database  = noopDatabase();
+    FastJobStorage subject   = new FastJobStorage(database, r -> {});
+    FullSpec       fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false, false, Job.Parameters.PRIORITY_DEFAULT),
+                                            Collections.emptyList(),
+                                            Collections.emptyList());
+    FullSpec       fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false, false, Job.Parameters.PRIORITY_DEFAULT),
+                                            Collections.emptyList(),
+                                            Collections.singletonList(new DependencySpec("2", "1")));
+
+    subject.insertJobs(Arrays.asList(fullSpec1, fullSpec2));
+    subject.deleteJob("1");
+    subject.flush();
+
+    FullSpec expectedInsert = new FullSpec(fullSpec2.getJobSpec(), Collections.emptyList(), Collections.emptyList());
+
+    verify(database).writeBatch(Collections.singletonList(expectedInsert), Collections.emptyList(), Collections.singletonList("1"));
+  }
+
+  @Test
+  public void insertJobs_nonDurableJobWrittenOnFlush() {
+    JobDatabase    database = noopDatabase();
+    FastJobStorage subject  = new FastJobStorage(database, r -> {});
+    FullSpec       fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false, false, Job.Parameters.PRIORITY_DEFAULT),
+                                           Collections.emptyList(),
+                                           Collections.emptyList());
+
+    subject.insertJobs(Collections.singletonList(fullSpec));
+
+    verify(database, never()).writeBatch(anyList(), anyList(), anyList());
+
+    subject.flush();
+
+    verify(database).writeBatch(Collections.singletonList(fullSpec), Collections.emptyList(), Collections.emptyList());
   }
 
   @Test
@@ -464,6 +556,183 @@ public class FastJobStorageTest {
     assertTrue(result.isEmpty());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_sameCreateTimeUsesInsertOrder() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("2", "f1", null, 5, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("1", "f2", null, 5, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(2, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+    assertEquals("1", jobs.get(1).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextInQueueAfterHeadDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    subject.updateJobRunningState("1", true);
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterDependencyDeleted() {
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(DataSet1.FULL_SPECS));
+    subject.init();
+
+    subject.deleteJob("id1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("id2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleOnceRetryTimeHasPassed() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+
+    subject.updateJobAfterRetry("1", false, 1, 20, EMPTY_DATA);
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(20).size());
+  }
+
+  @Test
+  public void getJobInstanceCount_tracksInsertsAndDeletes() {
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    assertEquals(1, subject.getJobInstanceCount("f1"));
+
+    subject.deleteJob("id1");
+    assertEquals(0, subject.getJobInstanceCount("f1"));
+    assertEquals(1, subject.getJobInstanceCount("f2"));
+  }
+
+  @Test
+  public void isQueueEmpty_tracksInsertsAndDeletes() {
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+
+    assertTrue(subject.isQueueEmpty("q1"));
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    assertFalse(subject.isQueueEmpty("q1"));
+
+    subject.deleteJob("id1");
+    assertTrue(subject.isQueueEmpty("q1"));
+    assertFalse(subject.isQueueEmpty("q2"));
+  }
+
+  @Test
+  public void randomOperations_matchUnindexedBehavior() {
+    Random         random  = new Random(1234);
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+    List<String>   ids     = new ArrayList<>();
+    String[]       queues  = new String[] { null, "q1", "q2", "q3", Job.Parameters.MIGRATION_QUEUE_KEY };
+
+    for (int i = 0; i < 2000; i++) {
+      int operation = random.nextInt(10);
+
+      if (operation < 4 || ids.isEmpty()) {
+        String               id           = String.valueOf(i);
+        String               queue        = random.nextInt(20) == 0 ? queues[4] : queues[random.nextInt(4)];
+        List<DependencySpec> dependencies = new ArrayList<>();
+
+        if (!ids.isEmpty() && random.nextInt(4) == 0) {
+          dependencies.add(new DependencySpec(id, ids.get(random.nextInt(ids.size()))));
+        }
+
+        JobSpec jobSpec = new JobSpec(id, "f" + random.nextInt(3), queue, random.nextInt(50), random.nextInt(50), 0, 0, 0, -1, -1, EMPTY_DATA, false);
+
+        subject.insertJobs(Collections.singletonList(new FullSpec(jobSpec, Collections.emptyList(), dependencies)));
+        ids.add(id);
+      } else if (operation < 6) {
+        subject.updateJobRunningState(ids.get(random.nextInt(ids.size())), random.nextBoolean());
+      } else if (operation < 7) {
+        subject.updateJobAfterRetry(ids.get(random.nextInt(ids.size())), false, 1, random.nextInt(50), EMPTY_DATA);
+      } else {
+        subject.deleteJob(ids.remove(random.nextInt(ids.size())));
+      }
+
+      long currentTime = random.nextInt(50);
+
+      assertEquals(unindexedPendingJobs(subject.getAllJobSpecs(), subject.getAllDependencySpecs(), currentTime),
+                   subject.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime));
+      assertEquals(unindexedInstanceCount(subject.getAllJobSpecs(), "f0"), subject.getJobInstanceCount("f0"));
+    }
+  }
+
+  /**
+   * The straightforward scan over every job that {@link FastJobStorage} used prior to being indexed.
+   */
+  private static @NonNull List<JobSpec> unindexedPendingJobs(@NonNull List<JobSpec> jobs, @NonNull List<DependencySpec> dependencies, long currentTime) {
+    JobSpec migrationJob = Stream.of(jobs)
+                                 .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
+                                 .filter(j -> unindexedFirstInQueue(jobs, j))
+                                 .findFirst()
+                                 .orElse(null);
+
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
+      return Collections.emptyList();
+    } else {
+      return Stream.of(jobs)
+                   .filterNot(JobSpec::isRunning)
+                   .filter(j -> unindexedFirstInQueue(jobs, j))
+                   .filter(j -> Stream.of(dependencies).noneMatch(d -> d.getJobId().equals(j.getId())))
+                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
+                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
+                   .toList();
+    }
+  }
+
+  private static boolean unindexedFirstInQueue(@NonNull List<JobSpec> jobs, @NonNull JobSpec job) {
+    if (job.getQueueKey() == null) {
+      return true;
+    }
+
+    return Stream.of(jobs)
+                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
+                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
+                 .toList()
+                 .get(0)
+                 .equals(job);
+  }
+
+  private static int unindexedInstanceCount(@NonNull List<JobSpec> jobs, @NonNull String factoryKey) {
+    return (int) Stream.of(jobs).filter(j -> j.getFactoryKey().equals(factoryKey)).count();
+  }
+
   private JobDatabase noopDatabase() {
     JobDatabase database = mock(JobDatabase.class);
 
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Locale;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the throughput of writing each entry on its own with writing entries in blocks.
+ */
+public final class LogFileBenchmarkTest {
+
+  private static final int BENCHMARK_LINES = 20000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] secret = secret();
+
+  @Test
+  public void benchmark_linesPerSecond() throws Exception {
+    String line = "2019-10-18 12:00:00.000 PDT I PushDecryptJob: Processing message ID 12345 from a recipient";
+
+    File legacyFile  = folder.newFile();
+    long legacyStart = System.nanoTime();
+
+    try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(legacyFile, true))) {
+      LogFileTest.LegacyWriter legacyWriter = new LogFileTest.LegacyWriter(secret, outputStream);
+
+      for (int i = 0; i < BENCHMARK_LINES; i++) {
+        legacyWriter.writeEntry(line);
+      }
+    }
+
+    long legacyNanos = System.nanoTime() - legacyStart;
+
+    File              blockFile  = folder.newFile();
+    LogBuffer         buffer     = new LogBuffer(1024, 256);
+    LogBuffer.Entry[] drained    = LogBuffer.newEntries(1024);
+    LogFile.Writer    writer     = new LogFile.Writer(secret, blockFile);
+    StringBuilder     block      = new StringBuilder();
+    long              blockStart = System.nanoTime();
+
+    for (int i = 0; i < BENCHMARK_LINES; i++) {
+      buffer.append(i, "I", "PushDecryptJob", line, null);
+
+      if ((i + 1) % 256 == 0 || i == BENCHMARK_LINES - 1) {
+        int count = buffer.drainTo(drained);
+
+        for (int j = 0; j < count; j++) {
+          block.append(drained[j].message).append('\n');
+          drained[j].clear();
+        }
+
+        writeBlock(writer, block.toString());
+        block.setLength(0);
+      }
+    }
+
+    writer.close();
+
+    long blockNanos = System.nanoTime() - blockStart;
+
+    assertEquals(BENCHMARK_LINES, countLines(blockFile));
+
+    System.out.println(String.format(Locale.US, "per-entry: %.0f lines/sec, %d bytes | blocks: %.0f lines/sec, %d bytes",
+                                     BENCHMARK_LINES * 1e9 / legacyNanos,
+                                     legacyFile.length(),
+                                     BENCHMARK_LINES * 1e9 / blockNanos,
+                                     blockFile.length()));
+  }
+
+  private int countLines(File file) throws IOException {
+    int count = 0;
+
+    try (LogFile.Reader reader = new LogFile.Reader(secret, file)) {
+      while (reader.readLine() != null) {
+        count++;
+      }
+    }
+
+    return count;
+  }
+
+  private static void writeBlock(LogFile.Writer writer, String entries) throws IOException {
+    byte[] plaintext = entries.getBytes(StandardCharsets.UTF_8);
+    writer.writeBlock(plaintext, plaintext.length);
+  }
+
+  private static byte[] secret() {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    return secret;
+  }
+}
@@ -0,0 +1,197 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.thoughtcrime.securesms.util.Conversions;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class LogFileTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[] secret = secret();
+
+  @Test
+  public void blocks_roundTrip() throws IOException {
+    File           file   = folder.newFile();
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    writeBlock(writer, "one\ntwo\n");
+    writeBlock(writer, "three é中\n");
+    writer.close();
+
+    assertEquals("one\ntwo\nthree é中\n", readAll(file));
+  }
+
+  @Test
+  public void blocks_appendToExistingFile() throws IOException {
+    File file = folder.newFile();
+
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+    writeBlock(writer, "one\n");
+    writer.close();
+
+    assertTrue(LogFile.canAppendBlocks(file));
+
+    writer = new LogFile.Writer(secret, file);
+    writeBlock(writer, "two\n");
+    writer.close();
+
+    assertEquals("one\ntwo\n", readAll(file));
+  }
+
+  @Test
+  public void blocks_truncatedOrTamperedTailIsIgnored() throws IOException {
+    File           file   = folder.newFile();
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    writeBlock(writer, "one\n");
+    long firstBlockEnd = file.length();
+    writeBlock(writer, "two\n");
+    writer.close();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.seek(file.length() - 1);
+      int last = raf.read();
+      raf.seek(file.length() - 1);
+      raf.write(last ^ 1);
+    }
+
+    assertEquals("one\n", readAll(file));
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(firstBlockEnd + 5);
+    }
+
+    assertEquals("one\n", readAll(file));
+  }
+
+  @Test
+  public void blocks_appendAfterTornBlockIsReadable() throws IOException {
+    File           file   = folder.newFile();
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    writeBlock(writer, "one\n");
+    long firstBlockEnd = file.length();
+    writeBlock(writer, "two\n");
+    writer.close();
+
+    try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+      raf.setLength(firstBlockEnd + (file.length() - firstBlockEnd) / 2);
+    }
+
+    LogFile.truncateUnreadableTail(secret, file);
+
+    assertEquals(firstBlockEnd, file.length());
+
+    writer = new LogFile.Writer(secret, file);
+    writeBlock(writer, "three\n");
+    writer.close();
+
+    assertEquals("one\nthree\n", readAll(file));
+  }
+
+  @Test
+  public void readLine_streamsEntriesAcrossBlocks() throws IOException {
+    File           file   = folder.newFile();
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    writeBlock(writer, "one\ntwo\n");
+    writeBlock(writer, "three\n");
+    writer.close();
+
+    LogFile.Reader reader = new LogFile.Reader(secret, file);
+
+    assertEquals("one", reader.readLine());
+    assertEquals("two", reader.readLine());
+    assertEquals("three", reader.readLine());
+    assertNull(reader.readLine());
+
+    reader.close();
+  }
+
+  @Test
+  public void legacy_readsPerEntryFormat() throws Exception {
+    File file = folder.newFile();
+
+    try (OutputStream outputStream = new FileOutputStream(file)) {
+      LegacyWriter legacyWriter = new LegacyWriter(secret, outputStream);
+      legacyWriter.writeEntry("one");
+      legacyWriter.writeEntry("two");
+    }
+
+    assertFalse(LogFile.canAppendBlocks(file));
+    assertEquals("one\ntwo\n", readAll(file));
+  }
+
+  private String readAll(File file) throws IOException {
+    StringBuilder builder = new StringBuilder();
+
+    try (LogFile.Reader reader = new LogFile.Reader(secret, file)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        builder.append(line).append('\n');
+      }
+    }
+
+    return builder.toString();
+  }
+
+  private static void writeBlock(LogFile.Writer writer, String entries) throws IOException {
+    byte[] plaintext = entries.getBytes(StandardCharsets.UTF_8);
+    writer.writeBlock(plaintext, plaintext.length);
+  }
+
+  private static byte[] secret() {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    return secret;
+  }
+
+  /**
+   * Writes entries the way they were written before blocks existed.
+   */
+  static final class LegacyWriter {
+
+    private final byte[]       secret;
+    private final OutputStream outputStream;
+
+    LegacyWriter(byte[] secret, OutputStream outputStream) {
+      this.secret       = secret;
+      this.outputStream = outputStream;
+    }
+
+    void writeEntry(String entry) throws Exception {
+      byte[] iv = new byte[16];
+      new SecureRandom().nextBytes(iv);
+
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(iv));
+
+      byte[] ciphertext = cipher.doFinal(entry.getBytes());
+
+      outputStream.write(iv);
+      outputStream.write(Conversions.intToByteArray(ciphertext.length));
+      outputStream.write(ciphertext);
+      outputStream.flush();
+    }
+  }
+}
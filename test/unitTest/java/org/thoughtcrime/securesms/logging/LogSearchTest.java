@@ -0,0 +1,217 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class LogSearchTest {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final byte[]           secret     = secret();
+  private final SimpleDateFormat dateFormat = new SimpleDateFormat(PersistentLogger.DATE_PATTERN);
+
+  @Test
+  public void query_all_returnsEveryLineInOrder() throws IOException {
+    File log = writeLog("log-1", true, 0, 10, 10);
+
+    LogPage page = new LogSearch(secret).query(new File[] { log }, new LogQuery.Builder().build(), null, 1000);
+
+    assertEquals(100, page.getLines().size());
+    assertTrue(page.getLines().get(0).endsWith("message 0"));
+    assertTrue(page.getLines().get(99).endsWith("message 99"));
+    assertNull(page.getNext());
+  }
+
+  @Test
+  public void query_byTagAndLevel() throws IOException {
+    File     log   = writeLog("log-1", true, 0, 10, 10);
+    LogQuery query = new LogQuery.Builder().addTag("Tag3").setMinimumLevel("W").build();
+
+    LogPage page = new LogSearch(secret).query(new File[] { log }, query, null, 1000);
+
+    assertEquals(expected(0, 100, 3, "W"), page.getLines());
+  }
+
+  @Test
+  public void query_byTimeRange_indexedAndUnindexedMatch() throws IOException {
+    File     indexed   = writeLog("log-1", true, 0, 10, 10);
+    File     unindexed = writeLog("log-2", false, 0, 10, 10);
+    LogQuery query     = new LogQuery.Builder().setTimeRange(time(25), time(62)).build();
+
+    List<String> fromIndexed   = new LogSearch(secret).query(new File[] { indexed }, query, null, 1000).getLines();
+    List<String> fromUnindexed = new LogSearch(secret).query(new File[] { unindexed }, query, null, 1000).getLines();
+
+    assertEquals(38, fromIndexed.size());
+    assertTrue(fromIndexed.get(0).endsWith("message 25"));
+    assertTrue(fromIndexed.get(37).endsWith("message 62"));
+    assertEquals(fromUnindexed, fromIndexed);
+  }
+
+  @Test
+  public void query_pagesAcrossBlocksAndFiles() throws IOException {
+    File[]   logs  = { writeLog("log-1", true, 0, 5, 7), writeLog("log-2", true, 35, 5, 7) };
+    LogQuery query = new LogQuery.Builder().addTag("Tag1").build();
+
+    List<String>   lines  = new ArrayList<>();
+    LogPage.Cursor cursor = null;
+    int            pages  = 0;
+
+    do {
+      LogPage page = new LogSearch(secret).query(logs, query, cursor, 3);
+      assertTrue(page.getLines().size() <= 3);
+
+      lines.addAll(page.getLines());
+      cursor = page.getNext();
+      pages++;
+    } while (cursor != null);
+
+    assertEquals(expected(0, 70, 1, null), lines);
+    assertTrue(pages >= 4);
+  }
+
+  @Test
+  public void query_continuationLinesFollowTheirEntry() throws IOException {
+    File           log        = folder.newFile("log-1");
+    LogFile.Writer writer     = new LogFile.Writer(secret, log);
+    String         entry      = line(0, "E", "Crash") + "\n\tat Foo.bar(Foo.java:1)\n" + line(1, "I", "Other") + "\n";
+    byte[]         plaintext  = entry.getBytes(StandardCharsets.UTF_8);
+
+    writer.writeBlock(plaintext, plaintext.length);
+    writer.close();
+
+    LogPage page = new LogSearch(secret).query(new File[] { log }, new LogQuery.Builder().addTag("Crash").build(), null, 10);
+
+    assertEquals(Arrays.asList(line(0, "E", "Crash"), "\tat Foo.bar(Foo.java:1)"), page.getLines());
+  }
+
+  @Test
+  public void index_isDroppedWhenItFallsBehindTheLog() throws IOException {
+    File log = writeLog("log-1", true, 0, 2, 5);
+
+    LogFile.Writer writer = new LogFile.Writer(secret, log);
+    byte[]         extra  = (line(10, "I", "Tag0") + "\n").getBytes(StandardCharsets.UTF_8);
+    writer.writeBlock(extra, extra.length);
+    writer.close();
+
+    assertNull(LogIndex.Writer.open(secret, log, LogFile.HEADER_LENGTH));
+    assertEquals(0, LogIndex.read(secret, log).size());
+
+    LogPage page = new LogSearch(secret).query(new File[] { log }, new LogQuery.Builder().build(), null, 100);
+    assertEquals(11, page.getLines().size());
+  }
+
+  @Test
+  public void index_resumesWhenConsistent() throws IOException {
+    File log = writeLog("log-1", true, 0, 2, 5);
+
+    LogIndex.Writer indexWriter = LogIndex.Writer.open(secret, log, LogFile.HEADER_LENGTH);
+    assertNotNull(indexWriter);
+    indexWriter.close();
+
+    assertEquals(2, LogIndex.read(secret, log).size());
+  }
+
+  @Test
+  public void index_isDroppedWhenItCannotBeDecrypted() throws IOException {
+    File log = writeLog("log-1", true, 0, 2, 5);
+
+    assertEquals(0, LogIndex.read(secret(), log).size());
+    assertFalse(LogIndex.fileFor(log).exists());
+
+    LogPage page = new LogSearch(secret).query(new File[] { log }, new LogQuery.Builder().build(), null, 100);
+    assertEquals(10, page.getLines().size());
+  }
+
+  /**
+   * Writes {@code blocks} blocks of {@code linesPerBlock} lines, where line i has tag "Tag(i % 5)",
+   * level "VDIWEA"[i % 6] and a time i seconds after the epoch.
+   */
+  private File writeLog(String name, boolean indexed, int firstLine, int blocks, int linesPerBlock) throws IOException {
+    File                log         = folder.newFile(name);
+    LogIndex.Writer     indexWriter = indexed ? LogIndex.Writer.open(secret, log, LogFile.HEADER_LENGTH) : null;
+    LogFile.Writer      writer      = new LogFile.Writer(secret, log);
+    LogIndex.BlockStats stats       = new LogIndex.BlockStats();
+
+    int i = firstLine;
+
+    for (int block = 0; block < blocks; block++) {
+      StringBuilder builder = new StringBuilder();
+
+      for (int j = 0; j < linesPerBlock; j++, i++) {
+        builder.append(line(i, level(i), tag(i))).append('\n');
+        stats.add(time(i), level(i), tag(i));
+      }
+
+      byte[] plaintext = builder.toString().getBytes(StandardCharsets.UTF_8);
+      long   offset    = writer.getLogSize();
+
+      writer.writeBlock(plaintext, plaintext.length);
+
+      if (indexWriter != null) {
+        indexWriter.append(offset, (int) (writer.getLogSize() - offset), stats);
+      }
+
+      stats.reset();
+    }
+
+    writer.close();
+
+    if (indexWriter != null) {
+      indexWriter.close();
+    }
+
+    return log;
+  }
+
+  private List<String> expected(int from, int to, int tag, String minimumLevel) {
+    List<String> lines = new ArrayList<>();
+
+    for (int i = from; i < to; i++) {
+      if (tag(i).equals("Tag" + tag) && (minimumLevel == null || LogQuery.LEVELS.indexOf(level(i)) >= LogQuery.LEVELS.indexOf(minimumLevel))) {
+        lines.add(line(i, level(i), tag(i)));
+      }
+    }
+
+    return lines;
+  }
+
+  private String line(int i, String level, String tag) {
+    return dateFormat.format(new Date(time(i))) + ' ' + level + ' ' + tag + ": message " + i;
+  }
+
+  private static long time(int i) {
+    return i * 1000L;
+  }
+
+  private static String level(int i) {
+    return String.valueOf(LogQuery.LEVELS.charAt(i % LogQuery.LEVELS.length()));
+  }
+
+  private static String tag(int i) {
+    return "Tag" + (i % 5);
+  }
+
+  private static byte[] secret() {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+    return secret;
+  }
+}